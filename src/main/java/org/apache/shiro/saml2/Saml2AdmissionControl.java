@@ -0,0 +1,214 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletRequest;
+
+/**
+ * Decides whether a login is processed at all, before any Base64 decoding or
+ * XML parsing takes place, so that a burst of oversized or garbage posts
+ * cannot saturate the server with XML work.
+ * <p>
+ * Three independent checks are available:
+ * <ul>
+ * <li>a maximum size of the encoded SAML2 response, checked against the
+ * SAMLResponse parameter, or against the request body when the response is
+ * streamed</li>
+ * <li>a maximum number of logins in progress, a login waiting at most
+ * {@link #getAdmissionTimeout()} milliseconds for a slot before being
+ * turned away</li>
+ * <li>an optional per client address {@link Saml2RateLimiter}</li>
+ * </ul>
+ * Each {@link Saml2RejectionReason} has its own counter.
+ */
+public class Saml2AdmissionControl {
+
+	/*
+	 * Default maximum size of an encoded SAML2 response
+	 */
+	public static final int DEFAULT_MAX_PAYLOAD_SIZE = 1024 * 1024;
+
+	/*
+	 * Default time waited for a login slot, in milliseconds
+	 */
+	public static final long DEFAULT_ADMISSION_TIMEOUT = 100L;
+
+	private volatile int maxPayloadSize = DEFAULT_MAX_PAYLOAD_SIZE;
+
+	private volatile int maxConcurrentLogins = 0;
+
+	/*
+	 * Slots of the logins in progress, null if their number is unlimited
+	 */
+	private volatile Semaphore loginSlots;
+
+	private volatile long admissionTimeout = DEFAULT_ADMISSION_TIMEOUT;
+
+	private volatile Saml2RateLimiter rateLimiter;
+
+	private final Map<Saml2RejectionReason, AtomicLong> rejectionCounts = new EnumMap<Saml2RejectionReason, AtomicLong>(
+			Saml2RejectionReason.class);
+
+	public Saml2AdmissionControl() {
+		for (Saml2RejectionReason reason : Saml2RejectionReason.values()) {
+			rejectionCounts.put(reason, new AtomicLong());
+		}
+	}
+
+	/**
+	 * Checks the client rate and the declared length of the request body.
+	 *
+	 * @param request
+	 *            the incoming request
+	 * @return the reason why the request is rejected, or <code>null</code> if
+	 *         it is admitted
+	 */
+	public Saml2RejectionReason admit(ServletRequest request) {
+		Saml2RateLimiter limiter = rateLimiter;
+		if (limiter != null && !limiter.tryAcquire(request.getRemoteAddr())) {
+			return reject(Saml2RejectionReason.RATE_LIMIT);
+		}
+		if (isPayloadTooLarge(request.getContentLength())) {
+			return reject(Saml2RejectionReason.PAYLOAD_TOO_LARGE);
+		}
+		return null;
+	}
+
+	/**
+	 * @param size
+	 *            the size of the encoded SAML2 response, or of the request
+	 *            body carrying it
+	 * @return <code>true</code> if the size exceeds the maximum payload size
+	 */
+	public boolean isPayloadTooLarge(long size) {
+		return maxPayloadSize > 0 && size > maxPayloadSize;
+	}
+
+	/**
+	 * Takes a login slot, waiting at most {@link #getAdmissionTimeout()}
+	 * milliseconds for one to be released. A successful acquisition must be
+	 * followed by a {@link #release()}.
+	 *
+	 * @return <code>true</code> if the login can proceed
+	 */
+	public boolean acquire() {
+		Semaphore slots = loginSlots;
+		if (slots == null) {
+			return true;
+		}
+		try {
+			if (slots.tryAcquire() || admissionTimeout > 0
+					&& slots.tryAcquire(admissionTimeout,
+							TimeUnit.MILLISECONDS)) {
+				return true;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		reject(Saml2RejectionReason.CONCURRENCY_LIMIT);
+		return false;
+	}
+
+	/**
+	 * Releases the slot taken by a successful {@link #acquire()}.
+	 */
+	public void release() {
+		Semaphore slots = loginSlots;
+		if (slots != null) {
+			slots.release();
+		}
+	}
+
+	/**
+	 * Counts a rejection.
+	 *
+	 * @param reason
+	 *            the reason of the rejection
+	 * @return the given reason
+	 */
+	public Saml2RejectionReason reject(Saml2RejectionReason reason) {
+		rejectionCounts.get(reason).incrementAndGet();
+		return reason;
+	}
+
+	/**
+	 * @param reason
+	 *            a rejection reason
+	 * @return the number of logins rejected for this reason
+	 */
+	public long getRejectionCount(Saml2RejectionReason reason) {
+		return rejectionCounts.get(reason).get();
+	}
+
+	public int getMaxPayloadSize() {
+		return maxPayloadSize;
+	}
+
+	/**
+	 * @param maxPayloadSize
+	 *            the maximum size of an encoded SAML2 response, 0 for no
+	 *            limit
+	 */
+	public void setMaxPayloadSize(int maxPayloadSize) {
+		this.maxPayloadSize = maxPayloadSize;
+	}
+
+	public int getMaxConcurrentLogins() {
+		return maxConcurrentLogins;
+	}
+
+	/**
+	 * Must be set before the first login.
+	 *
+	 * @param maxConcurrentLogins
+	 *            the maximum number of logins in progress, 0 for no limit
+	 */
+	public void setMaxConcurrentLogins(int maxConcurrentLogins) {
+		this.maxConcurrentLogins = maxConcurrentLogins;
+		this.loginSlots = maxConcurrentLogins > 0 ? new Semaphore(
+				maxConcurrentLogins) : null;
+	}
+
+	public long getAdmissionTimeout() {
+		return admissionTimeout;
+	}
+
+	public void setAdmissionTimeout(long admissionTimeout) {
+		this.admissionTimeout = admissionTimeout;
+	}
+
+	public Saml2RateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
+	/**
+	 * @param rateLimiter
+	 *            the per client rate limiter, <code>null</code> to disable
+	 *            rate limiting
+	 */
+	public void setRateLimiter(Saml2RateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+}
@@ -0,0 +1,486 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.shiro.util.Destroyable;
+import org.apache.shiro.util.Initializable;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.opensaml.Configuration;
+import org.opensaml.common.SAMLObject;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.core.ArtifactResponse;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.saml2.core.StatusCode;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.io.Unmarshaller;
+import org.opensaml.xml.io.UnmarshallingException;
+import org.opensaml.xml.util.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Resolves the artifacts of the HTTP-Artifact binding into SAML2 responses,
+ * with an <code>ArtifactResolve</code> SOAP request sent to the artifact
+ * resolution service of the IdP over the back channel.
+ * <p>
+ * The requests go through a single HTTP client whose connections are pooled
+ * and kept alive, so that resolutions do not pay a TCP and TLS handshake
+ * each. The pool is bounded, in total and per IdP host, and a resolution
+ * waits at most the pool timeout for a connection once all of them are in
+ * use, which bounds the number of concurrent resolutions. The pool sizes and
+ * timeouts are applied when the resolver is initialized.
+ * <p>
+ * The service is picked from the source ID of the artifact, the SHA-1 digest
+ * of the IdP entity ID, among the configured services, falling back on the
+ * default service URL. The back channel is trusted through TLS: the
+ * <code>ArtifactResolve</code> is not signed, and the signatures of the
+ * resolved response are verified by the realm as for the other bindings.
+ */
+public class Saml2ArtifactResolver implements Initializable, Destroyable {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(Saml2ArtifactResolver.class);
+
+	private static final int TYPE_CODE = 0x0004;
+
+	private static final int ARTIFACT_LENGTH = 44;
+
+	private static final String SOAP_ACTION = "http://www.oasis-open.org/committees/security";
+
+	private static final String CONTENT_TYPE = "text/xml; charset=UTF-8";
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	/*
+	 * Artifact resolution service used when no service is configured for the
+	 * source of an artifact
+	 */
+	private String serviceUrl;
+
+	/*
+	 * Artifact resolution services by IdP entity ID, and by the source ID
+	 * derived from the entity ID
+	 */
+	private Map<String, String> serviceUrls = Collections.emptyMap();
+
+	private volatile Map<String, String> serviceUrlsBySourceId = Collections
+			.emptyMap();
+
+	/*
+	 * Entity ID of this Service Provider, the issuer of the requests
+	 */
+	private String issuer;
+
+	private int maxConnections = 20;
+
+	private int maxConnectionsPerHost = 20;
+
+	private int connectTimeout = 5000;
+
+	private int readTimeout = 10000;
+
+	/*
+	 * How long a resolution waits for a pooled connection
+	 */
+	private long poolTimeout = 5000L;
+
+	private Saml2ParserPool parserPool = TokenToSaml2Response
+			.getDefaultParserPool();
+
+	private MultiThreadedHttpConnectionManager connectionManager;
+
+	private volatile HttpClient httpClient;
+
+	public Saml2ArtifactResolver() {
+	}
+
+	/**
+	 * @param serviceUrl
+	 *            the URL of the artifact resolution service of the IdP
+	 */
+	public Saml2ArtifactResolver(String serviceUrl) {
+		this.serviceUrl = serviceUrl;
+	}
+
+	/**
+	 * Creates the pool of back-channel connections.
+	 */
+	public synchronized void init() {
+		if (httpClient != null) {
+			return;
+		}
+		connectionManager = new MultiThreadedHttpConnectionManager();
+		HttpConnectionManagerParams params = connectionManager.getParams();
+		params.setMaxTotalConnections(maxConnections);
+		params.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+		params.setConnectionTimeout(connectTimeout);
+		params.setSoTimeout(readTimeout);
+		params.setStaleCheckingEnabled(true);
+		HttpClient client = new HttpClient(connectionManager);
+		client.getParams().setConnectionManagerTimeout(poolTimeout);
+		httpClient = client;
+	}
+
+	/**
+	 * Closes the pooled connections.
+	 */
+	public synchronized void destroy() {
+		if (connectionManager != null) {
+			connectionManager.shutdown();
+			connectionManager = null;
+			httpClient = null;
+		}
+	}
+
+	/**
+	 * Resolves an artifact into the response it stands for.
+	 * 
+	 * @param artifact
+	 *            the Base64 encoded artifact, as received in the SAMLart
+	 *            parameter
+	 * @return the response, still backed by its DOM
+	 * @throws Saml2TokenValidationException
+	 *             if the artifact is malformed or from an unknown source, or
+	 *             if the IdP does not answer with a successful
+	 *             <code>ArtifactResponse</code> carrying a response
+	 */
+	public Response resolve(String artifact)
+			throws Saml2TokenValidationException {
+		String url = getServiceUrl(artifact);
+		String requestId = newId();
+		HttpClient client = getHttpClient();
+
+		Saml2Bootstrap.bootstrap();
+		Saml2Metrics metrics = Saml2Metrics.getInstance();
+		long start = metrics.start();
+		PostMethod post = new PostMethod(url);
+		Document document;
+		try {
+			post.setRequestHeader("SOAPAction", SOAP_ACTION);
+			post.setRequestEntity(new ByteArrayRequestEntity(
+					artifactResolve(requestId, url, artifact), CONTENT_TYPE));
+			int status = client.executeMethod(post);
+			if (status != HttpStatus.SC_OK) {
+				throw new Saml2TokenValidationException(
+						"Artifact resolution service answered with status "
+								+ status);
+			}
+			InputStream body = post.getResponseBodyAsStream();
+			if (body == null) {
+				throw new Saml2TokenValidationException(
+						"Artifact resolution service answered without a body");
+			}
+			document = parserPool.parse(body);
+		} catch (IOException e) {
+			throw new Saml2TokenValidationException(
+					"Cannot reach the artifact resolution service " + url, e);
+		} finally {
+			/*
+			 * Gives the connection back to the pool, kept alive if the body
+			 * was read to its end
+			 */
+			post.releaseConnection();
+		}
+		metrics.record(Saml2Stage.ARTIFACT_RESOLUTION, start);
+
+		start = metrics.start();
+		ArtifactResponse artifactResponse = unmarshall(document);
+		metrics.record(Saml2Stage.UNMARSHALL, start);
+		return getResponse(artifactResponse, requestId);
+	}
+
+	private HttpClient getHttpClient() {
+		HttpClient client = httpClient;
+		if (client == null) {
+			init();
+			client = httpClient;
+		}
+		return client;
+	}
+
+	/*
+	 * Picks the service from the source ID of a type 0x0004 artifact
+	 */
+	private String getServiceUrl(String artifact)
+			throws Saml2TokenValidationException {
+		byte[] decoded = Base64.decode(artifact);
+		if (decoded == null || decoded.length != ARTIFACT_LENGTH
+				|| ((decoded[0] & 0xff) << 8 | (decoded[1] & 0xff)) != TYPE_CODE) {
+			throw new Saml2TokenValidationException(
+					"Not a SAML2 type 0x0004 artifact");
+		}
+		String url = serviceUrlsBySourceId.get(hex(Arrays.copyOfRange(
+				decoded, 4, 24)));
+		if (url == null) {
+			url = serviceUrl;
+		}
+		if (url == null) {
+			throw new Saml2TokenValidationException(
+					"No artifact resolution service for the artifact source");
+		}
+		return url;
+	}
+
+	private byte[] artifactResolve(String requestId, String url,
+			String artifact) {
+		StringBuilder xml = new StringBuilder(768);
+		xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+				.append("<soap11:Envelope xmlns:soap11=\"")
+				.append(SAMLConstants.SOAP11ENV_NS)
+				.append("\"><soap11:Body>")
+				.append("<samlp:ArtifactResolve xmlns:samlp=\"")
+				.append(SAMLConstants.SAML20P_NS)
+				.append("\" xmlns:saml=\"").append(SAMLConstants.SAML20_NS)
+				.append("\" ID=\"").append(requestId)
+				.append("\" Version=\"2.0\" IssueInstant=\"")
+				.append(new DateTime(DateTimeZone.UTC))
+				.append("\" Destination=\"").append(escape(url)).append("\">");
+		if (issuer != null) {
+			xml.append("<saml:Issuer>").append(escape(issuer))
+					.append("</saml:Issuer>");
+		}
+		xml.append("<samlp:Artifact>").append(escape(artifact))
+				.append("</samlp:Artifact></samlp:ArtifactResolve>")
+				.append("</soap11:Body></soap11:Envelope>");
+		try {
+			return xml.toString().getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static ArtifactResponse unmarshall(Document document)
+			throws Saml2TokenValidationException {
+		NodeList elements = document.getElementsByTagNameNS(
+				SAMLConstants.SAML20P_NS, "ArtifactResponse");
+		if (elements.getLength() == 0) {
+			throw new Saml2TokenValidationException(
+					"Artifact resolution service did not answer with an ArtifactResponse");
+		}
+		Element element = (Element) elements.item(0);
+		Unmarshaller unmarshaller = Configuration.getUnmarshallerFactory()
+				.getUnmarshaller(element);
+		try {
+			XMLObject xmlObject = unmarshaller.unmarshall(element);
+			return (ArtifactResponse) xmlObject;
+		} catch (UnmarshallingException e) {
+			throw new Saml2TokenValidationException(e);
+		}
+	}
+
+	private static Response getResponse(ArtifactResponse artifactResponse,
+			String requestId) throws Saml2TokenValidationException {
+		if (!requestId.equals(artifactResponse.getInResponseTo())) {
+			throw new Saml2TokenValidationException(
+					"ArtifactResponse does not answer request " + requestId);
+		}
+		if (artifactResponse.getStatus() == null
+				|| artifactResponse.getStatus().getStatusCode() == null
+				|| !StatusCode.SUCCESS_URI.equals(artifactResponse.getStatus()
+						.getStatusCode().getValue())) {
+			throw new Saml2TokenValidationException(
+					"Artifact resolution failed");
+		}
+		SAMLObject message = artifactResponse.getMessage();
+		if (!(message instanceof Response)) {
+			/*
+			 * An unknown or already resolved artifact resolves to nothing
+			 */
+			throw new Saml2TokenValidationException(
+					"Artifact did not resolve to a response");
+		}
+		return (Response) message;
+	}
+
+	private static String newId() {
+		byte[] bytes = new byte[16];
+		RANDOM.nextBytes(bytes);
+		return "_" + hex(bytes);
+	}
+
+	private static String hex(byte[] bytes) {
+		char[] digits = "0123456789abcdef".toCharArray();
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[2 * i] = digits[(bytes[i] >> 4) & 0x0f];
+			chars[2 * i + 1] = digits[bytes[i] & 0x0f];
+		}
+		return new String(chars);
+	}
+
+	/*
+	 * Escapes a value written in the text or an attribute of a template
+	 */
+	static String escape(String value) {
+		StringBuilder escaped = null;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			String entity;
+			switch (c) {
+			case '&':
+				entity = "&amp;";
+				break;
+			case '<':
+				entity = "&lt;";
+				break;
+			case '>':
+				entity = "&gt;";
+				break;
+			case '"':
+				entity = "&quot;";
+				break;
+			default:
+				entity = null;
+			}
+			if (entity != null && escaped == null) {
+				escaped = new StringBuilder(value.length() + 16);
+				escaped.append(value, 0, i);
+			}
+			if (escaped != null) {
+				if (entity != null) {
+					escaped.append(entity);
+				} else {
+					escaped.append(c);
+				}
+			}
+		}
+		return escaped == null ? value : escaped.toString();
+	}
+
+	/**
+	 * @param entityId
+	 *            an IdP entity ID
+	 * @return the source ID of the artifacts of the IdP, hex encoded
+	 */
+	static String sourceId(String entityId) {
+		try {
+			return hex(MessageDigest.getInstance("SHA-1").digest(
+					entityId.getBytes("UTF-8")));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public String getServiceUrl() {
+		return serviceUrl;
+	}
+
+	public void setServiceUrl(String serviceUrl) {
+		this.serviceUrl = serviceUrl;
+	}
+
+	public Map<String, String> getServiceUrls() {
+		return serviceUrls;
+	}
+
+	/**
+	 * @param serviceUrls
+	 *            the URLs of the artifact resolution services, by IdP entity
+	 *            ID
+	 */
+	public void setServiceUrls(Map<String, String> serviceUrls) {
+		Map<String, String> bySourceId = new HashMap<String, String>();
+		for (Map.Entry<String, String> service : serviceUrls.entrySet()) {
+			bySourceId.put(sourceId(service.getKey()), service.getValue());
+		}
+		this.serviceUrls = serviceUrls;
+		this.serviceUrlsBySourceId = bySourceId;
+		LOGGER.debug("{} artifact resolution services configured",
+				bySourceId.size());
+	}
+
+	public String getIssuer() {
+		return issuer;
+	}
+
+	public void setIssuer(String issuer) {
+		this.issuer = issuer;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	public int getMaxConnectionsPerHost() {
+		return maxConnectionsPerHost;
+	}
+
+	public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	public long getPoolTimeout() {
+		return poolTimeout;
+	}
+
+	public void setPoolTimeout(long poolTimeout) {
+		this.poolTimeout = poolTimeout;
+	}
+
+	public Saml2ParserPool getParserPool() {
+		return parserPool;
+	}
+
+	public void setParserPool(Saml2ParserPool parserPool) {
+		this.parserPool = parserPool;
+	}
+}
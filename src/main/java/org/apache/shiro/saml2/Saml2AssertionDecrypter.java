@@ -0,0 +1,666 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.OAEPParameterSpec;
+import javax.crypto.spec.PSource;
+
+import org.apache.shiro.io.ResourceUtils;
+import org.apache.shiro.util.Destroyable;
+import org.opensaml.Configuration;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.EncryptedAssertion;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.encryption.CipherData;
+import org.opensaml.xml.encryption.EncryptedData;
+import org.opensaml.xml.encryption.EncryptedKey;
+import org.opensaml.xml.encryption.EncryptedType;
+import org.opensaml.xml.encryption.EncryptionMethod;
+import org.opensaml.xml.io.Unmarshaller;
+import org.opensaml.xml.io.UnmarshallingException;
+import org.opensaml.xml.signature.DigestMethod;
+import org.opensaml.xml.util.Base64;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Decrypts the encrypted assertions of SAML2 responses with the private key
+ * of the Service Provider.
+ * <p>
+ * The symmetric key of an assertion must be transported with RSA-OAEP, and
+ * the assertion encrypted with AES in CBC or GCM mode. RSA 1.5 key transport
+ * is rejected as it exposes the key to padding oracle attacks.
+ * <p>
+ * The private key is loaded once, on first use. Each thread keeps its own
+ * {@link Cipher} for every transformation, which is initialized again for
+ * each key rather than looked up again. A symmetric key shared by several
+ * assertions of a response is unwrapped once, and forgotten with the
+ * response.
+ * <p>
+ * The assertions of a response carrying several of them are decrypted in
+ * parallel, the calling thread taking its share. When all the decryption
+ * threads are busy the caller decrypts the remaining assertions itself, so a
+ * login never waits for another one.
+ */
+public class Saml2AssertionDecrypter implements Destroyable {
+
+	private static final String RSA_OAEP_MGF1P = "http://www.w3.org/2001/04/xmlenc#rsa-oaep-mgf1p";
+	private static final String RSA_OAEP = "http://www.w3.org/2009/xmlenc11#rsa-oaep";
+	private static final String MGF = "MGF";
+
+	private static final String AES_CBC_PREFIX = "http://www.w3.org/2001/04/xmlenc#aes";
+	private static final String AES_CBC_SUFFIX = "-cbc";
+	private static final String AES_GCM_PREFIX = "http://www.w3.org/2009/xmlenc11#aes";
+	private static final String AES_GCM_SUFFIX = "-gcm";
+
+	private static final int AES_BLOCK_SIZE = 16;
+	private static final int GCM_IV_LENGTH = 12;
+	private static final int GCM_TAG_LENGTH = 128;
+
+	private static final Map<String, String> DIGESTS = new HashMap<String, String>();
+	private static final Map<String, MGF1ParameterSpec> MGFS = new HashMap<String, MGF1ParameterSpec>();
+
+	static {
+		DIGESTS.put("http://www.w3.org/2000/09/xmldsig#sha1", "SHA-1");
+		DIGESTS.put("http://www.w3.org/2001/04/xmlenc#sha256", "SHA-256");
+		DIGESTS.put("http://www.w3.org/2001/04/xmldsig-more#sha384", "SHA-384");
+		DIGESTS.put("http://www.w3.org/2001/04/xmlenc#sha512", "SHA-512");
+		MGFS.put("http://www.w3.org/2009/xmlenc11#mgf1sha1", MGF1ParameterSpec.SHA1);
+		MGFS.put("http://www.w3.org/2009/xmlenc11#mgf1sha256", MGF1ParameterSpec.SHA256);
+		MGFS.put("http://www.w3.org/2009/xmlenc11#mgf1sha384", MGF1ParameterSpec.SHA384);
+		MGFS.put("http://www.w3.org/2009/xmlenc11#mgf1sha512", MGF1ParameterSpec.SHA512);
+	}
+
+	/*
+	 * Ciphers of the current thread, by transformation
+	 */
+	private static final ThreadLocal<Map<String, Cipher>> CIPHERS = new ThreadLocal<Map<String, Cipher>>() {
+		@Override
+		protected Map<String, Cipher> initialValue() {
+			return new HashMap<String, Cipher>();
+		}
+	};
+
+	/*
+	 * Location of the SP private key, a PKCS#8 PEM file in any format
+	 * understood by Shiro's ResourceUtils (classpath:, file:, url:)
+	 */
+	private String privateKeyLocation;
+
+	private volatile PrivateKey privateKey;
+
+	private Saml2ParserPool parserPool = TokenToSaml2Response
+			.getDefaultParserPool();
+
+	/*
+	 * Number of threads decrypting the assertions of a single response
+	 */
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+
+	private ExecutorService executor;
+
+	/*
+	 * Whether the executor was created by this decrypter, which then shuts
+	 * it down
+	 */
+	private boolean executorCreated = false;
+
+	public Saml2AssertionDecrypter() {
+	}
+
+	/**
+	 * @param privateKeyLocation
+	 *            location of the SP private key
+	 */
+	public Saml2AssertionDecrypter(String privateKeyLocation) {
+		this.privateKeyLocation = privateKeyLocation;
+	}
+
+	/**
+	 * @param privateKey
+	 *            the SP private key
+	 */
+	public Saml2AssertionDecrypter(PrivateKey privateKey) {
+		this.privateKey = privateKey;
+	}
+
+	/**
+	 * Decrypts the encrypted assertions of a response. The response itself is
+	 * left untouched, so that its signature can still be verified.
+	 * 
+	 * @param response
+	 *            the response
+	 * @return the decrypted assertions, in document order
+	 * @throws Saml2TokenValidationException
+	 *             if an assertion cannot be decrypted
+	 */
+	public List<Assertion> decrypt(Response response)
+			throws Saml2TokenValidationException {
+		List<EncryptedAssertion> encryptedAssertions = response
+				.getEncryptedAssertions();
+		if (encryptedAssertions.isEmpty()) {
+			return Collections.emptyList();
+		}
+		final PrivateKey key = getPrivateKey();
+		final Map<String, SecretKey> secretKeys = new ConcurrentHashMap<String, SecretKey>();
+		List<Assertion> assertions = new ArrayList<Assertion>(
+				encryptedAssertions.size());
+		if (encryptedAssertions.size() == 1 || parallelism <= 1) {
+			for (EncryptedAssertion encryptedAssertion : encryptedAssertions) {
+				assertions.add(decrypt(encryptedAssertion, key, secretKeys));
+			}
+			return assertions;
+		}
+
+		List<Future<Assertion>> futures = new ArrayList<Future<Assertion>>(
+				encryptedAssertions.size() - 1);
+		ExecutorService executorService = getExecutor();
+		for (final EncryptedAssertion encryptedAssertion : encryptedAssertions
+				.subList(1, encryptedAssertions.size())) {
+			futures.add(executorService.submit(new Callable<Assertion>() {
+				public Assertion call() throws Exception {
+					return decrypt(encryptedAssertion, key, secretKeys);
+				}
+			}));
+		}
+		try {
+			assertions.add(decrypt(encryptedAssertions.get(0), key,
+					secretKeys));
+			for (Future<Assertion> future : futures) {
+				assertions.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new Saml2TokenValidationException(
+					"Interrupted while decrypting the assertions", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Saml2TokenValidationException) {
+				throw (Saml2TokenValidationException) e.getCause();
+			}
+			throw new Saml2TokenValidationException(e.getCause());
+		} finally {
+			for (Future<Assertion> future : futures) {
+				future.cancel(false);
+			}
+		}
+		return assertions;
+	}
+
+	private Assertion decrypt(EncryptedAssertion encryptedAssertion,
+			PrivateKey key, Map<String, SecretKey> secretKeys)
+			throws Saml2TokenValidationException {
+		EncryptedData encryptedData = encryptedAssertion.getEncryptedData();
+		if (encryptedData == null) {
+			throw new Saml2TokenValidationException(
+					"Encrypted assertion has no EncryptedData");
+		}
+		String algorithm = getAlgorithm(encryptedData);
+		SecretKey secretKey = getSecretKey(encryptedAssertion, encryptedData,
+				key, secretKeys);
+		byte[] plaintext;
+		try {
+			plaintext = decryptData(algorithm, secretKey,
+					getCipherValue(encryptedData));
+		} catch (GeneralSecurityException e) {
+			throw new Saml2TokenValidationException(
+					"Cannot decrypt the assertion", e);
+		}
+		return unmarshall(plaintext, encryptedAssertion.getDOM());
+	}
+
+	/*
+	 * Unwraps the symmetric key of the assertion, from a KeyInfo of the
+	 * EncryptedData or from an EncryptedKey next to it
+	 */
+	private SecretKey getSecretKey(EncryptedAssertion encryptedAssertion,
+			EncryptedData encryptedData, PrivateKey key,
+			Map<String, SecretKey> secretKeys)
+			throws Saml2TokenValidationException {
+		List<EncryptedKey> encryptedKeys = new ArrayList<EncryptedKey>();
+		if (encryptedData.getKeyInfo() != null) {
+			encryptedKeys.addAll(encryptedData.getKeyInfo()
+					.getEncryptedKeys());
+		}
+		encryptedKeys.addAll(encryptedAssertion.getEncryptedKeys());
+		if (encryptedKeys.isEmpty()) {
+			throw new Saml2TokenValidationException(
+					"Encrypted assertion has no EncryptedKey");
+		}
+
+		GeneralSecurityException failure = null;
+		for (EncryptedKey encryptedKey : encryptedKeys) {
+			String wrappedKey = encryptedKey.getCipherData() != null
+					&& encryptedKey.getCipherData().getCipherValue() != null ? encryptedKey
+					.getCipherData().getCipherValue().getValue()
+					: null;
+			if (wrappedKey == null) {
+				continue;
+			}
+			SecretKey secretKey = secretKeys.get(wrappedKey);
+			if (secretKey != null) {
+				return secretKey;
+			}
+			try {
+				secretKey = unwrapKey(encryptedKey, key,
+						getCipherValue(encryptedKey));
+				secretKeys.put(wrappedKey, secretKey);
+				return secretKey;
+			} catch (GeneralSecurityException e) {
+				/*
+				 * Intended for another recipient
+				 */
+				failure = e;
+			}
+		}
+		throw new Saml2TokenValidationException(
+				"Cannot unwrap the key of the assertion", failure);
+	}
+
+	private static SecretKey unwrapKey(EncryptedKey encryptedKey,
+			PrivateKey key, byte[] wrappedKey)
+			throws GeneralSecurityException, Saml2TokenValidationException {
+		EncryptionMethod method = encryptedKey.getEncryptionMethod();
+		String algorithm = getAlgorithm(encryptedKey);
+		if (!RSA_OAEP_MGF1P.equals(algorithm) && !RSA_OAEP.equals(algorithm)) {
+			throw new Saml2TokenValidationException(
+					"Unsupported key transport algorithm " + algorithm);
+		}
+
+		String digest = "SHA-1";
+		MGF1ParameterSpec mgf = MGF1ParameterSpec.SHA1;
+		for (XMLObject child : method.getUnknownXMLObjects()) {
+			if (child instanceof DigestMethod) {
+				digest = DIGESTS.get(((DigestMethod) child).getAlgorithm());
+				if (digest == null) {
+					throw new Saml2TokenValidationException(
+							"Unsupported digest algorithm "
+									+ ((DigestMethod) child).getAlgorithm());
+				}
+			} else if (RSA_OAEP.equals(algorithm)
+					&& MGF.equals(child.getElementQName().getLocalPart())
+					&& child.getDOM() != null) {
+				String mgfAlgorithm = child.getDOM().getAttributeNS(null,
+						"Algorithm");
+				mgf = MGFS.get(mgfAlgorithm);
+				if (mgf == null) {
+					throw new Saml2TokenValidationException(
+							"Unsupported mask generation function "
+									+ mgfAlgorithm);
+				}
+			}
+		}
+		PSource source = PSource.PSpecified.DEFAULT;
+		if (method.getOAEPparams() != null
+				&& method.getOAEPparams().getValue() != null) {
+			source = new PSource.PSpecified(Base64.decode(method
+					.getOAEPparams().getValue()));
+		}
+
+		Cipher cipher = getCipher("RSA/ECB/OAEPPadding");
+		cipher.init(Cipher.UNWRAP_MODE, key, new OAEPParameterSpec(digest,
+				"MGF1", mgf, source));
+		return (SecretKey) cipher.unwrap(wrappedKey, "AES", Cipher.SECRET_KEY);
+	}
+
+	private static byte[] decryptData(String algorithm, SecretKey secretKey,
+			byte[] data) throws GeneralSecurityException,
+			Saml2TokenValidationException {
+		if (algorithm.startsWith(AES_GCM_PREFIX)
+				&& algorithm.endsWith(AES_GCM_SUFFIX)) {
+			checkKeySize(algorithm, AES_GCM_PREFIX, AES_GCM_SUFFIX, secretKey);
+			if (data.length < GCM_IV_LENGTH + GCM_TAG_LENGTH / 8) {
+				throw new Saml2TokenValidationException(
+						"Encrypted assertion is truncated");
+			}
+			Cipher cipher = getCipher("AES/GCM/NoPadding");
+			cipher.init(Cipher.DECRYPT_MODE, secretKey, new GCMParameterSpec(
+					GCM_TAG_LENGTH, data, 0, GCM_IV_LENGTH));
+			return cipher.doFinal(data, GCM_IV_LENGTH, data.length
+					- GCM_IV_LENGTH);
+		}
+		if (algorithm.startsWith(AES_CBC_PREFIX)
+				&& algorithm.endsWith(AES_CBC_SUFFIX)) {
+			checkKeySize(algorithm, AES_CBC_PREFIX, AES_CBC_SUFFIX, secretKey);
+			if (data.length < 2 * AES_BLOCK_SIZE
+					|| data.length % AES_BLOCK_SIZE != 0) {
+				throw new Saml2TokenValidationException(
+						"Encrypted assertion is truncated");
+			}
+			Cipher cipher = getCipher("AES/CBC/NoPadding");
+			cipher.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(
+					data, 0, AES_BLOCK_SIZE));
+			byte[] plaintext = cipher.doFinal(data, AES_BLOCK_SIZE,
+					data.length - AES_BLOCK_SIZE);
+
+			/*
+			 * XML Encryption pads with arbitrary bytes, only the last one
+			 * giving the padding length
+			 */
+			int padding = plaintext[plaintext.length - 1] & 0xff;
+			if (padding < 1 || padding > AES_BLOCK_SIZE) {
+				throw new Saml2TokenValidationException(
+						"Cannot decrypt the assertion");
+			}
+			byte[] unpadded = new byte[plaintext.length - padding];
+			System.arraycopy(plaintext, 0, unpadded, 0, unpadded.length);
+			return unpadded;
+		}
+		throw new Saml2TokenValidationException(
+				"Unsupported encryption algorithm " + algorithm);
+	}
+
+	/*
+	 * Checks that the unwrapped key is the one the algorithm expects, for
+	 * example 256 bits for aes256-gcm
+	 */
+	private static void checkKeySize(String algorithm, String prefix,
+			String suffix, SecretKey secretKey)
+			throws Saml2TokenValidationException {
+		String bits = algorithm.substring(prefix.length(), algorithm.length()
+				- suffix.length());
+		byte[] encoded = secretKey.getEncoded();
+		if (encoded != null
+				&& !bits.equals(Integer.toString(encoded.length * 8))) {
+			throw new Saml2TokenValidationException("Key size of "
+					+ algorithm + " does not match the transported key");
+		}
+	}
+
+	private static Cipher getCipher(String transformation)
+			throws GeneralSecurityException {
+		Map<String, Cipher> ciphers = CIPHERS.get();
+		Cipher cipher = ciphers.get(transformation);
+		if (cipher == null) {
+			cipher = Cipher.getInstance(transformation);
+			ciphers.put(transformation, cipher);
+		}
+		return cipher;
+	}
+
+	private static String getAlgorithm(EncryptedType encryptedType)
+			throws Saml2TokenValidationException {
+		EncryptionMethod method = encryptedType.getEncryptionMethod();
+		if (method == null || method.getAlgorithm() == null) {
+			throw new Saml2TokenValidationException(
+					"Encrypted element has no EncryptionMethod");
+		}
+		return method.getAlgorithm();
+	}
+
+	private static byte[] getCipherValue(EncryptedType encryptedType)
+			throws Saml2TokenValidationException {
+		CipherData cipherData = encryptedType.getCipherData();
+		if (cipherData == null || cipherData.getCipherValue() == null
+				|| cipherData.getCipherValue().getValue() == null) {
+			throw new Saml2TokenValidationException(
+					"Encrypted element has no CipherValue");
+		}
+		byte[] value = Base64.decode(cipherData.getCipherValue().getValue());
+		if (value == null) {
+			throw new Saml2TokenValidationException(
+					"Encrypted element has an invalid CipherValue");
+		}
+		return value;
+	}
+
+	/*
+	 * Parses the decrypted assertion within the namespace declarations in
+	 * scope of the encrypted one, which it may rely on
+	 */
+	private Assertion unmarshall(byte[] plaintext, Element context)
+			throws Saml2TokenValidationException {
+		InputStream in;
+		try {
+			in = new SequenceInputStream(new SequenceInputStream(
+					new ByteArrayInputStream(openFragment(context)),
+					new ByteArrayInputStream(plaintext)),
+					new ByteArrayInputStream("</fragment>".getBytes("UTF-8")));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		Element fragment = parserPool.parse(in).getDocumentElement();
+		Element element = null;
+		for (Node node = fragment.getFirstChild(); node != null; node = node
+				.getNextSibling()) {
+			if (node.getNodeType() == Node.ELEMENT_NODE) {
+				element = (Element) node;
+				break;
+			}
+		}
+		if (element == null) {
+			throw new Saml2TokenValidationException(
+					"Decrypted content is not an assertion");
+		}
+		Unmarshaller unmarshaller = Configuration.getUnmarshallerFactory()
+				.getUnmarshaller(element);
+		XMLObject assertion;
+		try {
+			assertion = unmarshaller != null ? unmarshaller.unmarshall(element)
+					: null;
+		} catch (UnmarshallingException e) {
+			throw new Saml2TokenValidationException(e);
+		}
+		if (!(assertion instanceof Assertion)) {
+			throw new Saml2TokenValidationException(
+					"Decrypted content is not an assertion");
+		}
+		return (Assertion) assertion;
+	}
+
+	private static byte[] openFragment(Element context)
+			throws UnsupportedEncodingException {
+		StringBuilder fragment = new StringBuilder("<fragment");
+		Set<String> declared = new HashSet<String>();
+		for (Node node = context; node != null
+				&& node.getNodeType() == Node.ELEMENT_NODE; node = node
+				.getParentNode()) {
+			NamedNodeMap attributes = node.getAttributes();
+			for (int i = 0; i < attributes.getLength(); i++) {
+				Attr attribute = (Attr) attributes.item(i);
+				String name = attribute.getName();
+				if ((name.equals("xmlns") || name.startsWith("xmlns:"))
+						&& declared.add(name)) {
+					fragment.append(' ').append(name).append("=\"");
+					appendEscaped(fragment, attribute.getValue());
+					fragment.append('"');
+				}
+			}
+		}
+		return fragment.append('>').toString().getBytes("UTF-8");
+	}
+
+	private static void appendEscaped(StringBuilder builder, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '&':
+				builder.append("&amp;");
+				break;
+			case '<':
+				builder.append("&lt;");
+				break;
+			case '"':
+				builder.append("&quot;");
+				break;
+			default:
+				builder.append(c);
+			}
+		}
+	}
+
+	private PrivateKey getPrivateKey() throws Saml2TokenValidationException {
+		PrivateKey key = privateKey;
+		if (key == null) {
+			synchronized (this) {
+				key = privateKey;
+				if (key == null) {
+					key = loadPrivateKey();
+					privateKey = key;
+				}
+			}
+		}
+		return key;
+	}
+
+	private PrivateKey loadPrivateKey() throws Saml2TokenValidationException {
+		if (privateKeyLocation == null) {
+			throw new Saml2TokenValidationException(
+					"No SP private key configured");
+		}
+		try {
+			InputStream in = ResourceUtils
+					.getInputStreamForPath(privateKeyLocation.trim());
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			try {
+				byte[] buffer = new byte[4096];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					out.write(buffer, 0, read);
+				}
+			} finally {
+				in.close();
+			}
+			String encoded = new String(out.toByteArray(), "US-ASCII")
+					.replaceAll("-----[A-Z ]+-----", "").replaceAll("\\s", "");
+			return KeyFactory.getInstance("RSA").generatePrivate(
+					new PKCS8EncodedKeySpec(Base64.decode(encoded)));
+		} catch (IOException e) {
+			throw new Saml2TokenValidationException(
+					"Cannot read the SP private key", e);
+		} catch (GeneralSecurityException e) {
+			throw new Saml2TokenValidationException(
+					"Cannot read the SP private key", e);
+		}
+	}
+
+	/**
+	 * @return the executor decrypting the assertions of a response in
+	 *         parallel, created on first use with {@link #getParallelism()}
+	 *         threads
+	 */
+	public synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(parallelism,
+					parallelism, 60L, TimeUnit.SECONDS,
+					new SynchronousQueue<Runnable>(),
+					new DecryptionThreadFactory(),
+					new ThreadPoolExecutor.CallerRunsPolicy());
+			pool.allowCoreThreadTimeOut(true);
+			executor = pool;
+			executorCreated = true;
+		}
+		return executor;
+	}
+
+	/**
+	 * @param executor
+	 *            the executor decrypting the assertions of a response in
+	 *            parallel, left running on destroy
+	 */
+	public synchronized void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+		this.executorCreated = false;
+	}
+
+	/**
+	 * Stops the decryption threads if they were created by this decrypter.
+	 */
+	public synchronized void destroy() {
+		if (executor != null && executorCreated) {
+			executor.shutdown();
+		}
+		executor = null;
+		executorCreated = false;
+	}
+
+	public String getPrivateKeyLocation() {
+		return privateKeyLocation;
+	}
+
+	public void setPrivateKeyLocation(String privateKeyLocation) {
+		synchronized (this) {
+			this.privateKeyLocation = privateKeyLocation;
+			this.privateKey = null;
+		}
+	}
+
+	public Saml2ParserPool getParserPool() {
+		return parserPool;
+	}
+
+	public void setParserPool(Saml2ParserPool parserPool) {
+		this.parserPool = parserPool;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	private static class DecryptionThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger threadCount = new AtomicInteger();
+
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "saml2-decrypt-"
+					+ threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+/**
+ * Store of the IDs of the assertions already consumed, used by
+ * {@link Saml2Realm} to reject replayed responses.
+ * <p>
+ * {@link Saml2ReplayCache} keeps the IDs in the heap and only protects the
+ * JVM it runs in. {@link Saml2MappedAssertionIdStore} shares them between
+ * the processes of a host through a memory-mapped file, so that a response
+ * consumed by one process cannot be replayed against a sibling behind the
+ * same load balancer.
+ */
+public interface Saml2AssertionIdStore {
+
+	/**
+	 * Records an assertion ID unless it is already known and not expired.
+	 * Implementations must be thread safe and accept a given ID only once
+	 * while it is not expired.
+	 * 
+	 * @param assertionId
+	 *            the ID of the assertion being consumed
+	 * @param expiresAt
+	 *            the time in milliseconds after which the assertion is no
+	 *            longer accepted and its ID can be forgotten
+	 * @return <code>true</code> if the ID was not known, <code>false</code>
+	 *         if the assertion is being replayed
+	 */
+	boolean add(String assertionId, long expiresAt);
+
+	/**
+	 * @param assertionId
+	 *            an assertion ID
+	 * @return <code>true</code> if the ID is known and not expired
+	 */
+	boolean contains(String assertionId);
+}
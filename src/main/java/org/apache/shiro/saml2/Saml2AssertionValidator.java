@@ -0,0 +1,387 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.joda.time.DateTime;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Audience;
+import org.opensaml.saml2.core.AudienceRestriction;
+import org.opensaml.saml2.core.Condition;
+import org.opensaml.saml2.core.Conditions;
+import org.opensaml.saml2.core.Subject;
+import org.opensaml.saml2.core.SubjectConfirmation;
+import org.opensaml.saml2.core.SubjectConfirmationData;
+
+/**
+ * Validates the conditions and bearer subject confirmations of SAML2
+ * assertions, for both the OpenSAML objects and the values read by
+ * {@link Saml2StaxExtractor}.
+ * <p>
+ * An assertion is accepted when:
+ * <ul>
+ * <li>the current time, give or take the clock skew, is within the
+ * NotBefore and NotOnOrAfter of its conditions,</li>
+ * <li>it has an audience restriction, and each of its audience
+ * restrictions names one of the accepted audiences,</li>
+ * <li>it has a bearer subject confirmation which is still valid, addressed
+ * to one of the accepted recipients and answers the expected request.</li>
+ * </ul>
+ * Audience and recipient checks are skipped when no audience or recipient is
+ * configured. When neither is, the service provider URL given by the realm is
+ * accepted as both.
+ * <p>
+ * The accepted audiences and recipients are compiled once, when configured.
+ * Validation compares the instants already held by the assertion to a clock
+ * read by the caller and walks the OpenSAML lists by index, so accepting an
+ * assertion allocates nothing.
+ */
+public class Saml2AssertionValidator {
+
+	/*
+	 * Default tolerated difference between the clocks of the IdP and SP, none
+	 * so that instants are enforced as stated unless configured otherwise
+	 */
+	public static final long DEFAULT_CLOCK_SKEW = 0L;
+
+	private static final String BEARER = "urn:oasis:names:tc:SAML:2.0:cm:bearer";
+
+	/*
+	 * Accepted audiences and recipients, comma separated
+	 */
+	private String audiences;
+
+	private String recipients;
+
+	/*
+	 * URL of the Service Provider, accepted as audience and recipient when
+	 * none are configured
+	 */
+	private String serviceProviderUrl;
+
+	private volatile Set<String> acceptedAudiences = Collections.emptySet();
+
+	private volatile Set<String> acceptedRecipients = Collections.emptySet();
+
+	private volatile long clockSkew = DEFAULT_CLOCK_SKEW;
+
+	/*
+	 * Whether unsolicited responses, which do not answer a request of the SP,
+	 * are rejected
+	 */
+	private volatile boolean requireInResponseTo = false;
+
+	public Saml2AssertionValidator() {
+	}
+
+	/**
+	 * @param audiences
+	 *            the accepted audiences, comma separated
+	 * @param recipients
+	 *            the accepted recipients, comma separated
+	 */
+	public Saml2AssertionValidator(String audiences, String recipients) {
+		this.audiences = audiences;
+		this.recipients = recipients;
+		compile();
+	}
+
+	/**
+	 * Validates an assertion unmarshalled by OpenSAML.
+	 * 
+	 * @param assertion
+	 *            the assertion
+	 * @param now
+	 *            the current time in milliseconds
+	 * @param inResponseTo
+	 *            the ID of the request the response answers, or
+	 *            <code>null</code> if unknown or unsolicited
+	 * @return the reason why the assertion is rejected, <code>null</code> if
+	 *         it is valid
+	 */
+	public Saml2ValidationFailure validate(Assertion assertion, long now,
+			String inResponseTo) {
+		long skew = clockSkew;
+		Set<String> audienceSet = acceptedAudiences;
+		Conditions conditions = assertion.getConditions();
+		if (conditions == null) {
+			if (!audienceSet.isEmpty()) {
+				return Saml2ValidationFailure.AUDIENCE;
+			}
+		} else {
+			if (conditions.getNotBefore() != null
+					&& now + skew < conditions.getNotBefore().getMillis()) {
+				return Saml2ValidationFailure.NOT_YET_VALID;
+			}
+			if (conditions.getNotOnOrAfter() != null
+					&& now - skew >= conditions.getNotOnOrAfter().getMillis()) {
+				return Saml2ValidationFailure.EXPIRED;
+			}
+			if (!audienceSet.isEmpty()) {
+				/*
+				 * The typed restriction lists of Conditions are views created
+				 * on each call, walk the conditions themselves
+				 */
+				List<Condition> all = conditions.getConditions();
+				boolean restricted = false;
+				for (int i = 0; i < all.size(); i++) {
+					if (all.get(i) instanceof AudienceRestriction) {
+						if (!isAccepted((AudienceRestriction) all.get(i),
+								audienceSet)) {
+							return Saml2ValidationFailure.AUDIENCE;
+						}
+						restricted = true;
+					}
+				}
+				if (!restricted) {
+					return Saml2ValidationFailure.AUDIENCE;
+				}
+			}
+		}
+
+		Subject subject = assertion.getSubject();
+		if (subject == null) {
+			return Saml2ValidationFailure.NO_BEARER_CONFIRMATION;
+		}
+		List<SubjectConfirmation> confirmations = subject
+				.getSubjectConfirmations();
+		Saml2ValidationFailure failure = Saml2ValidationFailure.NO_BEARER_CONFIRMATION;
+		for (int i = 0; i < confirmations.size(); i++) {
+			SubjectConfirmation confirmation = confirmations.get(i);
+			if (!BEARER.equals(confirmation.getMethod())) {
+				continue;
+			}
+			SubjectConfirmationData data = confirmation
+					.getSubjectConfirmationData();
+			failure = data != null ? validateConfirmation(now, skew,
+					millis(data.getNotBefore(), Long.MIN_VALUE),
+					millis(data.getNotOnOrAfter(), Long.MAX_VALUE),
+					data.getRecipient(), data.getInResponseTo(), inResponseTo)
+					: validateConfirmation(now, skew, Long.MIN_VALUE,
+							Long.MAX_VALUE, null, null, inResponseTo);
+			if (failure == null) {
+				return null;
+			}
+		}
+		return failure;
+	}
+
+	/**
+	 * Validates an assertion read by {@link Saml2StaxExtractor}, against the
+	 * request its response answers.
+	 * 
+	 * @param assertion
+	 *            the assertion
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return the reason why the assertion is rejected, <code>null</code> if
+	 *         it is valid
+	 */
+	public Saml2ValidationFailure validate(Saml2ExtractedAssertion assertion,
+			long now) {
+		long skew = clockSkew;
+		if (now + skew < assertion.getNotBefore()) {
+			return Saml2ValidationFailure.NOT_YET_VALID;
+		}
+		if (now - skew >= assertion.getNotOnOrAfter()) {
+			return Saml2ValidationFailure.EXPIRED;
+		}
+		Set<String> audienceSet = acceptedAudiences;
+		if (!audienceSet.isEmpty()) {
+			List<List<String>> restrictions = assertion
+					.getAudienceRestrictions();
+			if (restrictions.isEmpty()) {
+				return Saml2ValidationFailure.AUDIENCE;
+			}
+			for (int i = 0; i < restrictions.size(); i++) {
+				if (!containsAny(audienceSet, restrictions.get(i))) {
+					return Saml2ValidationFailure.AUDIENCE;
+				}
+			}
+		}
+		/*
+		 * Like the object model, accept the assertion if any of its bearer
+		 * confirmations is valid
+		 */
+		List<Saml2ExtractedAssertion.Confirmation> confirmations = assertion
+				.getConfirmations();
+		String inResponseTo = assertion.getResponseInResponseTo();
+		Saml2ValidationFailure failure = Saml2ValidationFailure.NO_BEARER_CONFIRMATION;
+		for (int i = 0; i < confirmations.size(); i++) {
+			Saml2ExtractedAssertion.Confirmation confirmation = confirmations
+					.get(i);
+			failure = validateConfirmation(now, skew,
+					confirmation.getNotBefore(),
+					confirmation.getNotOnOrAfter(),
+					confirmation.getRecipient(),
+					confirmation.getInResponseTo(), inResponseTo);
+			if (failure == null) {
+				return null;
+			}
+		}
+		return failure;
+	}
+
+	private Saml2ValidationFailure validateConfirmation(long now, long skew,
+			long notBefore, long notOnOrAfter, String recipient,
+			String confirmationInResponseTo, String inResponseTo) {
+		if (now + skew < notBefore || now - skew >= notOnOrAfter) {
+			return Saml2ValidationFailure.CONFIRMATION_EXPIRED;
+		}
+		Set<String> recipientSet = acceptedRecipients;
+		if (!recipientSet.isEmpty()
+				&& (recipient == null || !recipientSet.contains(recipient))) {
+			return Saml2ValidationFailure.RECIPIENT;
+		}
+		if (inResponseTo != null) {
+			/*
+			 * A solicited response must be answered by the confirmation
+			 */
+			if (!inResponseTo.equals(confirmationInResponseTo)) {
+				return Saml2ValidationFailure.IN_RESPONSE_TO;
+			}
+		} else if (requireInResponseTo && confirmationInResponseTo == null) {
+			/*
+			 * The InResponseTo of the response is not signed, the one of the
+			 * confirmation is enough to make it solicited
+			 */
+			return Saml2ValidationFailure.IN_RESPONSE_TO;
+		}
+		return null;
+	}
+
+	private static boolean isAccepted(AudienceRestriction restriction,
+			Set<String> audienceSet) {
+		List<Audience> audienceList = restriction
+				.getAudiences();
+		for (int i = 0; i < audienceList.size(); i++) {
+			String uri = audienceList.get(i).getAudienceURI();
+			if (uri != null && audienceSet.contains(uri)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean containsAny(Set<String> set, List<String> values) {
+		for (int i = 0; i < values.size(); i++) {
+			if (set.contains(values.get(i))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static long millis(DateTime instant, long missing) {
+		return instant != null ? instant.getMillis() : missing;
+	}
+
+	/*
+	 * Must be called with the validator lock held
+	 */
+	private void compile() {
+		Set<String> audienceSet = toSet(audiences);
+		Set<String> recipientSet = toSet(recipients);
+		if (audienceSet.isEmpty() && recipientSet.isEmpty()
+				&& serviceProviderUrl != null) {
+			audienceSet = toSet(serviceProviderUrl);
+			recipientSet = audienceSet;
+		}
+		acceptedAudiences = audienceSet;
+		acceptedRecipients = recipientSet;
+	}
+
+	private static Set<String> toSet(String values) {
+		List<String> list = Saml2AuthorizationPlan.split(values);
+		if (list.isEmpty()) {
+			return Collections.emptySet();
+		}
+		return Collections.unmodifiableSet(new HashSet<String>(list));
+	}
+
+	/**
+	 * @return the audiences an assertion must be restricted to
+	 */
+	public Set<String> getAcceptedAudiences() {
+		return acceptedAudiences;
+	}
+
+	/**
+	 * @return the recipients a bearer confirmation must be addressed to
+	 */
+	public Set<String> getAcceptedRecipients() {
+		return acceptedRecipients;
+	}
+
+	public String getAudiences() {
+		return audiences;
+	}
+
+	public synchronized void setAudiences(String audiences) {
+		this.audiences = audiences;
+		compile();
+	}
+
+	public String getRecipients() {
+		return recipients;
+	}
+
+	public synchronized void setRecipients(String recipients) {
+		this.recipients = recipients;
+		compile();
+	}
+
+	public String getServiceProviderUrl() {
+		return serviceProviderUrl;
+	}
+
+	public synchronized void setServiceProviderUrl(String serviceProviderUrl) {
+		this.serviceProviderUrl = serviceProviderUrl;
+		compile();
+	}
+
+	public long getClockSkew() {
+		return clockSkew;
+	}
+
+	/**
+	 * @param clockSkew
+	 *            the tolerated difference between the clocks of the IdP and
+	 *            SP, in milliseconds
+	 */
+	public void setClockSkew(long clockSkew) {
+		if (clockSkew < 0) {
+			throw new IllegalArgumentException(
+					"The clock skew cannot be negative");
+		}
+		this.clockSkew = clockSkew;
+	}
+
+	public boolean isRequireInResponseTo() {
+		return requireInResponseTo;
+	}
+
+	public void setRequireInResponseTo(boolean requireInResponseTo) {
+		this.requireInResponseTo = requireInResponseTo;
+	}
+}
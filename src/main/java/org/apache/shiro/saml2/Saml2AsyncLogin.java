@@ -0,0 +1,312 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.shiro.authc.AuthenticationException;
+import org.apache.shiro.authc.AuthenticationToken;
+import org.apache.shiro.subject.Subject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A login performed outside of the servlet container threads.
+ * <p>
+ * The form encoded POST body is read with a non-blocking {@link ReadListener},
+ * so a slow client does not hold a container thread. Once the body is fully
+ * received, the SAML2 response is decoded, parsed and validated on the
+ * executor of the {@link Saml2Filter}, under the subject of the request. The
+ * success or failure redirect is then issued and the asynchronous request
+ * completed.
+ * <p>
+ * If the body exceeds the maximum payload size of the
+ * {@link Saml2AdmissionControl} it is answered with a
+ * <code>413 Request Entity Too Large</code>, and if the executor is saturated,
+ * or if the login does not complete within the asynchronous timeout, with a
+ * <code>503 Service Unavailable</code>.
+ * <p>
+ * Whichever of the login, the timeout or an error answers the request first
+ * claims it, the others leaving the response alone. A login finishing after
+ * the timeout is dropped, and a timeout firing while the redirect is being
+ * issued waits for the request to be completed.
+ */
+public class Saml2AsyncLogin implements ReadListener, AsyncListener, Runnable {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(Saml2AsyncLogin.class);
+
+	private static final int BUFFER_SIZE = 4096;
+
+	private final Saml2Filter filter;
+
+	private final Subject subject;
+
+	private final AsyncContext asyncContext;
+
+	private final ServletInputStream inputStream;
+
+	private final Executor executor;
+
+	private final ByteArrayOutputStream body;
+
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+
+	private static final int PENDING = 0;
+
+	private static final int RESPONDING = 1;
+
+	private static final int COMPLETED = 2;
+
+	/*
+	 * Claimed by whichever of the login, the timeout or an error answers the
+	 * request first, and notified once the request is completed
+	 */
+	private final AtomicInteger state = new AtomicInteger(PENDING);
+
+	private Saml2AsyncLogin(Saml2Filter filter, Subject subject,
+			AsyncContext asyncContext, ServletInputStream inputStream,
+			Executor executor, int contentLength) {
+		this.filter = filter;
+		this.subject = subject;
+		this.asyncContext = asyncContext;
+		this.inputStream = inputStream;
+		this.executor = executor;
+		this.body = new ByteArrayOutputStream(contentLength > 0 ? contentLength
+				: BUFFER_SIZE);
+	}
+
+	/**
+	 * Puts the request in asynchronous mode and starts reading its body. The
+	 * calling container thread returns as soon as no more data is available.
+	 *
+	 * @param filter
+	 *            the filter performing the login
+	 * @param subject
+	 *            the subject bound to the request
+	 * @param request
+	 *            the incoming form POST request
+	 * @param response
+	 *            the outgoing response
+	 * @param executor
+	 *            the executor running the login
+	 * @param timeout
+	 *            the asynchronous timeout in milliseconds
+	 * @throws IOException
+	 *             if the request body cannot be opened
+	 */
+	public static void start(Saml2Filter filter, Subject subject,
+			ServletRequest request, ServletResponse response,
+			Executor executor, long timeout) throws IOException {
+		AsyncContext asyncContext = request.startAsync(request, response);
+		asyncContext.setTimeout(timeout);
+		Saml2AsyncLogin login = new Saml2AsyncLogin(filter, subject,
+				asyncContext, request.getInputStream(), executor,
+				request.getContentLength());
+		asyncContext.addListener(login);
+		login.inputStream.setReadListener(login);
+	}
+
+	public void onDataAvailable() throws IOException {
+		Saml2AdmissionControl admissionControl = filter.getAdmissionControl();
+		while (inputStream.isReady()) {
+			int read = inputStream.read(buffer);
+			if (read == -1 || state.get() != PENDING) {
+				return;
+			}
+			body.write(buffer, 0, read);
+			if (admissionControl.isPayloadTooLarge(body.size())) {
+				reject(Saml2RejectionReason.PAYLOAD_TOO_LARGE);
+				return;
+			}
+		}
+	}
+
+	public void onAllDataRead() throws IOException {
+		if (state.get() != PENDING) {
+			return;
+		}
+		try {
+			executor.execute(this);
+		} catch (RejectedExecutionException e) {
+			LOGGER.warn("SAML2 login rejected, the executor is saturated");
+			reject(Saml2RejectionReason.CONCURRENCY_LIMIT);
+		}
+	}
+
+	private void reject(Saml2RejectionReason reason) {
+		filter.getAdmissionControl().reject(reason);
+		sendError(reason.getStatus());
+	}
+
+	public void onError(Throwable t) {
+		LOGGER.warn("Cannot read the SAML2 response", t);
+		sendError(HttpServletResponse.SC_BAD_REQUEST);
+	}
+
+	/**
+	 * Performs the login on the executor thread, with the subject of the
+	 * request bound to it.
+	 */
+	public void run() {
+		Saml2Metrics metrics = Saml2Metrics.getInstance();
+		long start = metrics.start();
+		try {
+			subject.execute(new Runnable() {
+				public void run() {
+					login();
+				}
+			});
+		} catch (RuntimeException e) {
+			LOGGER.error("SAML2 login failed unexpectedly", e);
+			sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+		} finally {
+			metrics.record(Saml2Stage.LOGIN, start);
+		}
+	}
+
+	private void login() {
+		if (state.get() != PENDING) {
+			return;
+		}
+		ServletRequest request = asyncContext.getRequest();
+		ServletResponse response = asyncContext.getResponse();
+		AuthenticationToken token = filter
+				.createToken(new ByteArrayInputStream(body.toByteArray()));
+		AuthenticationException failure = null;
+		try {
+			subject.login(token);
+		} catch (AuthenticationException e) {
+			failure = e;
+		}
+		if (!state.compareAndSet(PENDING, RESPONDING)) {
+			LOGGER.debug("SAML2 login finished after the request was answered, result dropped");
+			return;
+		}
+		try {
+			if (failure == null) {
+				filter.onAsyncLoginSuccess(token, subject, request, response);
+			} else {
+				filter.onLoginFailure(token, failure, request, response);
+			}
+		} catch (Exception e) {
+			LOGGER.error("Cannot redirect after the SAML2 login", e);
+			writeError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+		} finally {
+			complete();
+		}
+	}
+
+	public void onTimeout(AsyncEvent event) throws IOException {
+		if (state.compareAndSet(PENDING, RESPONDING)) {
+			LOGGER.warn("SAML2 login timed out");
+			writeError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			complete();
+		} else {
+			awaitCompletion();
+		}
+	}
+
+	public void onError(AsyncEvent event) throws IOException {
+		LOGGER.warn("SAML2 login failed", event.getThrowable());
+		if (state.compareAndSet(PENDING, RESPONDING)) {
+			complete();
+		}
+	}
+
+	public void onComplete(AsyncEvent event) throws IOException {
+		markCompleted();
+	}
+
+	public void onStartAsync(AsyncEvent event) throws IOException {
+		// Nothing to do
+	}
+
+	private void sendError(int status) {
+		if (state.compareAndSet(PENDING, RESPONDING)) {
+			writeError(status);
+			complete();
+		}
+	}
+
+	/*
+	 * Must be called by the thread which claimed the response
+	 */
+	private void writeError(int status) {
+		try {
+			((HttpServletResponse) asyncContext.getResponse())
+					.sendError(status);
+		} catch (IOException e) {
+			LOGGER.error("Cannot send the error status {}", status, e);
+		} catch (IllegalStateException e) {
+			LOGGER.debug("Response already committed", e);
+		}
+	}
+
+	/*
+	 * Must be called by the thread which claimed the response
+	 */
+	private void complete() {
+		try {
+			asyncContext.complete();
+		} catch (IllegalStateException e) {
+			LOGGER.debug("Request already completed", e);
+		} finally {
+			markCompleted();
+		}
+	}
+
+	private void markCompleted() {
+		synchronized (state) {
+			state.set(COMPLETED);
+			state.notifyAll();
+		}
+	}
+
+	/*
+	 * Keeps the container from completing the request while the thread which
+	 * claimed it is still writing the response
+	 */
+	private void awaitCompletion() {
+		synchronized (state) {
+			while (state.get() == RESPONDING) {
+				try {
+					state.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+}
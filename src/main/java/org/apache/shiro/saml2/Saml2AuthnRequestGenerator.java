@@ -0,0 +1,408 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import org.apache.shiro.session.Session;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import org.opensaml.common.xml.SAMLConstants;
+
+/**
+ * Creates the AuthnRequests of SP-initiated logins, sent to the IdP over the
+ * HTTP-Redirect binding.
+ * <p>
+ * The request is compiled once into a template of UTF-8 bytes, from the IdP
+ * URL, the SP consumer URL and issuer and the NameID format, in which only
+ * the ID and IssueInstant change from one request to the next. Creating a
+ * request then copies the template and these two values into a buffer kept
+ * by each thread, which {@link Saml2RedirectBinding#encode(byte[], int)}
+ * deflates and encodes, instead of building, marshalling and serializing
+ * OpenSAML objects. The template is compiled
+ * again on first use after a property changes.
+ * <p>
+ * The ID of each request is recorded in the {@link Saml2OutstandingRequests},
+ * to be shared with the realm so that it only accepts the responses
+ * answering these requests. The requests are not signed.
+ */
+public class Saml2AuthnRequestGenerator {
+
+	private static final int ID_LENGTH = 33;
+
+	private static final String ID_PLACEHOLDER = repeat('I', ID_LENGTH);
+
+	/*
+	 * Length of an instant formatted without milliseconds, until year 10000
+	 */
+	private static final int INSTANT_LENGTH = 20;
+
+	private static final String INSTANT_PLACEHOLDER = repeat('T',
+			INSTANT_LENGTH);
+
+	private static final DateTimeFormatter INSTANT_FORMAT = ISODateTimeFormat
+			.dateTimeNoMillis().withZone(DateTimeZone.UTC);
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	/*
+	 * Buffer of the current thread in which the requests are written
+	 */
+	private static final ThreadLocal<Buffer> BUFFERS = new ThreadLocal<Buffer>() {
+		@Override
+		protected Buffer initialValue() {
+			return new Buffer();
+		}
+	};
+
+	/*
+	 * URL of the single sign-on service of the IdP
+	 */
+	private String identityProviderUrlPrefix;
+
+	/*
+	 * URL the IdP posts the response to
+	 */
+	private String serviceProviderConsumerUrl;
+
+	/*
+	 * Entity ID of the SP, the consumer URL if not set
+	 */
+	private String issuer;
+
+	/*
+	 * Format of the NameID asked for, none if not set
+	 */
+	private String nameIdFormat;
+
+	private Saml2OutstandingRequests outstandingRequests = new Saml2OutstandingRequests();
+
+	private volatile Template template;
+
+	/*
+	 * IssueInstant of the current second, formatted once
+	 */
+	private volatile Instant instant = new Instant(-1L, null);
+
+	public Saml2AuthnRequestGenerator() {
+	}
+
+	/**
+	 * @param identityProviderUrlPrefix
+	 *            the URL of the single sign-on service of the IdP
+	 * @param serviceProviderConsumerUrl
+	 *            the URL the IdP posts the responses to
+	 */
+	public Saml2AuthnRequestGenerator(String identityProviderUrlPrefix,
+			String serviceProviderConsumerUrl) {
+		this.identityProviderUrlPrefix = identityProviderUrlPrefix;
+		this.serviceProviderConsumerUrl = serviceProviderConsumerUrl;
+	}
+
+	/**
+	 * Creates a new request and records it as outstanding.
+	 * 
+	 * @param relayState
+	 *            the relay state sent along, or <code>null</code>
+	 * @return the URL redirecting the user to the IdP with the request
+	 */
+	public String createRedirectUrl(String relayState) {
+		return createRedirectUrl(relayState, null);
+	}
+
+	/**
+	 * Creates a new request and records it as outstanding, also in the
+	 * session of the user, see {@link Saml2OutstandingRequests}.
+	 * 
+	 * @param relayState
+	 *            the relay state sent along, or <code>null</code>
+	 * @param session
+	 *            the session of the user sent to the IdP, or
+	 *            <code>null</code>
+	 * @return the URL redirecting the user to the IdP with the request
+	 */
+	public String createRedirectUrl(String relayState, Session session) {
+		Template compiled = getTemplate();
+		String requestId = newRequestId();
+		String samlRequest = encode(compiled, requestId,
+				System.currentTimeMillis());
+		outstandingRequests.add(requestId, session);
+
+		StringBuilder url = new StringBuilder(compiled.destinationPrefix.length()
+				+ samlRequest.length() + 64);
+		url.append(compiled.destinationPrefix).append(samlRequest);
+		if (relayState != null) {
+			url.append("&RelayState=").append(urlEncode(relayState));
+		}
+		return url.toString();
+	}
+
+	/**
+	 * Encodes a request for the HTTP-Redirect binding.
+	 * 
+	 * @param requestId
+	 *            the ID of the request, as created by
+	 *            {@link #newRequestId()}
+	 * @param issueInstant
+	 *            the issue instant of the request in milliseconds
+	 * @return the deflated, Base64 and URL encoded request, the value of the
+	 *         SAMLRequest parameter
+	 */
+	public String encode(String requestId, long issueInstant) {
+		return encode(getTemplate(), requestId, issueInstant);
+	}
+
+	private String encode(Template compiled, String requestId,
+			long issueInstant) {
+		if (requestId.length() != ID_LENGTH) {
+			throw new IllegalArgumentException("Request IDs are "
+					+ ID_LENGTH + " characters long");
+		}
+		byte[] xml = BUFFERS.get().get(compiled.length);
+		int length = 0;
+		System.arraycopy(compiled.beforeId, 0, xml, length,
+				compiled.beforeId.length);
+		length += compiled.beforeId.length;
+		for (int i = 0; i < ID_LENGTH; i++) {
+			xml[length++] = (byte) requestId.charAt(i);
+		}
+		System.arraycopy(compiled.beforeInstant, 0, xml, length,
+				compiled.beforeInstant.length);
+		length += compiled.beforeInstant.length;
+		byte[] formattedInstant = format(issueInstant);
+		System.arraycopy(formattedInstant, 0, xml, length, INSTANT_LENGTH);
+		length += INSTANT_LENGTH;
+		System.arraycopy(compiled.afterInstant, 0, xml, length,
+				compiled.afterInstant.length);
+		length += compiled.afterInstant.length;
+
+		return Saml2RedirectBinding.encode(xml, length);
+	}
+
+	/**
+	 * @return a new random request ID
+	 */
+	public String newRequestId() {
+		byte[] bytes = new byte[(ID_LENGTH - 1) / 2];
+		RANDOM.nextBytes(bytes);
+		char[] chars = new char[ID_LENGTH];
+		chars[0] = '_';
+		for (int i = 0; i < bytes.length; i++) {
+			chars[1 + 2 * i] = HEX[(bytes[i] >> 4) & 0x0f];
+			chars[2 + 2 * i] = HEX[bytes[i] & 0x0f];
+		}
+		return new String(chars);
+	}
+
+	private byte[] format(long millis) {
+		long second = millis / 1000L;
+		Instant current = instant;
+		if (current.second != second) {
+			current = new Instant(second, ascii(INSTANT_FORMAT
+					.print(second * 1000L)));
+			instant = current;
+		}
+		return current.formatted;
+	}
+
+	private Template getTemplate() {
+		Template compiled = template;
+		if (compiled == null) {
+			compiled = compile();
+			template = compiled;
+		}
+		return compiled;
+	}
+
+	private Template compile() {
+		if (identityProviderUrlPrefix == null
+				|| serviceProviderConsumerUrl == null) {
+			throw new IllegalStateException(
+					"The IdP and SP consumer URLs are required to create AuthnRequests");
+		}
+		StringBuilder xml = new StringBuilder(512);
+		xml.append("<samlp:AuthnRequest xmlns:samlp=\"")
+				.append(SAMLConstants.SAML20P_NS)
+				.append("\" xmlns:saml=\"").append(SAMLConstants.SAML20_NS)
+				.append("\" ID=\"").append(ID_PLACEHOLDER)
+				.append("\" Version=\"2.0\" IssueInstant=\"")
+				.append(INSTANT_PLACEHOLDER).append("\" Destination=\"")
+				.append(escape(identityProviderUrlPrefix))
+				.append("\" AssertionConsumerServiceURL=\"")
+				.append(escape(serviceProviderConsumerUrl))
+				.append("\" ProtocolBinding=\"")
+				.append(Saml2Binding.HTTP_POST.getUri())
+				.append("\"><saml:Issuer>")
+				.append(escape(issuer != null ? issuer
+						: serviceProviderConsumerUrl))
+				.append("</saml:Issuer>");
+		if (nameIdFormat != null) {
+			xml.append("<samlp:NameIDPolicy AllowCreate=\"true\" Format=\"")
+					.append(escape(nameIdFormat)).append("\"/>");
+		}
+		xml.append("</samlp:AuthnRequest>");
+
+		String s = xml.toString();
+		int id = s.indexOf(ID_PLACEHOLDER);
+		int issueInstant = s.indexOf(INSTANT_PLACEHOLDER);
+		String separator = identityProviderUrlPrefix.indexOf('?') < 0 ? "?"
+				: "&";
+		try {
+			return new Template(s.substring(0, id).getBytes("UTF-8"), s
+					.substring(id + ID_LENGTH, issueInstant).getBytes("UTF-8"),
+					s.substring(issueInstant + INSTANT_LENGTH).getBytes(
+							"UTF-8"), identityProviderUrlPrefix + separator
+							+ "SAMLRequest=");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String escape(String value) {
+		return value.replace("&", "&amp;").replace("<", "&lt;")
+				.replace(">", "&gt;").replace("\"", "&quot;");
+	}
+
+	private static String urlEncode(String value) {
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static byte[] ascii(String s) {
+		byte[] bytes = new byte[s.length()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) s.charAt(i);
+		}
+		return bytes;
+	}
+
+	private static String repeat(char c, int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+
+	public String getIdentityProviderUrlPrefix() {
+		return identityProviderUrlPrefix;
+	}
+
+	public void setIdentityProviderUrlPrefix(String identityProviderUrlPrefix) {
+		this.identityProviderUrlPrefix = identityProviderUrlPrefix;
+		template = null;
+	}
+
+	public String getServiceProviderConsumerUrl() {
+		return serviceProviderConsumerUrl;
+	}
+
+	public void setServiceProviderConsumerUrl(String serviceProviderConsumerUrl) {
+		this.serviceProviderConsumerUrl = serviceProviderConsumerUrl;
+		template = null;
+	}
+
+	public String getIssuer() {
+		return issuer;
+	}
+
+	public void setIssuer(String issuer) {
+		this.issuer = issuer;
+		template = null;
+	}
+
+	public String getNameIdFormat() {
+		return nameIdFormat;
+	}
+
+	public void setNameIdFormat(String nameIdFormat) {
+		this.nameIdFormat = nameIdFormat;
+		template = null;
+	}
+
+	public Saml2OutstandingRequests getOutstandingRequests() {
+		return outstandingRequests;
+	}
+
+	/**
+	 * @param outstandingRequests
+	 *            where the requests are recorded, the same as the realm's
+	 */
+	public void setOutstandingRequests(
+			Saml2OutstandingRequests outstandingRequests) {
+		this.outstandingRequests = outstandingRequests;
+	}
+
+	/*
+	 * The UTF-8 bytes of the request around its ID and IssueInstant
+	 */
+	private static final class Template {
+
+		private final byte[] beforeId;
+
+		private final byte[] beforeInstant;
+
+		private final byte[] afterInstant;
+
+		private final int length;
+
+		private final String destinationPrefix;
+
+		Template(byte[] beforeId, byte[] beforeInstant, byte[] afterInstant,
+				String destinationPrefix) {
+			this.beforeId = beforeId;
+			this.beforeInstant = beforeInstant;
+			this.afterInstant = afterInstant;
+			this.length = beforeId.length + ID_LENGTH + beforeInstant.length
+					+ INSTANT_LENGTH + afterInstant.length;
+			this.destinationPrefix = destinationPrefix;
+		}
+	}
+
+	private static final class Instant {
+
+		private final long second;
+
+		private final byte[] formatted;
+
+		Instant(long second, byte[] formatted) {
+			this.second = second;
+			this.formatted = formatted;
+		}
+	}
+
+	private static final class Buffer {
+
+		private byte[] bytes = new byte[1024];
+
+		byte[] get(int length) {
+			if (bytes.length < length) {
+				bytes = new byte[length];
+			}
+			return bytes;
+		}
+	}
+}
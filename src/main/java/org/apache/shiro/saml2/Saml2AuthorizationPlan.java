@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.shiro.util.StringUtils;
+
+/**
+ * Immutable, pre-compiled form of the authorization configuration of
+ * {@link Saml2Realm}: the default roles and permissions, already split and
+ * interned, and the names of the attributes carrying roles and permissions.
+ * <p>
+ * The realm compiles a new plan whenever its configuration changes and swaps
+ * it atomically, so authorization lookups never parse the configuration.
+ */
+public final class Saml2AuthorizationPlan {
+
+	/*
+	 * Plan of a realm without any authorization configuration
+	 */
+	public static final Saml2AuthorizationPlan EMPTY = compile(null, null,
+			null, null);
+
+	private final List<String> defaultRoles;
+
+	private final List<String> defaultPermissions;
+
+	private final Set<String> roleAttributeNames;
+
+	private final Set<String> permissionAttributeNames;
+
+	private final Set<String> relevantAttributeNames;
+
+	private Saml2AuthorizationPlan(List<String> defaultRoles,
+			List<String> defaultPermissions, Set<String> roleAttributeNames,
+			Set<String> permissionAttributeNames) {
+		this.defaultRoles = defaultRoles;
+		this.defaultPermissions = defaultPermissions;
+		this.roleAttributeNames = roleAttributeNames;
+		this.permissionAttributeNames = permissionAttributeNames;
+
+		Set<String> relevant = new HashSet<String>(roleAttributeNames);
+		relevant.addAll(permissionAttributeNames);
+		this.relevantAttributeNames = Collections.unmodifiableSet(relevant);
+	}
+
+	/**
+	 * Compiles the comma separated configuration values of a realm.
+	 * 
+	 * @param defaultRoles
+	 *            roles given to every authenticated user
+	 * @param defaultPermissions
+	 *            permissions given to every authenticated user
+	 * @param roleAttributeNames
+	 *            names of the attributes containing roles
+	 * @param permissionAttributeNames
+	 *            names of the attributes containing permissions
+	 * @return the compiled plan
+	 */
+	public static Saml2AuthorizationPlan compile(String defaultRoles,
+			String defaultPermissions, String roleAttributeNames,
+			String permissionAttributeNames) {
+		return new Saml2AuthorizationPlan(
+				Collections.unmodifiableList(split(defaultRoles)),
+				Collections.unmodifiableList(split(defaultPermissions)),
+				Collections.unmodifiableSet(new HashSet<String>(
+						split(roleAttributeNames))),
+				Collections.unmodifiableSet(new HashSet<String>(
+						split(permissionAttributeNames))));
+	}
+
+	/**
+	 * Splits a string into a list of non-empty, trimmed and interned strings,
+	 * delimited with commas
+	 * 
+	 * @param s
+	 *            the input string
+	 * @return the list of not empty and trimmed strings
+	 */
+	static List<String> split(String s) {
+		List<String> list = new ArrayList<String>();
+		String[] elements = StringUtils.split(s, ',');
+		if (elements != null && elements.length > 0) {
+			for (String element : elements) {
+				if (StringUtils.hasText(element)) {
+					list.add(element.trim().intern());
+				}
+			}
+		}
+		return list;
+	}
+
+	public List<String> getDefaultRoles() {
+		return defaultRoles;
+	}
+
+	public List<String> getDefaultPermissions() {
+		return defaultPermissions;
+	}
+
+	public Set<String> getRoleAttributeNames() {
+		return roleAttributeNames;
+	}
+
+	public Set<String> getPermissionAttributeNames() {
+		return permissionAttributeNames;
+	}
+
+	/**
+	 * @return the names of the attributes containing roles or permissions
+	 */
+	public Set<String> getRelevantAttributeNames() {
+		return relevantAttributeNames;
+	}
+
+	public boolean isRoleAttribute(String attributeName) {
+		return roleAttributeNames.contains(attributeName);
+	}
+
+	public boolean isPermissionAttribute(String attributeName) {
+		return permissionAttributeNames.contains(attributeName);
+	}
+
+	/**
+	 * @return <code>true</code> if the attribute contains roles or
+	 *         permissions
+	 */
+	public boolean isRelevant(String attributeName) {
+		return relevantAttributeNames.contains(attributeName);
+	}
+}
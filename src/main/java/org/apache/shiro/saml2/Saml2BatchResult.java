@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+/**
+ * Outcome of the validation of one response by a
+ * {@link Saml2BatchValidator}.
+ */
+public final class Saml2BatchResult {
+
+	private final long lineNumber;
+
+	private final String issuer;
+
+	private final String responseId;
+
+	private final Saml2Stage failedStage;
+
+	private final Saml2ValidationFailure validationFailure;
+
+	private final String reason;
+
+	/**
+	 * @param lineNumber
+	 *            the line of the response in the input, 0 if not read from a
+	 *            file
+	 * @param issuer
+	 *            the issuer of the response, null if it could not be parsed
+	 * @param responseId
+	 *            the ID of the response, null if it could not be parsed
+	 * @param failedStage
+	 *            the stage which rejected the response, null if it is valid
+	 * @param validationFailure
+	 *            the condition not met when the validation stage rejected
+	 *            the response
+	 * @param reason
+	 *            why the response was rejected, null if it is valid
+	 */
+	public Saml2BatchResult(long lineNumber, String issuer, String responseId,
+			Saml2Stage failedStage, Saml2ValidationFailure validationFailure,
+			String reason) {
+		this.lineNumber = lineNumber;
+		this.issuer = issuer;
+		this.responseId = responseId;
+		this.failedStage = failedStage;
+		this.validationFailure = validationFailure;
+		this.reason = reason;
+	}
+
+	public long getLineNumber() {
+		return lineNumber;
+	}
+
+	public String getIssuer() {
+		return issuer;
+	}
+
+	public String getResponseId() {
+		return responseId;
+	}
+
+	public boolean isValid() {
+		return failedStage == null;
+	}
+
+	/**
+	 * @return the stage which rejected the response, null if it is valid
+	 */
+	public Saml2Stage getFailedStage() {
+		return failedStage;
+	}
+
+	/**
+	 * @return the condition not met when the validation stage rejected the
+	 *         response, null otherwise
+	 */
+	public Saml2ValidationFailure getValidationFailure() {
+		return validationFailure;
+	}
+
+	/**
+	 * @return why the response was rejected, null if it is valid
+	 */
+	public String getReason() {
+		return reason;
+	}
+
+	/**
+	 * @return the result as a single line JSON object
+	 */
+	public String toJson() {
+		StringBuilder json = new StringBuilder(128);
+		json.append("{\"line\":").append(lineNumber);
+		json.append(",\"valid\":").append(isValid());
+		appendField(json, "issuer", issuer);
+		appendField(json, "responseId", responseId);
+		if (failedStage != null) {
+			appendField(json, "stage", failedStage.name());
+			if (validationFailure != null) {
+				appendField(json, "failure", validationFailure.name());
+			}
+			appendField(json, "reason", reason);
+		}
+		return json.append('}').toString();
+	}
+
+	private static void appendField(StringBuilder json, String name,
+			String value) {
+		if (value == null) {
+			return;
+		}
+		json.append(",\"").append(name).append("\":\"");
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				json.append("\\\"");
+				break;
+			case '\\':
+				json.append("\\\\");
+				break;
+			case '\n':
+				json.append("\\n");
+				break;
+			case '\r':
+				json.append("\\r");
+				break;
+			case '\t':
+				json.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					json.append(String.format("\\u%04x", (int) c));
+				} else {
+					json.append(c);
+				}
+			}
+		}
+		json.append('"');
+	}
+
+	@Override
+	public String toString() {
+		return toJson();
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Statistics of a {@link Saml2BatchValidator} run, per issuer: how many
+ * responses were valid and why the others were rejected.
+ * <p>
+ * Results are added by the thread writing them, a summary is not thread
+ * safe.
+ */
+public final class Saml2BatchSummary {
+
+	/*
+	 * Issuer key of the responses which could not be parsed
+	 */
+	public static final String UNKNOWN_ISSUER = "(unknown)";
+
+	private final Map<String, IssuerSummary> issuers = new TreeMap<String, IssuerSummary>();
+
+	private final long startNanos = System.nanoTime();
+
+	private long elapsedNanos = -1L;
+
+	private long total;
+
+	private long valid;
+
+	/**
+	 * @param result
+	 *            the result of a response
+	 */
+	public void add(Saml2BatchResult result) {
+		String issuer = result.getIssuer() != null ? result.getIssuer()
+				: UNKNOWN_ISSUER;
+		IssuerSummary summary = issuers.get(issuer);
+		if (summary == null) {
+			summary = new IssuerSummary();
+			issuers.put(issuer, summary);
+		}
+		summary.add(result);
+		total++;
+		if (result.isValid()) {
+			valid++;
+		}
+	}
+
+	/**
+	 * Stops the clock of the run.
+	 */
+	public void finish() {
+		if (elapsedNanos < 0L) {
+			elapsedNanos = System.nanoTime() - startNanos;
+		}
+	}
+
+	public long getTotal() {
+		return total;
+	}
+
+	public long getValid() {
+		return valid;
+	}
+
+	public long getInvalid() {
+		return total - valid;
+	}
+
+	/**
+	 * @return the statistics by issuer, sorted by issuer
+	 */
+	public Map<String, IssuerSummary> getIssuers() {
+		return Collections.unmodifiableMap(issuers);
+	}
+
+	/**
+	 * @return the duration of the run in milliseconds, up to now if not
+	 *         finished
+	 */
+	public long getElapsedMillis() {
+		long elapsed = elapsedNanos >= 0L ? elapsedNanos : System.nanoTime()
+				- startNanos;
+		return elapsed / 1000000L;
+	}
+
+	/**
+	 * @return the responses validated per second
+	 */
+	public double getThroughput() {
+		long elapsed = elapsedNanos >= 0L ? elapsedNanos : System.nanoTime()
+				- startNanos;
+		return elapsed > 0L ? total * 1e9 / elapsed : 0d;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder report = new StringBuilder();
+		report.append(String.format(
+				"%d responses, %d valid, %d invalid in %d ms (%.1f/s)%n",
+				total, valid, total - valid, getElapsedMillis(),
+				getThroughput()));
+		for (Map.Entry<String, IssuerSummary> issuer : issuers.entrySet()) {
+			IssuerSummary summary = issuer.getValue();
+			report.append(String.format("  %s: %d responses, %d valid%n",
+					issuer.getKey(), summary.getTotal(), summary.getValid()));
+			for (Map.Entry<String, Long> failure : summary.getFailures()
+					.entrySet()) {
+				report.append(String.format("    %s: %d%n", failure.getKey(),
+						failure.getValue()));
+			}
+		}
+		return report.toString();
+	}
+
+	/**
+	 * Statistics of the responses of one issuer.
+	 */
+	public static final class IssuerSummary {
+
+		private long total;
+
+		private long valid;
+
+		private final Map<String, Long> failures = new TreeMap<String, Long>();
+
+		void add(Saml2BatchResult result) {
+			total++;
+			if (result.isValid()) {
+				valid++;
+				return;
+			}
+			/*
+			 * Reasons are left out as they often name the response
+			 */
+			String failure = result.getFailedStage().name();
+			if (result.getValidationFailure() != null) {
+				failure += " " + result.getValidationFailure().name();
+			}
+			Long count = failures.get(failure);
+			failures.put(failure, count != null ? count + 1 : 1L);
+		}
+
+		public long getTotal() {
+			return total;
+		}
+
+		public long getValid() {
+			return valid;
+		}
+
+		/**
+		 * @return the number of rejected responses by stage, and by
+		 *         condition for the validation stage
+		 */
+		public Map<String, Long> getFailures() {
+			return Collections.unmodifiableMap(failures);
+		}
+	}
+}
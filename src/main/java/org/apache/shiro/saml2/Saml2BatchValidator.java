@@ -0,0 +1,668 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.apache.shiro.util.Destroyable;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Response;
+
+/**
+ * Validates captured SAML2 responses offline, for incident forensics or to
+ * test the migration to a new IdP, with the same signature verification,
+ * decryption and condition checks as {@link Saml2Realm}. Replays are not
+ * checked, a capture holding each response once.
+ * <p>
+ * {@link #validate(BufferedReader, Writer)} streams a file holding a Base64
+ * encoded response per line, either alone, URL encoded as found in access
+ * logs, or as a field of a JSON object (JSON Lines). Lines are handed over in
+ * chunks to a fork-join pool whose workers decode, parse and validate them,
+ * each borrowing a parser from a pool sized for them. Results are written as
+ * JSON Lines in the order of the input as soon as they are available, and a
+ * bounded number of chunks are in flight so memory use does not depend on
+ * the size of the input. The returned summary counts the valid and rejected
+ * responses per issuer.
+ * <p>
+ * {@link #main(String[])} exposes the validation as a command line tool.
+ */
+public class Saml2BatchValidator implements Destroyable {
+
+	/*
+	 * Default number of lines validated by a task
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 64;
+
+	/*
+	 * Default JSON field holding the response
+	 */
+	public static final String DEFAULT_JSON_FIELD = "SAMLResponse";
+
+	/*
+	 * Number of workers validating responses
+	 */
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+	private String jsonField = DEFAULT_JSON_FIELD;
+
+	/*
+	 * Verifier of the signatures, null if not verified
+	 */
+	private Saml2SignatureVerifier signatureVerifier;
+
+	/*
+	 * IdPs trusted, null to accept any issuer verified by the signature
+	 * verifier
+	 */
+	private Saml2IdentityProviderRegistry identityProviderRegistry;
+
+	/*
+	 * Whether the responses of registered IdPs without signing key are
+	 * accepted unverified when there is no signature verifier either
+	 */
+	private boolean allowUnsignedIdentityProviders = false;
+
+	/*
+	 * Decrypter of the encrypted assertions, null to reject them
+	 */
+	private Saml2AssertionDecrypter assertionDecrypter;
+
+	private Saml2AssertionValidator assertionValidator = new Saml2AssertionValidator();
+
+	/*
+	 * Whether the validity windows are checked at the IssueInstant of the
+	 * responses rather than now, as captured responses have expired
+	 */
+	private boolean atIssueInstant = false;
+
+	private Saml2ParserPool parserPool;
+
+	private ExecutorService executor;
+
+	/*
+	 * Whether the executor was created by this validator, which then shuts
+	 * it down
+	 */
+	private boolean executorCreated = false;
+
+	/**
+	 * Validates the responses of a file, one per line, and writes the result
+	 * of each one as a JSON object on a line. Blank lines are skipped.
+	 * 
+	 * @param input
+	 *            the responses
+	 * @param output
+	 *            where the results are written, in the order of the input
+	 * @return the statistics of the validation
+	 * @throws IOException
+	 *             if the input cannot be read or the output written
+	 */
+	public Saml2BatchSummary validate(BufferedReader input, Writer output)
+			throws IOException {
+		ExecutorService pool = getExecutor();
+		int maxPending = Math.max(2, parallelism * 4);
+		Deque<Future<Saml2BatchResult[]>> pending = new ArrayDeque<Future<Saml2BatchResult[]>>(
+				maxPending);
+		Saml2BatchSummary summary = new Saml2BatchSummary();
+
+		List<String> lines = new ArrayList<String>(chunkSize);
+		List<Long> lineNumbers = new ArrayList<Long>(chunkSize);
+		long lineNumber = 0;
+		String line;
+		while ((line = input.readLine()) != null) {
+			lineNumber++;
+			if (line.trim().isEmpty()) {
+				continue;
+			}
+			lines.add(line);
+			lineNumbers.add(lineNumber);
+			if (lines.size() == chunkSize) {
+				pending.add(pool.submit(new Chunk(lines, lineNumbers)));
+				lines = new ArrayList<String>(chunkSize);
+				lineNumbers = new ArrayList<Long>(chunkSize);
+				if (pending.size() >= maxPending) {
+					write(pending.poll(), output, summary);
+				}
+			}
+		}
+		if (!lines.isEmpty()) {
+			pending.add(pool.submit(new Chunk(lines, lineNumbers)));
+		}
+		while (!pending.isEmpty()) {
+			write(pending.poll(), output, summary);
+		}
+		output.flush();
+		summary.finish();
+		return summary;
+	}
+
+	private static void write(Future<Saml2BatchResult[]> chunk,
+			Writer output, Saml2BatchSummary summary) throws IOException {
+		Saml2BatchResult[] results;
+		try {
+			results = chunk.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Batch validation interrupted");
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Batch validation failed",
+					e.getCause());
+		}
+		for (Saml2BatchResult result : results) {
+			summary.add(result);
+			output.write(result.toJson());
+			output.write('\n');
+		}
+	}
+
+	/**
+	 * Validates a line of a capture file.
+	 * 
+	 * @param line
+	 *            a Base64 encoded response, possibly URL encoded or in a
+	 *            field of a JSON object
+	 * @param lineNumber
+	 *            the number of the line, reported in the result
+	 * @return the result
+	 */
+	public Saml2BatchResult validateLine(String line, long lineNumber) {
+		String encodedResponse = extractResponse(line.trim());
+		if (encodedResponse == null) {
+			return new Saml2BatchResult(lineNumber, null, null,
+					Saml2Stage.DECODE, null, "No " + jsonField + " field");
+		}
+		return validate(encodedResponse, lineNumber);
+	}
+
+	/**
+	 * Validates a response.
+	 * 
+	 * @param encodedResponse
+	 *            the Base64 encoded response
+	 * @param lineNumber
+	 *            the number of the line of the response, reported in the
+	 *            result
+	 * @return the result
+	 */
+	public Saml2BatchResult validate(String encodedResponse, long lineNumber) {
+		String issuer = null;
+		String responseId = null;
+		Saml2Stage stage = Saml2Stage.PARSE;
+		try {
+			Response response = TokenToSaml2Response.convertToken(
+					encodedResponse, getParserPool());
+			responseId = response.getID();
+			issuer = Saml2ResponseChecks.getIssuer(response);
+
+			/*
+			 * Same checks as the realm, so that a response passes here
+			 * exactly when it would be accepted
+			 */
+			stage = Saml2Stage.SIGNATURE;
+			Saml2SignatureVerifier verifier = signatureVerifier;
+			Saml2IdentityProvider provider = null;
+			if (identityProviderRegistry != null) {
+				provider = Saml2ResponseChecks.getIdentityProvider(
+						identityProviderRegistry, response);
+				verifier = Saml2ResponseChecks.getSignatureVerifier(provider,
+						verifier, allowUnsignedIdentityProviders);
+			}
+			if (verifier != null) {
+				verifier.verify(response);
+			}
+
+			stage = Saml2Stage.DECRYPTION;
+			List<Assertion> assertions = response.getAssertions();
+			if (!response.getEncryptedAssertions().isEmpty()) {
+				if (assertionDecrypter == null) {
+					return new Saml2BatchResult(lineNumber, issuer,
+							responseId, stage, null,
+							"Response has encrypted assertions but no decrypter is configured");
+				}
+				List<Assertion> decrypted = assertionDecrypter
+						.decrypt(response);
+				if (verifier != null && !response.isSigned()) {
+					verifier.verifyAssertions(decrypted);
+				}
+				assertions = new ArrayList<Assertion>(assertions);
+				assertions.addAll(decrypted);
+			}
+
+			stage = Saml2Stage.VALIDATION;
+			if (assertions.isEmpty()) {
+				return new Saml2BatchResult(lineNumber, issuer, responseId,
+						stage, null, "Response has no assertion");
+			}
+			Saml2ResponseChecks.checkIssuers(assertions, provider, response);
+			Saml2ResponseChecks.getNameId(assertions);
+			Saml2ResponseChecks.getInResponseTo(assertions);
+			long now = atIssueInstant && response.getIssueInstant() != null ? response
+					.getIssueInstant().getMillis() : System.currentTimeMillis();
+			for (int i = 0; i < assertions.size(); i++) {
+				Saml2ValidationFailure failure = assertionValidator.validate(
+						assertions.get(i), now, response.getInResponseTo());
+				if (failure != null) {
+					return new Saml2BatchResult(lineNumber, issuer,
+							responseId, stage, failure, "Assertion "
+									+ assertions.get(i).getID() + " rejected");
+				}
+			}
+			return new Saml2BatchResult(lineNumber, issuer, responseId, null,
+					null, null);
+		} catch (Saml2TokenValidationException e) {
+			return new Saml2BatchResult(lineNumber, issuer, responseId, stage,
+					null, String.valueOf(e.getMessage()));
+		} catch (Saml2AuthenticationException e) {
+			return new Saml2BatchResult(lineNumber, issuer, responseId, stage,
+					null, e.getMessage());
+		} catch (RuntimeException e) {
+			/*
+			 * Malformed Base64 or XML fails in many ways
+			 */
+			return new Saml2BatchResult(lineNumber, issuer, responseId, stage,
+					null, e.toString());
+		}
+	}
+
+	/*
+	 * Gets the Base64 response of a line, null if it is a JSON object without
+	 * the response field
+	 */
+	private String extractResponse(String line) {
+		String encoded = line;
+		if (line.startsWith("{")) {
+			encoded = extractJsonString(line, jsonField);
+			if (encoded == null) {
+				return null;
+			}
+		}
+		if (encoded.indexOf('%') >= 0) {
+			/*
+			 * Only the Base64 characters are URL encoded, a '+' is kept as is
+			 * since Base64 responses are often logged half decoded
+			 */
+			encoded = encoded.replace("%2B", "+").replace("%2b", "+")
+					.replace("%2F", "/").replace("%2f", "/")
+					.replace("%3D", "=").replace("%3d", "=");
+		}
+		return encoded;
+	}
+
+	/*
+	 * Value of a top-level string field of a JSON object, enough for the
+	 * Base64 and URL characters of a response without a JSON library
+	 */
+	static String extractJsonString(String json, String field) {
+		String key = "\"" + field + "\"";
+		int index = json.indexOf(key);
+		while (index >= 0) {
+			int position = skipWhitespace(json, index + key.length());
+			if (position < json.length() && json.charAt(position) == ':') {
+				position = skipWhitespace(json, position + 1);
+				if (position < json.length() && json.charAt(position) == '"') {
+					return readJsonString(json, position + 1);
+				}
+				return null;
+			}
+			index = json.indexOf(key, index + 1);
+		}
+		return null;
+	}
+
+	private static int skipWhitespace(String json, int position) {
+		while (position < json.length()
+				&& Character.isWhitespace(json.charAt(position))) {
+			position++;
+		}
+		return position;
+	}
+
+	private static String readJsonString(String json, int position) {
+		StringBuilder value = new StringBuilder(json.length() - position);
+		while (position < json.length()) {
+			char c = json.charAt(position++);
+			if (c == '"') {
+				return value.toString();
+			}
+			if (c != '\\' || position >= json.length()) {
+				value.append(c);
+				continue;
+			}
+			char escaped = json.charAt(position++);
+			switch (escaped) {
+			case 'n':
+				value.append('\n');
+				break;
+			case 'r':
+				value.append('\r');
+				break;
+			case 't':
+				value.append('\t');
+				break;
+			case 'u':
+				if (position + 4 > json.length()) {
+					return null;
+				}
+				value.append((char) Integer.parseInt(
+						json.substring(position, position + 4), 16));
+				position += 4;
+				break;
+			default:
+				/*
+				 * Quote, backslash and slash
+				 */
+				value.append(escaped);
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Lines validated by a worker
+	 */
+	private final class Chunk implements Callable<Saml2BatchResult[]> {
+
+		private final List<String> lines;
+
+		private final List<Long> lineNumbers;
+
+		Chunk(List<String> lines, List<Long> lineNumbers) {
+			this.lines = lines;
+			this.lineNumbers = lineNumbers;
+		}
+
+		public Saml2BatchResult[] call() {
+			Saml2BatchResult[] results = new Saml2BatchResult[lines.size()];
+			for (int i = 0; i < results.length; i++) {
+				results[i] = validateLine(lines.get(i), lineNumbers.get(i));
+			}
+			return results;
+		}
+	}
+
+	/**
+	 * Shuts the workers down if they were created by this validator.
+	 */
+	public synchronized void destroy() {
+		if (executor != null && executorCreated) {
+			executor.shutdown();
+		}
+		executor = null;
+		executorCreated = false;
+	}
+
+	/**
+	 * @return the pool of the workers, a fork-join pool of
+	 *         {@link #getParallelism()} threads unless set
+	 */
+	public synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = new ForkJoinPool(parallelism);
+			executorCreated = true;
+		}
+		return executor;
+	}
+
+	/**
+	 * @param executor
+	 *            the pool of the workers, left running on destroy
+	 */
+	public synchronized void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+		this.executorCreated = false;
+	}
+
+	/**
+	 * @return the pool of parsers, holding a parser per worker unless set
+	 */
+	public synchronized Saml2ParserPool getParserPool() {
+		if (parserPool == null) {
+			parserPool = new Saml2ParserPool(parallelism);
+		}
+		return parserPool;
+	}
+
+	public synchronized void setParserPool(Saml2ParserPool parserPool) {
+		this.parserPool = parserPool;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public void setParallelism(int parallelism) {
+		if (parallelism <= 0) {
+			throw new IllegalArgumentException(
+					"The parallelism must be positive");
+		}
+		this.parallelism = parallelism;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public void setChunkSize(int chunkSize) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException(
+					"The chunk size must be positive");
+		}
+		this.chunkSize = chunkSize;
+	}
+
+	public String getJsonField() {
+		return jsonField;
+	}
+
+	/**
+	 * @param jsonField
+	 *            the field holding the response in JSON lines
+	 */
+	public void setJsonField(String jsonField) {
+		this.jsonField = jsonField;
+	}
+
+	public Saml2SignatureVerifier getSignatureVerifier() {
+		return signatureVerifier;
+	}
+
+	public void setSignatureVerifier(Saml2SignatureVerifier signatureVerifier) {
+		this.signatureVerifier = signatureVerifier;
+	}
+
+	public Saml2IdentityProviderRegistry getIdentityProviderRegistry() {
+		return identityProviderRegistry;
+	}
+
+	public void setIdentityProviderRegistry(
+			Saml2IdentityProviderRegistry identityProviderRegistry) {
+		this.identityProviderRegistry = identityProviderRegistry;
+	}
+
+	public boolean isAllowUnsignedIdentityProviders() {
+		return allowUnsignedIdentityProviders;
+	}
+
+	/**
+	 * @param allowUnsignedIdentityProviders
+	 *            <code>true</code> to accept unverified the responses of the
+	 *            registered IdPs whose metadata has no signing key, when there
+	 *            is no signature verifier either
+	 */
+	public void setAllowUnsignedIdentityProviders(
+			boolean allowUnsignedIdentityProviders) {
+		this.allowUnsignedIdentityProviders = allowUnsignedIdentityProviders;
+	}
+
+	public Saml2AssertionDecrypter getAssertionDecrypter() {
+		return assertionDecrypter;
+	}
+
+	public void setAssertionDecrypter(Saml2AssertionDecrypter assertionDecrypter) {
+		this.assertionDecrypter = assertionDecrypter;
+	}
+
+	public Saml2AssertionValidator getAssertionValidator() {
+		return assertionValidator;
+	}
+
+	public void setAssertionValidator(Saml2AssertionValidator assertionValidator) {
+		this.assertionValidator = assertionValidator;
+	}
+
+	public boolean isAtIssueInstant() {
+		return atIssueInstant;
+	}
+
+	/**
+	 * @param atIssueInstant
+	 *            whether the validity windows are checked at the IssueInstant
+	 *            of each response rather than now
+	 */
+	public void setAtIssueInstant(boolean atIssueInstant) {
+		this.atIssueInstant = atIssueInstant;
+	}
+
+	/**
+	 * Validates a capture file from the command line. The results are
+	 * written as JSON Lines and the summary to the standard error.
+	 * 
+	 * <pre>
+	 * java org.apache.shiro.saml2.Saml2BatchValidator [options] input|- [output]
+	 *   -threads N               number of workers, the processors by default
+	 *   -certificates LOCATIONS  IdP signing certificates
+	 *   -metadata DIRECTORY      IdP metadata directory
+	 *   -allowUnsigned           accept IdPs whose metadata has no signing key
+	 *   -decryptionKey LOCATION  SP private key decrypting assertions
+	 *   -audiences LIST          accepted audiences
+	 *   -recipients LIST         accepted recipients
+	 *   -clockSkew MILLIS        tolerated clock skew
+	 *   -atIssueInstant          check validity windows at issue time
+	 *   -jsonField NAME          field of the response in JSON lines
+	 * </pre>
+	 */
+	public static void main(String[] args) throws Exception {
+		Saml2BatchValidator validator = new Saml2BatchValidator();
+		Saml2AssertionValidator assertionValidator = validator
+				.getAssertionValidator();
+		String input = null;
+		String output = null;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if ("-threads".equals(arg)) {
+					validator.setParallelism(Integer.parseInt(args[++i]));
+				} else if ("-certificates".equals(arg)) {
+					validator.setSignatureVerifier(new Saml2SignatureVerifier(
+							args[++i]));
+				} else if ("-metadata".equals(arg)) {
+					validator
+							.setIdentityProviderRegistry(new Saml2IdentityProviderRegistry(
+									args[++i]));
+				} else if ("-allowUnsigned".equals(arg)) {
+					validator.setAllowUnsignedIdentityProviders(true);
+				} else if ("-decryptionKey".equals(arg)) {
+					validator.setAssertionDecrypter(new Saml2AssertionDecrypter(
+							args[++i]));
+				} else if ("-audiences".equals(arg)) {
+					assertionValidator.setAudiences(args[++i]);
+				} else if ("-recipients".equals(arg)) {
+					assertionValidator.setRecipients(args[++i]);
+				} else if ("-clockSkew".equals(arg)) {
+					assertionValidator.setClockSkew(Long.parseLong(args[++i]));
+				} else if ("-atIssueInstant".equals(arg)) {
+					validator.setAtIssueInstant(true);
+				} else if ("-jsonField".equals(arg)) {
+					validator.setJsonField(args[++i]);
+				} else if (arg.startsWith("-") && arg.length() > 1) {
+					throw new IllegalArgumentException("Unknown option " + arg);
+				} else if (input == null) {
+					input = arg;
+				} else if (output == null) {
+					output = arg;
+				} else {
+					throw new IllegalArgumentException("Unexpected argument "
+							+ arg);
+				}
+			}
+			if (input == null) {
+				throw new IllegalArgumentException("No input file");
+			}
+		} catch (RuntimeException e) {
+			System.err.println(e.getMessage());
+			System.err
+					.println("Usage: Saml2BatchValidator [-threads N] [-certificates LOCATIONS]"
+							+ " [-metadata DIRECTORY] [-allowUnsigned] [-decryptionKey LOCATION]"
+							+ " [-audiences LIST]"
+							+ " [-recipients LIST] [-clockSkew MILLIS] [-atIssueInstant]"
+							+ " [-jsonField NAME] input|- [output]");
+			System.exit(2);
+			return;
+		}
+
+		if (validator.getIdentityProviderRegistry() != null) {
+			validator.getIdentityProviderRegistry().init();
+		}
+		InputStream in = "-".equals(input) ? System.in : new FileInputStream(
+				input);
+		OutputStream out = output == null ? System.out : new FileOutputStream(
+				output);
+		try {
+			Saml2BatchSummary summary = validator.validate(new BufferedReader(
+					new InputStreamReader(in, "UTF-8")), new BufferedWriter(
+					new OutputStreamWriter(out, "UTF-8"), 1 << 16));
+			System.err.print(summary);
+		} finally {
+			if (in != System.in) {
+				in.close();
+			}
+			if (out != System.out) {
+				out.close();
+			}
+			validator.destroy();
+			if (validator.getIdentityProviderRegistry() != null) {
+				validator.getIdentityProviderRegistry().destroy();
+			}
+			if (validator.getAssertionDecrypter() != null) {
+				validator.getAssertionDecrypter().destroy();
+			}
+		}
+	}
+}
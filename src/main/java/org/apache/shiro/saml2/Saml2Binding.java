@@ -0,0 +1,55 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+/**
+ * The SAML2 bindings over which the Service Provider receives responses.
+ */
+public enum Saml2Binding {
+
+	/*
+	 * Base64 encoded response posted in a form
+	 */
+	HTTP_POST("urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST"),
+
+	/*
+	 * DEFLATE compressed and Base64 encoded response in the query string,
+	 * signed by a detached query string signature
+	 */
+	HTTP_REDIRECT("urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect"),
+
+	/*
+	 * Artifact standing for the response, which is resolved over the back
+	 * channel
+	 */
+	HTTP_ARTIFACT("urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Artifact");
+
+	private final String uri;
+
+	private Saml2Binding(String uri) {
+		this.uri = uri;
+	}
+
+	/**
+	 * @return the URI identifying the binding in SAML2 metadata
+	 */
+	public String getUri() {
+		return uri;
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.xml.ConfigurationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Thread safe, idempotent initialization of the OpenSAML library.
+ * <p>
+ * The bootstrap runs exactly once per class loader, either eagerly from
+ * {@link Saml2Realm} or {@link Saml2Filter} initialization (optionally on a
+ * background thread) or lazily on the first token conversion. Threads arriving
+ * while it is in progress wait for it to complete instead of running it
+ * again. A failed bootstrap can be retried by the next caller.
+ */
+public final class Saml2Bootstrap {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(Saml2Bootstrap.class);
+
+	private static final Object LOCK = new Object();
+
+	/*
+	 * Latch of the bootstrap in progress or done, null if not started yet or
+	 * if the last attempt failed
+	 */
+	private static volatile CountDownLatch bootstrapLatch;
+
+	private static volatile boolean bootstrapped = false;
+
+	private static volatile ConfigurationException bootstrapFailure;
+
+	private static volatile long bootstrapTime = -1;
+
+	private Saml2Bootstrap() {
+		// Disabling initialization
+	}
+
+	/**
+	 * Bootstraps OpenSAML on the calling thread, or waits for the bootstrap
+	 * started by another thread to complete.
+	 *
+	 * @throws Saml2TokenValidationException
+	 *             if the bootstrap failed or the thread was interrupted while
+	 *             waiting for it
+	 */
+	public static void bootstrap() throws Saml2TokenValidationException {
+		if (bootstrapped) {
+			return;
+		}
+		if (startBootstrap()) {
+			runBootstrap();
+		}
+		awaitBootstrap();
+	}
+
+	/**
+	 * Starts the OpenSAML bootstrap on a daemon thread and returns
+	 * immediately. Token conversions issued in the meantime wait for it to
+	 * complete.
+	 */
+	public static void bootstrapInBackground() {
+		if (bootstrapped || !startBootstrap()) {
+			return;
+		}
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				runBootstrap();
+			}
+		}, "saml2-bootstrap");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Eagerly bootstraps OpenSAML from a component initialization. A failure
+	 * is logged rather than propagated so that the application can start, the
+	 * bootstrap being retried on the first token conversion.
+	 *
+	 * @param inBackground
+	 *            <code>true</code> to run the bootstrap on a background thread
+	 */
+	public static void initialize(boolean inBackground) {
+		if (inBackground) {
+			bootstrapInBackground();
+			return;
+		}
+		try {
+			bootstrap();
+		} catch (Saml2TokenValidationException e) {
+			LOGGER.warn("OpenSAML bootstrap will be retried on first login");
+		}
+	}
+
+	/**
+	 * @return <code>true</code> once OpenSAML has been successfully
+	 *         bootstrapped
+	 */
+	public static boolean isBootstrapped() {
+		return bootstrapped;
+	}
+
+	/**
+	 * @return the duration of the successful bootstrap in milliseconds, or
+	 *         <code>-1</code> if OpenSAML is not bootstrapped yet
+	 */
+	public static long getBootstrapTime() {
+		return bootstrapTime;
+	}
+
+	/*
+	 * Returns true if the calling thread is in charge of running the bootstrap
+	 */
+	private static boolean startBootstrap() {
+		synchronized (LOCK) {
+			if (bootstrapLatch != null) {
+				return false;
+			}
+			bootstrapLatch = new CountDownLatch(1);
+			return true;
+		}
+	}
+
+	private static void runBootstrap() {
+		CountDownLatch latch = bootstrapLatch;
+		long start = System.nanoTime();
+		try {
+			DefaultBootstrap.bootstrap();
+			bootstrapTime = (System.nanoTime() - start) / 1000000L;
+			bootstrapFailure = null;
+			bootstrapped = true;
+			LOGGER.info("OpenSAML bootstrapped in {} ms", bootstrapTime);
+		} catch (ConfigurationException e) {
+			bootstrapFailure = e;
+			LOGGER.error("OpenSAML bootstrap configuration failed.", e);
+		} catch (RuntimeException e) {
+			bootstrapFailure = new ConfigurationException(e.getMessage(), e);
+			LOGGER.error("OpenSAML bootstrap configuration failed.", e);
+		} finally {
+			synchronized (LOCK) {
+				if (!bootstrapped) {
+					bootstrapLatch = null;
+				}
+			}
+			latch.countDown();
+		}
+	}
+
+	private static void awaitBootstrap() throws Saml2TokenValidationException {
+		CountDownLatch latch = bootstrapLatch;
+		if (latch != null) {
+			try {
+				latch.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new Saml2TokenValidationException(
+						"Interrupted while waiting for the OpenSAML bootstrap.",
+						e);
+			}
+		}
+		if (!bootstrapped) {
+			throw new Saml2TokenValidationException(
+					"OpenSAML bootstrap configuration failed.",
+					bootstrapFailure);
+		}
+	}
+}
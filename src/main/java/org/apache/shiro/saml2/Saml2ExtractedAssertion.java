@@ -0,0 +1,307 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The values of a SAML2 assertion needed to authenticate and authorize its
+ * subject, as read by {@link Saml2StaxExtractor} without building the
+ * OpenSAML object model.
+ * <p>
+ * Instants are in milliseconds since the epoch. A missing lower bound is
+ * {@link Long#MIN_VALUE} and a missing upper bound {@link Long#MAX_VALUE}, so
+ * that they can be compared without special cases.
+ */
+public class Saml2ExtractedAssertion {
+
+	private String id;
+
+	private String issuer;
+
+	private String nameId;
+
+	private String sessionIndex;
+
+	private long notBefore = Long.MIN_VALUE;
+
+	private long notOnOrAfter = Long.MAX_VALUE;
+
+	/*
+	 * The bearer subject confirmations, validated one by one
+	 */
+	private final List<Confirmation> confirmations = new ArrayList<Confirmation>(
+			1);
+
+	private final List<Confirmation> confirmationsView = Collections
+			.unmodifiableList(confirmations);
+
+	/*
+	 * InResponseTo of the response carrying the assertion
+	 */
+	private String responseInResponseTo;
+
+	private final List<String> audiences = new ArrayList<String>(1);
+
+	private final List<List<String>> audienceRestrictions = new ArrayList<List<String>>(
+			1);
+
+	/*
+	 * Read-only views of the audience restrictions, kept so that validation
+	 * does not create them on each call
+	 */
+	private final List<List<String>> audienceRestrictionsView = Collections
+			.unmodifiableList(audienceRestrictions);
+
+	private List<String> currentAudienceRestriction;
+
+	private final Map<String, List<String>> attributes = new HashMap<String, List<String>>();
+
+	public String getId() {
+		return id;
+	}
+
+	void setId(String id) {
+		this.id = id;
+	}
+
+	public String getIssuer() {
+		return issuer;
+	}
+
+	void setIssuer(String issuer) {
+		this.issuer = issuer;
+	}
+
+	public String getNameId() {
+		return nameId;
+	}
+
+	void setNameId(String nameId) {
+		this.nameId = nameId;
+	}
+
+	public String getSessionIndex() {
+		return sessionIndex;
+	}
+
+	void setSessionIndex(String sessionIndex) {
+		this.sessionIndex = sessionIndex;
+	}
+
+	/**
+	 * @return the NotBefore of the conditions
+	 */
+	public long getNotBefore() {
+		return notBefore;
+	}
+
+	void setNotBefore(long notBefore) {
+		this.notBefore = notBefore;
+	}
+
+	/**
+	 * @return the NotOnOrAfter of the conditions
+	 */
+	public long getNotOnOrAfter() {
+		return notOnOrAfter;
+	}
+
+	void setNotOnOrAfter(long notOnOrAfter) {
+		this.notOnOrAfter = notOnOrAfter;
+	}
+
+	/**
+	 * @return <code>true</code> if the subject has a bearer confirmation
+	 */
+	public boolean hasBearerConfirmation() {
+		return !confirmations.isEmpty();
+	}
+
+	/**
+	 * @return the bearer subject confirmations
+	 */
+	public List<Confirmation> getConfirmations() {
+		return confirmationsView;
+	}
+
+	/*
+	 * Adds a bearer subject confirmation, which the next confirmation data
+	 * belongs to
+	 */
+	Confirmation addConfirmation() {
+		Confirmation confirmation = new Confirmation();
+		confirmations.add(confirmation);
+		return confirmation;
+	}
+
+	/**
+	 * Gets the time after which the assertion is no longer accepted, which is
+	 * the NotOnOrAfter of its conditions or, if earlier, the latest
+	 * NotOnOrAfter of its bearer subject confirmations.
+	 * 
+	 * @return the expiration time in milliseconds
+	 */
+	public long getExpiration() {
+		if (confirmations.isEmpty()) {
+			return notOnOrAfter;
+		}
+		long latest = Long.MIN_VALUE;
+		for (int i = 0; i < confirmations.size(); i++) {
+			latest = Math.max(latest, confirmations.get(i).getNotOnOrAfter());
+		}
+		return Math.min(notOnOrAfter, latest);
+	}
+
+	/**
+	 * @return the Recipient of the first bearer subject confirmation stating
+	 *         one
+	 */
+	public String getRecipient() {
+		for (int i = 0; i < confirmations.size(); i++) {
+			if (confirmations.get(i).getRecipient() != null) {
+				return confirmations.get(i).getRecipient();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the InResponseTo of the first bearer subject confirmation
+	 *         stating one
+	 */
+	public String getInResponseTo() {
+		for (int i = 0; i < confirmations.size(); i++) {
+			if (confirmations.get(i).getInResponseTo() != null) {
+				return confirmations.get(i).getInResponseTo();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the InResponseTo of the response carrying the assertion
+	 */
+	public String getResponseInResponseTo() {
+		return responseInResponseTo;
+	}
+
+	void setResponseInResponseTo(String responseInResponseTo) {
+		this.responseInResponseTo = responseInResponseTo;
+	}
+
+	/**
+	 * @return the audiences of all the audience restrictions
+	 */
+	public List<String> getAudiences() {
+		return Collections.unmodifiableList(audiences);
+	}
+
+	/**
+	 * @return the audiences of each audience restriction
+	 */
+	public List<List<String>> getAudienceRestrictions() {
+		return audienceRestrictionsView;
+	}
+
+	/*
+	 * Starts a new audience restriction, which the next audiences belong to
+	 */
+	void addAudienceRestriction() {
+		currentAudienceRestriction = new ArrayList<String>(1);
+		audienceRestrictions.add(Collections
+				.unmodifiableList(currentAudienceRestriction));
+	}
+
+	void addAudience(String audience) {
+		audiences.add(audience);
+		currentAudienceRestriction.add(audience);
+	}
+
+	/**
+	 * @return the values of the extracted attributes by attribute name
+	 */
+	public Map<String, List<String>> getAttributes() {
+		return Collections.unmodifiableMap(attributes);
+	}
+
+	void addAttributeValue(String name, String value) {
+		List<String> values = attributes.get(name);
+		if (values == null) {
+			values = new ArrayList<String>(1);
+			attributes.put(name, values);
+		}
+		values.add(value);
+	}
+
+	/**
+	 * The data of a bearer subject confirmation. Like the assertion, a missing
+	 * lower bound is {@link Long#MIN_VALUE} and a missing upper bound
+	 * {@link Long#MAX_VALUE}.
+	 */
+	public static final class Confirmation {
+
+		private long notBefore = Long.MIN_VALUE;
+
+		private long notOnOrAfter = Long.MAX_VALUE;
+
+		private String recipient;
+
+		private String inResponseTo;
+
+		Confirmation() {
+		}
+
+		public long getNotBefore() {
+			return notBefore;
+		}
+
+		void setNotBefore(long notBefore) {
+			this.notBefore = notBefore;
+		}
+
+		public long getNotOnOrAfter() {
+			return notOnOrAfter;
+		}
+
+		void setNotOnOrAfter(long notOnOrAfter) {
+			this.notOnOrAfter = notOnOrAfter;
+		}
+
+		public String getRecipient() {
+			return recipient;
+		}
+
+		void setRecipient(String recipient) {
+			this.recipient = recipient;
+		}
+
+		public String getInResponseTo() {
+			return inResponseTo;
+		}
+
+		void setInResponseTo(String inResponseTo) {
+			this.inResponseTo = inResponseTo;
+		}
+	}
+}
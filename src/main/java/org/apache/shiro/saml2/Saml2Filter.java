@@ -19,13 +19,26 @@
 package org.apache.shiro.saml2;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 
+import org.apache.shiro.SecurityUtils;
 import org.apache.shiro.authc.AuthenticationException;
 import org.apache.shiro.authc.AuthenticationToken;
+import org.apache.shiro.session.Session;
+import org.apache.shiro.session.mgt.SessionManager;
 import org.apache.shiro.subject.Subject;
 import org.apache.shiro.web.filter.authc.AuthenticatingFilter;
 import org.apache.shiro.web.util.WebUtils;
@@ -43,16 +56,130 @@ public class Saml2Filter extends AuthenticatingFilter {
 	 */
 	private static final String SAML_PARAMETER = "SAMLResponse";
 
+	/*
+	 * The name of the parameter containing the artifact of the HTTP-Artifact
+	 * binding
+	 */
+	private static final String ARTIFACT_PARAMETER = "SAMLart";
+
+	private static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+
+	/*
+	 * Session attribute holding the digest of the response which
+	 * authenticated the session
+	 */
+	private static final String RESPONSE_DIGEST_ATTRIBUTE = Saml2Filter.class
+			.getName() + ".RESPONSE_DIGEST";
+
 	/*
 	 * The URL where the application is redirected if the service provider
 	 * ticket validation failed
 	 */
 	private String failureUrl;
 
+	/*
+	 * Whether OpenSAML is bootstrapped when the filter is initialized rather
+	 * than on the first login, and whether this happens on a background thread
+	 * so that the servlet container startup is not delayed
+	 */
+	private boolean bootstrapOnInit = true;
+
+	private boolean bootstrapInBackground = false;
+
+	/*
+	 * Whether the SAML response is decoded and parsed straight from the POST
+	 * body instead of being read as a request parameter first. This requires
+	 * that no filter before this one reads the request parameters.
+	 */
+	private boolean streaming = false;
+
+	/*
+	 * Whether form POST logins are processed asynchronously: the body is read
+	 * with non-blocking I/O and the response is parsed and validated on a
+	 * bounded executor, releasing the container thread in the meantime. This
+	 * requires the Shiro filter to be declared as async-supported and, like
+	 * streaming, that no filter before this one reads the request parameters.
+	 */
+	private boolean asynchronous = false;
+
+	private int asyncThreads = Runtime.getRuntime().availableProcessors();
+
+	private int asyncQueueSize = 100;
+
+	private long asyncTimeout = 30000L;
+
+	private ExecutorService asyncExecutor;
+
+	/*
+	 * Whether the async executor was created by this filter, which then shuts
+	 * it down
+	 */
+	private boolean asyncExecutorCreated = false;
+
+	/*
+	 * Payload size, concurrency and client rate limits checked before a login
+	 * is processed
+	 */
+	private Saml2AdmissionControl admissionControl = new Saml2AdmissionControl();
+
+	/*
+	 * Whether authenticated subjects are redirected to the success URL without
+	 * the response they post being processed
+	 */
+	private boolean skipAuthenticated = false;
+
+	/*
+	 * Whether authenticated subjects posting again the response which
+	 * authenticated their session, on a reload or a double submit, are
+	 * redirected to the success URL without the response being processed
+	 */
+	private boolean skipResubmitted = false;
+
+	/*
+	 * Creator of the AuthnRequests of SP-initiated logins, null to only
+	 * consume the responses of IdP-initiated logins
+	 */
+	private Saml2AuthnRequestGenerator authnRequestGenerator;
+
+	/*
+	 * Processor of the LogoutRequests of the IdP, null to not support Single
+	 * Logout. Logged in sessions are registered in its session registry.
+	 */
+	private Saml2LogoutHandler logoutHandler;
+
+	@Override
+	protected void onFilterConfigSet() throws Exception {
+		super.onFilterConfigSet();
+		if (bootstrapOnInit) {
+			Saml2Bootstrap.initialize(bootstrapInBackground);
+		}
+	}
+
+	@Override
+	public void destroy() {
+		synchronized (this) {
+			if (asyncExecutor != null && asyncExecutorCreated) {
+				asyncExecutor.shutdown();
+			}
+			asyncExecutor = null;
+			asyncExecutorCreated = false;
+		}
+		super.destroy();
+	}
+
 	/**
 	 * The token created for this authentication is a Saml2Token containing the
 	 * SAML2 response received on the Service Provider Consumer URL configured
 	 * with the Identity Provider (on which the filter must be configured).
+	 * <p>
+	 * A response received with a GET request came over the HTTP-Redirect
+	 * binding: it is DEFLATE compressed, and the token also carries the
+	 * detached signature of the query string if there is one, in which case
+	 * the response is the signed one. A query string repeating a signed
+	 * parameter fails the login. A request carrying a SAMLart parameter came
+	 * over the HTTP-Artifact binding, the realm then resolves the artifact
+	 * over the back channel. Artifacts are not looked for in the form POSTs
+	 * read as a stream, in streaming or asynchronous mode.
 	 * 
 	 * @param request
 	 *            the incoming request
@@ -65,14 +192,130 @@ public class Saml2Filter extends AuthenticatingFilter {
 	protected AuthenticationToken createToken(ServletRequest request,
 			ServletResponse response) throws Exception {
 		HttpServletRequest httpRequest = (HttpServletRequest) request;
+		if (streaming && isFormPost(httpRequest)) {
+			return new Saml2Token(new Saml2ParameterInputStream(
+					httpRequest.getInputStream(), SAML_PARAMETER,
+					admissionControl.getMaxPayloadSize()));
+		}
+		String artifact = httpRequest.getParameter(ARTIFACT_PARAMETER);
+		if (artifact != null) {
+			return new Saml2Token(artifact, Saml2Binding.HTTP_ARTIFACT);
+		}
 		String samlResponse = httpRequest.getParameter(SAML_PARAMETER);
+		if (GET_METHOD.equalsIgnoreCase(httpRequest.getMethod())) {
+			Saml2QuerySignature querySignature;
+			try {
+				querySignature = Saml2QuerySignature.parse(
+						httpRequest.getQueryString(), SAML_PARAMETER);
+			} catch (Saml2TokenValidationException e) {
+				throw new Saml2AuthenticationException(e);
+			}
+			/*
+			 * Only the response covered by the signature is processed
+			 */
+			Saml2Token token = new Saml2Token(
+					querySignature != null ? querySignature.getMessage()
+							: samlResponse, Saml2Binding.HTTP_REDIRECT);
+			token.setQuerySignature(querySignature);
+			return token;
+		}
 		return new Saml2Token(samlResponse);
 	}
 
+	/**
+	 * Creates the token of an asynchronous login from the form encoded body
+	 * of the request.
+	 * 
+	 * @param body
+	 *            the form encoded request body
+	 * @return a streaming Saml2Token
+	 */
+	protected AuthenticationToken createToken(InputStream body) {
+		return new Saml2Token(new Saml2ParameterInputStream(body,
+				SAML_PARAMETER, admissionControl.getMaxPayloadSize()));
+	}
+
+	private boolean isFormPost(HttpServletRequest httpRequest) {
+		String contentType = httpRequest.getContentType();
+		return POST_METHOD.equalsIgnoreCase(httpRequest.getMethod())
+				&& contentType != null
+				&& contentType.regionMatches(true, 0, FORM_CONTENT_TYPE, 0,
+						FORM_CONTENT_TYPE.length());
+	}
+
+	/**
+	 * Times the complete login when metrics are enabled, and fails the login
+	 * if no token can be created from the request.
+	 */
+	@Override
+	protected boolean executeLogin(ServletRequest request,
+			ServletResponse response) throws Exception {
+		Saml2Metrics metrics = Saml2Metrics.getInstance();
+		long start = metrics.start();
+		try {
+			return super.executeLogin(request, response);
+		} catch (Saml2AuthenticationException e) {
+			/*
+			 * Thrown by createToken, before the login is attempted
+			 */
+			return onLoginFailure(null, e, request, response);
+		} finally {
+			metrics.record(Saml2Stage.LOGIN, start);
+		}
+	}
+
+	@Override
+	protected boolean onLoginSuccess(AuthenticationToken token,
+			Subject subject, ServletRequest request, ServletResponse response)
+			throws Exception {
+		Saml2Metrics.getInstance().recordSuccess();
+		if (skipResubmitted && !((Saml2Token) token).isStreaming()) {
+			subject.getSession().setAttribute(RESPONSE_DIGEST_ATTRIBUTE,
+					digest((String) token.getCredentials()));
+		}
+		if (logoutHandler != null) {
+			Saml2Principal principal = subject.getPrincipals().oneByType(
+					Saml2Principal.class);
+			if (principal != null) {
+				logoutHandler.getSessionRegistry().register(principal,
+						subject.getSession().getId());
+			}
+		}
+		return super.onLoginSuccess(token, subject, request, response);
+	}
+
+	/*
+	 * The filter chain cannot be continued once the request went
+	 * asynchronous, the success redirect is issued instead
+	 */
+	void onAsyncLoginSuccess(AuthenticationToken token, Subject subject,
+			ServletRequest request, ServletResponse response) throws Exception {
+		if (onLoginSuccess(token, subject, request, response)) {
+			issueSuccessRedirect(request, response);
+		}
+	}
+
 	/**
 	 * Execute login by creating
 	 * {@link #createToken(javax.servlet.ServletRequest, javax.servlet.ServletResponse)
-	 * token} and logging subject with this token.
+	 * token} and logging subject with this token. In asynchronous mode, form
+	 * POST logins are handed over to a {@link Saml2AsyncLogin} and the
+	 * container thread returns immediately.
+	 * <p>
+	 * With a {@link Saml2LogoutHandler}, a request carrying a LogoutRequest
+	 * of the IdP is handed over to it first. LogoutRequests are not looked
+	 * for in the form POSTs read as a stream, in streaming or asynchronous
+	 * mode, so the IdP should send them over the HTTP-Redirect binding.
+	 * <p>
+	 * Subjects already logged in are redirected to the success URL first, see
+	 * {@link #isAlreadyLoggedIn(ServletRequest, ServletResponse)}. The
+	 * request is then submitted to the {@link Saml2AdmissionControl}, and a
+	 * rejected request is answered with the status of the rejection reason.
+	 * With an
+	 * {@link Saml2AuthnRequestGenerator}, a request carrying neither a
+	 * response nor an artifact then starts an SP-initiated login: it is saved,
+	 * to be redirected to once logged in, and the user is redirected to the
+	 * IdP with a new AuthnRequest, also remembered in the user's session.
 	 * 
 	 * @param request
 	 *            the incoming request
@@ -84,7 +327,150 @@ public class Saml2Filter extends AuthenticatingFilter {
 	@Override
 	protected boolean onAccessDenied(ServletRequest request,
 			ServletResponse response) throws Exception {
-		return executeLogin(request, response);
+		HttpServletRequest httpRequest = (HttpServletRequest) request;
+		boolean formPost = isFormPost(httpRequest);
+		if (logoutHandler != null
+				&& !(formPost && (streaming || (asynchronous && request
+						.isAsyncSupported())))
+				&& logoutHandler.isLogoutRequest(request)) {
+			logoutHandler.handle(httpRequest, WebUtils.toHttp(response),
+					(SessionManager) SecurityUtils.getSecurityManager());
+			return false;
+		}
+
+		if (isAlreadyLoggedIn(request, response)) {
+			issueSuccessRedirect(request, response);
+			return false;
+		}
+
+		Saml2RejectionReason reason = admissionControl.admit(request);
+		if (reason != null) {
+			return reject(reason, response);
+		}
+
+		if (authnRequestGenerator != null && !formPost
+				&& request.getParameter(SAML_PARAMETER) == null
+				&& request.getParameter(ARTIFACT_PARAMETER) == null) {
+			saveRequest(request);
+			WebUtils.toHttp(response).sendRedirect(
+					authnRequestGenerator.createRedirectUrl(null,
+							getSubject(request, response).getSession()));
+			return false;
+		}
+		boolean async = asynchronous && formPost && request.isAsyncSupported();
+
+		if (!async && !(streaming && formPost)) {
+			String samlResponse = httpRequest.getParameter(SAML_PARAMETER);
+			if (samlResponse != null
+					&& admissionControl.isPayloadTooLarge(samlResponse
+							.length())) {
+				return reject(admissionControl
+						.reject(Saml2RejectionReason.PAYLOAD_TOO_LARGE),
+						response);
+			}
+		}
+
+		if (async) {
+			Saml2AsyncLogin.start(this, getSubject(request, response),
+					request, response, getAsyncExecutor(), asyncTimeout);
+			return false;
+		}
+		if (!admissionControl.acquire()) {
+			return reject(Saml2RejectionReason.CONCURRENCY_LIMIT, response);
+		}
+		try {
+			return executeLogin(request, response);
+		} finally {
+			admissionControl.release();
+		}
+	}
+
+	/**
+	 * Tells whether the subject is already logged in and only has to be
+	 * redirected, without the posted response being decoded or parsed: with
+	 * {@link #isSkipAuthenticated()} when it is authenticated, with
+	 * {@link #isSkipResubmitted()} when it is authenticated and posts the
+	 * response which authenticated its session. Resubmissions are not
+	 * detected when the response is streamed from the body.
+	 * 
+	 * @param request
+	 *            the incoming request
+	 * @param response
+	 *            the outgoing response
+	 * @return <code>true</code> if the subject is only redirected
+	 */
+	protected boolean isAlreadyLoggedIn(ServletRequest request,
+			ServletResponse response) {
+		if (!skipAuthenticated && !skipResubmitted) {
+			return false;
+		}
+		Subject subject = getSubject(request, response);
+		if (!subject.isAuthenticated()) {
+			return false;
+		}
+		if (skipAuthenticated) {
+			return true;
+		}
+
+		if (isFormPost((HttpServletRequest) request)
+				&& (streaming || (asynchronous && request.isAsyncSupported()))) {
+			return false;
+		}
+		Session session = subject.getSession(false);
+		String samlResponse = request.getParameter(SAML_PARAMETER);
+		if (session == null || samlResponse == null) {
+			return false;
+		}
+		Object digest = session.getAttribute(RESPONSE_DIGEST_ATTRIBUTE);
+		return digest instanceof byte[]
+				&& MessageDigest.isEqual((byte[]) digest, digest(samlResponse));
+	}
+
+	/*
+	 * Digest of the response as posted, so that comparing responses needs
+	 * neither decoding nor parsing
+	 */
+	private static byte[] digest(String samlResponse) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(
+					samlResponse.getBytes("UTF-8"));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private boolean reject(Saml2RejectionReason reason,
+			ServletResponse response) throws IOException {
+		LOGGER.debug("SAML2 login rejected : {}", reason);
+		WebUtils.toHttp(response).sendError(reason.getStatus());
+		return false;
+	}
+
+	/**
+	 * @return the executor running the asynchronous logins, created on first
+	 *         use with {@link #getAsyncThreads()} threads and a queue of
+	 *         {@link #getAsyncQueueSize()} pending logins
+	 */
+	public synchronized ExecutorService getAsyncExecutor() {
+		if (asyncExecutor == null) {
+			asyncExecutor = new ThreadPoolExecutor(asyncThreads, asyncThreads,
+					60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+							asyncQueueSize), new LoginThreadFactory());
+			asyncExecutorCreated = true;
+		}
+		return asyncExecutor;
+	}
+
+	/**
+	 * @param asyncExecutor
+	 *            the executor running the asynchronous logins, left running
+	 *            when the filter is destroyed
+	 */
+	public synchronized void setAsyncExecutor(ExecutorService asyncExecutor) {
+		this.asyncExecutor = asyncExecutor;
+		this.asyncExecutorCreated = false;
 	}
 
 	/**
@@ -125,6 +511,7 @@ public class Saml2Filter extends AuthenticatingFilter {
 			AuthenticationException ae, ServletRequest request,
 			ServletResponse response) {
 
+		Saml2Metrics.getInstance().recordFailure(ae);
 		Subject subject = getSubject(request, response);
 		if (subject.isAuthenticated() || subject.isRemembered()) {
 			try {
@@ -146,4 +533,153 @@ public class Saml2Filter extends AuthenticatingFilter {
 	public void setFailureUrl(String failureUrl) {
 		this.failureUrl = failureUrl;
 	}
+
+	public boolean isMetricsEnabled() {
+		return Saml2Metrics.getInstance().isEnabled();
+	}
+
+	/**
+	 * Enables the metrics of the SAML2 login path, shared by every realm and
+	 * filter, and publishes them over JMX.
+	 * 
+	 * @param metricsEnabled
+	 *            <code>true</code> to enable the metrics
+	 */
+	public void setMetricsEnabled(boolean metricsEnabled) {
+		if (metricsEnabled) {
+			Saml2Metrics.getInstance().enableAndRegister();
+		} else {
+			Saml2Metrics.getInstance().setEnabled(false);
+		}
+	}
+
+	public boolean isBootstrapOnInit() {
+		return bootstrapOnInit;
+	}
+
+	public void setBootstrapOnInit(boolean bootstrapOnInit) {
+		this.bootstrapOnInit = bootstrapOnInit;
+	}
+
+	public boolean isBootstrapInBackground() {
+		return bootstrapInBackground;
+	}
+
+	public void setBootstrapInBackground(boolean bootstrapInBackground) {
+		this.bootstrapInBackground = bootstrapInBackground;
+	}
+
+	public boolean isStreaming() {
+		return streaming;
+	}
+
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+
+	public Saml2AdmissionControl getAdmissionControl() {
+		return admissionControl;
+	}
+
+	public void setAdmissionControl(Saml2AdmissionControl admissionControl) {
+		this.admissionControl = admissionControl;
+	}
+
+	public boolean isSkipAuthenticated() {
+		return skipAuthenticated;
+	}
+
+	public void setSkipAuthenticated(boolean skipAuthenticated) {
+		this.skipAuthenticated = skipAuthenticated;
+	}
+
+	public boolean isSkipResubmitted() {
+		return skipResubmitted;
+	}
+
+	public void setSkipResubmitted(boolean skipResubmitted) {
+		this.skipResubmitted = skipResubmitted;
+	}
+
+	public Saml2AuthnRequestGenerator getAuthnRequestGenerator() {
+		return authnRequestGenerator;
+	}
+
+	/**
+	 * Enables SP-initiated logins. The generator should share its
+	 * {@link Saml2OutstandingRequests} with the realm.
+	 * 
+	 * @param authnRequestGenerator
+	 *            the creator of the AuthnRequests, <code>null</code> to only
+	 *            accept IdP-initiated logins
+	 */
+	public void setAuthnRequestGenerator(
+			Saml2AuthnRequestGenerator authnRequestGenerator) {
+		this.authnRequestGenerator = authnRequestGenerator;
+	}
+
+	public Saml2LogoutHandler getLogoutHandler() {
+		return logoutHandler;
+	}
+
+	/**
+	 * Enables Single Logout. The security manager must use a native session
+	 * manager, which has the session registry of the handler among its
+	 * session listeners.
+	 * 
+	 * @param logoutHandler
+	 *            the processor of the LogoutRequests, <code>null</code> to not
+	 *            support Single Logout
+	 */
+	public void setLogoutHandler(Saml2LogoutHandler logoutHandler) {
+		this.logoutHandler = logoutHandler;
+	}
+
+	public boolean isAsynchronous() {
+		return asynchronous;
+	}
+
+	public void setAsynchronous(boolean asynchronous) {
+		this.asynchronous = asynchronous;
+	}
+
+	public int getAsyncThreads() {
+		return asyncThreads;
+	}
+
+	public void setAsyncThreads(int asyncThreads) {
+		this.asyncThreads = asyncThreads;
+	}
+
+	public int getAsyncQueueSize() {
+		return asyncQueueSize;
+	}
+
+	public void setAsyncQueueSize(int asyncQueueSize) {
+		this.asyncQueueSize = asyncQueueSize;
+	}
+
+	public long getAsyncTimeout() {
+		return asyncTimeout;
+	}
+
+	public void setAsyncTimeout(long asyncTimeout) {
+		this.asyncTimeout = asyncTimeout;
+	}
+
+	/*
+	 * Names the login threads and makes them daemons, so that they never
+	 * prevent the container from shutting down
+	 */
+	private static class LoginThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger threadCount = new AtomicInteger();
+
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "saml2-login-"
+					+ threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
 }
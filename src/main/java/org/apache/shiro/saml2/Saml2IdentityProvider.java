@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An Identity Provider known to a {@link Saml2IdentityProviderRegistry}, with
+ * its signing certificates and the optional authorization configuration
+ * overriding the one of the realm for its users.
+ */
+public final class Saml2IdentityProvider {
+
+	private final String entityId;
+
+	private final List<X509Certificate> signingCertificates;
+
+	/*
+	 * Verifier of the IdP signatures, null if its metadata lists no signing
+	 * key
+	 */
+	private final Saml2SignatureVerifier signatureVerifier;
+
+	/*
+	 * Authorization configuration of the users of this IdP, null to use the
+	 * one of the realm
+	 */
+	private final Saml2AuthorizationPlan authorizationPlan;
+
+	/**
+	 * @param entityId
+	 *            the entityID of the IdP, matched against the Issuer of the
+	 *            assertions
+	 * @param signingCertificates
+	 *            the signing certificates of the IdP
+	 * @param authorizationPlan
+	 *            the authorization configuration of the users of this IdP,
+	 *            <code>null</code> to use the one of the realm
+	 */
+	public Saml2IdentityProvider(String entityId,
+			List<X509Certificate> signingCertificates,
+			Saml2AuthorizationPlan authorizationPlan) {
+		this.entityId = entityId;
+		this.signingCertificates = Collections
+				.unmodifiableList(signingCertificates);
+		this.signatureVerifier = signingCertificates.isEmpty() ? null
+				: new Saml2SignatureVerifier(signingCertificates);
+		this.authorizationPlan = authorizationPlan;
+	}
+
+	public String getEntityId() {
+		return entityId;
+	}
+
+	public List<X509Certificate> getSigningCertificates() {
+		return signingCertificates;
+	}
+
+	/**
+	 * @return the verifier of the signatures of this IdP, or
+	 *         <code>null</code> if its metadata lists no signing key
+	 */
+	public Saml2SignatureVerifier getSignatureVerifier() {
+		return signatureVerifier;
+	}
+
+	/**
+	 * @return the authorization configuration of the users of this IdP, or
+	 *         <code>null</code> to use the one of the realm
+	 */
+	public Saml2AuthorizationPlan getAuthorizationPlan() {
+		return authorizationPlan;
+	}
+
+	@Override
+	public String toString() {
+		return entityId;
+	}
+}
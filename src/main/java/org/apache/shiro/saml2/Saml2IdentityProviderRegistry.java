@@ -0,0 +1,438 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.shiro.util.Destroyable;
+import org.apache.shiro.util.Initializable;
+import org.opensaml.Configuration;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml2.metadata.KeyDescriptor;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.io.Unmarshaller;
+import org.opensaml.xml.io.UnmarshallingException;
+import org.opensaml.xml.security.credential.UsageType;
+import org.opensaml.xml.security.keyinfo.KeyInfoHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+
+/**
+ * The Identity Providers trusted by a {@link Saml2Realm}, loaded from the SAML2
+ * metadata files (<code>*.xml</code>) of a directory and indexed by entityID.
+ * <p>
+ * A metadata file holds an EntityDescriptor or an EntitiesDescriptor, every
+ * entity with an IDPSSODescriptor being registered with its signing keys.
+ * Expired entities are ignored. A properties file with the same base name
+ * (<code>idp.properties</code> next to <code>idp.xml</code>) may override
+ * the authorization configuration of the realm for the IdPs of that file,
+ * with the <code>defaultRoles</code>, <code>defaultPermissions</code>,
+ * <code>roleAttributeNames</code> and <code>permissionAttributeNames</code>
+ * keys.
+ * <p>
+ * The IdPs are kept in an immutable snapshot replaced as a whole on reload,
+ * so lookups on the login path never take a lock. When watching is enabled,
+ * a daemon thread reloads the directory whenever one of its files changes. A
+ * file which fails to load keeps the IdPs it previously defined.
+ */
+public class Saml2IdentityProviderRegistry implements Initializable,
+		Destroyable {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(Saml2IdentityProviderRegistry.class);
+
+	private static final String METADATA_SUFFIX = ".xml";
+
+	private static final String OVERRIDES_SUFFIX = ".properties";
+
+	/*
+	 * Time waited after a change for the other changes of the same update,
+	 * in milliseconds
+	 */
+	private static final long RELOAD_DELAY = 200L;
+
+	/*
+	 * Directory holding the metadata files
+	 */
+	private String metadataDirectory;
+
+	/*
+	 * Whether the directory is watched for changes
+	 */
+	private boolean watch = false;
+
+	private Saml2ParserPool parserPool = TokenToSaml2Response
+			.getDefaultParserPool();
+
+	private volatile Snapshot snapshot = new Snapshot(
+			Collections.<String, List<Saml2IdentityProvider>> emptyMap());
+
+	private final AtomicLong reloadCount = new AtomicLong();
+
+	private WatchService watchService;
+
+	private Thread watchThread;
+
+	public Saml2IdentityProviderRegistry() {
+	}
+
+	/**
+	 * @param metadataDirectory
+	 *            the directory holding the metadata files
+	 */
+	public Saml2IdentityProviderRegistry(String metadataDirectory) {
+		this.metadataDirectory = metadataDirectory;
+	}
+
+	/**
+	 * Loads the metadata and starts watching the directory if enabled.
+	 */
+	public void init() {
+		reload();
+		if (watch) {
+			startWatching();
+		}
+	}
+
+	/**
+	 * Stops watching the directory.
+	 */
+	public synchronized void destroy() {
+		if (watchService != null) {
+			try {
+				watchService.close();
+			} catch (IOException e) {
+				LOGGER.warn("Cannot stop watching {}", metadataDirectory, e);
+			}
+			watchService = null;
+			watchThread = null;
+		}
+	}
+
+	/**
+	 * @param entityId
+	 *            the entityID of an IdP, usually the Issuer of an assertion
+	 * @return the IdP, or <code>null</code> if it is unknown
+	 */
+	public Saml2IdentityProvider get(String entityId) {
+		return entityId != null ? snapshot.providers.get(entityId) : null;
+	}
+
+	/**
+	 * @return the registered IdPs
+	 */
+	public Collection<Saml2IdentityProvider> getIdentityProviders() {
+		return snapshot.providers.values();
+	}
+
+	/**
+	 * Loads every metadata file of the directory and atomically replaces the
+	 * registered IdPs.
+	 */
+	public synchronized void reload() {
+		File directory = getDirectory();
+		File[] files = directory.listFiles();
+		if (files == null) {
+			LOGGER.error("Cannot list the SAML2 metadata directory {}",
+					directory);
+			return;
+		}
+		Arrays.sort(files);
+
+		Map<String, List<Saml2IdentityProvider>> previous = snapshot.providersByFile;
+		Map<String, List<Saml2IdentityProvider>> providersByFile = new HashMap<String, List<Saml2IdentityProvider>>();
+		for (File file : files) {
+			String name = file.getName();
+			if (!file.isFile() || !name.endsWith(METADATA_SUFFIX)) {
+				continue;
+			}
+			try {
+				providersByFile.put(name, load(file));
+			} catch (Saml2TokenValidationException e) {
+				LOGGER.error("Cannot load the SAML2 metadata {}", file, e);
+				List<Saml2IdentityProvider> kept = previous.get(name);
+				if (kept != null) {
+					providersByFile.put(name, kept);
+				}
+			}
+		}
+		snapshot = new Snapshot(providersByFile);
+		reloadCount.incrementAndGet();
+		LOGGER.info("Loaded {} SAML2 identity providers from {}",
+				snapshot.providers.size(), directory);
+	}
+
+	private List<Saml2IdentityProvider> load(File file)
+			throws Saml2TokenValidationException {
+		Saml2Bootstrap.bootstrap();
+		Saml2AuthorizationPlan plan = loadOverrides(file);
+		XMLObject metadata;
+		try {
+			InputStream in = new FileInputStream(file);
+			try {
+				Element element = parserPool.parse(in).getDocumentElement();
+				Unmarshaller unmarshaller = Configuration
+						.getUnmarshallerFactory().getUnmarshaller(element);
+				if (unmarshaller == null) {
+					throw new Saml2TokenValidationException(
+							"Not a SAML2 metadata document");
+				}
+				metadata = unmarshaller.unmarshall(element);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new Saml2TokenValidationException(e);
+		} catch (UnmarshallingException e) {
+			throw new Saml2TokenValidationException(e);
+		}
+
+		List<Saml2IdentityProvider> providers = new ArrayList<Saml2IdentityProvider>();
+		if (metadata instanceof EntitiesDescriptor) {
+			addProviders((EntitiesDescriptor) metadata, plan, providers);
+		} else if (metadata instanceof EntityDescriptor) {
+			addProvider((EntityDescriptor) metadata, plan, providers);
+		} else {
+			throw new Saml2TokenValidationException(
+					"Not a SAML2 metadata document");
+		}
+		return providers;
+	}
+
+	private void addProviders(EntitiesDescriptor entities,
+			Saml2AuthorizationPlan plan, List<Saml2IdentityProvider> providers)
+			throws Saml2TokenValidationException {
+		if (!entities.isValid()) {
+			LOGGER.warn("Ignoring expired SAML2 metadata {}",
+					entities.getName());
+			return;
+		}
+		for (EntitiesDescriptor nested : entities.getEntitiesDescriptors()) {
+			addProviders(nested, plan, providers);
+		}
+		for (EntityDescriptor entity : entities.getEntityDescriptors()) {
+			addProvider(entity, plan, providers);
+		}
+	}
+
+	private void addProvider(EntityDescriptor entity,
+			Saml2AuthorizationPlan plan, List<Saml2IdentityProvider> providers)
+			throws Saml2TokenValidationException {
+		IDPSSODescriptor descriptor = entity
+				.getIDPSSODescriptor(SAMLConstants.SAML20P_NS);
+		if (descriptor == null) {
+			return;
+		}
+		if (!entity.isValid()) {
+			LOGGER.warn("Ignoring expired SAML2 metadata of {}",
+					entity.getEntityID());
+			return;
+		}
+
+		List<X509Certificate> certificates = new ArrayList<X509Certificate>();
+		for (KeyDescriptor key : descriptor.getKeyDescriptors()) {
+			if (key.getUse() == UsageType.ENCRYPTION
+					|| key.getKeyInfo() == null) {
+				continue;
+			}
+			try {
+				certificates.addAll(KeyInfoHelper.getCertificates(key
+						.getKeyInfo()));
+			} catch (CertificateException e) {
+				throw new Saml2TokenValidationException(
+						"Cannot read the signing certificate of "
+								+ entity.getEntityID(), e);
+			}
+		}
+		providers.add(new Saml2IdentityProvider(entity.getEntityID(),
+				certificates, plan));
+	}
+
+	/*
+	 * Reads the authorization configuration of the sidecar properties file,
+	 * if any
+	 */
+	private static Saml2AuthorizationPlan loadOverrides(File metadataFile)
+			throws Saml2TokenValidationException {
+		String name = metadataFile.getName();
+		File overridesFile = new File(metadataFile.getParentFile(),
+				name.substring(0, name.length() - METADATA_SUFFIX.length())
+						+ OVERRIDES_SUFFIX);
+		if (!overridesFile.isFile()) {
+			return null;
+		}
+		Properties overrides = new Properties();
+		try {
+			InputStream in = new FileInputStream(overridesFile);
+			try {
+				overrides.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new Saml2TokenValidationException(e);
+		}
+		return Saml2AuthorizationPlan.compile(
+				overrides.getProperty("defaultRoles"),
+				overrides.getProperty("defaultPermissions"),
+				overrides.getProperty("roleAttributeNames"),
+				overrides.getProperty("permissionAttributeNames"));
+	}
+
+	/**
+	 * Starts a daemon thread reloading the metadata whenever a file of the
+	 * directory is created, modified or deleted.
+	 */
+	public synchronized void startWatching() {
+		if (watchService != null) {
+			return;
+		}
+		Path path = getDirectory().toPath();
+		final WatchService service;
+		try {
+			service = FileSystems.getDefault().newWatchService();
+			path.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY,
+					StandardWatchEventKinds.ENTRY_DELETE);
+		} catch (IOException e) {
+			LOGGER.error("Cannot watch the SAML2 metadata directory {}", path,
+					e);
+			return;
+		}
+		watchService = service;
+		watchThread = new Thread(new Runnable() {
+			public void run() {
+				watch(service);
+			}
+		}, "saml2-metadata-watcher");
+		watchThread.setDaemon(true);
+		watchThread.start();
+	}
+
+	private void watch(WatchService service) {
+		try {
+			while (true) {
+				WatchKey key = service.take();
+				/*
+				 * Let the other changes of the same update land, then drain
+				 * them so that they cause a single reload
+				 */
+				Thread.sleep(RELOAD_DELAY);
+				do {
+					key.pollEvents();
+					if (!key.reset()) {
+						LOGGER.error("SAML2 metadata directory {} is no longer watched",
+								metadataDirectory);
+						return;
+					}
+					key = service.poll();
+				} while (key != null);
+				reload();
+			}
+		} catch (ClosedWatchServiceException e) {
+			// Stopped
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private File getDirectory() {
+		if (metadataDirectory == null) {
+			throw new IllegalStateException(
+					"No SAML2 metadata directory configured");
+		}
+		return new File(metadataDirectory);
+	}
+
+	public String getMetadataDirectory() {
+		return metadataDirectory;
+	}
+
+	public void setMetadataDirectory(String metadataDirectory) {
+		this.metadataDirectory = metadataDirectory;
+	}
+
+	public boolean isWatch() {
+		return watch;
+	}
+
+	public void setWatch(boolean watch) {
+		this.watch = watch;
+	}
+
+	public Saml2ParserPool getParserPool() {
+		return parserPool;
+	}
+
+	public void setParserPool(Saml2ParserPool parserPool) {
+		this.parserPool = parserPool;
+	}
+
+	/**
+	 * @return the number of reloads since the registry was created
+	 */
+	public long getReloadCount() {
+		return reloadCount.get();
+	}
+
+	/*
+	 * Immutable state of the registry
+	 */
+	private static final class Snapshot {
+
+		private final Map<String, List<Saml2IdentityProvider>> providersByFile;
+
+		private final Map<String, Saml2IdentityProvider> providers;
+
+		Snapshot(Map<String, List<Saml2IdentityProvider>> providersByFile) {
+			Map<String, Saml2IdentityProvider> map = new HashMap<String, Saml2IdentityProvider>();
+			for (List<Saml2IdentityProvider> list : providersByFile.values()) {
+				for (Saml2IdentityProvider provider : list) {
+					map.put(provider.getEntityId(), provider);
+				}
+			}
+			this.providersByFile = providersByFile;
+			this.providers = Collections.unmodifiableMap(map);
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.opensaml.saml2.core.Attribute;
+import org.opensaml.saml2.core.AttributeStatement;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.schema.XSAny;
+import org.opensaml.xml.schema.XSString;
+
+/**
+ * The attributes of all the attribute statements of a response, not converted
+ * yet. Nothing is copied or indexed up front: the statements are scanned and
+ * the values of an attribute converted to strings only when
+ * {@link #getValues(String)} is called, so the attributes nobody looks at
+ * cost nothing beyond their unmarshalling.
+ * <p>
+ * This holds on to the OpenSAML objects, and thus to the DOM of the response,
+ * and is not serializable: a {@link Saml2Principal} drops it as soon as every
+ * attribute has been converted, or when it is serialized.
+ */
+public class Saml2LazyAttributes {
+
+	private final List<AttributeStatement> statements = new ArrayList<AttributeStatement>(
+			1);
+
+	/*
+	 * Names of the attributes, only collected when asked for
+	 */
+	private Set<String> names;
+
+	/**
+	 * @param statement
+	 *            an attribute statement of the response
+	 */
+	public void add(AttributeStatement statement) {
+		if (!statement.getAttributes().isEmpty()) {
+			statements.add(statement);
+			names = null;
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if there is no attribute at all
+	 */
+	public boolean isEmpty() {
+		return statements.isEmpty();
+	}
+
+	/**
+	 * @return the names of the attributes
+	 */
+	public synchronized Set<String> getNames() {
+		if (names == null) {
+			Set<String> collected = new LinkedHashSet<String>();
+			for (AttributeStatement statement : statements) {
+				for (Attribute attribute : statement.getAttributes()) {
+					collected.add(attribute.getName());
+				}
+			}
+			names = Collections.unmodifiableSet(collected);
+		}
+		return names;
+	}
+
+	/**
+	 * Converts the values of an attribute, merging the values of the
+	 * attributes sharing its name.
+	 *
+	 * @param name
+	 *            an attribute name
+	 * @return the string values of the attribute, or <code>null</code> if
+	 *         there is no such attribute
+	 */
+	public List<String> getValues(String name) {
+		List<String> values = null;
+		for (AttributeStatement statement : statements) {
+			for (Attribute attribute : statement.getAttributes()) {
+				if (!name.equals(attribute.getName())) {
+					continue;
+				}
+				if (values == null) {
+					values = new ArrayList<String>(attribute
+							.getAttributeValues().size());
+				}
+				for (XMLObject xmlObj : attribute.getAttributeValues()) {
+					String value = getStringValue(xmlObj);
+					if (value != null) {
+						values.add(value);
+					}
+				}
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Gets the value of an XML object as a String value
+	 * 
+	 * @param xmlObj
+	 *            XML object
+	 * @return XML value as String, or <code>null</code> if the object is
+	 *         neither a string nor an any type
+	 */
+	public static String getStringValue(XMLObject xmlObj) {
+		if (xmlObj instanceof XSString) {
+			return ((XSString) xmlObj).getValue();
+		} else if (xmlObj instanceof XSAny) {
+			return ((XSAny) xmlObj).getTextContent();
+		}
+		return null;
+	}
+}
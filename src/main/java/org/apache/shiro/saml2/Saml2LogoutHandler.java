@@ -0,0 +1,490 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.shiro.session.Session;
+import org.apache.shiro.session.SessionException;
+import org.apache.shiro.session.mgt.DefaultSessionKey;
+import org.apache.shiro.session.mgt.SessionManager;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.core.LogoutRequest;
+import org.opensaml.saml2.core.NameID;
+import org.opensaml.saml2.core.SessionIndex;
+import org.opensaml.saml2.core.StatusCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Processes the LogoutRequests of the IdP, received over the HTTP-Redirect or
+ * HTTP-POST binding, for Single Logout.
+ * <p>
+ * The request must be signed, with a detached signature over the
+ * HTTP-Redirect binding or an enveloped one otherwise, and only the signed
+ * request is processed. With an {@link Saml2IdentityProviderRegistry}, it
+ * must be signed with the key of the registered IdP named by its Issuer. It must also be recent: it is rejected once
+ * {@link #getMaxRequestAge()} has passed since its IssueInstant, or after
+ * its NotOnOrAfter, and its ID is remembered until then so that it cannot be
+ * replayed. The sessions of its
+ * NameID, or only those of its SessionIndexes if it has any, are looked up in
+ * the {@link Saml2SessionRegistry} and stopped. The IdP is then answered with
+ * a LogoutResponse over the HTTP-Redirect binding, or with an empty page if
+ * no logout response URL is configured. Encrypted NameIDs are not supported.
+ */
+public class Saml2LogoutHandler {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(Saml2LogoutHandler.class);
+
+	/*
+	 * The name of the parameter containing the LogoutRequest
+	 */
+	public static final String REQUEST_PARAMETER = "SAMLRequest";
+
+	private static final String RELAY_STATE_PARAMETER = "RelayState";
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/*
+	 * Default time during which a LogoutRequest is accepted after its
+	 * IssueInstant, in milliseconds
+	 */
+	public static final long DEFAULT_MAX_REQUEST_AGE = 5 * 60 * 1000L;
+
+	private Saml2SessionRegistry sessionRegistry = new Saml2SessionRegistry();
+
+	/*
+	 * IDs of the LogoutRequests already processed
+	 */
+	private Saml2AssertionIdStore requestIdStore = new Saml2ReplayCache();
+
+	private long maxRequestAge = DEFAULT_MAX_REQUEST_AGE;
+
+	/*
+	 * Verifier of the signatures of the LogoutRequests of IdPs without
+	 * registered key, which are all rejected without one
+	 */
+	private Saml2SignatureVerifier signatureVerifier;
+
+	/*
+	 * IdPs trusted, null to trust any issuer verified by the signature
+	 * verifier
+	 */
+	private Saml2IdentityProviderRegistry identityProviderRegistry;
+
+	private Saml2ParserPool parserPool = TokenToSaml2Response
+			.getDefaultParserPool();
+
+	private int maxInflatedSize = Saml2RedirectBinding.DEFAULT_MAX_INFLATED_SIZE;
+
+	private long clockSkew = Saml2AssertionValidator.DEFAULT_CLOCK_SKEW;
+
+	/*
+	 * The SingleLogoutService URL of the IdP where the LogoutResponses are
+	 * sent, null to answer with an empty page
+	 */
+	private String logoutResponseUrl;
+
+	/*
+	 * The entity ID of the service provider, issuer of the LogoutResponses
+	 */
+	private String issuer;
+
+	/**
+	 * @param request
+	 *            an incoming request
+	 * @return <code>true</code> if the request carries a LogoutRequest
+	 */
+	public boolean isLogoutRequest(ServletRequest request) {
+		return request.getParameter(REQUEST_PARAMETER) != null;
+	}
+
+	/**
+	 * Logs out the sessions targeted by the LogoutRequest of the IdP and
+	 * answers it. An invalid request is answered with a 400 status.
+	 * 
+	 * @param request
+	 *            the request carrying the LogoutRequest
+	 * @param response
+	 *            the outgoing response
+	 * @param sessionManager
+	 *            the native session manager holding the sessions
+	 * @throws IOException
+	 *             if the response cannot be sent
+	 */
+	public void handle(HttpServletRequest request,
+			HttpServletResponse response, SessionManager sessionManager)
+			throws IOException {
+		LogoutRequest logoutRequest;
+		try {
+			logoutRequest = readLogoutRequest(request);
+		} catch (Saml2TokenValidationException e) {
+			LOGGER.debug("Invalid LogoutRequest", e);
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+
+		List<Serializable> sessionIds = logout(logoutRequest, sessionManager);
+		LOGGER.debug("LogoutRequest {} stopped {} sessions",
+				logoutRequest.getID(), sessionIds.size());
+
+		if (logoutResponseUrl == null) {
+			response.setStatus(HttpServletResponse.SC_OK);
+		} else {
+			/*
+			 * The query string was checked not to repeat RelayState
+			 */
+			response.sendRedirect(createLogoutResponseUrl(
+					logoutRequest.getID(),
+					request.getParameter(RELAY_STATE_PARAMETER)));
+		}
+	}
+
+	/**
+	 * Reads and verifies the LogoutRequest carried by a request.
+	 * 
+	 * @param request
+	 *            the request carrying the LogoutRequest, deflated if it is a
+	 *            GET request
+	 * @return the LogoutRequest
+	 * @throws Saml2TokenValidationException
+	 *             if the LogoutRequest cannot be read, is not signed by the
+	 *             IdP it names, has expired, is replayed or does not identify
+	 *             a subject
+	 */
+	public LogoutRequest readLogoutRequest(HttpServletRequest request)
+			throws Saml2TokenValidationException {
+		if (signatureVerifier == null && identityProviderRegistry == null) {
+			throw new Saml2TokenValidationException(
+					"No signature verifier configured for the LogoutRequests");
+		}
+		boolean redirect = "GET".equalsIgnoreCase(request.getMethod());
+		Saml2QuerySignature querySignature = redirect ? Saml2QuerySignature
+				.parse(request.getQueryString(), REQUEST_PARAMETER) : null;
+		/*
+		 * Only the request covered by the query string signature is processed
+		 */
+		LogoutRequest logoutRequest = TokenToSaml2Response
+				.convertLogoutRequest(
+						querySignature != null ? querySignature.getMessage()
+								: request.getParameter(REQUEST_PARAMETER),
+						redirect, parserPool, maxInflatedSize);
+		if (logoutRequest.getIssuer() == null) {
+			throw new Saml2TokenValidationException("LogoutRequest "
+					+ logoutRequest.getID() + " has no issuer");
+		}
+		Saml2SignatureVerifier verifier = getSignatureVerifier(logoutRequest
+				.getIssuer().getValue());
+		if (querySignature != null) {
+			verifier.verify(querySignature);
+		} else {
+			verifier.verifyMessage(logoutRequest);
+		}
+
+		checkFreshness(logoutRequest);
+		if (logoutRequest.getNameID() == null
+				|| logoutRequest.getNameID().getValue() == null) {
+			throw new Saml2TokenValidationException("LogoutRequest "
+					+ logoutRequest.getID() + " has no NameID");
+		}
+		return logoutRequest;
+	}
+
+	/*
+	 * Gets the verifier of the keys of the IdP named by a LogoutRequest, as
+	 * the realm does for the responses
+	 */
+	private Saml2SignatureVerifier getSignatureVerifier(String issuer)
+			throws Saml2TokenValidationException {
+		if (identityProviderRegistry == null) {
+			return signatureVerifier;
+		}
+		Saml2IdentityProvider provider = identityProviderRegistry.get(issuer);
+		if (provider == null) {
+			throw new Saml2TokenValidationException(
+					"Unknown identity provider " + issuer);
+		}
+		if (provider.getSignatureVerifier() != null) {
+			return provider.getSignatureVerifier();
+		}
+		if (signatureVerifier == null) {
+			throw new Saml2TokenValidationException(
+					"No signing key for the identity provider " + provider);
+		}
+		return signatureVerifier;
+	}
+
+	/*
+	 * Rejects the requests which are too old, expired or already processed
+	 */
+	private void checkFreshness(LogoutRequest logoutRequest)
+			throws Saml2TokenValidationException {
+		if (logoutRequest.getID() == null
+				|| logoutRequest.getIssueInstant() == null) {
+			throw new Saml2TokenValidationException(
+					"LogoutRequest without ID or IssueInstant");
+		}
+		long now = System.currentTimeMillis();
+		long issueInstant = logoutRequest.getIssueInstant().getMillis();
+		if (issueInstant - clockSkew > now) {
+			throw new Saml2TokenValidationException("LogoutRequest "
+					+ logoutRequest.getID() + " is issued in the future");
+		}
+		long expiresAt = issueInstant + maxRequestAge;
+		if (logoutRequest.getNotOnOrAfter() != null) {
+			expiresAt = Math.min(expiresAt, logoutRequest.getNotOnOrAfter()
+					.getMillis());
+		}
+		if (now - clockSkew >= expiresAt) {
+			throw new Saml2TokenValidationException("LogoutRequest "
+					+ logoutRequest.getID() + " has expired");
+		}
+		if (requestIdStore != null
+				&& !requestIdStore.add(logoutRequest.getID(), expiresAt
+						+ clockSkew)) {
+			throw new Saml2TokenValidationException("LogoutRequest "
+					+ logoutRequest.getID() + " is replayed");
+		}
+	}
+
+	/**
+	 * Stops the sessions targeted by a verified LogoutRequest.
+	 * 
+	 * @param logoutRequest
+	 *            the LogoutRequest
+	 * @param sessionManager
+	 *            the native session manager holding the sessions
+	 * @return the IDs of the sessions removed from the registry
+	 */
+	public List<Serializable> logout(LogoutRequest logoutRequest,
+			SessionManager sessionManager) {
+		List<String> sessionIndexes = new ArrayList<String>(logoutRequest
+				.getSessionIndexes().size());
+		for (SessionIndex sessionIndex : logoutRequest.getSessionIndexes()) {
+			sessionIndexes.add(sessionIndex.getSessionIndex());
+		}
+		NameID nameId = logoutRequest.getNameID();
+		List<Serializable> sessionIds = sessionRegistry.unregister(
+				logoutRequest.getIssuer().getValue(), nameId.getValue(),
+				sessionIndexes);
+		for (Serializable sessionId : sessionIds) {
+			try {
+				Session session = sessionManager
+						.getSession(new DefaultSessionKey(sessionId));
+				if (session != null) {
+					session.stop();
+				}
+			} catch (SessionException e) {
+				LOGGER.debug("Session {} already stopped", sessionId);
+			}
+		}
+		return sessionIds;
+	}
+
+	/**
+	 * Creates the URL redirecting the user to the IdP with a successful
+	 * LogoutResponse.
+	 * 
+	 * @param inResponseTo
+	 *            the ID of the LogoutRequest
+	 * @param relayState
+	 *            the relay state received with the LogoutRequest, if any
+	 * @return the URL of the redirect
+	 */
+	public String createLogoutResponseUrl(String inResponseTo,
+			String relayState) {
+		StringBuilder xml = new StringBuilder(512);
+		xml.append("<samlp:LogoutResponse xmlns:samlp=\"")
+				.append(SAMLConstants.SAML20P_NS)
+				.append("\" xmlns:saml=\"").append(SAMLConstants.SAML20_NS)
+				.append("\" ID=\"").append(newResponseId())
+				.append("\" Version=\"2.0\" IssueInstant=\"")
+				.append(new DateTime(DateTimeZone.UTC))
+				.append("\" Destination=\"")
+				.append(Saml2ArtifactResolver.escape(logoutResponseUrl));
+		if (inResponseTo != null) {
+			xml.append("\" InResponseTo=\"").append(
+					Saml2ArtifactResolver.escape(inResponseTo));
+		}
+		xml.append("\">");
+		if (issuer != null) {
+			xml.append("<saml:Issuer>")
+					.append(Saml2ArtifactResolver.escape(issuer))
+					.append("</saml:Issuer>");
+		}
+		xml.append("<samlp:Status><samlp:StatusCode Value=\"")
+				.append(StatusCode.SUCCESS_URI)
+				.append("\"/></samlp:Status></samlp:LogoutResponse>");
+
+		byte[] bytes;
+		try {
+			bytes = xml.toString().getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		StringBuilder url = new StringBuilder(logoutResponseUrl.length()
+				+ bytes.length);
+		url.append(logoutResponseUrl)
+				.append(logoutResponseUrl.indexOf('?') < 0 ? '?' : '&')
+				.append("SAMLResponse=")
+				.append(Saml2RedirectBinding.encode(bytes, bytes.length));
+		if (relayState != null) {
+			url.append("&RelayState=").append(urlEncode(relayState));
+		}
+		return url.toString();
+	}
+
+	private static String newResponseId() {
+		byte[] bytes = new byte[16];
+		RANDOM.nextBytes(bytes);
+		char[] chars = new char[33];
+		chars[0] = '_';
+		for (int i = 0; i < bytes.length; i++) {
+			chars[2 * i + 1] = HEX[(bytes[i] >> 4) & 0x0f];
+			chars[2 * i + 2] = HEX[bytes[i] & 0x0f];
+		}
+		return new String(chars);
+	}
+
+	private static String urlEncode(String value) {
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public Saml2SessionRegistry getSessionRegistry() {
+		return sessionRegistry;
+	}
+
+	/**
+	 * @param sessionRegistry
+	 *            the registry of the sessions, which must also be a session
+	 *            listener of the session manager
+	 */
+	public void setSessionRegistry(Saml2SessionRegistry sessionRegistry) {
+		this.sessionRegistry = sessionRegistry;
+	}
+
+	public Saml2AssertionIdStore getRequestIdStore() {
+		return requestIdStore;
+	}
+
+	/**
+	 * @param requestIdStore
+	 *            the store of the IDs of the LogoutRequests already
+	 *            processed, which may be shared with the realm as IDs are
+	 *            unique across messages
+	 */
+	public void setRequestIdStore(Saml2AssertionIdStore requestIdStore) {
+		this.requestIdStore = requestIdStore;
+	}
+
+	public long getMaxRequestAge() {
+		return maxRequestAge;
+	}
+
+	/**
+	 * @param maxRequestAge
+	 *            the time during which a LogoutRequest is accepted after its
+	 *            IssueInstant, in milliseconds
+	 */
+	public void setMaxRequestAge(long maxRequestAge) {
+		this.maxRequestAge = maxRequestAge;
+	}
+
+	public Saml2SignatureVerifier getSignatureVerifier() {
+		return signatureVerifier;
+	}
+
+	public void setSignatureVerifier(Saml2SignatureVerifier signatureVerifier) {
+		this.signatureVerifier = signatureVerifier;
+	}
+
+	public Saml2IdentityProviderRegistry getIdentityProviderRegistry() {
+		return identityProviderRegistry;
+	}
+
+	/**
+	 * @param identityProviderRegistry
+	 *            the IdPs trusted, usually the registry of the realm, whose
+	 *            keys verify the LogoutRequests naming them. The signature
+	 *            verifier then only verifies those of the IdPs without key.
+	 */
+	public void setIdentityProviderRegistry(
+			Saml2IdentityProviderRegistry identityProviderRegistry) {
+		this.identityProviderRegistry = identityProviderRegistry;
+	}
+
+	public Saml2ParserPool getParserPool() {
+		return parserPool;
+	}
+
+	public void setParserPool(Saml2ParserPool parserPool) {
+		this.parserPool = parserPool;
+	}
+
+	public int getMaxInflatedSize() {
+		return maxInflatedSize;
+	}
+
+	public void setMaxInflatedSize(int maxInflatedSize) {
+		this.maxInflatedSize = maxInflatedSize;
+	}
+
+	public long getClockSkew() {
+		return clockSkew;
+	}
+
+	public void setClockSkew(long clockSkew) {
+		this.clockSkew = clockSkew;
+	}
+
+	public String getLogoutResponseUrl() {
+		return logoutResponseUrl;
+	}
+
+	public void setLogoutResponseUrl(String logoutResponseUrl) {
+		this.logoutResponseUrl = logoutResponseUrl;
+	}
+
+	public String getIssuer() {
+		return issuer;
+	}
+
+	public void setIssuer(String issuer) {
+		this.issuer = issuer;
+	}
+}
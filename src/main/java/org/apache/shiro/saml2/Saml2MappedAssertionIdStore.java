@@ -0,0 +1,662 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.shiro.util.Destroyable;
+import org.apache.shiro.util.Initializable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link Saml2AssertionIdStore} shared by the processes of a host through a
+ * memory-mapped file, so that a response consumed by one process is rejected
+ * by the others.
+ * <p>
+ * The file holds an open addressing hash table of fixed capacity. Each slot
+ * holds a 64 bits digest of an assertion ID and its expiration, and is
+ * claimed with an atomic compare-and-swap on its expiration, so processes
+ * never take a lock and a lookup is a few memory reads, like an in-heap map.
+ * Expired slots are reused in place. When all the slots probed for a new ID
+ * are still valid, the one expiring first is evicted: evictions weaken the
+ * replay protection and should stay at zero, a growing eviction count means
+ * the capacity is too small for the login rate.
+ * <p>
+ * The file is created by the first process opening it, the others use the
+ * capacity it was created with. Compare-and-swap on mapped memory needs
+ * <code>sun.misc.Unsafe</code>, looked up by reflection, when it is not
+ * available every operation takes a lock on the file instead, which is
+ * correct but much slower. A file too short for the capacity of its header,
+ * or truncated while open, is rejected rather than accessed. All the
+ * processes sharing a file must run on the same host, as atomic operations
+ * on files shared over a network file system are not.
+ */
+public class Saml2MappedAssertionIdStore implements Saml2AssertionIdStore,
+		Initializable, Destroyable {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(Saml2MappedAssertionIdStore.class);
+
+	/*
+	 * Default number of slots, 4 MB of mapped memory
+	 */
+	public static final int DEFAULT_CAPACITY = 1 << 18;
+
+	/*
+	 * "SAML2IDS", first bytes of a store file
+	 */
+	private static final long MAGIC = 0x53414d4c32494453L;
+
+	private static final int VERSION = 1;
+
+	/*
+	 * Magic, version and capacity, padded to a cache line
+	 */
+	private static final int HEADER_SIZE = 64;
+
+	/*
+	 * Digest then expiration of an assertion ID
+	 */
+	private static final int SLOT_SIZE = 16;
+
+	/*
+	 * Expiration of a slot never used
+	 */
+	private static final long EMPTY = 0L;
+
+	/*
+	 * Expiration of a slot being written
+	 */
+	private static final long CLAIMED = -1L;
+
+	/*
+	 * Number of slots probed for an ID before evicting one
+	 */
+	private static final int MAX_PROBES = 32;
+
+	/*
+	 * Number of reads of a slot being written before giving up on it, which
+	 * only happens when its writer died before finishing
+	 */
+	private static final int MAX_SPINS = 1 << 16;
+
+	/*
+	 * Serializes the file locks taken by the stores of this JVM, as file
+	 * locks are held by the whole process
+	 */
+	private static final Object FILE_LOCK = new Object();
+
+	/*
+	 * Operations of sun.misc.Unsafe bound to its instance, null when it is
+	 * not available. Unsafe is looked up by reflection so that the store
+	 * compiles and runs without it.
+	 */
+	private static final MethodHandle GET_ADDRESS;
+
+	private static final MethodHandle GET_LONG_VOLATILE;
+
+	private static final MethodHandle PUT_LONG_VOLATILE;
+
+	private static final MethodHandle COMPARE_AND_SWAP_LONG;
+
+	static {
+		MethodHandle getAddress = null;
+		MethodHandle getLongVolatile = null;
+		MethodHandle putLongVolatile = null;
+		MethodHandle compareAndSwapLong = null;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			Object unsafe = field.get(null);
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			long addressOffset = (Long) unsafeClass.getMethod(
+					"objectFieldOffset", Field.class).invoke(unsafe,
+					Buffer.class.getDeclaredField("address"));
+			getAddress = MethodHandles.insertArguments(
+					lookup.findVirtual(
+							unsafeClass,
+							"getLong",
+							MethodType.methodType(long.class, Object.class,
+									long.class)).bindTo(unsafe), 1,
+					addressOffset);
+			getLongVolatile = lookup.findVirtual(
+					unsafeClass,
+					"getLongVolatile",
+					MethodType.methodType(long.class, Object.class, long.class))
+					.bindTo(unsafe);
+			putLongVolatile = lookup.findVirtual(
+					unsafeClass,
+					"putLongVolatile",
+					MethodType.methodType(void.class, Object.class,
+							long.class, long.class)).bindTo(unsafe);
+			compareAndSwapLong = lookup.findVirtual(
+					unsafeClass,
+					"compareAndSwapLong",
+					MethodType.methodType(boolean.class, Object.class,
+							long.class, long.class, long.class)).bindTo(
+					unsafe);
+		} catch (Throwable e) {
+			LOGGER.warn("Lock free access to mapped memory is not available,"
+					+ " the assertion ID stores will lock their file", e);
+			compareAndSwapLong = null;
+		}
+		GET_ADDRESS = getAddress;
+		GET_LONG_VOLATILE = getLongVolatile;
+		PUT_LONG_VOLATILE = putLongVolatile;
+		COMPARE_AND_SWAP_LONG = compareAndSwapLong;
+	}
+
+	/*
+	 * Path of the store file
+	 */
+	private String file;
+
+	/*
+	 * Number of slots of a new store file, rounded up to a power of two
+	 */
+	private int capacity = DEFAULT_CAPACITY;
+
+	private volatile Table table;
+
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	public Saml2MappedAssertionIdStore() {
+	}
+
+	/**
+	 * @param file
+	 *            path of the store file, created if it does not exist
+	 * @param capacity
+	 *            the number of slots of the file if it is created
+	 */
+	public Saml2MappedAssertionIdStore(String file, int capacity) {
+		this.file = file;
+		setCapacity(capacity);
+	}
+
+	/**
+	 * Opens the store file, creating it if needed. Called on first use if
+	 * not called before.
+	 */
+	public synchronized void init() {
+		if (table != null) {
+			return;
+		}
+		if (file == null) {
+			throw new IllegalStateException(
+					"The file of the assertion ID store is not set");
+		}
+		File storeFile = new File(file);
+		File directory = storeFile.getAbsoluteFile().getParentFile();
+		if (directory != null && !directory.isDirectory()) {
+			directory.mkdirs();
+		}
+		RandomAccessFile randomAccessFile = null;
+		try {
+			randomAccessFile = new RandomAccessFile(storeFile, "rw");
+			FileChannel channel = randomAccessFile.getChannel();
+			int slotCount;
+			synchronized (FILE_LOCK) {
+				FileLock lock = channel.lock();
+				try {
+					slotCount = readOrCreateHeader(randomAccessFile, channel);
+				} finally {
+					lock.release();
+				}
+			}
+			MappedByteBuffer buffer = channel.map(
+					FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE
+							+ (long) slotCount * SLOT_SIZE);
+			buffer.order(ByteOrder.nativeOrder());
+			table = new Table(randomAccessFile, buffer, slotCount);
+			LOGGER.debug("Assertion ID store {} opened with {} slots", file,
+					slotCount);
+		} catch (IOException e) {
+			close(randomAccessFile);
+			throw new IllegalStateException("Cannot open the assertion ID store "
+					+ file, e);
+		}
+	}
+
+	/*
+	 * Returns the capacity of the file, written first if the file is new
+	 */
+	private int readOrCreateHeader(RandomAccessFile randomAccessFile,
+			FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(
+				ByteOrder.nativeOrder());
+		if (channel.size() > 0L && channel.size() < HEADER_SIZE) {
+			/*
+			 * A store file is empty until its header is written
+			 */
+			throw new IOException(file + " is not an assertion ID store");
+		}
+		if (channel.size() >= HEADER_SIZE) {
+			channel.read(header, 0);
+			header.flip();
+			long magic = header.getLong();
+			if (magic == MAGIC) {
+				int version = header.getInt();
+				int slotCount = header.getInt();
+				if (version != VERSION || Integer.bitCount(slotCount) != 1
+						|| channel.size() < HEADER_SIZE + (long) slotCount
+								* SLOT_SIZE) {
+					throw new IOException(file
+							+ " is not a valid assertion ID store");
+				}
+				return slotCount;
+			}
+			if (magic != 0L) {
+				throw new IOException(file + " is not an assertion ID store");
+			}
+		}
+		/*
+		 * New file, or a file whose creator died before writing its header
+		 */
+		randomAccessFile.setLength(0);
+		randomAccessFile.setLength(HEADER_SIZE + (long) capacity * SLOT_SIZE);
+		header.clear();
+		header.putLong(MAGIC).putInt(VERSION).putInt(capacity);
+		header.flip();
+		channel.write(header, 0);
+		channel.force(true);
+		return capacity;
+	}
+
+	/**
+	 * Closes the store file.
+	 */
+	public synchronized void destroy() {
+		if (table != null) {
+			close(table.file);
+			table = null;
+		}
+	}
+
+	private static void close(RandomAccessFile randomAccessFile) {
+		if (randomAccessFile != null) {
+			try {
+				randomAccessFile.close();
+			} catch (IOException e) {
+				LOGGER.debug("Cannot close assertion ID store", e);
+			}
+		}
+	}
+
+	private Table table() {
+		Table current = table;
+		if (current == null) {
+			init();
+			current = table;
+		}
+		current.checkSize();
+		return current;
+	}
+
+	public boolean add(String assertionId, long expiresAt) {
+		Table current = table();
+		long digest = digest(assertionId);
+		/*
+		 * 0 and -1 mark empty and claimed slots
+		 */
+		long expiration = Math.max(expiresAt, 1L);
+		if (current.address == 0L) {
+			synchronized (FILE_LOCK) {
+				FileLock lock = current.lock();
+				try {
+					return add(current, digest, expiration);
+				} finally {
+					current.release(lock);
+				}
+			}
+		}
+		return add(current, digest, expiration);
+	}
+
+	private boolean add(Table current, long digest, long expiresAt) {
+		for (;;) {
+			long now = System.currentTimeMillis();
+			long free = -1L;
+			long freeExpiration = EMPTY;
+			long oldest = -1L;
+			long oldestExpiration = Long.MAX_VALUE;
+			int index = (int) digest;
+			for (int probe = 0; probe < MAX_PROBES; probe++) {
+				long slot = current.slot(index + probe);
+				long expiration = current.awaitExpiration(slot);
+				if (expiration == EMPTY) {
+					/*
+					 * Slots are never emptied, the ID is not further
+					 */
+					if (free < 0L) {
+						free = slot;
+						freeExpiration = EMPTY;
+					}
+					break;
+				}
+				if (expiration == CLAIMED) {
+					continue;
+				}
+				if (expiration <= now) {
+					if (free < 0L) {
+						free = slot;
+						freeExpiration = expiration;
+					}
+				} else if (current.load(slot) == digest) {
+					return false;
+				} else if (expiration < oldestExpiration) {
+					oldest = slot;
+					oldestExpiration = expiration;
+				}
+			}
+
+			boolean evicting = free < 0L;
+			if (evicting) {
+				if (oldest < 0L) {
+					/*
+					 * Every probed slot is stuck, the ID cannot be recorded
+					 */
+					evictionCount.incrementAndGet();
+					return true;
+				}
+				free = oldest;
+				freeExpiration = oldestExpiration;
+			}
+			if (current.claim(free, freeExpiration)) {
+				current.publish(free, digest, expiresAt);
+				if (evicting) {
+					evictionCount.incrementAndGet();
+				}
+				return true;
+			}
+			/*
+			 * Another thread or process took the slot first, possibly for the
+			 * same ID, so the lookup starts over
+			 */
+		}
+	}
+
+	public boolean contains(String assertionId) {
+		Table current = table();
+		long digest = digest(assertionId);
+		if (current.address == 0L) {
+			synchronized (FILE_LOCK) {
+				FileLock lock = current.lock();
+				try {
+					return contains(current, digest);
+				} finally {
+					current.release(lock);
+				}
+			}
+		}
+		return contains(current, digest);
+	}
+
+	private boolean contains(Table current, long digest) {
+		long now = System.currentTimeMillis();
+		int index = (int) digest;
+		for (int probe = 0; probe < MAX_PROBES; probe++) {
+			long slot = current.slot(index + probe);
+			long expiration = current.awaitExpiration(slot);
+			if (expiration == EMPTY) {
+				return false;
+			}
+			if (expiration > now && current.load(slot) == digest) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * 64 bits FNV-1a hash of the ID with the MurmurHash3 finalizer, so that
+	 * both the slot index and the stored digest are well distributed
+	 */
+	static long digest(String assertionId) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < assertionId.length(); i++) {
+			h ^= assertionId.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	public String getFile() {
+		return file;
+	}
+
+	public void setFile(String file) {
+		this.file = file;
+	}
+
+	/**
+	 * @return the number of slots of the store, that of its file once opened
+	 */
+	public int getCapacity() {
+		Table current = table;
+		return current != null ? current.mask + 1 : capacity;
+	}
+
+	/**
+	 * @param capacity
+	 *            the number of slots of the file if it is created, rounded up
+	 *            to a power of two
+	 */
+	public void setCapacity(int capacity) {
+		if (capacity <= 0 || capacity > 1 << 26) {
+			throw new IllegalArgumentException(
+					"The capacity must be positive and at most 2^26");
+		}
+		int slotCount = Integer.highestOneBit(capacity);
+		this.capacity = slotCount < capacity ? slotCount << 1 : slotCount;
+	}
+
+	/**
+	 * @return whether the slots are updated without locking the file
+	 */
+	public boolean isLockFree() {
+		return COMPARE_AND_SWAP_LONG != null;
+	}
+
+	/**
+	 * @return the number of unexpired assertion IDs dropped by this process
+	 *         because the probed slots were full
+	 */
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	/*
+	 * Mapped slots of an opened store file
+	 */
+	private static final class Table {
+
+		private final RandomAccessFile file;
+
+		/*
+		 * Kept referenced so that the mapping stays valid
+		 */
+		private final MappedByteBuffer buffer;
+
+		/*
+		 * Address of the mapping, 0 when Unsafe is not available
+		 */
+		private final long address;
+
+		private final int mask;
+
+		Table(RandomAccessFile file, MappedByteBuffer buffer, int slotCount) {
+			this.file = file;
+			this.buffer = buffer;
+			this.address = COMPARE_AND_SWAP_LONG != null ? address(buffer)
+					: 0L;
+			this.mask = slotCount - 1;
+		}
+
+		private static long address(MappedByteBuffer buffer) {
+			try {
+				return (long) GET_ADDRESS.invokeExact((Object) buffer);
+			} catch (Throwable e) {
+				throw unsafeFailure(e);
+			}
+		}
+
+		/*
+		 * Accessing the mapping beyond the end of the file crashes the JVM,
+		 * so a file truncated by another process is rejected first
+		 */
+		void checkSize() {
+			long size;
+			try {
+				size = file.getChannel().size();
+			} catch (IOException e) {
+				throw new IllegalStateException(
+						"Cannot read the size of the assertion ID store", e);
+			}
+			if (size < buffer.capacity()) {
+				throw new IllegalStateException(
+						"The assertion ID store was truncated to " + size
+								+ " bytes");
+			}
+		}
+
+		/*
+		 * Offset of the digest of a slot, its expiration follows
+		 */
+		long slot(int index) {
+			return HEADER_SIZE + (long) (index & mask) * SLOT_SIZE;
+		}
+
+		long load(long slot) {
+			if (address != 0L) {
+				try {
+					return (long) GET_LONG_VOLATILE.invokeExact((Object) null,
+							address + slot);
+				} catch (Throwable e) {
+					throw unsafeFailure(e);
+				}
+			}
+			return buffer.getLong((int) slot);
+		}
+
+		/*
+		 * Expiration of a slot, waiting for a slot being written to be
+		 * published. CLAIMED is only returned if the writer never finishes.
+		 */
+		long awaitExpiration(long slot) {
+			long expiration = load(slot + 8);
+			for (int spins = 0; expiration == CLAIMED && spins < MAX_SPINS; spins++) {
+				if ((spins & 0xff) == 0xff) {
+					Thread.yield();
+				}
+				expiration = load(slot + 8);
+			}
+			return expiration;
+		}
+
+		boolean claim(long slot, long expectedExpiration) {
+			if (address != 0L) {
+				try {
+					return (boolean) COMPARE_AND_SWAP_LONG.invokeExact(
+							(Object) null, address + slot + 8,
+							expectedExpiration, CLAIMED);
+				} catch (Throwable e) {
+					throw unsafeFailure(e);
+				}
+			}
+			/*
+			 * The file is locked
+			 */
+			if (buffer.getLong((int) slot + 8) != expectedExpiration) {
+				return false;
+			}
+			buffer.putLong((int) slot + 8, CLAIMED);
+			return true;
+		}
+
+		/*
+		 * Writes the digest then releases the slot with its expiration
+		 */
+		void publish(long slot, long digest, long expiresAt) {
+			if (address != 0L) {
+				try {
+					PUT_LONG_VOLATILE.invokeExact((Object) null,
+							address + slot, digest);
+					PUT_LONG_VOLATILE.invokeExact((Object) null, address
+							+ slot + 8, expiresAt);
+				} catch (Throwable e) {
+					throw unsafeFailure(e);
+				}
+			} else {
+				buffer.putLong((int) slot, digest);
+				buffer.putLong((int) slot + 8, expiresAt);
+			}
+		}
+
+		/*
+		 * Unsafe operations throw no checked exception, only errors
+		 */
+		private static RuntimeException unsafeFailure(Throwable e) {
+			if (e instanceof Error) {
+				throw (Error) e;
+			}
+			if (e instanceof RuntimeException) {
+				return (RuntimeException) e;
+			}
+			return new IllegalStateException(e);
+		}
+
+		FileLock lock() {
+			try {
+				return file.getChannel().lock();
+			} catch (IOException e) {
+				throw new IllegalStateException(
+						"Cannot lock the assertion ID store", e);
+			}
+		}
+
+		void release(FileLock lock) {
+			try {
+				lock.release();
+			} catch (IOException e) {
+				LOGGER.debug("Cannot unlock the assertion ID store", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per-stage latency histograms, outcome counters and payload sizes of the
+ * SAML2 login path, shared by the filter, the realm and the token conversion
+ * and published over JMX.
+ * <p>
+ * Metrics are disabled by default. While disabled, instrumented code only
+ * pays for a volatile read: {@link #start()} returns <code>0</code> and
+ * recording a stage started at <code>0</code> does nothing.
+ */
+public final class Saml2Metrics implements Saml2MetricsMXBean {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(Saml2Metrics.class);
+
+	public static final String OBJECT_NAME = "org.apache.shiro.saml2:type=Saml2Metrics";
+
+	private static final Saml2Metrics INSTANCE = new Saml2Metrics();
+
+	private volatile boolean enabled = false;
+
+	private final Saml2Histogram[] stages = new Saml2Histogram[Saml2Stage
+			.values().length];
+
+	private final Saml2Histogram payloadSizes = new Saml2Histogram();
+
+	private final AtomicLong successCount = new AtomicLong();
+
+	private final ConcurrentMap<String, AtomicLong> failureCounts = new ConcurrentHashMap<String, AtomicLong>();
+
+	private Saml2Metrics() {
+		for (int i = 0; i < stages.length; i++) {
+			stages[i] = new Saml2Histogram();
+		}
+	}
+
+	/**
+	 * @return the metrics shared by the SAML2 components
+	 */
+	public static Saml2Metrics getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Enables the metrics and registers them in the platform MBean server
+	 * under {@link #OBJECT_NAME}, if not registered yet.
+	 */
+	public void enableAndRegister() {
+		enabled = true;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.registerMBean(this, new ObjectName(OBJECT_NAME));
+		} catch (InstanceAlreadyExistsException e) {
+			// Already registered by another component
+		} catch (JMException e) {
+			LOGGER.warn("Cannot register the SAML2 metrics MBean", e);
+		}
+	}
+
+	/**
+	 * @return the current time in nanoseconds to be passed to
+	 *         {@link #record(Saml2Stage, long)}, or <code>0</code> if the
+	 *         metrics are disabled
+	 */
+	public long start() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Records the latency of a stage.
+	 * 
+	 * @param stage
+	 *            the stage
+	 * @param start
+	 *            the value returned by {@link #start()} when the stage began
+	 */
+	public void record(Saml2Stage stage, long start) {
+		if (start != 0) {
+			stages[stage.ordinal()].record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * @param size
+	 *            the size of a posted response, in bytes
+	 */
+	public void recordPayloadSize(long size) {
+		if (enabled) {
+			payloadSizes.record(size);
+		}
+	}
+
+	public void recordSuccess() {
+		if (enabled) {
+			successCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @param failure
+	 *            the exception which failed the login, counted under the class
+	 *            name of its root cause
+	 */
+	public void recordFailure(Throwable failure) {
+		if (!enabled) {
+			return;
+		}
+		Throwable cause = failure;
+		while (cause.getCause() != null && cause.getCause() != cause) {
+			cause = cause.getCause();
+		}
+		String name = cause.getClass().getName();
+		AtomicLong counter = failureCounts.get(name);
+		if (counter == null) {
+			AtomicLong newCounter = new AtomicLong();
+			counter = failureCounts.putIfAbsent(name, newCounter);
+			if (counter == null) {
+				counter = newCounter;
+			}
+		}
+		counter.incrementAndGet();
+	}
+
+	/**
+	 * @param stage
+	 *            a stage
+	 * @return the latency histogram of the stage, in nanoseconds
+	 */
+	public Saml2Histogram getHistogram(Saml2Stage stage) {
+		return stages[stage.ordinal()];
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public Map<String, Saml2StageStatistics> getStages() {
+		Map<String, Saml2StageStatistics> statistics = new LinkedHashMap<String, Saml2StageStatistics>();
+		for (Saml2Stage stage : Saml2Stage.values()) {
+			statistics.put(stage.name(),
+					Saml2StageStatistics.of(stages[stage.ordinal()]));
+		}
+		return statistics;
+	}
+
+	public Saml2StageStatistics getPayloadSizes() {
+		return Saml2StageStatistics.of(payloadSizes);
+	}
+
+	public long getSuccessCount() {
+		return successCount.get();
+	}
+
+	public Map<String, Long> getFailureCounts() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> failure : failureCounts.entrySet()) {
+			counts.put(failure.getKey(), failure.getValue().get());
+		}
+		return counts;
+	}
+
+	public void reset() {
+		for (Saml2Histogram histogram : stages) {
+			histogram.reset();
+		}
+		payloadSizes.reset();
+		successCount.set(0);
+		failureCounts.clear();
+	}
+}
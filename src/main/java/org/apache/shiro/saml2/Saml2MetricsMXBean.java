@@ -0,0 +1,51 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+import java.util.Map;
+
+/**
+ * JMX view of the SAML2 login metrics. Latencies are in nanoseconds and
+ * payload sizes in bytes of the Base64 encoded response.
+ */
+public interface Saml2MetricsMXBean {
+
+	boolean isEnabled();
+
+	void setEnabled(boolean enabled);
+
+	/**
+	 * @return the latency statistics of each stage of the login path
+	 */
+	Map<String, Saml2StageStatistics> getStages();
+
+	/**
+	 * @return the size statistics of the posted responses
+	 */
+	Saml2StageStatistics getPayloadSizes();
+
+	long getSuccessCount();
+
+	/**
+	 * @return the number of failed logins by exception cause
+	 */
+	Map<String, Long> getFailureCounts();
+
+	void reset();
+}
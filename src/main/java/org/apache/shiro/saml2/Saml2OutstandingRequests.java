@@ -0,0 +1,298 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.shiro.session.Session;
+
+/**
+ * Remembers the IDs of the AuthnRequests sent to the IdP until they are
+ * answered or time out, so that a response claiming to answer a request is
+ * only accepted if this SP actually sent that request, and only once.
+ * <p>
+ * Like {@link Saml2ReplayCache}, the IDs are held in independently locked
+ * segments of bounded size. All requests live for the same time, so each
+ * segment is in expiration order and purging it only looks at its head. When
+ * a segment is still full the oldest request is evicted, and its response
+ * will be rejected: a growing eviction count means the cache is undersized
+ * for the rate of SP-initiated logins.
+ * <p>
+ * Requests sent for a session are also remembered in that session, a few at
+ * most, so that a flood of requests evicting them from the shared cache does
+ * not fail the logins of the users who sent them. A request is only accepted
+ * from the session if its response is received in that same session.
+ */
+public class Saml2OutstandingRequests {
+
+	/*
+	 * Default maximum number of outstanding requests
+	 */
+	public static final int DEFAULT_MAX_SIZE = 10000;
+
+	/*
+	 * Default time given to the user to log in at the IdP
+	 */
+	public static final long DEFAULT_TIME_TO_LIVE = 5 * 60 * 1000L;
+
+	/*
+	 * Session attribute holding the requests sent for the session
+	 */
+	public static final String SESSION_ATTRIBUTE = Saml2OutstandingRequests.class
+			.getName() + ".REQUESTS";
+
+	/*
+	 * Maximum number of requests remembered per session, for users logging
+	 * in from several tabs
+	 */
+	private static final int MAX_SESSION_REQUESTS = 8;
+
+	private static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+	private final Segment[] segments;
+
+	private final int segmentMask;
+
+	private final int maxSize;
+
+	private volatile long timeToLive = DEFAULT_TIME_TO_LIVE;
+
+	public Saml2OutstandingRequests() {
+		this(DEFAULT_MAX_SIZE, DEFAULT_CONCURRENCY_LEVEL);
+	}
+
+	/**
+	 * @param maxSize
+	 *            the maximum number of outstanding requests
+	 * @param concurrencyLevel
+	 *            the expected number of concurrent logins, rounded up to a
+	 *            power of two to give the number of segments
+	 */
+	public Saml2OutstandingRequests(int maxSize, int concurrencyLevel) {
+		if (maxSize <= 0 || concurrencyLevel <= 0) {
+			throw new IllegalArgumentException(
+					"The maximum size and concurrency level must be positive");
+		}
+		int segmentCount = 1;
+		while (segmentCount < concurrencyLevel && segmentCount < maxSize) {
+			segmentCount <<= 1;
+		}
+		int segmentCapacity = (maxSize + segmentCount - 1) / segmentCount;
+
+		this.segments = new Segment[segmentCount];
+		this.segmentMask = segmentCount - 1;
+		this.maxSize = segmentCapacity * segmentCount;
+		for (int i = 0; i < segmentCount; i++) {
+			segments[i] = new Segment(segmentCapacity);
+		}
+	}
+
+	/**
+	 * Records a request sent to the IdP.
+	 * 
+	 * @param requestId
+	 *            the ID of the AuthnRequest
+	 */
+	public void add(String requestId) {
+		long now = System.currentTimeMillis();
+		Segment segment = segmentFor(requestId);
+		synchronized (segment) {
+			segment.purgeExpired(now);
+			segment.put(requestId, Long.valueOf(now + timeToLive));
+		}
+	}
+
+	/**
+	 * Records a request sent to the IdP for a session.
+	 * 
+	 * @param requestId
+	 *            the ID of the AuthnRequest
+	 * @param session
+	 *            the session of the user sent to the IdP, or
+	 *            <code>null</code>
+	 */
+	public void add(String requestId, Session session) {
+		add(requestId);
+		if (session == null) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		Map<String, Long> requests = copySessionRequests(session, now);
+		requests.put(requestId, Long.valueOf(now + timeToLive));
+		Iterator<String> oldest = requests.keySet().iterator();
+		while (requests.size() > MAX_SESSION_REQUESTS) {
+			oldest.next();
+			oldest.remove();
+		}
+		session.setAttribute(SESSION_ATTRIBUTE, requests);
+	}
+
+	/**
+	 * Forgets a request as its response is received.
+	 * 
+	 * @param requestId
+	 *            the InResponseTo of the response
+	 * @return <code>true</code> if the request was outstanding and not timed
+	 *         out
+	 */
+	public boolean consume(String requestId) {
+		long now = System.currentTimeMillis();
+		Segment segment = segmentFor(requestId);
+		synchronized (segment) {
+			Long expiration = segment.remove(requestId);
+			return expiration != null && expiration.longValue() > now;
+		}
+	}
+
+	/**
+	 * Forgets a request as its response is received in a session, accepting
+	 * it if it is outstanding either in the shared cache or in the session.
+	 * 
+	 * @param requestId
+	 *            the InResponseTo of the response
+	 * @param session
+	 *            the session receiving the response, or <code>null</code>
+	 * @return <code>true</code> if the request was outstanding and not timed
+	 *         out
+	 */
+	public boolean consume(String requestId, Session session) {
+		boolean consumed = consume(requestId);
+		if (session == null) {
+			return consumed;
+		}
+		long now = System.currentTimeMillis();
+		Map<String, Long> requests = copySessionRequests(session, now);
+		Long expiration = requests.remove(requestId);
+		if (expiration == null) {
+			return consumed;
+		}
+		session.setAttribute(SESSION_ATTRIBUTE, requests);
+		return consumed || expiration.longValue() > now;
+	}
+
+	/*
+	 * Copies the requests of the session not timed out yet, the attribute
+	 * being replaced rather than modified so that it is stored by any session
+	 * DAO
+	 */
+	@SuppressWarnings("unchecked")
+	private static LinkedHashMap<String, Long> copySessionRequests(
+			Session session, long now) {
+		LinkedHashMap<String, Long> requests = new LinkedHashMap<String, Long>();
+		Object attribute = session.getAttribute(SESSION_ATTRIBUTE);
+		if (attribute instanceof Map) {
+			for (Map.Entry<String, Long> request : ((Map<String, Long>) attribute)
+					.entrySet()) {
+				if (request.getValue().longValue() > now) {
+					requests.put(request.getKey(), request.getValue());
+				}
+			}
+		}
+		return requests;
+	}
+
+	private Segment segmentFor(String requestId) {
+		int h = requestId.hashCode();
+		h ^= (h >>> 16);
+		return segments[h & segmentMask];
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return the number of outstanding requests, including timed out ones
+	 *         not purged yet
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return the number of outstanding requests dropped because the cache
+	 *         was full
+	 */
+	public long getEvictionCount() {
+		long count = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				count += segment.evictionCount;
+			}
+		}
+		return count;
+	}
+
+	public long getTimeToLive() {
+		return timeToLive;
+	}
+
+	/**
+	 * @param timeToLive
+	 *            how long a request waits for its response, in milliseconds
+	 */
+	public void setTimeToLive(long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+	/*
+	 * Insertion ordered map of request IDs to their expiration, only accessed
+	 * while holding its monitor
+	 */
+	private static final class Segment extends LinkedHashMap<String, Long> {
+
+		private static final long serialVersionUID = -6730245036281370126L;
+
+		private final int capacity;
+
+		private long evictionCount;
+
+		Segment(int capacity) {
+			super(16, 0.75f, false);
+			this.capacity = capacity;
+		}
+
+		void purgeExpired(long now) {
+			Iterator<Long> expirations = values().iterator();
+			while (expirations.hasNext()) {
+				if (expirations.next().longValue() > now) {
+					return;
+				}
+				expirations.remove();
+			}
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			if (size() > capacity) {
+				evictionCount++;
+				return true;
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streams the URL decoded value of a single parameter out of an
+ * <code>application/x-www-form-urlencoded</code> request body, without
+ * buffering the body or the value in memory.
+ * <p>
+ * Other parameters are skipped as they are read. If the parameter appears
+ * several times only its first value is returned, and if it does not appear
+ * the stream is empty.
+ */
+public class Saml2ParameterInputStream extends InputStream {
+
+	private final InputStream in;
+
+	private final byte[] parameterName;
+
+	private final long maxLength;
+
+	private long length = 0;
+
+	private boolean inValue = false;
+
+	private boolean done = false;
+
+	/**
+	 * @param in
+	 *            the form encoded request body
+	 * @param parameterName
+	 *            the name of the parameter to extract, which must not need
+	 *            to be URL encoded
+	 */
+	public Saml2ParameterInputStream(InputStream in, String parameterName) {
+		this(in, parameterName, 0);
+	}
+
+	/**
+	 * @param in
+	 *            the form encoded request body
+	 * @param parameterName
+	 *            the name of the parameter to extract, which must not need
+	 *            to be URL encoded
+	 * @param maxLength
+	 *            the maximum length of the decoded value, reading past it
+	 *            fails with an {@link IOException}, 0 for no limit
+	 */
+	public Saml2ParameterInputStream(InputStream in, String parameterName,
+			long maxLength) {
+		this.in = new BufferedInputStream(in);
+		this.parameterName = parameterName.getBytes();
+		this.maxLength = maxLength;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (done) {
+			return -1;
+		}
+		if (!inValue) {
+			if (!seekValue()) {
+				done = true;
+				return -1;
+			}
+			inValue = true;
+		}
+
+		int c = in.read();
+		if (c == -1 || c == '&') {
+			done = true;
+			return -1;
+		}
+		if (maxLength > 0 && ++length > maxLength) {
+			throw new IOException("The parameter value exceeds " + maxLength
+					+ " bytes");
+		}
+		switch (c) {
+		case '+':
+			return ' ';
+		case '%':
+			return (hexValue(in.read()) << 4) | hexValue(in.read());
+		default:
+			return c;
+		}
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		int count = 0;
+		while (count < len) {
+			int c = read();
+			if (c == -1) {
+				break;
+			}
+			b[off + count++] = (byte) c;
+		}
+		return count == 0 ? -1 : count;
+	}
+
+	@Override
+	public void close() throws IOException {
+		done = true;
+		in.close();
+	}
+
+	/*
+	 * Skips the parameters preceding the expected one, returns true when
+	 * positioned at the beginning of its value
+	 */
+	private boolean seekValue() throws IOException {
+		while (true) {
+			int matched = 0;
+			boolean matching = true;
+			int c = in.read();
+			while (c != -1 && c != '=' && c != '&') {
+				if (matching && matched < parameterName.length
+						&& parameterName[matched] == c) {
+					matched++;
+				} else {
+					matching = false;
+				}
+				c = in.read();
+			}
+			if (c == -1) {
+				return false;
+			}
+			if (c == '=' && matching && matched == parameterName.length) {
+				return true;
+			}
+			while (c != -1 && c != '&') {
+				c = in.read();
+			}
+			if (c == -1) {
+				return false;
+			}
+		}
+	}
+
+	private static int hexValue(int c) throws IOException {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		} else if (c >= 'A' && c <= 'F') {
+			return c - 'A' + 10;
+		} else if (c >= 'a' && c <= 'f') {
+			return c - 'a' + 10;
+		}
+		throw new IOException("Invalid URL encoded parameter value");
+	}
+}
@@ -0,0 +1,277 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+/**
+ * A bounded pool of namespace aware {@link DocumentBuilder}s used to parse
+ * SAML2 responses. The underlying {@link DocumentBuilderFactory} is looked up
+ * and configured once, builders are reset before being handed back to the
+ * pool and reused by subsequent parses.
+ * <p>
+ * When the pool is empty a new builder is created on the fly, and when it is
+ * full the returned builder is simply discarded, so the pool never blocks the
+ * caller. Both situations are counted to help sizing the pool.
+ */
+public class Saml2ParserPool {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(Saml2ParserPool.class);
+
+	/*
+	 * Rethrows the parse errors instead of letting the parser print them to
+	 * the standard error, as rejecting malformed input is routine
+	 */
+	private static final ErrorHandler ERROR_HANDLER = new ErrorHandler() {
+
+		public void warning(SAXParseException exception) {
+			LOGGER.debug("XML parser warning", exception);
+		}
+
+		public void error(SAXParseException exception) throws SAXException {
+			LOGGER.debug("XML parser error", exception);
+			throw exception;
+		}
+
+		public void fatalError(SAXParseException exception)
+				throws SAXException {
+			LOGGER.debug("XML parser fatal error", exception);
+			throw exception;
+		}
+	};
+
+	/*
+	 * Default number of idle builders kept in the pool
+	 */
+	public static final int DEFAULT_MAX_POOL_SIZE = 16;
+
+	/*
+	 * Parser features hardening the factory against XXE and entity expansion
+	 * attacks, a SAML response never legitimately carries a DOCTYPE
+	 */
+	private static final String DISALLOW_DOCTYPE_FEATURE = "http://apache.org/xml/features/disallow-doctype-decl";
+	private static final String EXTERNAL_GENERAL_ENTITIES_FEATURE = "http://xml.org/sax/features/external-general-entities";
+	private static final String EXTERNAL_PARAMETER_ENTITIES_FEATURE = "http://xml.org/sax/features/external-parameter-entities";
+	private static final String LOAD_EXTERNAL_DTD_FEATURE = "http://apache.org/xml/features/nonvalidating/load-external-dtd";
+
+	private final DocumentBuilderFactory documentBuilderFactory;
+
+	private final Queue<DocumentBuilder> idleBuilders = new ConcurrentLinkedQueue<DocumentBuilder>();
+
+	private final AtomicInteger idleCount = new AtomicInteger();
+
+	private volatile int maxPoolSize;
+
+	private final AtomicLong borrowCount = new AtomicLong();
+
+	private final AtomicLong createCount = new AtomicLong();
+
+	private final AtomicLong exhaustedCount = new AtomicLong();
+
+	private final AtomicLong discardCount = new AtomicLong();
+
+	public Saml2ParserPool() {
+		this(DEFAULT_MAX_POOL_SIZE);
+	}
+
+	public Saml2ParserPool(int maxPoolSize) {
+		setMaxPoolSize(maxPoolSize);
+		documentBuilderFactory = DocumentBuilderFactory.newInstance();
+		documentBuilderFactory.setNamespaceAware(true);
+		documentBuilderFactory.setExpandEntityReferences(false);
+		documentBuilderFactory.setXIncludeAware(false);
+		setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+		setFeature(DISALLOW_DOCTYPE_FEATURE, true);
+		setFeature(EXTERNAL_GENERAL_ENTITIES_FEATURE, false);
+		setFeature(EXTERNAL_PARAMETER_ENTITIES_FEATURE, false);
+		setFeature(LOAD_EXTERNAL_DTD_FEATURE, false);
+	}
+
+	/**
+	 * Parses the given stream into a DOM document using a pooled builder.
+	 *
+	 * @param inputStream
+	 *            the XML content to parse
+	 * @return the parsed document
+	 * @throws Saml2TokenValidationException
+	 *             if the content is not well-formed XML or cannot be read
+	 */
+	public Document parse(InputStream inputStream)
+			throws Saml2TokenValidationException {
+		DocumentBuilder docBuilder = borrowBuilder();
+		try {
+			return docBuilder.parse(inputStream);
+		} catch (SAXException e) {
+			throw new Saml2TokenValidationException(e);
+		} catch (IOException e) {
+			throw new Saml2TokenValidationException(e);
+		} finally {
+			returnBuilder(docBuilder);
+		}
+	}
+
+	/**
+	 * Takes a builder out of the pool, creating a new one if the pool is
+	 * empty. The builder must be given back with
+	 * {@link #returnBuilder(DocumentBuilder)} once the parse is done.
+	 *
+	 * @return a ready to use document builder
+	 * @throws Saml2TokenValidationException
+	 *             if a new builder cannot be created
+	 */
+	public DocumentBuilder borrowBuilder() throws Saml2TokenValidationException {
+		borrowCount.incrementAndGet();
+		DocumentBuilder docBuilder = idleBuilders.poll();
+		if (docBuilder != null) {
+			idleCount.decrementAndGet();
+			/*
+			 * A reset restores the error handler of a new builder
+			 */
+			docBuilder.setErrorHandler(ERROR_HANDLER);
+			return docBuilder;
+		}
+
+		exhaustedCount.incrementAndGet();
+		return createBuilder();
+	}
+
+	/**
+	 * Resets a builder and puts it back in the pool, or discards it if the
+	 * pool already holds {@link #getMaxPoolSize()} idle builders.
+	 *
+	 * @param docBuilder
+	 *            the builder previously obtained from
+	 *            {@link #borrowBuilder()}
+	 */
+	public void returnBuilder(DocumentBuilder docBuilder) {
+		if (docBuilder == null) {
+			return;
+		}
+
+		try {
+			docBuilder.reset();
+		} catch (UnsupportedOperationException e) {
+			/*
+			 * A builder which cannot be reset cannot be safely shared
+			 */
+			discardCount.incrementAndGet();
+			return;
+		}
+
+		if (idleCount.incrementAndGet() > maxPoolSize) {
+			idleCount.decrementAndGet();
+			discardCount.incrementAndGet();
+			return;
+		}
+		idleBuilders.offer(docBuilder);
+	}
+
+	private DocumentBuilder createBuilder()
+			throws Saml2TokenValidationException {
+		/*
+		 * DocumentBuilderFactory is not guaranteed to be thread safe, builders
+		 * are only created when the pool runs dry so contention stays low
+		 */
+		synchronized (documentBuilderFactory) {
+			try {
+				DocumentBuilder docBuilder = documentBuilderFactory
+						.newDocumentBuilder();
+				docBuilder.setErrorHandler(ERROR_HANDLER);
+				createCount.incrementAndGet();
+				return docBuilder;
+			} catch (ParserConfigurationException e) {
+				throw new Saml2TokenValidationException(e);
+			}
+		}
+	}
+
+	private void setFeature(String feature, boolean value) {
+		try {
+			documentBuilderFactory.setFeature(feature, value);
+		} catch (ParserConfigurationException e) {
+			LOGGER.warn("XML parser does not support feature {}", feature);
+		}
+	}
+
+	public int getMaxPoolSize() {
+		return maxPoolSize;
+	}
+
+	public void setMaxPoolSize(int maxPoolSize) {
+		if (maxPoolSize < 0) {
+			throw new IllegalArgumentException(
+					"The maximum pool size cannot be negative");
+		}
+		this.maxPoolSize = maxPoolSize;
+	}
+
+	/**
+	 * @return the number of builders currently idle in the pool
+	 */
+	public int getIdleCount() {
+		return idleCount.get();
+	}
+
+	/**
+	 * @return the number of builders handed out since the pool was created
+	 */
+	public long getBorrowCount() {
+		return borrowCount.get();
+	}
+
+	/**
+	 * @return the number of builders created since the pool was created
+	 */
+	public long getCreateCount() {
+		return createCount.get();
+	}
+
+	/**
+	 * @return the number of borrows which found the pool empty
+	 */
+	public long getExhaustedCount() {
+		return exhaustedCount.get();
+	}
+
+	/**
+	 * @return the number of returned builders dropped because the pool was
+	 *         full
+	 */
+	public long getDiscardCount() {
+		return discardCount.get();
+	}
+}
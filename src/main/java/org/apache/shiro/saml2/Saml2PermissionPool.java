@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.shiro.authz.Permission;
+import org.apache.shiro.authz.permission.PermissionResolver;
+import org.apache.shiro.authz.permission.WildcardPermission;
+import org.apache.shiro.authz.permission.WildcardPermissionResolver;
+
+/**
+ * Realm-wide pool resolving each distinct permission string to a single
+ * shared {@link Permission}, for the few hundred permission strings most
+ * subjects share.
+ * <p>
+ * Without a pool, Shiro resolves the string permissions of a subject on every
+ * authorization check, so each check parses every permission of the subject
+ * again. With a pool, {@link Saml2Realm} puts the pooled permissions in the
+ * authorization info and resolves the checked permission strings through the
+ * pool too.
+ * <p>
+ * The pool is bounded: once it holds {@link #getMaxSize()} permissions, new
+ * strings are resolved without being pooled, and counted as overflows.
+ */
+public class Saml2PermissionPool {
+
+	/*
+	 * Default maximum number of pooled permissions
+	 */
+	public static final int DEFAULT_MAX_SIZE = 10000;
+
+	private final ConcurrentHashMap<String, Permission> permissions = new ConcurrentHashMap<String, Permission>();
+
+	private final int maxSize;
+
+	/*
+	 * Resolver of the pooled permissions, which should resolve strings as the
+	 * permission resolver of the realm does
+	 */
+	private PermissionResolver permissionResolver = new PooledWildcardPermissionResolver();
+
+	private final AtomicLong overflowCount = new AtomicLong();
+
+	public Saml2PermissionPool() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param maxSize
+	 *            the maximum number of pooled permissions
+	 */
+	public Saml2PermissionPool(int maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException(
+					"The maximum size must be positive");
+		}
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @param permission
+	 *            a permission string
+	 * @return the shared permission resolved from the string
+	 */
+	public Permission get(String permission) {
+		Permission resolved = permissions.get(permission);
+		if (resolved != null) {
+			return resolved;
+		}
+		resolved = permissionResolver.resolvePermission(permission);
+		if (permissions.size() >= maxSize) {
+			overflowCount.incrementAndGet();
+			return resolved;
+		}
+		Permission known = permissions.putIfAbsent(permission, resolved);
+		return known != null ? known : resolved;
+	}
+
+	/**
+	 * Forgets every pooled permission.
+	 */
+	public void clear() {
+		permissions.clear();
+	}
+
+	/**
+	 * @return the number of pooled permissions
+	 */
+	public int size() {
+		return permissions.size();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return the number of permissions resolved without being pooled because
+	 *         the pool was full
+	 */
+	public long getOverflowCount() {
+		return overflowCount.get();
+	}
+
+	public PermissionResolver getPermissionResolver() {
+		return permissionResolver;
+	}
+
+	/**
+	 * @param permissionResolver
+	 *            the resolver of the pooled permissions, the pool is cleared
+	 */
+	public void setPermissionResolver(PermissionResolver permissionResolver) {
+		this.permissionResolver = permissionResolver;
+		clear();
+	}
+
+	/*
+	 * Resolves wildcard permissions whose hash code is computed once, as
+	 * Shiro hashes every permission of a subject on each check
+	 */
+	private static final class PooledWildcardPermissionResolver extends
+			WildcardPermissionResolver {
+
+		@Override
+		public Permission resolvePermission(String permissionString) {
+			return new PooledWildcardPermission(permissionString);
+		}
+	}
+
+	/*
+	 * Immutable once pooled, its parts are never changed after construction
+	 */
+	private static final class PooledWildcardPermission extends
+			WildcardPermission {
+
+		private static final long serialVersionUID = 6497016389211442791L;
+
+		private final int hashCode;
+
+		PooledWildcardPermission(String wildcardString) {
+			super(wildcardString);
+			this.hashCode = super.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o == this || super.equals(o);
+		}
+	}
+}
@@ -0,0 +1,273 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compact and immutable view of an authenticated SAML2 subject, holding only
+ * plain strings so that it neither retains the XML of the response nor
+ * prevents sessions from being serialized.
+ * <p>
+ * Attribute names are interned, as the same few names are shared by every
+ * session.
+ * <p>
+ * A principal created from {@link Saml2LazyAttributes} converts the values of
+ * an attribute the first time they are asked for. It keeps a reference to the
+ * OpenSAML attributes until all of them are converted, by
+ * {@link #getAttributes()} or when the principal is serialized.
+ */
+public final class Saml2Principal implements Serializable {
+
+	private static final long serialVersionUID = -3712869467043917021L;
+
+	private final String nameId;
+
+	private final String issuer;
+
+	private final String sessionIndex;
+
+	private final Map<String, List<String>> attributes;
+
+	/*
+	 * Read-only view of the attributes, rebuilt by readResolve
+	 */
+	private final transient Map<String, List<String>> attributesView;
+
+	/*
+	 * Attributes not converted yet, null once they all are
+	 */
+	private transient volatile Saml2LazyAttributes lazyAttributes;
+
+	/**
+	 * @param nameId
+	 *            the NameID of the subject
+	 * @param issuer
+	 *            the issuer of the assertion
+	 * @param sessionIndex
+	 *            the session index of the authentication statement, if any
+	 * @param attributes
+	 *            the values of the attributes of the subject, by attribute
+	 *            name
+	 */
+	public Saml2Principal(String nameId, String issuer, String sessionIndex,
+			Map<String, List<String>> attributes) {
+		this.nameId = nameId;
+		this.issuer = issuer;
+		this.sessionIndex = sessionIndex;
+		this.attributes = compact(attributes);
+		this.attributesView = this.attributes;
+	}
+
+	/**
+	 * @param nameId
+	 *            the NameID of the subject
+	 * @param issuer
+	 *            the issuer of the assertion
+	 * @param sessionIndex
+	 *            the session index of the authentication statement, if any
+	 * @param lazyAttributes
+	 *            the attributes of the subject, converted on first use
+	 */
+	public Saml2Principal(String nameId, String issuer, String sessionIndex,
+			Saml2LazyAttributes lazyAttributes) {
+		this.nameId = nameId;
+		this.issuer = issuer;
+		this.sessionIndex = sessionIndex;
+		if (lazyAttributes.isEmpty()) {
+			this.attributes = Collections.emptyMap();
+		} else {
+			this.attributes = new ConcurrentHashMap<String, List<String>>(8,
+					0.75f, 1);
+			this.lazyAttributes = lazyAttributes;
+		}
+		this.attributesView = Collections.unmodifiableMap(this.attributes);
+	}
+
+	private static Map<String, List<String>> compact(
+			Map<String, List<String>> attributes) {
+		if (attributes == null || attributes.isEmpty()) {
+			return Collections.emptyMap();
+		}
+		Map<String, List<String>> compacted = new HashMap<String, List<String>>(
+				(int) (attributes.size() / 0.75f) + 1);
+		for (Map.Entry<String, List<String>> attribute : attributes
+				.entrySet()) {
+			compacted.put(attribute.getKey().intern(),
+					compactValues(attribute.getValue()));
+		}
+		return Collections.unmodifiableMap(compacted);
+	}
+
+	private static List<String> compactValues(List<String> values) {
+		switch (values.size()) {
+		case 0:
+			return Collections.emptyList();
+		case 1:
+			return Collections.singletonList(values.get(0));
+		default:
+			return Collections.unmodifiableList(Arrays.asList(values
+					.toArray(new String[values.size()])));
+		}
+	}
+
+	public String getNameId() {
+		return nameId;
+	}
+
+	public String getIssuer() {
+		return issuer;
+	}
+
+	public String getSessionIndex() {
+		return sessionIndex;
+	}
+
+	/**
+	 * @return the attribute values by attribute name
+	 */
+	public Map<String, List<String>> getAttributes() {
+		Saml2LazyAttributes lazy = lazyAttributes;
+		if (lazy != null) {
+			for (String name : lazy.getNames()) {
+				materialize(lazy, name);
+			}
+			lazyAttributes = null;
+		}
+		return attributesView;
+	}
+
+	public Set<String> getAttributeNames() {
+		Saml2LazyAttributes lazy = lazyAttributes;
+		return lazy != null ? lazy.getNames() : attributesView.keySet();
+	}
+
+	/**
+	 * @param name
+	 *            an attribute name
+	 * @return the values of the attribute, empty if the subject does not have
+	 *         it
+	 */
+	public List<String> getAttributeValues(String name) {
+		List<String> values = getValues(name);
+		return values != null ? values : Collections.<String> emptyList();
+	}
+
+	/**
+	 * @param name
+	 *            an attribute name
+	 * @return the first value of the attribute, or <code>null</code>
+	 */
+	public String getAttributeValue(String name) {
+		List<String> values = getValues(name);
+		return values != null && !values.isEmpty() ? values.get(0) : null;
+	}
+
+	private List<String> getValues(String name) {
+		List<String> values = attributes.get(name);
+		if (values == null) {
+			Saml2LazyAttributes lazy = lazyAttributes;
+			if (lazy != null) {
+				values = materialize(lazy, name);
+			}
+		}
+		return values;
+	}
+
+	/*
+	 * Converts the values of an attribute
+	 */
+	private List<String> materialize(Saml2LazyAttributes lazy, String name) {
+		List<String> values = attributes.get(name);
+		if (values != null) {
+			return values;
+		}
+		values = lazy.getValues(name);
+		if (values == null) {
+			return null;
+		}
+		values = compactValues(values);
+		/*
+		 * Only lazy principals get here, their attributes are concurrent
+		 */
+		List<String> known = ((ConcurrentHashMap<String, List<String>>) attributes)
+				.putIfAbsent(name.intern(), values);
+		return known != null ? known : values;
+	}
+
+	/*
+	 * Converts the remaining attributes before serialization
+	 */
+	private Object writeReplace() {
+		if (lazyAttributes == null) {
+			return this;
+		}
+		return new Saml2Principal(nameId, issuer, sessionIndex,
+				getAttributes());
+	}
+
+	/*
+	 * Interns the attribute names again once deserialized
+	 */
+	private Object readResolve() {
+		return new Saml2Principal(nameId, issuer, sessionIndex, attributes);
+	}
+
+	@Override
+	public int hashCode() {
+		int result = nameId != null ? nameId.hashCode() : 0;
+		result = 31 * result + (issuer != null ? issuer.hashCode() : 0);
+		/*
+		 * Attributes are left out so that hashing a lazy principal does not
+		 * convert them
+		 */
+		return 31 * result
+				+ (sessionIndex != null ? sessionIndex.hashCode() : 0);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof Saml2Principal)) {
+			return false;
+		}
+		Saml2Principal other = (Saml2Principal) obj;
+		return equal(nameId, other.nameId) && equal(issuer, other.issuer)
+				&& equal(sessionIndex, other.sessionIndex)
+				&& getAttributes().equals(other.getAttributes());
+	}
+
+	private static boolean equal(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	@Override
+	public String toString() {
+		return nameId;
+	}
+}
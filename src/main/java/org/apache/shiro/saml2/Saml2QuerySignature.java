@@ -0,0 +1,208 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+
+/**
+ * Detached signature of a SAML2 message received over the HTTP-Redirect
+ * binding, which signs the query string rather than the XML.
+ * <p>
+ * The signed content is rebuilt from the raw query string, with the values
+ * still URL encoded as the IdP sent them, in the order required by the
+ * binding: the message, the RelayState if any, then SigAlg. A query string
+ * repeating any of these parameters, or the signature, is rejected: the
+ * message read by the application would otherwise not have to be the one
+ * which is signed.
+ */
+public final class Saml2QuerySignature implements Serializable {
+
+	private static final long serialVersionUID = 4417063328471937226L;
+
+	private static final String RELAY_STATE = "RelayState";
+
+	private static final String SIG_ALG = "SigAlg";
+
+	private static final String SIGNATURE = "Signature";
+
+	private final String message;
+
+	private final String relayState;
+
+	private final String signedContent;
+
+	private final String algorithm;
+
+	private final String signature;
+
+	/**
+	 * @param signedContent
+	 *            the signed part of the query string
+	 * @param algorithm
+	 *            the URI of the signature algorithm
+	 * @param signature
+	 *            the Base64 encoded signature value
+	 */
+	public Saml2QuerySignature(String signedContent, String algorithm,
+			String signature) {
+		this(null, null, signedContent, algorithm, signature);
+	}
+
+	/**
+	 * @param message
+	 *            the URL decoded message which is signed
+	 * @param relayState
+	 *            the URL decoded relay state which is signed, if any
+	 * @param signedContent
+	 *            the signed part of the query string
+	 * @param algorithm
+	 *            the URI of the signature algorithm
+	 * @param signature
+	 *            the Base64 encoded signature value
+	 */
+	public Saml2QuerySignature(String message, String relayState,
+			String signedContent, String algorithm, String signature) {
+		this.message = message;
+		this.relayState = relayState;
+		this.signedContent = signedContent;
+		this.algorithm = algorithm;
+		this.signature = signature;
+	}
+
+	/**
+	 * Reads the signature of a query string.
+	 * 
+	 * @param queryString
+	 *            the raw query string of the request
+	 * @param messageParameter
+	 *            the name of the parameter carrying the message, such as
+	 *            SAMLResponse
+	 * @return the signature, or <code>null</code> if the query string is not
+	 *         signed
+	 * @throws Saml2TokenValidationException
+	 *             if the query string repeats the message, RelayState, SigAlg
+	 *             or Signature parameter
+	 */
+	public static Saml2QuerySignature parse(String queryString,
+			String messageParameter) throws Saml2TokenValidationException {
+		if (queryString == null) {
+			return null;
+		}
+		String message = null;
+		String relayState = null;
+		String algorithm = null;
+		String signature = null;
+		int start = 0;
+		while (start <= queryString.length()) {
+			int end = queryString.indexOf('&', start);
+			if (end < 0) {
+				end = queryString.length();
+			}
+			int equals = queryString.indexOf('=', start);
+			if (equals > start && equals < end) {
+				String name = queryString.substring(start, equals);
+				String value = queryString.substring(equals + 1, end);
+				if (name.equals(messageParameter)) {
+					message = unique(name, message, value);
+				} else if (name.equals(RELAY_STATE)) {
+					relayState = unique(name, relayState, value);
+				} else if (name.equals(SIG_ALG)) {
+					algorithm = unique(name, algorithm, value);
+				} else if (name.equals(SIGNATURE)) {
+					signature = unique(name, signature, value);
+				}
+			}
+			start = end + 1;
+		}
+		if (message == null || algorithm == null || signature == null) {
+			return null;
+		}
+
+		StringBuilder signedContent = new StringBuilder(message.length()
+				+ algorithm.length() + 64);
+		signedContent.append(messageParameter).append('=').append(message);
+		if (relayState != null) {
+			signedContent.append('&').append(RELAY_STATE).append('=')
+					.append(relayState);
+		}
+		signedContent.append('&').append(SIG_ALG).append('=')
+				.append(algorithm);
+		try {
+			return new Saml2QuerySignature(URLDecoder.decode(message,
+					"UTF-8"), relayState == null ? null : URLDecoder.decode(
+					relayState, "UTF-8"), signedContent.toString(),
+					URLDecoder.decode(algorithm, "UTF-8"), URLDecoder.decode(
+							signature, "UTF-8"));
+		} catch (IllegalArgumentException e) {
+			/*
+			 * Malformed escape, the message is then handled as unsigned
+			 */
+			return null;
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String unique(String name, String previous, String value)
+			throws Saml2TokenValidationException {
+		if (previous != null) {
+			throw new Saml2TokenValidationException("Parameter " + name
+					+ " repeated in the query string");
+		}
+		return value;
+	}
+
+	/**
+	 * @return the URL decoded message covered by the signature, the only one
+	 *         which may be processed
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return the URL decoded relay state covered by the signature, if any
+	 */
+	public String getRelayState() {
+		return relayState;
+	}
+
+	/**
+	 * @return the signed part of the query string
+	 */
+	public String getSignedContent() {
+		return signedContent;
+	}
+
+	/**
+	 * @return the URI of the signature algorithm
+	 */
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * @return the Base64 encoded signature value
+	 */
+	public String getSignature() {
+		return signature;
+	}
+}
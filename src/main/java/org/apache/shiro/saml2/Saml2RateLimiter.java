@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A per client token bucket limiting the login rate of each client address.
+ * <p>
+ * Each bucket is a single {@link AtomicLong} holding the theoretical time at
+ * which the bucket will be full again (the generic cell rate algorithm), so
+ * acquiring a permit is a lock-free compare and set. A bucket whose time has
+ * passed is full, which is the same as having no bucket at all: such buckets
+ * are evicted when the map reaches {@link #getMaxClients()} entries. If every
+ * tracked client is still being limited, arbitrary buckets are evicted, which
+ * only ever lets those clients through earlier.
+ * <p>
+ * Each eviction sweep frees a quarter of the map, so the sweep runs once
+ * every so many new clients rather than for each of them, and only one
+ * thread sweeps at a time. Clients arriving during a sweep are tracked
+ * anyway, so the map may briefly exceed its maximum by the number of
+ * concurrent logins.
+ */
+public class Saml2RateLimiter {
+
+	/*
+	 * Default maximum number of client addresses tracked
+	 */
+	public static final int DEFAULT_MAX_CLIENTS = 10000;
+
+	/*
+	 * Default sustained rate and burst of logins per client
+	 */
+	public static final double DEFAULT_PERMITS_PER_SECOND = 10;
+
+	public static final int DEFAULT_BURST = 20;
+
+	private final ConcurrentMap<String, AtomicLong> buckets;
+
+	/*
+	 * Time to earn one permit and maximum debt of a bucket, in nanoseconds
+	 */
+	private final long interval;
+
+	private final long capacity;
+
+	private final int maxClients;
+
+	/*
+	 * Size down to which an eviction sweep frees the map
+	 */
+	private final int evictionTarget;
+
+	/*
+	 * Set while a thread is sweeping
+	 */
+	private final AtomicBoolean evicting = new AtomicBoolean();
+
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	public Saml2RateLimiter() {
+		this(DEFAULT_PERMITS_PER_SECOND, DEFAULT_BURST, DEFAULT_MAX_CLIENTS);
+	}
+
+	/**
+	 * @param permitsPerSecond
+	 *            the sustained number of logins allowed per client and second
+	 * @param burst
+	 *            the number of logins a client can issue at once
+	 */
+	public Saml2RateLimiter(double permitsPerSecond, int burst) {
+		this(permitsPerSecond, burst, DEFAULT_MAX_CLIENTS);
+	}
+
+	/**
+	 * @param permitsPerSecond
+	 *            the sustained number of logins allowed per client and second
+	 * @param burst
+	 *            the number of logins a client can issue at once
+	 * @param maxClients
+	 *            the maximum number of client addresses tracked
+	 */
+	public Saml2RateLimiter(double permitsPerSecond, int burst, int maxClients) {
+		if (permitsPerSecond <= 0 || burst <= 0 || maxClients <= 0) {
+			throw new IllegalArgumentException(
+					"The rate, burst and maximum number of clients must be positive");
+		}
+		this.interval = (long) (1000000000L / permitsPerSecond);
+		this.capacity = interval * burst;
+		this.maxClients = maxClients;
+		this.evictionTarget = maxClients - Math.max(1, maxClients / 4);
+		this.buckets = new ConcurrentHashMap<String, AtomicLong>(Math.min(
+				maxClients, 1024));
+	}
+
+	/**
+	 * Takes a permit from the bucket of the given client.
+	 *
+	 * @param client
+	 *            the client address
+	 * @return <code>true</code> if the client is allowed to log in
+	 */
+	public boolean tryAcquire(String client) {
+		long now = nanoTime();
+		AtomicLong bucket = buckets.get(client);
+		if (bucket == null) {
+			if (buckets.size() >= maxClients) {
+				evict(now);
+			}
+			AtomicLong newBucket = new AtomicLong(now + interval);
+			bucket = buckets.putIfAbsent(client, newBucket);
+			if (bucket == null) {
+				return true;
+			}
+		}
+
+		while (true) {
+			long fullAt = bucket.get();
+			long newFullAt = Math.max(fullAt, now) + interval;
+			if (newFullAt - now > capacity) {
+				return false;
+			}
+			if (bucket.compareAndSet(fullAt, newFullAt)) {
+				return true;
+			}
+		}
+	}
+
+	private void evict(long now) {
+		if (!evicting.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			Iterator<AtomicLong> iterator = buckets.values().iterator();
+			while (iterator.hasNext()) {
+				if (iterator.next().get() - now <= 0) {
+					iterator.remove();
+					evictionCount.incrementAndGet();
+				}
+			}
+			iterator = buckets.values().iterator();
+			while (buckets.size() > evictionTarget && iterator.hasNext()) {
+				iterator.next();
+				iterator.remove();
+				evictionCount.incrementAndGet();
+			}
+		} finally {
+			evicting.set(false);
+		}
+	}
+
+	/**
+	 * @return the current time in nanoseconds, overridable for testing
+	 */
+	protected long nanoTime() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * @return the number of client addresses currently tracked
+	 */
+	public int size() {
+		return buckets.size();
+	}
+
+	public int getMaxClients() {
+		return maxClients;
+	}
+
+	/**
+	 * @return the number of buckets evicted to make room for new clients
+	 */
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+}
@@ -19,9 +19,11 @@
 package org.apache.shiro.saml2;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.shiro.authc.AuthenticationException;
 import org.apache.shiro.authc.AuthenticationInfo;
@@ -32,17 +34,33 @@ import org.apache.shiro.authz.SimpleAuthorizationInfo;
 import org.apache.shiro.realm.AuthorizingRealm;
 import org.apache.shiro.subject.PrincipalCollection;
 import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.apache.shiro.util.Destroyable;
+import org.apache.shiro.util.LifecycleUtils;
 import org.apache.shiro.util.StringUtils;
-import org.opensaml.saml2.common.SAML2Helper;
+import org.apache.shiro.util.ThreadContext;
 import org.opensaml.saml2.core.Assertion;
 import org.opensaml.saml2.core.Attribute;
+import org.opensaml.saml2.core.AttributeStatement;
+import org.opensaml.saml2.core.AuthnStatement;
+import org.opensaml.saml2.core.Conditions;
 import org.opensaml.saml2.core.Response;
 import org.opensaml.saml2.core.Subject;
+import org.opensaml.saml2.core.SubjectConfirmation;
+import org.opensaml.saml2.core.SubjectConfirmationData;
 import org.opensaml.xml.XMLObject;
-import org.opensaml.xml.schema.XSAny;
-import org.opensaml.xml.schema.XSString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-public class Saml2Realm extends AuthorizingRealm {
+public class Saml2Realm extends AuthorizingRealm implements Destroyable {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(Saml2Realm.class);
+
+	/*
+	 * Default time an assertion ID is remembered when the assertion does not
+	 * state its own expiration
+	 */
+	public static final long DEFAULT_REPLAY_TIME_TO_LIVE = 10 * 60 * 1000L;
 
 	/*
 	 * Each IdP might have a separate key to indicate remember me authentication
@@ -54,6 +72,18 @@ public class Saml2Realm extends AuthorizingRealm {
 	 */
 	private String identityProviderUrlPrefix;
 
+	/*
+	 * IdPs trusted by the realm, null to trust any issuer verified by the
+	 * signature verifier of the realm
+	 */
+	private Saml2IdentityProviderRegistry identityProviderRegistry;
+
+	/*
+	 * Whether the responses of registered IdPs without signing key are
+	 * accepted unverified when the realm has no signature verifier either
+	 */
+	private boolean allowUnsignedIdentityProviders = false;
+
 	/*
 	 * The service provider consumer URL
 	 */
@@ -79,10 +109,122 @@ public class Saml2Realm extends AuthorizingRealm {
 	 */
 	private String permissionAttributeNames;
 
+	/*
+	 * Pool of XML parsers used to read the SAML2 responses
+	 */
+	private Saml2ParserPool parserPool = TokenToSaml2Response
+			.getDefaultParserPool();
+
+	/*
+	 * Compiled form of the default roles and permissions and of the role and
+	 * permission attribute names, replaced whenever one of them changes
+	 */
+	private volatile Saml2AuthorizationPlan authorizationPlan = Saml2AuthorizationPlan.EMPTY;
+
+	/*
+	 * Verifier of the IdP signatures, null to accept unsigned responses
+	 */
+	private Saml2SignatureVerifier signatureVerifier;
+
+	/*
+	 * Validator of the conditions and subject confirmations of the assertions
+	 */
+	private Saml2AssertionValidator assertionValidator = new Saml2AssertionValidator();
+
+	/*
+	 * Decrypter of the encrypted assertions, null to reject them
+	 */
+	private Saml2AssertionDecrypter assertionDecrypter;
+
+	/*
+	 * IDs of the assertions already consumed, null to disable replay detection
+	 */
+	private Saml2AssertionIdStore assertionIdStore = new Saml2ReplayCache();
+
+	/*
+	 * Shared permissions resolved from the permission strings, null to let
+	 * Shiro resolve the strings on every check
+	 */
+	private Saml2PermissionPool permissionPool;
+
+	/*
+	 * How long the ID of an assertion without expiration is remembered
+	 */
+	private long replayTimeToLive = DEFAULT_REPLAY_TIME_TO_LIVE;
+
+	/*
+	 * Whether OpenSAML is bootstrapped when the realm is initialized rather
+	 * than on the first login, and whether this happens on a background thread
+	 */
+	private boolean bootstrapOnInit = true;
+
+	private boolean bootstrapInBackground = false;
+
+	/*
+	 * Whether responses are read with the StAX extractor instead of being
+	 * unmarshalled into OpenSAML objects, which is only possible when their
+	 * signature is not verified
+	 */
+	private boolean fastPath = false;
+
+	/*
+	 * Whether attribute values are converted only when looked up, the
+	 * principal retaining the OpenSAML attributes until then
+	 */
+	private boolean lazyAttributes = false;
+
+	private Saml2StaxExtractor staxExtractor = new Saml2StaxExtractor();
+
+	/*
+	 * Requests sent by the SP-initiated logins, null to accept any
+	 * InResponseTo
+	 */
+	private Saml2OutstandingRequests outstandingRequests;
+
+	/*
+	 * Resolver of the artifacts of the HTTP-Artifact binding, null to reject
+	 * them
+	 */
+	private Saml2ArtifactResolver artifactResolver;
+
+	/*
+	 * Maximum size of a response received over the HTTP-Redirect binding
+	 * once inflated, 0 or less for no limit
+	 */
+	private int maxInflatedSize = Saml2RedirectBinding.DEFAULT_MAX_INFLATED_SIZE;
+
 	public Saml2Realm() {
 		setAuthenticationTokenClass(Saml2Token.class);
 	}
 
+	@Override
+	protected void onInit() {
+		super.onInit();
+		if (bootstrapOnInit) {
+			Saml2Bootstrap.initialize(bootstrapInBackground);
+		}
+		if (identityProviderRegistry != null
+				&& identityProviderRegistry.getReloadCount() == 0) {
+			identityProviderRegistry.init();
+		}
+		LifecycleUtils.init(assertionIdStore);
+		if (artifactResolver != null) {
+			artifactResolver.init();
+		}
+	}
+
+	/**
+	 * Stops the metadata watcher of the identity provider registry and
+	 * releases the assertion ID store, the artifact resolver and the
+	 * assertion decrypter. Called by the security manager on shutdown.
+	 */
+	public void destroy() {
+		LifecycleUtils.destroy(identityProviderRegistry);
+		LifecycleUtils.destroy(assertionIdStore);
+		LifecycleUtils.destroy(artifactResolver);
+		LifecycleUtils.destroy(assertionDecrypter);
+	}
+
 	@Override
 	protected AuthenticationInfo doGetAuthenticationInfo(
 			AuthenticationToken token) throws AuthenticationException {
@@ -91,63 +233,313 @@ public class Saml2Realm extends AuthorizingRealm {
 			return null;
 		}
 
-		String saml2TokenString = (String) saml2Token.getCredentials();
-		if (!StringUtils.hasText(saml2TokenString)) {
+		Object credentials = saml2Token.getCredentials();
+		if (!saml2Token.isStreaming()
+				&& !StringUtils.hasText((String) credentials)) {
 			return null;
 		}
 
+		if (fastPath && signatureVerifier == null && !saml2Token.isArtifact()
+				&& identityProviderRegistry == null
+				&& assertionDecrypter == null) {
+			return extractAuthenticationInfo(saml2Token, credentials);
+		}
+
+		Saml2Metrics metrics = Saml2Metrics.getInstance();
 		try {
-			Response response = TokenToSaml2Response
-					.convertToken(saml2TokenString);
+			Response response;
+			if (saml2Token.isStreaming()) {
+				response = TokenToSaml2Response.convertToken(
+						saml2Token.getSamlTokenStream(), parserPool);
+			} else if (saml2Token.isArtifact()) {
+				if (artifactResolver == null) {
+					throw new Saml2AuthenticationException(
+							"Received an artifact but no artifact resolver is configured");
+				}
+				response = artifactResolver.resolve((String) credentials);
+			} else if (saml2Token.isDeflated()) {
+				response = TokenToSaml2Response.convertDeflatedToken(
+						(String) credentials, parserPool, maxInflatedSize);
+			} else {
+				response = TokenToSaml2Response.convertToken(
+						(String) credentials, parserPool);
+			}
 
 			/*
-			 * TODO This is just to keep things simple, assume one assertion per
-			 * response.
+			 * Fail authentication if the response was not issued by the IdP
 			 */
-			Assertion assertion = response.getAssertions().get(0);
+			Saml2SignatureVerifier verifier = signatureVerifier;
+			Saml2IdentityProvider provider = null;
+			if (identityProviderRegistry != null) {
+				provider = Saml2ResponseChecks.getIdentityProvider(
+						identityProviderRegistry, response);
+				verifier = Saml2ResponseChecks.getSignatureVerifier(provider,
+						verifier, allowUnsignedIdentityProviders);
+			}
+			/*
+			 * A detached signature of the query string covers the whole
+			 * message, like an enveloped signature of the response
+			 */
+			Saml2QuerySignature querySignature = saml2Token
+					.getQuerySignature();
+			boolean signedMessage = response.isSigned();
+			if (verifier != null) {
+				long start = metrics.start();
+				if (querySignature != null) {
+					if (!((String) credentials).equals(querySignature
+							.getMessage())) {
+						throw new Saml2AuthenticationException(
+								"The response is not the one covered by the query string signature");
+					}
+					verifier.verify(querySignature);
+					signedMessage = true;
+				} else {
+					verifier.verify(response);
+				}
+				metrics.record(Saml2Stage.SIGNATURE, start);
+			}
 
-			Subject subject = assertion.getSubject();
-			String nameId = subject.getNameID().getValue();
+			List<Assertion> decryptedAssertions = decrypt(response, verifier,
+					signedMessage);
+			List<Assertion> assertions = response.getAssertions();
+			if (!decryptedAssertions.isEmpty()) {
+				assertions = new ArrayList<Assertion>(assertions);
+				assertions.addAll(decryptedAssertions);
+			}
+			if (assertions.isEmpty()) {
+				throw new Saml2AuthenticationException(
+						"Response has no assertion");
+			}
+
+			/*
+			 * Fail authentication if an assertion claims another issuer than
+			 * the IdP whose key verified it, or than the response
+			 */
+			Saml2ResponseChecks.checkIssuers(assertions, provider, response);
+			String nameId = Saml2ResponseChecks.getNameId(assertions);
 
 			saml2Token.setNameId(nameId);
 
 			/*
-			 * Fail authentication in case there has been a timeout
+			 * Fail authentication in case there has been a timeout, or if the
+			 * assertions are not meant for this SP
 			 */
-			if (!SAML2Helper.isValid(response)) {
+			long start = metrics.start();
+			long now = System.currentTimeMillis();
+			String inResponseTo = response.getInResponseTo();
+			for (int i = 0; i < assertions.size(); i++) {
+				Saml2ValidationFailure failure = assertionValidator.validate(
+						assertions.get(i), now, inResponseTo);
+				if (failure != null) {
+					metrics.record(Saml2Stage.VALIDATION, start);
+					LOGGER.debug("Assertion {} rejected : {}", assertions.get(i)
+							.getID(), failure);
+					return null;
+				}
+			}
+			String answered = Saml2ResponseChecks.getInResponseTo(assertions);
+			if (!isOutstanding(answered)) {
+				metrics.record(Saml2Stage.VALIDATION, start);
+				LOGGER.debug("Response {} answers no outstanding request",
+						response.getID());
 				return null;
 			}
+			metrics.record(Saml2Stage.VALIDATION, start);
 
 			/*
-			 * TODO Again, keeping things simple, assuming one attribute
-			 * statement per assertion
+			 * Fail authentication if any assertion has already been consumed
 			 */
-			List<Attribute> principals = assertion.getAttributeStatements()
-					.get(0).getAttributes();
+			for (Assertion assertion : assertions) {
+				checkReplay(assertion.getID(), getExpiration(assertion));
+			}
 
 			PrincipalCollection principalCollection = new SimplePrincipalCollection(
-					principals, getName());
+					createPrincipal(assertions, nameId), getName());
 			return new SimpleAuthenticationInfo(principalCollection,
-					saml2TokenString);
+					credentials);
 		} catch (Saml2TokenValidationException e) {
 			throw new Saml2AuthenticationException(e);
 		}
 	}
 
-	@SuppressWarnings("unchecked")
+	/*
+	 * Authenticates the token from the values read by the StAX extractor
+	 */
+	private AuthenticationInfo extractAuthenticationInfo(Saml2Token saml2Token,
+			Object credentials) throws AuthenticationException {
+		Saml2Metrics metrics = Saml2Metrics.getInstance();
+		Set<String> attributeNames = authorizationPlan
+				.getRelevantAttributeNames();
+		try {
+			List<Saml2ExtractedAssertion> assertions;
+			if (saml2Token.isStreaming()) {
+				assertions = staxExtractor.extract(
+						saml2Token.getSamlTokenStream(), attributeNames);
+			} else if (saml2Token.isDeflated()) {
+				assertions = staxExtractor.extractDeflated(
+						(String) credentials, attributeNames, maxInflatedSize);
+			} else {
+				assertions = staxExtractor.extract((String) credentials,
+						attributeNames);
+			}
+
+			String nameId = null;
+			String issuer = null;
+			String sessionIndex = null;
+			for (Saml2ExtractedAssertion assertion : assertions) {
+				nameId = Saml2ResponseChecks.checkNameId(nameId,
+						assertion.getNameId());
+				issuer = Saml2ResponseChecks.checkIssuer(issuer,
+						assertion.getIssuer(), assertion.getId());
+				if (sessionIndex == null) {
+					sessionIndex = assertion.getSessionIndex();
+				}
+			}
+			if (nameId == null) {
+				throw new Saml2AuthenticationException("Assertion has no NameID");
+			}
+			saml2Token.setNameId(nameId);
+
+			/*
+			 * Fail authentication in case there has been a timeout, or if the
+			 * assertions are not meant for this SP
+			 */
+			long start = metrics.start();
+			long now = System.currentTimeMillis();
+			for (int i = 0; i < assertions.size(); i++) {
+				Saml2ValidationFailure failure = assertionValidator.validate(
+						assertions.get(i), now);
+				if (failure != null) {
+					metrics.record(Saml2Stage.VALIDATION, start);
+					LOGGER.debug("Assertion {} rejected : {}", assertions.get(i)
+							.getId(), failure);
+					return null;
+				}
+			}
+			String answered = null;
+			for (Saml2ExtractedAssertion assertion : assertions) {
+				for (Saml2ExtractedAssertion.Confirmation confirmation : assertion
+						.getConfirmations()) {
+					answered = Saml2ResponseChecks.checkInResponseTo(answered,
+							confirmation.getInResponseTo());
+				}
+			}
+			if (!isOutstanding(answered)) {
+				metrics.record(Saml2Stage.VALIDATION, start);
+				LOGGER.debug("Response to {} answers no outstanding request",
+						answered);
+				return null;
+			}
+			metrics.record(Saml2Stage.VALIDATION, start);
+
+			Map<String, List<String>> attributes = assertions.size() == 1 ? assertions
+					.get(0).getAttributes()
+					: new HashMap<String, List<String>>();
+			for (Saml2ExtractedAssertion assertion : assertions) {
+				checkReplay(assertion.getId(),
+						getExpiration(assertion.getExpiration()));
+				if (assertions.size() > 1) {
+					mergeAttributes(attributes, assertion.getAttributes());
+				}
+			}
+
+			Saml2Principal principal = new Saml2Principal(nameId, issuer,
+					sessionIndex, attributes);
+			return new SimpleAuthenticationInfo(new SimplePrincipalCollection(
+					principal, getName()), credentials);
+		} catch (Saml2TokenValidationException e) {
+			throw new Saml2AuthenticationException(e);
+		}
+	}
+
+	/*
+	 * Consumes the request a solicited response answers, as stated by the
+	 * signed subject confirmations rather than by the response itself,
+	 * unsolicited responses being left to the assertion validator. The
+	 * request may also be outstanding in the session of the subject logging
+	 * in.
+	 */
+	private boolean isOutstanding(String inResponseTo) {
+		Saml2OutstandingRequests requests = outstandingRequests;
+		if (requests == null || inResponseTo == null) {
+			return true;
+		}
+		org.apache.shiro.subject.Subject subject = ThreadContext.getSubject();
+		return requests.consume(inResponseTo,
+				subject != null ? subject.getSession(false) : null);
+	}
+
+	/*
+	 * Decrypts the encrypted assertions of the response, which the signature
+	 * of the message covers if it is signed, and verifies their own
+	 * signatures otherwise
+	 */
+	private List<Assertion> decrypt(Response response,
+			Saml2SignatureVerifier verifier, boolean signedMessage)
+			throws Saml2TokenValidationException {
+		if (response.getEncryptedAssertions().isEmpty()) {
+			return Collections.emptyList();
+		}
+		if (assertionDecrypter == null) {
+			throw new Saml2AuthenticationException(
+					"Response has encrypted assertions but no decrypter is configured");
+		}
+		Saml2Metrics metrics = Saml2Metrics.getInstance();
+		long start = metrics.start();
+		List<Assertion> assertions = assertionDecrypter.decrypt(response);
+		metrics.record(Saml2Stage.DECRYPTION, start);
+		if (verifier != null && !signedMessage) {
+			start = metrics.start();
+			verifier.verifyAssertions(assertions);
+			metrics.record(Saml2Stage.SIGNATURE, start);
+		}
+		return assertions;
+	}
+
+	private static void mergeAttributes(Map<String, List<String>> attributes,
+			Map<String, List<String>> assertionAttributes) {
+		for (Map.Entry<String, List<String>> attribute : assertionAttributes
+				.entrySet()) {
+			List<String> knownValues = attributes.get(attribute.getKey());
+			if (knownValues == null) {
+				knownValues = new ArrayList<String>(attribute.getValue()
+						.size());
+				attributes.put(attribute.getKey(), knownValues);
+			}
+			knownValues.addAll(attribute.getValue());
+		}
+	}
+
+	/*
+	 * Fails authentication if the assertion has already been consumed
+	 */
+	private void checkReplay(String assertionId, long expiration) {
+		if (assertionIdStore == null) {
+			return;
+		}
+		Saml2Metrics metrics = Saml2Metrics.getInstance();
+		long start = metrics.start();
+		if (assertionId == null) {
+			throw new Saml2AuthenticationException("Assertion has no ID");
+		}
+		if (!assertionIdStore.add(assertionId, expiration)) {
+			throw new Saml2AuthenticationException("Assertion " + assertionId
+					+ " has already been used");
+		}
+		metrics.record(Saml2Stage.REPLAY, start);
+	}
+
 	@Override
 	protected AuthorizationInfo doGetAuthorizationInfo(
 			PrincipalCollection principals) {
+		Saml2Metrics metrics = Saml2Metrics.getInstance();
+		long start = metrics.start();
+
 		/*
 		 * Retrieve user information
 		 */
-		SimplePrincipalCollection principalCollection = (SimplePrincipalCollection) principals;
-		List<Attribute> listPrincipals = principalCollection.asList();
-
-		Map<String, List<XMLObject>> attributes = new HashMap<String, List<XMLObject>>();
-		for (Attribute attribute : listPrincipals) {
-			attributes.put(attribute.getName(), attribute.getAttributeValues());
-		}
+		Saml2Principal principal = principals.oneByType(Saml2Principal.class);
+		Saml2AuthorizationPlan plan = getAuthorizationPlan(principal);
 
 		/*
 		 * create simple authorization info
@@ -155,38 +547,144 @@ public class Saml2Realm extends AuthorizingRealm {
 		SimpleAuthorizationInfo simpleAuthorizationInfo = new SimpleAuthorizationInfo();
 
 		/*
-		 * Add default roles
+		 * Add default roles and permissions
 		 */
-		addRoles(simpleAuthorizationInfo, split(defaultRoles));
+		addRoles(simpleAuthorizationInfo, plan.getDefaultRoles());
+		addPermissions(simpleAuthorizationInfo, plan.getDefaultPermissions());
 
-		/*
-		 * Add default permissions
-		 */
-		addPermissions(simpleAuthorizationInfo, split(defaultPermissions));
+		if (principal == null) {
+			metrics.record(Saml2Stage.AUTHORIZATION, start);
+			return simpleAuthorizationInfo;
+		}
 
 		/*
 		 * Get roles from attributes
 		 */
-		List<String> attributeNames = split(roleAttributeNames);
-
-		for (String attributeName : attributeNames) {
-			List<XMLObject> xmlValues = attributes.get(attributeName);
+		for (String attributeName : plan.getRoleAttributeNames()) {
 			addRoles(simpleAuthorizationInfo,
-					getStringValuesFromXMLObjects(xmlValues));
+					principal.getAttributeValues(attributeName));
 		}
 
 		/*
 		 * Get permissions from attributes
 		 */
-		attributeNames = split(permissionAttributeNames);
-		for (String attributeName : attributeNames) {
-			List<XMLObject> xmlValues = attributes.get(attributeName);
+		for (String attributeName : plan.getPermissionAttributeNames()) {
 			addPermissions(simpleAuthorizationInfo,
-					getStringValuesFromXMLObjects(xmlValues));
+					principal.getAttributeValues(attributeName));
 		}
+		metrics.record(Saml2Stage.AUTHORIZATION, start);
 		return simpleAuthorizationInfo;
 	}
 
+	/**
+	 * Creates the principal of an authenticated subject from the attributes of
+	 * all the attribute statements of all the assertions. Unless
+	 * {@link #isLazyAttributes()} is set, the values needed are copied from
+	 * the assertions so that the OpenSAML objects are not retained.
+	 * 
+	 * @param assertions
+	 *            the assertions of the response
+	 * @param nameId
+	 *            the NameID of the subject
+	 * @return the principal
+	 */
+	protected Saml2Principal createPrincipal(List<Assertion> assertions,
+			String nameId) {
+		String issuer = null;
+		String sessionIndex = null;
+		for (Assertion assertion : assertions) {
+			if (issuer == null && assertion.getIssuer() != null) {
+				issuer = assertion.getIssuer().getValue();
+			}
+			for (AuthnStatement authnStatement : assertion
+					.getAuthnStatements()) {
+				if (sessionIndex == null) {
+					sessionIndex = authnStatement.getSessionIndex();
+				}
+			}
+		}
+
+		if (lazyAttributes) {
+			Saml2LazyAttributes attributes = new Saml2LazyAttributes();
+			for (Assertion assertion : assertions) {
+				for (AttributeStatement statement : assertion
+						.getAttributeStatements()) {
+					attributes.add(statement);
+				}
+			}
+			return new Saml2Principal(nameId, issuer, sessionIndex, attributes);
+		}
+
+		Map<String, List<String>> values = new HashMap<String, List<String>>();
+		for (Assertion assertion : assertions) {
+			for (AttributeStatement statement : assertion
+					.getAttributeStatements()) {
+				for (Attribute attribute : statement.getAttributes()) {
+					List<String> attributeValues = getStringValuesFromXMLObjects(attribute
+							.getAttributeValues());
+					List<String> knownValues = values.get(attribute.getName());
+					if (knownValues != null) {
+						knownValues.addAll(attributeValues);
+					} else {
+						values.put(attribute.getName(), attributeValues);
+					}
+				}
+			}
+		}
+		return new Saml2Principal(nameId, issuer, sessionIndex, values);
+	}
+
+	/**
+	 * Gets the time after which the assertion is no longer accepted, which is
+	 * the NotOnOrAfter of its conditions or, if earlier, the latest
+	 * NotOnOrAfter of its bearer subject confirmations, any of which may
+	 * confirm it. Assertions without expiration, or already expired, are
+	 * remembered for {@link #getReplayTimeToLive()}.
+	 * 
+	 * @param assertion
+	 *            the assertion
+	 * @return the expiration time in milliseconds
+	 */
+	protected long getExpiration(Assertion assertion) {
+		long expiration = Long.MAX_VALUE;
+		Conditions conditions = assertion.getConditions();
+		if (conditions != null && conditions.getNotOnOrAfter() != null) {
+			expiration = conditions.getNotOnOrAfter().getMillis();
+		}
+		Subject subject = assertion.getSubject();
+		if (subject != null) {
+			long latest = Long.MIN_VALUE;
+			for (SubjectConfirmation confirmation : subject
+					.getSubjectConfirmations()) {
+				if (!SubjectConfirmation.METHOD_BEARER.equals(confirmation
+						.getMethod())) {
+					continue;
+				}
+				SubjectConfirmationData data = confirmation
+						.getSubjectConfirmationData();
+				latest = Math.max(latest, data != null
+						&& data.getNotOnOrAfter() != null ? data
+						.getNotOnOrAfter().getMillis() : Long.MAX_VALUE);
+			}
+			if (latest != Long.MIN_VALUE) {
+				expiration = Math.min(expiration, latest);
+			}
+		}
+		return getExpiration(expiration);
+	}
+
+	/*
+	 * Falls back to the replay time to live for assertions without
+	 * expiration, or already expired
+	 */
+	private long getExpiration(long expiration) {
+		long now = System.currentTimeMillis();
+		if (expiration == Long.MAX_VALUE || expiration <= now) {
+			return now + replayTimeToLive;
+		}
+		return expiration;
+	}
+
 	/**
 	 * Gets the XML values from a list of XML objects as String values
 	 * 
@@ -198,34 +696,24 @@ public class Saml2Realm extends AuthorizingRealm {
 			List<XMLObject> xmlObjs) {
 		List<String> strings = new ArrayList<String>();
 		for (XMLObject xmlObj : xmlObjs) {
-			if (xmlObj instanceof XSString) {
-				strings.add(((XSString) xmlObj).getValue());
-			} else if (xmlObj instanceof XSAny) {
-				strings.add(((XSAny) xmlObj).getTextContent());
+			String value = getStringValueFromXMLObject(xmlObj);
+			if (value != null) {
+				strings.add(value);
 			}
 		}
 		return strings;
 	}
 
 	/**
-	 * Splits a string into a list of non-empty and trimmed strings, delimited
-	 * with commas
+	 * Gets the value of an XML object as a String value
 	 * 
-	 * @param s
-	 *            the input string
-	 * @return the list of not empty and trimmed strings
-	 */
-	private List<String> split(String s) {
-		List<String> list = new ArrayList<String>();
-		String[] elements = StringUtils.split(s, ',');
-		if (elements != null && elements.length > 0) {
-			for (String element : elements) {
-				if (StringUtils.hasText(element)) {
-					list.add(element.trim());
-				}
-			}
-		}
-		return list;
+	 * @param xmlObj
+	 *            XML object
+	 * @return XML value as String, or <code>null</code> if the object is
+	 *         neither a string nor an any type
+	 */
+	protected static String getStringValueFromXMLObject(XMLObject xmlObj) {
+		return Saml2LazyAttributes.getStringValue(xmlObj);
 	}
 
 	/**
@@ -243,7 +731,8 @@ public class Saml2Realm extends AuthorizingRealm {
 	}
 
 	/**
-	 * Add permissions to the simple authorization info.
+	 * Add permissions to the simple authorization info, as the shared
+	 * permissions of the {@link #getPermissionPool()} if there is one.
 	 * 
 	 * @param simpleAuthorizationInfo
 	 * @param permissions
@@ -252,9 +741,63 @@ public class Saml2Realm extends AuthorizingRealm {
 	protected void addPermissions(
 			SimpleAuthorizationInfo simpleAuthorizationInfo,
 			List<String> permissions) {
-		for (String permission : permissions) {
-			simpleAuthorizationInfo.addStringPermission(permission);
+		Saml2PermissionPool pool = permissionPool;
+		if (pool == null) {
+			for (String permission : permissions) {
+				simpleAuthorizationInfo.addStringPermission(permission);
+			}
+			return;
+		}
+		for (int i = 0; i < permissions.size(); i++) {
+			simpleAuthorizationInfo.addObjectPermission(pool.get(permissions
+					.get(i)));
+		}
+	}
+
+	/**
+	 * Resolves the permission string through the {@link #getPermissionPool()}
+	 * if there is one, rather than parsing it on every check.
+	 */
+	@Override
+	public boolean isPermitted(PrincipalCollection principals,
+			String permission) {
+		Saml2PermissionPool pool = permissionPool;
+		if (pool == null) {
+			return super.isPermitted(principals, permission);
 		}
+		return isPermitted(principals, pool.get(permission));
+	}
+
+	/*
+	 * Must be called with the realm lock held so that concurrent setters do
+	 * not publish a plan missing one of the changes
+	 */
+	private void compileAuthorizationPlan() {
+		authorizationPlan = Saml2AuthorizationPlan.compile(defaultRoles,
+				defaultPermissions, roleAttributeNames,
+				permissionAttributeNames);
+	}
+
+	/*
+	 * Gets the plan of the IdP of the principal if it overrides the
+	 * configuration of the realm
+	 */
+	private Saml2AuthorizationPlan getAuthorizationPlan(Saml2Principal principal) {
+		Saml2IdentityProviderRegistry registry = identityProviderRegistry;
+		if (registry != null && principal != null) {
+			Saml2IdentityProvider provider = registry.get(principal.getIssuer());
+			if (provider != null && provider.getAuthorizationPlan() != null) {
+				return provider.getAuthorizationPlan();
+			}
+		}
+		return authorizationPlan;
+	}
+
+	/**
+	 * @return the compiled authorization configuration
+	 */
+	public Saml2AuthorizationPlan getAuthorizationPlan() {
+		return authorizationPlan;
 	}
 
 	public String getRememberMeAttributeName() {
@@ -273,44 +816,312 @@ public class Saml2Realm extends AuthorizingRealm {
 		this.identityProviderUrlPrefix = identityProviderUrlPrefix;
 	}
 
+	public Saml2IdentityProviderRegistry getIdentityProviderRegistry() {
+		return identityProviderRegistry;
+	}
+
+	/**
+	 * Restricts authentication to the IdPs of a registry. Responses are
+	 * verified with the signing keys of their issuer, or with the signature
+	 * verifier of the realm for IdPs whose metadata has none, and the users of
+	 * an IdP with its own authorization configuration get their roles and
+	 * permissions from it. The responses of an IdP without signing key are
+	 * rejected when the realm has no signature verifier, unless
+	 * {@link #setAllowUnsignedIdentityProviders(boolean)} is set. The fast
+	 * path is not used with a registry.
+	 * 
+	 * @param identityProviderRegistry
+	 *            the trusted IdPs
+	 */
+	public void setIdentityProviderRegistry(
+			Saml2IdentityProviderRegistry identityProviderRegistry) {
+		this.identityProviderRegistry = identityProviderRegistry;
+	}
+
+	public boolean isAllowUnsignedIdentityProviders() {
+		return allowUnsignedIdentityProviders;
+	}
+
+	/**
+	 * @param allowUnsignedIdentityProviders
+	 *            <code>true</code> to accept unverified the responses of the
+	 *            registered IdPs whose metadata has no signing key, when the
+	 *            realm has no signature verifier either, as for tests
+	 */
+	public void setAllowUnsignedIdentityProviders(
+			boolean allowUnsignedIdentityProviders) {
+		this.allowUnsignedIdentityProviders = allowUnsignedIdentityProviders;
+	}
+
 	public String getServiceProviderConsumerUrl() {
 		return serviceProviderConsumerUrl;
 	}
 
+	/**
+	 * @param serviceProviderConsumerUrl
+	 *            the URL the IdP posts responses to, also accepted as
+	 *            audience and recipient unless the assertion validator is
+	 *            given its own
+	 */
 	public void setServiceProviderConsumerUrl(String serviceProviderConsumerUrl) {
 		this.serviceProviderConsumerUrl = serviceProviderConsumerUrl;
+		assertionValidator.setServiceProviderUrl(serviceProviderConsumerUrl);
+	}
+
+	public Saml2AssertionValidator getAssertionValidator() {
+		return assertionValidator;
+	}
+
+	public void setAssertionValidator(Saml2AssertionValidator assertionValidator) {
+		if (serviceProviderConsumerUrl != null) {
+			assertionValidator.setServiceProviderUrl(serviceProviderConsumerUrl);
+		}
+		this.assertionValidator = assertionValidator;
 	}
 
 	public String getDefaultRoles() {
 		return defaultRoles;
 	}
 
-	public void setDefaultRoles(String defaultRoles) {
+	public synchronized void setDefaultRoles(String defaultRoles) {
 		this.defaultRoles = defaultRoles;
+		compileAuthorizationPlan();
 	}
 
 	public String getDefaultPermissions() {
 		return defaultPermissions;
 	}
 
-	public void setDefaultPermissions(String defaultPermissions) {
+	public synchronized void setDefaultPermissions(String defaultPermissions) {
 		this.defaultPermissions = defaultPermissions;
+		compileAuthorizationPlan();
 	}
 
 	public String getRoleAttributeNames() {
 		return roleAttributeNames;
 	}
 
-	public void setRoleAttributeNames(String roleAttributeNames) {
+	public synchronized void setRoleAttributeNames(String roleAttributeNames) {
 		this.roleAttributeNames = roleAttributeNames;
+		compileAuthorizationPlan();
 	}
 
 	public String getPermissionAttributeNames() {
 		return permissionAttributeNames;
 	}
 
-	public void setPermissionAttributeNames(String permissionAttributeNames) {
+	public synchronized void setPermissionAttributeNames(String permissionAttributeNames) {
 		this.permissionAttributeNames = permissionAttributeNames;
+		compileAuthorizationPlan();
+	}
+
+	public Saml2ParserPool getParserPool() {
+		return parserPool;
+	}
+
+	public void setParserPool(Saml2ParserPool parserPool) {
+		this.parserPool = parserPool;
+	}
+
+	public Saml2SignatureVerifier getSignatureVerifier() {
+		return signatureVerifier;
+	}
+
+	public void setSignatureVerifier(Saml2SignatureVerifier signatureVerifier) {
+		this.signatureVerifier = signatureVerifier;
+	}
+
+	public Saml2AssertionDecrypter getAssertionDecrypter() {
+		return assertionDecrypter;
+	}
+
+	/**
+	 * Accepts encrypted assertions, decrypted with the SP private key of the
+	 * decrypter. The fast path is not used with a decrypter.
+	 * 
+	 * @param assertionDecrypter
+	 *            the decrypter of the encrypted assertions
+	 */
+	public void setAssertionDecrypter(Saml2AssertionDecrypter assertionDecrypter) {
+		this.assertionDecrypter = assertionDecrypter;
+	}
+
+	public Saml2PermissionPool getPermissionPool() {
+		return permissionPool;
+	}
+
+	/**
+	 * @param permissionPool
+	 *            the pool of shared permissions, which replace the string
+	 *            permissions of the authorization info, null to add the
+	 *            permissions as strings
+	 */
+	public void setPermissionPool(Saml2PermissionPool permissionPool) {
+		this.permissionPool = permissionPool;
+	}
+
+	public Saml2AssertionIdStore getAssertionIdStore() {
+		return assertionIdStore;
+	}
+
+	/**
+	 * @param assertionIdStore
+	 *            the IDs of the assertions already consumed, a
+	 *            {@link Saml2MappedAssertionIdStore} to detect replays across
+	 *            the processes of a host, null to disable replay detection
+	 */
+	public void setAssertionIdStore(Saml2AssertionIdStore assertionIdStore) {
+		this.assertionIdStore = assertionIdStore;
+	}
+
+	/**
+	 * @return the in-heap assertion ID store, null if another store is used
+	 */
+	public Saml2ReplayCache getReplayCache() {
+		if (assertionIdStore instanceof Saml2ReplayCache) {
+			return (Saml2ReplayCache) assertionIdStore;
+		}
+		return null;
+	}
+
+	/**
+	 * Same as {@link #setAssertionIdStore(Saml2AssertionIdStore)}, kept for
+	 * existing configurations.
+	 * 
+	 * @param replayCache
+	 *            the in-heap assertion ID store
+	 */
+	public void setReplayCache(Saml2ReplayCache replayCache) {
+		this.assertionIdStore = replayCache;
+	}
+
+	public long getReplayTimeToLive() {
+		return replayTimeToLive;
+	}
+
+	public void setReplayTimeToLive(long replayTimeToLive) {
+		this.replayTimeToLive = replayTimeToLive;
+	}
+
+	public boolean isMetricsEnabled() {
+		return Saml2Metrics.getInstance().isEnabled();
+	}
+
+	/**
+	 * Enables the metrics of the SAML2 login path, shared by every realm and
+	 * filter, and publishes them over JMX.
+	 * 
+	 * @param metricsEnabled
+	 *            <code>true</code> to enable the metrics
+	 */
+	public void setMetricsEnabled(boolean metricsEnabled) {
+		if (metricsEnabled) {
+			Saml2Metrics.getInstance().enableAndRegister();
+		} else {
+			Saml2Metrics.getInstance().setEnabled(false);
+		}
+	}
+
+	public boolean isBootstrapOnInit() {
+		return bootstrapOnInit;
+	}
+
+	public void setBootstrapOnInit(boolean bootstrapOnInit) {
+		this.bootstrapOnInit = bootstrapOnInit;
+	}
+
+	public boolean isBootstrapInBackground() {
+		return bootstrapInBackground;
+	}
+
+	public void setBootstrapInBackground(boolean bootstrapInBackground) {
+		this.bootstrapInBackground = bootstrapInBackground;
+	}
+
+	public boolean isLazyAttributes() {
+		return lazyAttributes;
+	}
+
+	/**
+	 * Converts the attribute values to strings only when a role, permission
+	 * or application lookup asks for them, which makes large aggregated
+	 * responses cost no more than the attributes actually used. The
+	 * principals then retain the OpenSAML attributes, and the DOM of the
+	 * response, until all attributes are converted or the principals are
+	 * serialized.
+	 * 
+	 * @param lazyAttributes
+	 *            <code>true</code> to convert the attributes lazily
+	 */
+	public void setLazyAttributes(boolean lazyAttributes) {
+		this.lazyAttributes = lazyAttributes;
+	}
+
+	public boolean isFastPath() {
+		return fastPath;
+	}
+
+	/**
+	 * Reads the responses with a {@link Saml2StaxExtractor} rather than
+	 * unmarshalling them, extracting only the attributes holding roles and
+	 * permissions. Ignored when a signature verifier, an identity provider
+	 * registry or an assertion decrypter is set, as signatures are verified
+	 * and assertions decrypted on the OpenSAML objects, and for artifacts,
+	 * which resolve into OpenSAML objects.
+	 * 
+	 * @param fastPath
+	 *            <code>true</code> to enable the fast path
+	 */
+	public void setFastPath(boolean fastPath) {
+		this.fastPath = fastPath;
+	}
+
+	public Saml2ArtifactResolver getArtifactResolver() {
+		return artifactResolver;
+	}
+
+	/**
+	 * @param artifactResolver
+	 *            the resolver of the artifacts of the HTTP-Artifact binding,
+	 *            <code>null</code> to reject artifacts
+	 */
+	public void setArtifactResolver(Saml2ArtifactResolver artifactResolver) {
+		this.artifactResolver = artifactResolver;
+	}
+
+	public Saml2OutstandingRequests getOutstandingRequests() {
+		return outstandingRequests;
+	}
+
+	/**
+	 * Only accepts the solicited responses answering a request recorded by
+	 * the {@link Saml2AuthnRequestGenerator} sharing these outstanding
+	 * requests, each request being answered once. Whether unsolicited
+	 * responses are accepted is up to
+	 * {@link Saml2AssertionValidator#isRequireInResponseTo()}.
+	 * 
+	 * @param outstandingRequests
+	 *            the requests sent to the IdP, <code>null</code> to accept
+	 *            any InResponseTo
+	 */
+	public void setOutstandingRequests(
+			Saml2OutstandingRequests outstandingRequests) {
+		this.outstandingRequests = outstandingRequests;
+	}
+
+	public int getMaxInflatedSize() {
+		return maxInflatedSize;
+	}
+
+	/**
+	 * Caps the size of the responses received over the HTTP-Redirect binding
+	 * once inflated, the read failing as soon as the cap is exceeded.
+	 * 
+	 * @param maxInflatedSize
+	 *            the maximum size in bytes, 0 or less for no limit
+	 */
+	public void setMaxInflatedSize(int maxInflatedSize) {
+		this.maxInflatedSize = maxInflatedSize;
 	}
 
 }
@@ -0,0 +1,316 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.opensaml.xml.util.Base64;
+
+/**
+ * Decoding of the SAML2 responses received over the HTTP-Redirect binding,
+ * which are DEFLATE compressed before being Base64 encoded.
+ * <p>
+ * The response is decoded, inflated and parsed as a single stream, so neither
+ * the compressed nor the inflated response is ever held in a byte array. The
+ * inflated size is capped, as a few kilobytes of query string can inflate to
+ * several megabytes of XML. Each thread keeps its {@link Inflater} between
+ * responses rather than allocating the native inflater state every time,
+ * and likewise a {@link Deflater} to encode the messages it sends.
+ */
+public final class Saml2RedirectBinding {
+
+	/*
+	 * Default maximum size of an inflated response, in bytes
+	 */
+	public static final int DEFAULT_MAX_INFLATED_SIZE = 1024 * 1024;
+
+	private static final int INFLATER_BUFFER_SIZE = 2048;
+
+	private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+			.toCharArray();
+
+	/*
+	 * Deflater and buffers of the current thread
+	 */
+	private static final ThreadLocal<Encoder> ENCODERS = new ThreadLocal<Encoder>() {
+		@Override
+		protected Encoder initialValue() {
+			return new Encoder();
+		}
+	};
+
+	/*
+	 * Inflater of the current thread, taken while a response is being read
+	 */
+	private static final ThreadLocal<Inflater> INFLATERS = new ThreadLocal<Inflater>();
+
+	private Saml2RedirectBinding() {
+		// Disabling initialization
+	}
+
+	/**
+	 * Opens the XML stream of a response received over the HTTP-Redirect
+	 * binding. The stream must be closed once read for its inflater to be
+	 * reused.
+	 * 
+	 * @param token
+	 *            the Base64 encoded and DEFLATE compressed response, already
+	 *            URL decoded
+	 * @param maxInflatedSize
+	 *            the maximum size of the inflated response in bytes, 0 or
+	 *            less for no limit
+	 * @return the stream of the inflated response
+	 */
+	public static InputStream inflate(String token, int maxInflatedSize) {
+		Inflater inflater = INFLATERS.get();
+		if (inflater == null) {
+			inflater = new Inflater(true);
+		} else {
+			INFLATERS.remove();
+		}
+		return new InflatedStream(new InflaterInputStream(new Base64.InputStream(
+				new AsciiInputStream(token), Base64.DECODE), inflater,
+				INFLATER_BUFFER_SIZE), inflater, maxInflatedSize);
+	}
+
+	/**
+	 * Encodes a message sent over the HTTP-Redirect binding: deflates it,
+	 * then writes its Base64 encoding with the characters which are not URL
+	 * safe already escaped, using a deflater and buffers kept by the current
+	 * thread.
+	 * 
+	 * @param xml
+	 *            the buffer holding the UTF-8 encoded message
+	 * @param length
+	 *            the length of the message in the buffer
+	 * @return the value of the SAMLRequest or SAMLResponse parameter
+	 */
+	public static String encode(byte[] xml, int length) {
+		return ENCODERS.get().encode(xml, length);
+	}
+
+	/*
+	 * Caps the inflated size, and gives the inflater back to its thread once
+	 * closed
+	 */
+	private static final class InflatedStream extends FilterInputStream {
+
+		private final Inflater inflater;
+
+		private final int maxSize;
+
+		private long size = 0;
+
+		private boolean closed = false;
+
+		InflatedStream(InputStream in, Inflater inflater, int maxSize) {
+			super(in);
+			this.inflater = inflater;
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				count(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				count(n);
+			}
+			return n;
+		}
+
+		private void count(int n) throws IOException {
+			size += n;
+			if (maxSize > 0 && size > maxSize) {
+				throw new IOException(
+						"The inflated SAML2 response exceeds " + maxSize
+								+ " bytes");
+			}
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count((int) skipped);
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				super.close();
+			} finally {
+				/*
+				 * The inflater input stream does not end an inflater it was
+				 * given
+				 */
+				if (INFLATERS.get() == null) {
+					inflater.reset();
+					INFLATERS.set(inflater);
+				} else {
+					inflater.end();
+				}
+			}
+		}
+	}
+
+	/*
+	 * Reads the characters of a Base64 string as bytes, without copying them
+	 */
+	private static final class AsciiInputStream extends InputStream {
+
+		private final String s;
+
+		private int position = 0;
+
+		AsciiInputStream(String s) {
+			this.s = s;
+		}
+
+		@Override
+		public int read() {
+			return position < s.length() ? s.charAt(position++) & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			int remaining = s.length() - position;
+			if (remaining <= 0) {
+				return -1;
+			}
+			int n = Math.min(len, remaining);
+			for (int i = 0; i < n; i++) {
+				b[off + i] = (byte) s.charAt(position++);
+			}
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return s.length() - position;
+		}
+	}
+
+	/*
+	 * Deflater and buffers reused by the messages of a thread
+	 */
+	private static final class Encoder {
+
+		private final Deflater deflater = new Deflater(
+				Deflater.DEFAULT_COMPRESSION, true);
+
+		private byte[] deflated = new byte[1024];
+
+		private char[] encoded = new char[2048];
+
+		String encode(byte[] input, int length) {
+			deflater.reset();
+			deflater.setInput(input, 0, length);
+			deflater.finish();
+			int deflatedLength = 0;
+			while (!deflater.finished()) {
+				if (deflatedLength == deflated.length) {
+					byte[] larger = new byte[deflated.length * 2];
+					System.arraycopy(deflated, 0, larger, 0, deflatedLength);
+					deflated = larger;
+				}
+				deflatedLength += deflater.deflate(deflated, deflatedLength,
+						deflated.length - deflatedLength);
+			}
+
+			/*
+			 * Base64, with '+', '/' and '=' URL encoded as they are written
+			 */
+			int maxLength = (deflatedLength + 2) / 3 * 12;
+			if (encoded.length < maxLength) {
+				encoded = new char[maxLength];
+			}
+			int n = 0;
+			int i = 0;
+			for (; i + 2 < deflatedLength; i += 3) {
+				int bits = (deflated[i] & 0xff) << 16
+						| (deflated[i + 1] & 0xff) << 8
+						| (deflated[i + 2] & 0xff);
+				n = put(BASE64[bits >>> 18], n);
+				n = put(BASE64[(bits >>> 12) & 0x3f], n);
+				n = put(BASE64[(bits >>> 6) & 0x3f], n);
+				n = put(BASE64[bits & 0x3f], n);
+			}
+			int remaining = deflatedLength - i;
+			if (remaining > 0) {
+				int bits = (deflated[i] & 0xff) << 16;
+				if (remaining == 2) {
+					bits |= (deflated[i + 1] & 0xff) << 8;
+				}
+				n = put(BASE64[bits >>> 18], n);
+				n = put(BASE64[(bits >>> 12) & 0x3f], n);
+				n = remaining == 2 ? put(BASE64[(bits >>> 6) & 0x3f], n) : put(
+						'=', n);
+				n = put('=', n);
+			}
+			return new String(encoded, 0, n);
+		}
+
+		private int put(char c, int n) {
+			switch (c) {
+			case '+':
+				return escape('2', 'B', n);
+			case '/':
+				return escape('2', 'F', n);
+			case '=':
+				return escape('3', 'D', n);
+			default:
+				encoded[n] = c;
+				return n + 1;
+			}
+		}
+
+		private int escape(char high, char low, int n) {
+			encoded[n] = '%';
+			encoded[n + 1] = high;
+			encoded[n + 2] = low;
+			return n + 3;
+		}
+	}
+}
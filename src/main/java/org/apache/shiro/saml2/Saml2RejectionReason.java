@@ -0,0 +1,55 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+/**
+ * The reasons why {@link Saml2AdmissionControl} turns a login away before
+ * the SAML2 response is processed, with the HTTP status answered to the
+ * client.
+ */
+public enum Saml2RejectionReason {
+
+	/*
+	 * The encoded SAML2 response exceeds the maximum payload size
+	 */
+	PAYLOAD_TOO_LARGE(413),
+
+	/*
+	 * Too many logins are already in progress
+	 */
+	CONCURRENCY_LIMIT(503),
+
+	/*
+	 * The client exceeded its login rate
+	 */
+	RATE_LIMIT(429);
+
+	private final int status;
+
+	private Saml2RejectionReason(int status) {
+		this.status = status;
+	}
+
+	/**
+	 * @return the HTTP status answered to the rejected client
+	 */
+	public int getStatus() {
+		return status;
+	}
+}
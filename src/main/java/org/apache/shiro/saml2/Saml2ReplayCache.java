@@ -0,0 +1,254 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the IDs of the assertions already consumed until they expire, so
+ * that a captured SAML2 response cannot be posted again.
+ * <p>
+ * The cache is split into independently locked segments selected by the hash
+ * of the assertion ID, so concurrent logins rarely contend on the same lock.
+ * Each segment holds at most its share of {@link #getMaxSize()} entries:
+ * expired entries are purged as new ones are added, and when a segment is
+ * still full the oldest entry is evicted. Evictions weaken the replay
+ * protection and should stay at zero, a growing eviction count means the
+ * cache is undersized for the login rate.
+ * <p>
+ * This is the in-heap {@link Saml2AssertionIdStore}, it only detects replays
+ * against the JVM it runs in.
+ */
+public class Saml2ReplayCache implements Saml2AssertionIdStore {
+
+	/*
+	 * Default maximum number of assertion IDs remembered
+	 */
+	public static final int DEFAULT_MAX_SIZE = 100000;
+
+	/*
+	 * Default number of independently locked segments
+	 */
+	public static final int DEFAULT_CONCURRENCY_LEVEL = 64;
+
+	private final Segment[] segments;
+
+	private final int segmentMask;
+
+	private final int maxSize;
+
+	public Saml2ReplayCache() {
+		this(DEFAULT_MAX_SIZE, DEFAULT_CONCURRENCY_LEVEL);
+	}
+
+	/**
+	 * @param maxSize
+	 *            the maximum number of assertion IDs remembered
+	 * @param concurrencyLevel
+	 *            the expected number of concurrent logins, rounded up to a
+	 *            power of two to give the number of segments
+	 */
+	public Saml2ReplayCache(int maxSize, int concurrencyLevel) {
+		if (maxSize <= 0 || concurrencyLevel <= 0) {
+			throw new IllegalArgumentException(
+					"The maximum size and concurrency level must be positive");
+		}
+		int segmentCount = 1;
+		while (segmentCount < concurrencyLevel && segmentCount < maxSize) {
+			segmentCount <<= 1;
+		}
+		int segmentCapacity = (maxSize + segmentCount - 1) / segmentCount;
+
+		this.segments = new Segment[segmentCount];
+		this.segmentMask = segmentCount - 1;
+		this.maxSize = segmentCapacity * segmentCount;
+		for (int i = 0; i < segmentCount; i++) {
+			segments[i] = new Segment(segmentCapacity);
+		}
+	}
+
+	/**
+	 * Records an assertion ID unless it is already known and not expired.
+	 * 
+	 * @param assertionId
+	 *            the ID of the assertion being consumed
+	 * @param expiresAt
+	 *            the time in milliseconds after which the assertion is no
+	 *            longer accepted and its ID can be forgotten
+	 * @return <code>true</code> if the ID was not known, <code>false</code>
+	 *         if the assertion is being replayed
+	 */
+	public boolean add(String assertionId, long expiresAt) {
+		long now = System.currentTimeMillis();
+		Segment segment = segmentFor(assertionId);
+		synchronized (segment) {
+			segment.purgeExpired(now);
+			Long knownExpiration = segment.get(assertionId);
+			if (knownExpiration != null && knownExpiration.longValue() > now) {
+				segment.hitCount++;
+				return false;
+			}
+			segment.put(assertionId, Long.valueOf(expiresAt));
+			segment.missCount++;
+			return true;
+		}
+	}
+
+	/**
+	 * @param assertionId
+	 *            an assertion ID
+	 * @return <code>true</code> if the ID is known and not expired
+	 */
+	public boolean contains(String assertionId) {
+		long now = System.currentTimeMillis();
+		Segment segment = segmentFor(assertionId);
+		synchronized (segment) {
+			Long knownExpiration = segment.get(assertionId);
+			return knownExpiration != null && knownExpiration.longValue() > now;
+		}
+	}
+
+	private Segment segmentFor(String assertionId) {
+		int h = assertionId.hashCode();
+		h ^= (h >>> 16);
+		return segments[h & segmentMask];
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return the number of assertion IDs currently remembered, including
+	 *         expired ones not purged yet
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return the number of replayed assertions detected
+	 */
+	public long getHitCount() {
+		long count = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				count += segment.hitCount;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of assertion IDs seen for the first time
+	 */
+	public long getMissCount() {
+		long count = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				count += segment.missCount;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of unexpired assertion IDs dropped because the cache
+	 *         was full
+	 */
+	public long getEvictionCount() {
+		long count = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				count += segment.evictionCount;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of assertion IDs purged after their expiration
+	 */
+	public long getExpirationCount() {
+		long count = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				count += segment.expirationCount;
+			}
+		}
+		return count;
+	}
+
+	/*
+	 * Insertion ordered map of assertion IDs to their expiration, only
+	 * accessed while holding its monitor
+	 */
+	private static final class Segment extends LinkedHashMap<String, Long> {
+
+		private static final long serialVersionUID = 4061462787432858406L;
+
+		private final int capacity;
+
+		private long hitCount;
+
+		private long missCount;
+
+		private long evictionCount;
+
+		private long expirationCount;
+
+		Segment(int capacity) {
+			super(16, 0.75f, false);
+			this.capacity = capacity;
+		}
+
+		/*
+		 * Removes the expired entries at the head of the segment. Assertions
+		 * are added roughly in expiration order so this keeps the segment
+		 * mostly free of expired entries at an amortized constant cost.
+		 */
+		void purgeExpired(long now) {
+			Iterator<Long> expirations = values().iterator();
+			while (expirations.hasNext()) {
+				if (expirations.next().longValue() > now) {
+					return;
+				}
+				expirations.remove();
+				expirationCount++;
+			}
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			if (size() > capacity) {
+				evictionCount++;
+				return true;
+			}
+			return false;
+		}
+	}
+}
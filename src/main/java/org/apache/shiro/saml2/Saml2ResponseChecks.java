@@ -0,0 +1,240 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+import java.util.List;
+
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.saml2.core.Subject;
+import org.opensaml.saml2.core.SubjectConfirmation;
+import org.opensaml.saml2.core.SubjectConfirmationData;
+
+/**
+ * Checks of a SAML2 response and of its assertions shared by
+ * {@link Saml2Realm} and {@link Saml2BatchValidator}, so that a response is
+ * accepted offline exactly when it would be in production. Each check throws
+ * a {@link Saml2AuthenticationException} describing why the response is
+ * rejected.
+ */
+final class Saml2ResponseChecks {
+
+	private Saml2ResponseChecks() {
+		// Disabling initialization
+	}
+
+	/**
+	 * @param response
+	 *            the response
+	 * @return the issuer of the response, or of its first assertion if it
+	 *         states none
+	 */
+	static String getIssuer(Response response) {
+		if (response.getIssuer() != null) {
+			return response.getIssuer().getValue();
+		}
+		if (!response.getAssertions().isEmpty()
+				&& response.getAssertions().get(0).getIssuer() != null) {
+			return response.getAssertions().get(0).getIssuer().getValue();
+		}
+		return null;
+	}
+
+	/**
+	 * @param registry
+	 *            the trusted IdPs
+	 * @param response
+	 *            the response
+	 * @return the registered IdP which issued the response
+	 */
+	static Saml2IdentityProvider getIdentityProvider(
+			Saml2IdentityProviderRegistry registry, Response response) {
+		String issuer = getIssuer(response);
+		Saml2IdentityProvider provider = registry.get(issuer);
+		if (provider == null) {
+			throw new Saml2AuthenticationException("Unknown identity provider "
+					+ issuer);
+		}
+		return provider;
+	}
+
+	/**
+	 * @param provider
+	 *            the registered IdP which issued the response
+	 * @param verifier
+	 *            the verifier used for IdPs without signing key, or
+	 *            <code>null</code>
+	 * @param allowUnsigned
+	 *            whether an IdP without signing key is accepted unverified
+	 *            when there is no such verifier
+	 * @return the verifier of the signatures of the IdP, <code>null</code>
+	 *         if they are not verified
+	 */
+	static Saml2SignatureVerifier getSignatureVerifier(
+			Saml2IdentityProvider provider, Saml2SignatureVerifier verifier,
+			boolean allowUnsigned) {
+		if (provider.getSignatureVerifier() != null) {
+			return provider.getSignatureVerifier();
+		}
+		if (verifier == null && !allowUnsigned) {
+			throw new Saml2AuthenticationException(
+					"No signing key for the identity provider " + provider);
+		}
+		return verifier;
+	}
+
+	/**
+	 * Checks that all the assertions are issued by the IdP whose key verified
+	 * them if known, or else by the issuer of the response.
+	 *
+	 * @param assertions
+	 *            the assertions of the response
+	 * @param provider
+	 *            the registered IdP which issued the response, or
+	 *            <code>null</code>
+	 * @param response
+	 *            the response
+	 * @return the issuer of the assertions
+	 */
+	static String checkIssuers(List<Assertion> assertions,
+			Saml2IdentityProvider provider, Response response) {
+		String issuer = provider != null ? provider.getEntityId() : response
+				.getIssuer() != null ? response.getIssuer().getValue() : null;
+		for (Assertion assertion : assertions) {
+			issuer = checkIssuer(issuer,
+					assertion.getIssuer() != null ? assertion.getIssuer()
+							.getValue() : null, assertion.getID());
+		}
+		return issuer;
+	}
+
+	/**
+	 * Checks that an assertion has the issuer of the previous ones, or the
+	 * one expected if known.
+	 *
+	 * @param issuer
+	 *            the issuer expected, or <code>null</code>
+	 * @param assertionIssuer
+	 *            the issuer of the assertion
+	 * @param assertionId
+	 *            the ID of the assertion
+	 * @return the issuer of the assertion
+	 */
+	static String checkIssuer(String issuer, String assertionIssuer,
+			String assertionId) {
+		if (assertionIssuer == null) {
+			throw new Saml2AuthenticationException("Assertion " + assertionId
+					+ " has no issuer");
+		}
+		if (issuer != null && !issuer.equals(assertionIssuer)) {
+			throw new Saml2AuthenticationException("Assertion " + assertionId
+					+ " is issued by " + assertionIssuer + ", not by "
+					+ issuer);
+		}
+		return assertionIssuer;
+	}
+
+	/**
+	 * @param assertions
+	 *            the assertions of the response
+	 * @return the NameID of the subject of the assertions, which must all
+	 *         concern the same subject
+	 */
+	static String getNameId(List<Assertion> assertions) {
+		String nameId = null;
+		for (Assertion assertion : assertions) {
+			Subject subject = assertion.getSubject();
+			if (subject != null && subject.getNameID() != null) {
+				nameId = checkNameId(nameId, subject.getNameID().getValue());
+			}
+		}
+		if (nameId == null) {
+			throw new Saml2AuthenticationException("Assertion has no NameID");
+		}
+		return nameId;
+	}
+
+	/**
+	 * @param nameId
+	 *            the NameID of the previous assertions, or <code>null</code>
+	 * @param assertionNameId
+	 *            the NameID of the assertion, or <code>null</code>
+	 * @return the NameID of the assertions
+	 */
+	static String checkNameId(String nameId, String assertionNameId) {
+		if (nameId == null) {
+			return assertionNameId;
+		}
+		if (assertionNameId != null && !nameId.equals(assertionNameId)) {
+			throw new Saml2AuthenticationException(
+					"Assertions of the response concern different subjects");
+		}
+		return nameId;
+	}
+
+	/**
+	 * @param assertions
+	 *            the assertions of the response
+	 * @return the request answered by the bearer subject confirmations of the
+	 *         assertions, which must all answer the same one, or
+	 *         <code>null</code> if none states one
+	 */
+	static String getInResponseTo(List<Assertion> assertions) {
+		String inResponseTo = null;
+		for (Assertion assertion : assertions) {
+			Subject subject = assertion.getSubject();
+			if (subject == null) {
+				continue;
+			}
+			for (SubjectConfirmation confirmation : subject
+					.getSubjectConfirmations()) {
+				SubjectConfirmationData data = confirmation
+						.getSubjectConfirmationData();
+				if (SubjectConfirmation.METHOD_BEARER.equals(confirmation
+						.getMethod()) && data != null) {
+					inResponseTo = checkInResponseTo(inResponseTo,
+							data.getInResponseTo());
+				}
+			}
+		}
+		return inResponseTo;
+	}
+
+	/**
+	 * @param inResponseTo
+	 *            the request answered by the previous confirmations, or
+	 *            <code>null</code>
+	 * @param confirmationInResponseTo
+	 *            the request answered by the confirmation, or
+	 *            <code>null</code>
+	 * @return the request answered by the confirmations
+	 */
+	static String checkInResponseTo(String inResponseTo,
+			String confirmationInResponseTo) {
+		if (inResponseTo == null) {
+			return confirmationInResponseTo;
+		}
+		if (confirmationInResponseTo != null
+				&& !inResponseTo.equals(confirmationInResponseTo)) {
+			throw new Saml2AuthenticationException(
+					"Assertions of the response answer different requests");
+		}
+		return inResponseTo;
+	}
+}
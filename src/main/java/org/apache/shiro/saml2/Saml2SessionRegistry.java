@@ -0,0 +1,317 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.shiro.session.Session;
+import org.apache.shiro.session.SessionListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Index of the Shiro sessions by the SAML2 identity they were authenticated
+ * with, so that a LogoutRequest of the IdP finds the sessions to stop
+ * without going through the active sessions of the SessionDAO.
+ * <p>
+ * The sessions are indexed by issuer and NameID, along with the SessionIndex
+ * of the authentication statement, and the registry also maps each session
+ * to its registration. Logging out a session, all the sessions of a NameID,
+ * or removing a stopped or expired session, only touches the sessions of
+ * that NameID, whatever the number of sessions.
+ * <p>
+ * Sessions are registered by {@link Saml2Filter} on login, and removed when
+ * they stop or expire: the registry must be declared as a session listener
+ * of the native session manager, which is also needed to stop sessions by
+ * ID. The number of registered sessions is bounded; once full, new sessions
+ * are not registered and cannot be logged out by the IdP, which a growing
+ * overflow count reveals.
+ */
+public class Saml2SessionRegistry implements SessionListener {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(Saml2SessionRegistry.class);
+
+	/*
+	 * Default maximum number of registered sessions
+	 */
+	public static final int DEFAULT_MAX_SESSIONS = 500000;
+
+	private final ConcurrentHashMap<String, Identity> identities = new ConcurrentHashMap<String, Identity>();
+
+	private final ConcurrentHashMap<Serializable, Registration> registrations = new ConcurrentHashMap<Serializable, Registration>();
+
+	private final AtomicInteger sessionCount = new AtomicInteger();
+
+	private final AtomicLong overflowCount = new AtomicLong();
+
+	private volatile int maxSessions = DEFAULT_MAX_SESSIONS;
+
+	/**
+	 * Registers a session authenticated by the IdP, replacing its previous
+	 * registration if it is authenticated again.
+	 * 
+	 * @param principal
+	 *            the SAML2 principal of the session
+	 * @param sessionId
+	 *            the ID of the session
+	 * @return <code>true</code> if registered, <code>false</code> if the
+	 *         registry is full
+	 */
+	public boolean register(Saml2Principal principal, Serializable sessionId) {
+		if (sessionCount.get() >= maxSessions
+				&& !registrations.containsKey(sessionId)) {
+			overflowCount.incrementAndGet();
+			LOGGER.debug("Session registry full, session {} not registered",
+					sessionId);
+			return false;
+		}
+		String key = key(principal.getIssuer(), principal.getNameId());
+		Registration registration = new Registration(sessionId,
+				principal.getSessionIndex());
+		for (;;) {
+			Identity identity = identities.get(key);
+			if (identity == null) {
+				Identity created = new Identity(key);
+				identity = identities.putIfAbsent(key, created);
+				if (identity == null) {
+					identity = created;
+				}
+			}
+			synchronized (identity) {
+				/*
+				 * Emptied and removed by a concurrent logout
+				 */
+				if (identity.removed) {
+					continue;
+				}
+				registration.identity = identity;
+				identity.add(registration);
+			}
+			break;
+		}
+
+		Registration previous = registrations.put(sessionId, registration);
+		if (previous == null) {
+			sessionCount.incrementAndGet();
+		} else {
+			remove(previous);
+		}
+		return true;
+	}
+
+	/**
+	 * Removes the sessions of an identity from the registry, to stop them.
+	 * 
+	 * @param issuer
+	 *            the issuer of the identity
+	 * @param nameId
+	 *            the NameID of the identity
+	 * @param sessionIndexes
+	 *            the SessionIndexes of the sessions, empty for all the
+	 *            sessions of the identity
+	 * @return the IDs of the sessions removed
+	 */
+	public List<Serializable> unregister(String issuer, String nameId,
+			Collection<String> sessionIndexes) {
+		Identity identity = identities.get(key(issuer, nameId));
+		if (identity == null) {
+			return Collections.emptyList();
+		}
+		List<Registration> removed = new ArrayList<Registration>(2);
+		synchronized (identity) {
+			for (int i = identity.size - 1; i >= 0; i--) {
+				Registration registration = identity.registrations[i];
+				if (sessionIndexes.isEmpty()
+						|| (registration.sessionIndex != null && sessionIndexes
+								.contains(registration.sessionIndex))) {
+					identity.remove(i);
+					removed.add(registration);
+				}
+			}
+			removeIfEmpty(identity);
+		}
+
+		List<Serializable> sessionIds = new ArrayList<Serializable>(
+				removed.size());
+		for (Registration registration : removed) {
+			if (registrations.remove(registration.sessionId, registration)) {
+				sessionCount.decrementAndGet();
+			}
+			sessionIds.add(registration.sessionId);
+		}
+		return sessionIds;
+	}
+
+	/**
+	 * @param issuer
+	 *            the issuer of an identity
+	 * @param nameId
+	 *            the NameID of the identity
+	 * @return the IDs of the registered sessions of the identity
+	 */
+	public List<Serializable> getSessionIds(String issuer, String nameId) {
+		Identity identity = identities.get(key(issuer, nameId));
+		if (identity == null) {
+			return Collections.emptyList();
+		}
+		synchronized (identity) {
+			List<Serializable> sessionIds = new ArrayList<Serializable>(
+					identity.size);
+			for (int i = 0; i < identity.size; i++) {
+				sessionIds.add(identity.registrations[i].sessionId);
+			}
+			return sessionIds;
+		}
+	}
+
+	/**
+	 * Removes a session from the registry.
+	 * 
+	 * @param sessionId
+	 *            the ID of a stopped or expired session
+	 */
+	public void unregister(Serializable sessionId) {
+		Registration registration = registrations.remove(sessionId);
+		if (registration != null) {
+			sessionCount.decrementAndGet();
+			remove(registration);
+		}
+	}
+
+	private void remove(Registration registration) {
+		Identity identity = registration.identity;
+		synchronized (identity) {
+			for (int i = 0; i < identity.size; i++) {
+				if (identity.registrations[i] == registration) {
+					identity.remove(i);
+					break;
+				}
+			}
+			removeIfEmpty(identity);
+		}
+	}
+
+	/*
+	 * Called while holding the monitor of the identity
+	 */
+	private void removeIfEmpty(Identity identity) {
+		if (identity.size == 0 && !identity.removed) {
+			identity.removed = true;
+			identities.remove(identity.key, identity);
+		}
+	}
+
+	private static String key(String issuer, String nameId) {
+		/*
+		 * Neither entity IDs nor NameIDs contain line breaks
+		 */
+		return issuer == null ? nameId : issuer + '\n' + nameId;
+	}
+
+	public void onStart(Session session) {
+		// Registered on login
+	}
+
+	public void onStop(Session session) {
+		unregister(session.getId());
+	}
+
+	public void onExpiration(Session session) {
+		unregister(session.getId());
+	}
+
+	/**
+	 * @return the number of registered sessions
+	 */
+	public int getSessionCount() {
+		return sessionCount.get();
+	}
+
+	/**
+	 * @return the number of sessions not registered because the registry was
+	 *         full
+	 */
+	public long getOverflowCount() {
+		return overflowCount.get();
+	}
+
+	public int getMaxSessions() {
+		return maxSessions;
+	}
+
+	public void setMaxSessions(int maxSessions) {
+		this.maxSessions = maxSessions;
+	}
+
+	/*
+	 * Sessions of an issuer and NameID, in a small array as most identities
+	 * have a single session. Only accessed while holding its monitor.
+	 */
+	private static final class Identity {
+
+		private final String key;
+
+		private Registration[] registrations = new Registration[1];
+
+		private int size = 0;
+
+		private boolean removed = false;
+
+		Identity(String key) {
+			this.key = key;
+		}
+
+		void add(Registration registration) {
+			if (size == registrations.length) {
+				Registration[] larger = new Registration[size * 2];
+				System.arraycopy(registrations, 0, larger, 0, size);
+				registrations = larger;
+			}
+			registrations[size++] = registration;
+		}
+
+		void remove(int index) {
+			size--;
+			registrations[index] = registrations[size];
+			registrations[size] = null;
+		}
+	}
+
+	private static final class Registration {
+
+		private final Serializable sessionId;
+
+		private final String sessionIndex;
+
+		private Identity identity;
+
+		Registration(Serializable sessionId, String sessionIndex) {
+			this.sessionId = sessionId;
+			this.sessionIndex = sessionIndex;
+		}
+	}
+}
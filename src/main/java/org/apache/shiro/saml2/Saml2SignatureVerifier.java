@@ -0,0 +1,448 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.shiro.io.ResourceUtils;
+import org.apache.shiro.util.StringUtils;
+import org.opensaml.common.SignableSAMLObject;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.security.SAMLSignatureProfileValidator;
+import org.opensaml.xml.security.x509.BasicX509Credential;
+import org.opensaml.xml.signature.KeyInfo;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureValidator;
+import org.opensaml.xml.signature.X509Data;
+import org.opensaml.xml.util.Base64;
+import org.opensaml.xml.validation.ValidationException;
+
+/**
+ * Verifies the XML signatures of SAML2 responses against the signing
+ * certificates of the Identity Provider.
+ * <p>
+ * The certificates are loaded once, on first use, and a signature validator
+ * is kept for each of them. When the signature carries its certificate in its
+ * KeyInfo, the matching validator is picked directly, otherwise each trusted
+ * certificate is tried in turn, which supports IdP key rollover.
+ * <p>
+ * A signed response covers its assertions, which are then not verified
+ * again. Otherwise every assertion must be signed.
+ * <p>
+ * The detached signatures of the HTTP-Redirect binding are verified against
+ * the public keys of the same certificates, extracted once, with the JCA
+ * signature engines kept by each thread.
+ */
+public class Saml2SignatureVerifier {
+
+	/*
+	 * JCA names of the signature algorithms of the HTTP-Redirect binding
+	 */
+	private static final Map<String, String> QUERY_SIGNATURE_ALGORITHMS = new HashMap<String, String>();
+
+	static {
+		QUERY_SIGNATURE_ALGORITHMS.put(
+				"http://www.w3.org/2000/09/xmldsig#rsa-sha1", "SHA1withRSA");
+		QUERY_SIGNATURE_ALGORITHMS.put(
+				"http://www.w3.org/2001/04/xmldsig-more#rsa-sha256",
+				"SHA256withRSA");
+		QUERY_SIGNATURE_ALGORITHMS.put(
+				"http://www.w3.org/2001/04/xmldsig-more#rsa-sha384",
+				"SHA384withRSA");
+		QUERY_SIGNATURE_ALGORITHMS.put(
+				"http://www.w3.org/2001/04/xmldsig-more#rsa-sha512",
+				"SHA512withRSA");
+		QUERY_SIGNATURE_ALGORITHMS.put(
+				"http://www.w3.org/2000/09/xmldsig#dsa-sha1", "SHA1withDSA");
+		QUERY_SIGNATURE_ALGORITHMS.put(
+				"http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha256",
+				"SHA256withECDSA");
+		QUERY_SIGNATURE_ALGORITHMS.put(
+				"http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha384",
+				"SHA384withECDSA");
+		QUERY_SIGNATURE_ALGORITHMS.put(
+				"http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha512",
+				"SHA512withECDSA");
+	}
+
+	/*
+	 * Signature engines of the current thread, by JCA algorithm name, as
+	 * looking them up through the providers costs more than verifying
+	 */
+	private static final ThreadLocal<Map<String, java.security.Signature>> SIGNATURE_ENGINES = new ThreadLocal<Map<String, java.security.Signature>>() {
+		@Override
+		protected Map<String, java.security.Signature> initialValue() {
+			return new HashMap<String, java.security.Signature>();
+		}
+	};
+
+	/*
+	 * Locations of the IdP signing certificates, comma separated, in any
+	 * format understood by Shiro's ResourceUtils (classpath:, file:, url:)
+	 */
+	private String certificateLocations;
+
+	/*
+	 * Whether an unsigned response with unsigned assertions is rejected
+	 */
+	private boolean requireSignature = true;
+
+	private final SAMLSignatureProfileValidator profileValidator = new SAMLSignatureProfileValidator();
+
+	private volatile TrustedKeys trustedKeys;
+
+	public Saml2SignatureVerifier() {
+	}
+
+	/**
+	 * @param certificateLocations
+	 *            locations of the IdP signing certificates, comma separated
+	 */
+	public Saml2SignatureVerifier(String certificateLocations) {
+		this.certificateLocations = certificateLocations;
+	}
+
+	/**
+	 * @param certificates
+	 *            the IdP signing certificates
+	 */
+	public Saml2SignatureVerifier(Collection<X509Certificate> certificates) {
+		this.trustedKeys = new TrustedKeys(certificates);
+	}
+
+	/**
+	 * Verifies the signature of the response, or of each of its assertions if
+	 * the response itself is not signed.
+	 * 
+	 * @param response
+	 *            the response to verify, still backed by its DOM
+	 * @throws Saml2TokenValidationException
+	 *             if a signature is invalid, or missing while required
+	 */
+	public void verify(Response response) throws Saml2TokenValidationException {
+		TrustedKeys keys = getTrustedKeys();
+
+		/*
+		 * An enveloped signature of the response covers the assertions
+		 */
+		if (response.isSigned()) {
+			verifySignature(response.getSignature(), keys);
+			return;
+		}
+
+		verifyAssertions(response.getAssertions());
+	}
+
+	/**
+	 * Verifies the signature of each assertion, for assertions not covered by
+	 * the signature of their response such as the decrypted ones.
+	 * 
+	 * @param assertions
+	 *            the assertions to verify, still backed by their DOM
+	 * @throws Saml2TokenValidationException
+	 *             if a signature is invalid, or missing while required
+	 */
+	public void verifyAssertions(List<Assertion> assertions)
+			throws Saml2TokenValidationException {
+		TrustedKeys keys = getTrustedKeys();
+		for (Assertion assertion : assertions) {
+			if (assertion.isSigned()) {
+				verifySignature(assertion.getSignature(), keys);
+			} else if (requireSignature) {
+				throw new Saml2TokenValidationException("Assertion "
+						+ assertion.getID() + " is not signed");
+			}
+		}
+	}
+
+	/**
+	 * Verifies the enveloped signature of a protocol message other than a
+	 * response, which must be signed whatever {@link #isRequireSignature()}.
+	 * 
+	 * @param message
+	 *            the message to verify, still backed by its DOM
+	 * @throws Saml2TokenValidationException
+	 *             if the signature is missing or invalid
+	 */
+	public void verifyMessage(SignableSAMLObject message)
+			throws Saml2TokenValidationException {
+		if (!message.isSigned()) {
+			throw new Saml2TokenValidationException(message
+					.getElementQName().getLocalPart() + " is not signed");
+		}
+		verifySignature(message.getSignature(), getTrustedKeys());
+	}
+
+	/**
+	 * Verifies the detached signature of a message received over the
+	 * HTTP-Redirect binding, which then covers the whole message.
+	 * 
+	 * @param querySignature
+	 *            the signature of the query string
+	 * @throws Saml2TokenValidationException
+	 *             if the signature is invalid or uses an unsupported
+	 *             algorithm
+	 */
+	public void verify(Saml2QuerySignature querySignature)
+			throws Saml2TokenValidationException {
+		String algorithm = QUERY_SIGNATURE_ALGORITHMS.get(querySignature
+				.getAlgorithm());
+		if (algorithm == null) {
+			throw new Saml2TokenValidationException(
+					"Unsupported signature algorithm "
+							+ querySignature.getAlgorithm());
+		}
+		byte[] signatureValue = Base64.decode(querySignature.getSignature());
+		if (signatureValue == null) {
+			throw new Saml2TokenValidationException(
+					"The query string signature is not Base64 encoded");
+		}
+		byte[] signedContent;
+		try {
+			signedContent = querySignature.getSignedContent().getBytes(
+					"UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+
+		java.security.Signature engine = getSignatureEngine(algorithm);
+		GeneralSecurityException failure = null;
+		for (PublicKey key : getTrustedKeys().publicKeys) {
+			try {
+				engine.initVerify(key);
+				engine.update(signedContent);
+				if (engine.verify(signatureValue)) {
+					return;
+				}
+			} catch (GeneralSecurityException e) {
+				/*
+				 * Including keys of another type, such as RSA keys for ECDSA
+				 */
+				failure = e;
+			}
+		}
+		throw new Saml2TokenValidationException(
+				"Query string signature verification failed", failure);
+	}
+
+	private static java.security.Signature getSignatureEngine(String algorithm)
+			throws Saml2TokenValidationException {
+		Map<String, java.security.Signature> engines = SIGNATURE_ENGINES.get();
+		java.security.Signature engine = engines.get(algorithm);
+		if (engine == null) {
+			try {
+				engine = java.security.Signature.getInstance(algorithm);
+			} catch (GeneralSecurityException e) {
+				throw new Saml2TokenValidationException(
+						"Unsupported signature algorithm " + algorithm, e);
+			}
+			engines.put(algorithm, engine);
+		}
+		return engine;
+	}
+
+	private void verifySignature(Signature signature, TrustedKeys keys)
+			throws Saml2TokenValidationException {
+		try {
+			profileValidator.validate(signature);
+		} catch (ValidationException e) {
+			throw new Saml2TokenValidationException(
+					"Signature does not conform to the SAML signature profile",
+					e);
+		}
+
+		SignatureValidator validator = keys.forKeyInfo(signature
+				.getKeyInfo());
+		if (validator != null) {
+			try {
+				validator.validate(signature);
+				return;
+			} catch (ValidationException e) {
+				throw new Saml2TokenValidationException(
+						"Signature verification failed", e);
+			}
+		}
+
+		ValidationException failure = null;
+		for (SignatureValidator candidate : keys.validators) {
+			try {
+				candidate.validate(signature);
+				return;
+			} catch (ValidationException e) {
+				failure = e;
+			}
+		}
+		throw new Saml2TokenValidationException(
+				"Signature verification failed", failure);
+	}
+
+	private TrustedKeys getTrustedKeys() throws Saml2TokenValidationException {
+		TrustedKeys keys = trustedKeys;
+		if (keys == null) {
+			synchronized (this) {
+				keys = trustedKeys;
+				if (keys == null) {
+					keys = new TrustedKeys(loadCertificates());
+					trustedKeys = keys;
+				}
+			}
+		}
+		return keys;
+	}
+
+	private List<X509Certificate> loadCertificates()
+			throws Saml2TokenValidationException {
+		List<X509Certificate> certificates = new ArrayList<X509Certificate>();
+		String[] locations = StringUtils.split(certificateLocations, ',');
+		if (locations == null || locations.length == 0) {
+			throw new Saml2TokenValidationException(
+					"No IdP signing certificate configured");
+		}
+		try {
+			CertificateFactory certificateFactory = CertificateFactory
+					.getInstance("X.509");
+			for (String location : locations) {
+				InputStream in = ResourceUtils.getInputStreamForPath(location
+						.trim());
+				try {
+					for (Certificate certificate : certificateFactory
+							.generateCertificates(in)) {
+						certificates.add((X509Certificate) certificate);
+					}
+				} finally {
+					in.close();
+				}
+			}
+		} catch (IOException e) {
+			throw new Saml2TokenValidationException(
+					"Cannot read the IdP signing certificates", e);
+		} catch (CertificateException e) {
+			throw new Saml2TokenValidationException(
+					"Cannot read the IdP signing certificates", e);
+		}
+		return certificates;
+	}
+
+	public String getCertificateLocations() {
+		return certificateLocations;
+	}
+
+	public void setCertificateLocations(String certificateLocations) {
+		synchronized (this) {
+			this.certificateLocations = certificateLocations;
+			this.trustedKeys = null;
+		}
+	}
+
+	public boolean isRequireSignature() {
+		return requireSignature;
+	}
+
+	public void setRequireSignature(boolean requireSignature) {
+		this.requireSignature = requireSignature;
+	}
+
+	/*
+	 * Signature validators of the trusted certificates, also indexed by the
+	 * Base64 encoding of their certificate to resolve KeyInfo without parsing
+	 */
+	private static final class TrustedKeys {
+
+		private final List<SignatureValidator> validators;
+
+		private final Map<String, SignatureValidator> validatorsByCertificate;
+
+		private final List<PublicKey> publicKeys;
+
+		TrustedKeys(Collection<X509Certificate> certificates) {
+			List<SignatureValidator> list = new ArrayList<SignatureValidator>();
+			Map<String, SignatureValidator> map = new HashMap<String, SignatureValidator>();
+			List<PublicKey> keys = new ArrayList<PublicKey>();
+			for (X509Certificate certificate : certificates) {
+				keys.add(certificate.getPublicKey());
+				BasicX509Credential credential = new BasicX509Credential();
+				credential.setEntityCertificate(certificate);
+				SignatureValidator validator = new SignatureValidator(
+						credential);
+				list.add(validator);
+				try {
+					map.put(Base64.encodeBytes(certificate.getEncoded(),
+							Base64.DONT_BREAK_LINES), validator);
+				} catch (CertificateEncodingException e) {
+					// Still tried by the sequential lookup
+				}
+			}
+			this.validators = Collections.unmodifiableList(list);
+			this.validatorsByCertificate = map;
+			this.publicKeys = Collections.unmodifiableList(keys);
+		}
+
+		SignatureValidator forKeyInfo(KeyInfo keyInfo) {
+			if (keyInfo == null) {
+				return null;
+			}
+			for (X509Data x509Data : keyInfo.getX509Datas()) {
+				for (org.opensaml.xml.signature.X509Certificate certificate : x509Data
+						.getX509Certificates()) {
+					String value = certificate.getValue();
+					if (value != null) {
+						SignatureValidator validator = validatorsByCertificate
+								.get(stripWhitespace(value));
+						if (validator != null) {
+							return validator;
+						}
+					}
+				}
+			}
+			return null;
+		}
+
+		private static String stripWhitespace(String value) {
+			StringBuilder stripped = null;
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (Character.isWhitespace(c)) {
+					if (stripped == null) {
+						stripped = new StringBuilder(value.length());
+						stripped.append(value, 0, i);
+					}
+				} else if (stripped != null) {
+					stripped.append(c);
+				}
+			}
+			return stripped == null ? value : stripped.toString();
+		}
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+/**
+ * Stages of the SAML2 login path timed by {@link Saml2Metrics}.
+ */
+public enum Saml2Stage {
+
+	/*
+	 * Back-channel resolution of an artifact into its response, including
+	 * the parsing of the SOAP answer
+	 */
+	ARTIFACT_RESOLUTION,
+
+	/*
+	 * Base64 decoding of the posted response, not recorded separately when
+	 * streaming since decoding then happens while parsing
+	 */
+	DECODE,
+
+	/*
+	 * XML parsing of the response into a DOM document
+	 */
+	PARSE,
+
+	/*
+	 * Unmarshalling of the DOM document into OpenSAML objects
+	 */
+	UNMARSHALL,
+
+	/*
+	 * Verification of the XML signatures
+	 */
+	SIGNATURE,
+
+	/*
+	 * Decryption of the encrypted assertions
+	 */
+	DECRYPTION,
+
+	/*
+	 * Validation of the response conditions
+	 */
+	VALIDATION,
+
+	/*
+	 * Replay detection of the assertion
+	 */
+	REPLAY,
+
+	/*
+	 * Mapping of the attributes into roles and permissions
+	 */
+	AUTHORIZATION,
+
+	/*
+	 * Complete login, from the filter receiving the request to the redirect
+	 */
+	LOGIN
+}
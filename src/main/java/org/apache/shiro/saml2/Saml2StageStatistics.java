@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Snapshot of a {@link Saml2Histogram}, as exposed over JMX.
+ */
+public class Saml2StageStatistics {
+
+	private final long count;
+
+	private final double mean;
+
+	private final long p50;
+
+	private final long p99;
+
+	private final long p999;
+
+	private final long max;
+
+	@ConstructorProperties({ "count", "mean", "p50", "p99", "p999", "max" })
+	public Saml2StageStatistics(long count, double mean, long p50, long p99,
+			long p999, long max) {
+		this.count = count;
+		this.mean = mean;
+		this.p50 = p50;
+		this.p99 = p99;
+		this.p999 = p999;
+		this.max = max;
+	}
+
+	/**
+	 * @param histogram
+	 *            the histogram
+	 * @return a snapshot of the histogram
+	 */
+	public static Saml2StageStatistics of(Saml2Histogram histogram) {
+		return new Saml2StageStatistics(histogram.getCount(),
+				histogram.getMean(), histogram.getQuantile(0.5),
+				histogram.getQuantile(0.99), histogram.getQuantile(0.999),
+				histogram.getMax());
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public double getMean() {
+		return mean;
+	}
+
+	public long getP50() {
+		return p50;
+	}
+
+	public long getP99() {
+		return p99;
+	}
+
+	public long getP999() {
+		return p999;
+	}
+
+	public long getMax() {
+		return max;
+	}
+}
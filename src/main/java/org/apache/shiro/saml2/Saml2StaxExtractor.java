@@ -0,0 +1,443 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.xml.util.Base64;
+
+/**
+ * Reads the values needed by {@link Saml2Realm} out of a SAML2 response in a
+ * single forward pass of a StAX parser, instead of building a DOM and
+ * unmarshalling it into OpenSAML objects.
+ * <p>
+ * From every assertion of the response, the issuer, the NameID, the session
+ * index, the validity conditions and audiences, the subject confirmation data
+ * and the values of the requested attributes of all attribute statements are
+ * extracted, every other element is skipped.
+ * <p>
+ * Nothing is verified here: signatures need the DOM and encrypted assertions
+ * are not supported, such responses must go through
+ * {@link TokenToSaml2Response}.
+ */
+public class Saml2StaxExtractor {
+
+	private static final String RESPONSE = "Response";
+	private static final String ASSERTION = "Assertion";
+	private static final String ENCRYPTED_ASSERTION = "EncryptedAssertion";
+	private static final String ISSUER = "Issuer";
+	private static final String SUBJECT = "Subject";
+	private static final String NAME_ID = "NameID";
+	private static final String SUBJECT_CONFIRMATION = "SubjectConfirmation";
+	private static final String SUBJECT_CONFIRMATION_DATA = "SubjectConfirmationData";
+	private static final String CONDITIONS = "Conditions";
+	private static final String AUDIENCE_RESTRICTION = "AudienceRestriction";
+	private static final String AUDIENCE = "Audience";
+
+	private static final String BEARER = "urn:oasis:names:tc:SAML:2.0:cm:bearer";
+	private static final String AUTHN_STATEMENT = "AuthnStatement";
+	private static final String ATTRIBUTE_STATEMENT = "AttributeStatement";
+	private static final String ATTRIBUTE = "Attribute";
+	private static final String ATTRIBUTE_VALUE = "AttributeValue";
+
+	private static final DateTimeFormatter DATE_TIME_PARSER = ISODateTimeFormat
+			.dateTimeParser().withZone(DateTimeZone.UTC);
+
+	private final XMLInputFactory inputFactory;
+
+	public Saml2StaxExtractor() {
+		inputFactory = XMLInputFactory.newInstance();
+		inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE,
+				Boolean.TRUE);
+		inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		inputFactory.setProperty(
+				XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+	}
+
+	/**
+	 * Extracts the assertions of a Base64 encoded SAML2 response.
+	 *
+	 * @param token
+	 *            the Base64 encoded response
+	 * @param attributeNames
+	 *            the names of the attributes to extract
+	 * @return the extracted assertions, in document order
+	 * @throws Saml2TokenValidationException
+	 *             if the response cannot be decoded or parsed, or contains
+	 *             no assertion
+	 */
+	public List<Saml2ExtractedAssertion> extract(String token,
+			Set<String> attributeNames) throws Saml2TokenValidationException {
+		Saml2Metrics metrics = Saml2Metrics.getInstance();
+		metrics.recordPayloadSize(token.length());
+		long start = metrics.start();
+		byte[] decoded = Base64.decode(token);
+		metrics.record(Saml2Stage.DECODE, start);
+		if (decoded == null) {
+			throw new Saml2TokenValidationException(
+					"The SAML2 response is not Base64 encoded");
+		}
+		return extract(new ByteArrayInputStream(decoded),
+				attributeNames, false);
+	}
+
+	/**
+	 * Extracts the assertions of a Base64 encoded SAML2 response read
+	 * from a stream, the content being decoded while it is parsed.
+	 *
+	 * @param tokenStream
+	 *            the stream of the Base64 encoded response
+	 * @param attributeNames
+	 *            the names of the attributes to extract
+	 * @return the extracted assertions, in document order
+	 * @throws Saml2TokenValidationException
+	 *             if the response cannot be decoded or parsed, or contains
+	 *             no assertion
+	 */
+	public List<Saml2ExtractedAssertion> extract(InputStream tokenStream,
+			Set<String> attributeNames) throws Saml2TokenValidationException {
+		return extract(new Base64.InputStream(tokenStream, Base64.DECODE),
+				attributeNames, true);
+	}
+
+	/**
+	 * Extracts the assertions of a SAML2 response received over the
+	 * HTTP-Redirect binding, the content being decoded and inflated while it
+	 * is parsed.
+	 *
+	 * @param token
+	 *            the Base64 encoded and DEFLATE compressed response
+	 * @param attributeNames
+	 *            the names of the attributes to extract
+	 * @param maxInflatedSize
+	 *            the maximum size of the inflated response in bytes, 0 or
+	 *            less for no limit
+	 * @return the extracted assertions, in document order
+	 * @throws Saml2TokenValidationException
+	 *             if the response cannot be decoded, inflated or parsed,
+	 *             inflates beyond the maximum size, or contains no assertion
+	 */
+	public List<Saml2ExtractedAssertion> extractDeflated(String token,
+			Set<String> attributeNames, int maxInflatedSize)
+			throws Saml2TokenValidationException {
+		Saml2Metrics.getInstance().recordPayloadSize(token.length());
+		return extract(Saml2RedirectBinding.inflate(token, maxInflatedSize),
+				attributeNames, true);
+	}
+
+	private List<Saml2ExtractedAssertion> extract(InputStream xml,
+			Set<String> attributeNames, boolean closeStream)
+			throws Saml2TokenValidationException {
+		if (attributeNames == null) {
+			attributeNames = Collections.emptySet();
+		}
+		Saml2Metrics metrics = Saml2Metrics.getInstance();
+		long start = metrics.start();
+		XMLStreamReader reader = null;
+		try {
+			reader = inputFactory.createXMLStreamReader(xml);
+			List<Saml2ExtractedAssertion> assertions = readResponse(reader,
+					attributeNames);
+			metrics.record(Saml2Stage.PARSE, start);
+			return assertions;
+		} catch (XMLStreamException e) {
+			throw new Saml2TokenValidationException(e);
+		} catch (IllegalArgumentException e) {
+			/*
+			 * Malformed instants
+			 */
+			throw new Saml2TokenValidationException(e);
+		} finally {
+			close(reader);
+			if (closeStream) {
+				try {
+					xml.close();
+				} catch (IOException e) {
+					// Nothing more to read
+				}
+			}
+		}
+	}
+
+	private List<Saml2ExtractedAssertion> readResponse(
+			XMLStreamReader reader, Set<String> attributeNames)
+			throws XMLStreamException, Saml2TokenValidationException {
+		if (nextStartElement(reader) != XMLStreamConstants.START_ELEMENT
+				|| !isElement(reader, SAMLConstants.SAML20P_NS, RESPONSE)) {
+			throw new Saml2TokenValidationException(
+					"The document is not a SAML2 response");
+		}
+		String inResponseTo = reader.getAttributeValue(null, "InResponseTo");
+		List<Saml2ExtractedAssertion> assertions = new ArrayList<Saml2ExtractedAssertion>(
+				1);
+		while (nextStartElement(reader) == XMLStreamConstants.START_ELEMENT) {
+			if (isElement(reader, SAMLConstants.SAML20_NS, ASSERTION)) {
+				Saml2ExtractedAssertion assertion = readAssertion(reader,
+						attributeNames);
+				assertion.setResponseInResponseTo(inResponseTo);
+				assertions.add(assertion);
+			} else if (isElement(reader, SAMLConstants.SAML20_NS,
+					ENCRYPTED_ASSERTION)) {
+				throw new Saml2TokenValidationException(
+						"Encrypted assertions cannot be extracted");
+			} else {
+				skipElement(reader);
+			}
+		}
+		if (assertions.isEmpty()) {
+			throw new Saml2TokenValidationException(
+					"The SAML2 response contains no assertion");
+		}
+		return assertions;
+	}
+
+	private Saml2ExtractedAssertion readAssertion(XMLStreamReader reader,
+			Set<String> attributeNames) throws XMLStreamException {
+		Saml2ExtractedAssertion assertion = new Saml2ExtractedAssertion();
+		assertion.setId(reader.getAttributeValue(null, "ID"));
+		while (nextStartElement(reader) == XMLStreamConstants.START_ELEMENT) {
+			if (!SAMLConstants.SAML20_NS.equals(reader.getNamespaceURI())) {
+				skipElement(reader);
+				continue;
+			}
+			String name = reader.getLocalName();
+			if (ISSUER.equals(name)) {
+				assertion.setIssuer(readText(reader));
+			} else if (SUBJECT.equals(name)) {
+				readSubject(reader, assertion);
+			} else if (CONDITIONS.equals(name)) {
+				readConditions(reader, assertion);
+			} else if (AUTHN_STATEMENT.equals(name)) {
+				if (assertion.getSessionIndex() == null) {
+					assertion.setSessionIndex(reader.getAttributeValue(null,
+							"SessionIndex"));
+				}
+				skipElement(reader);
+			} else if (ATTRIBUTE_STATEMENT.equals(name)) {
+				readAttributes(reader, assertion, attributeNames);
+			} else {
+				skipElement(reader);
+			}
+		}
+		return assertion;
+	}
+
+	private void readSubject(XMLStreamReader reader,
+			Saml2ExtractedAssertion assertion) throws XMLStreamException {
+		while (nextStartElement(reader) == XMLStreamConstants.START_ELEMENT) {
+			if (isElement(reader, SAMLConstants.SAML20_NS, NAME_ID)) {
+				assertion.setNameId(readText(reader));
+			} else if (isElement(reader, SAMLConstants.SAML20_NS,
+					SUBJECT_CONFIRMATION)) {
+				Saml2ExtractedAssertion.Confirmation confirmation = BEARER
+						.equals(reader.getAttributeValue(null, "Method")) ? assertion
+						.addConfirmation() : null;
+				while (nextStartElement(reader) == XMLStreamConstants.START_ELEMENT) {
+					if (confirmation != null
+							&& isElement(reader, SAMLConstants.SAML20_NS,
+									SUBJECT_CONFIRMATION_DATA)) {
+						readConfirmationData(reader, confirmation);
+					}
+					skipElement(reader);
+				}
+			} else {
+				skipElement(reader);
+			}
+		}
+	}
+
+	private void readConfirmationData(XMLStreamReader reader,
+			Saml2ExtractedAssertion.Confirmation confirmation) {
+		String notBefore = reader.getAttributeValue(null, "NotBefore");
+		if (notBefore != null) {
+			confirmation.setNotBefore(parseInstant(notBefore));
+		}
+		String notOnOrAfter = reader.getAttributeValue(null, "NotOnOrAfter");
+		if (notOnOrAfter != null) {
+			confirmation.setNotOnOrAfter(parseInstant(notOnOrAfter));
+		}
+		confirmation.setRecipient(reader.getAttributeValue(null, "Recipient"));
+		confirmation.setInResponseTo(reader.getAttributeValue(null,
+				"InResponseTo"));
+	}
+
+	private void readConditions(XMLStreamReader reader,
+			Saml2ExtractedAssertion assertion) throws XMLStreamException {
+		String notBefore = reader.getAttributeValue(null, "NotBefore");
+		if (notBefore != null) {
+			assertion.setNotBefore(parseInstant(notBefore));
+		}
+		String notOnOrAfter = reader.getAttributeValue(null, "NotOnOrAfter");
+		if (notOnOrAfter != null) {
+			assertion.setNotOnOrAfter(parseInstant(notOnOrAfter));
+		}
+		while (nextStartElement(reader) == XMLStreamConstants.START_ELEMENT) {
+			if (isElement(reader, SAMLConstants.SAML20_NS,
+					AUDIENCE_RESTRICTION)) {
+				assertion.addAudienceRestriction();
+				while (nextStartElement(reader) == XMLStreamConstants.START_ELEMENT) {
+					if (isElement(reader, SAMLConstants.SAML20_NS, AUDIENCE)) {
+						assertion.addAudience(readText(reader));
+					} else {
+						skipElement(reader);
+					}
+				}
+			} else {
+				skipElement(reader);
+			}
+		}
+	}
+
+	private void readAttributes(XMLStreamReader reader,
+			Saml2ExtractedAssertion assertion, Set<String> attributeNames)
+			throws XMLStreamException {
+		while (nextStartElement(reader) == XMLStreamConstants.START_ELEMENT) {
+			String attributeName = isElement(reader, SAMLConstants.SAML20_NS,
+					ATTRIBUTE) ? reader.getAttributeValue(null, "Name") : null;
+			if (attributeName == null
+					|| !attributeNames.contains(attributeName)) {
+				skipElement(reader);
+				continue;
+			}
+			while (nextStartElement(reader) == XMLStreamConstants.START_ELEMENT) {
+				if (isElement(reader, SAMLConstants.SAML20_NS, ATTRIBUTE_VALUE)) {
+					assertion.addAttributeValue(attributeName,
+							readText(reader));
+				} else {
+					skipElement(reader);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Moves to the next child start element of the current element, returns
+	 * END_ELEMENT once positioned on the end of the current element
+	 */
+	private static int nextStartElement(XMLStreamReader reader)
+			throws XMLStreamException {
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT
+					|| event == XMLStreamConstants.END_ELEMENT) {
+				return event;
+			} else if (event == XMLStreamConstants.DTD
+					|| event == XMLStreamConstants.ENTITY_REFERENCE) {
+				throw new XMLStreamException(
+						"DOCTYPE and entity references are not allowed",
+						reader.getLocation());
+			}
+		}
+		return XMLStreamConstants.END_DOCUMENT;
+	}
+
+	/*
+	 * Reads the direct text content of the current element, skipping its
+	 * child elements, and moves to its end
+	 */
+	private static String readText(XMLStreamReader reader)
+			throws XMLStreamException {
+		String text = null;
+		StringBuilder builder = null;
+		while (reader.hasNext()) {
+			int event = reader.next();
+			switch (event) {
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.SPACE:
+				if (text == null) {
+					text = reader.getText();
+				} else {
+					if (builder == null) {
+						builder = new StringBuilder(text);
+					}
+					builder.append(reader.getText());
+				}
+				break;
+			case XMLStreamConstants.START_ELEMENT:
+				skipElement(reader);
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				return builder != null ? builder.toString() : text;
+			case XMLStreamConstants.DTD:
+			case XMLStreamConstants.ENTITY_REFERENCE:
+				throw new XMLStreamException(
+						"DOCTYPE and entity references are not allowed",
+						reader.getLocation());
+			default:
+				break;
+			}
+		}
+		throw new XMLStreamException("Unexpected end of document");
+	}
+
+	/*
+	 * Moves to the end of the current element
+	 */
+	private static void skipElement(XMLStreamReader reader)
+			throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			int event = nextStartElement(reader);
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			} else {
+				throw new XMLStreamException("Unexpected end of document");
+			}
+		}
+	}
+
+	private static boolean isElement(XMLStreamReader reader,
+			String namespace, String localName) {
+		return localName.equals(reader.getLocalName())
+				&& namespace.equals(reader.getNamespaceURI());
+	}
+
+	private static long parseInstant(String instant) {
+		return DATE_TIME_PARSER.parseMillis(instant.trim());
+	}
+
+	private static void close(XMLStreamReader reader) {
+		if (reader != null) {
+			try {
+				reader.close();
+			} catch (XMLStreamException e) {
+				// Nothing more to read
+			}
+		}
+	}
+}
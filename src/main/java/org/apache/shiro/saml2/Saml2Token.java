@@ -18,6 +18,8 @@
  */
 package org.apache.shiro.saml2;
 
+import java.io.InputStream;
+
 import org.apache.shiro.authc.RememberMeAuthenticationToken;
 
 public class Saml2Token implements RememberMeAuthenticationToken {
@@ -25,6 +27,9 @@ public class Saml2Token implements RememberMeAuthenticationToken {
 	private static final long serialVersionUID = -5283169468296310309L;
 
 	private String samlToken = null;
+	private transient InputStream samlTokenStream = null;
+	private Saml2Binding binding = Saml2Binding.HTTP_POST;
+	private Saml2QuerySignature querySignature = null;
 	private String nameId = null;
 	private boolean rememberMe = false;
 
@@ -32,8 +37,77 @@ public class Saml2Token implements RememberMeAuthenticationToken {
 		this.samlToken = samlToken;
 	}
 
+	/**
+	 * Creates a token from a SAML2 response received over the given binding.
+	 * 
+	 * @param samlToken
+	 *            the encoded response or artifact, already URL decoded
+	 * @param binding
+	 *            the binding which carried the response
+	 */
+	public Saml2Token(String samlToken, Saml2Binding binding) {
+		this.samlToken = samlToken;
+		this.binding = binding;
+	}
+
+	/**
+	 * Creates a token reading the Base64 encoded SAML2 response from a stream,
+	 * the response being decoded and parsed as it is read.
+	 * 
+	 * @param samlTokenStream
+	 *            the stream of the Base64 encoded SAML2 response
+	 */
+	public Saml2Token(InputStream samlTokenStream) {
+		this.samlTokenStream = samlTokenStream;
+	}
+
+	/**
+	 * @return the encoded response or artifact, or this token if the response
+	 *         is streamed, so that credentials matchers compare it rather
+	 *         than read the stream
+	 */
 	public Object getCredentials() {
-		return samlToken;
+		return samlToken != null ? samlToken : this;
+	}
+
+	public InputStream getSamlTokenStream() {
+		return samlTokenStream;
+	}
+
+	public boolean isStreaming() {
+		return samlTokenStream != null;
+	}
+
+	public Saml2Binding getBinding() {
+		return binding;
+	}
+
+	/**
+	 * @return <code>true</code> if the response is DEFLATE compressed, as
+	 *         with the HTTP-Redirect binding
+	 */
+	public boolean isDeflated() {
+		return binding == Saml2Binding.HTTP_REDIRECT;
+	}
+
+	/**
+	 * @return <code>true</code> if the token holds an artifact to resolve
+	 *         rather than the response itself
+	 */
+	public boolean isArtifact() {
+		return binding == Saml2Binding.HTTP_ARTIFACT;
+	}
+
+	/**
+	 * @return the detached signature of the query string which carried the
+	 *         response, or <code>null</code>
+	 */
+	public Saml2QuerySignature getQuerySignature() {
+		return querySignature;
+	}
+
+	public void setQuerySignature(Saml2QuerySignature querySignature) {
+		this.querySignature = querySignature;
 	}
 
 	public Object getPrincipal() {
@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2;
+
+/**
+ * The reasons why {@link Saml2AssertionValidator} rejects an assertion.
+ */
+public enum Saml2ValidationFailure {
+
+	/*
+	 * The NotBefore of the conditions is still to come
+	 */
+	NOT_YET_VALID,
+
+	/*
+	 * The NotOnOrAfter of the conditions has passed
+	 */
+	EXPIRED,
+
+	/*
+	 * An audience restriction does not name the Service Provider, or the
+	 * assertion has none while audiences are configured
+	 */
+	AUDIENCE,
+
+	/*
+	 * The assertion has no subject or no bearer subject confirmation, as
+	 * required for Web Browser SSO
+	 */
+	NO_BEARER_CONFIRMATION,
+
+	/*
+	 * No bearer subject confirmation is addressed to the Service Provider
+	 */
+	RECIPIENT,
+
+	/*
+	 * No bearer subject confirmation is still valid
+	 */
+	CONFIRMATION_EXPIRED,
+
+	/*
+	 * No bearer subject confirmation answers the request of the Service
+	 * Provider
+	 */
+	IN_RESPONSE_TO
+}
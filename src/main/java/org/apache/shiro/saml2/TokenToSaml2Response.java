@@ -20,15 +20,11 @@ package org.apache.shiro.saml2;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import java.io.InputStream;
 
 import org.opensaml.Configuration;
-import org.opensaml.DefaultBootstrap;
+import org.opensaml.saml2.core.LogoutRequest;
 import org.opensaml.saml2.core.Response;
-import org.opensaml.xml.ConfigurationException;
 import org.opensaml.xml.XMLObject;
 import org.opensaml.xml.io.Unmarshaller;
 import org.opensaml.xml.io.UnmarshallerFactory;
@@ -36,11 +32,13 @@ import org.opensaml.xml.io.UnmarshallingException;
 import org.opensaml.xml.util.Base64;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.xml.sax.SAXException;
 
 public final class TokenToSaml2Response {
 
-	private static boolean isBootStrapped = false;
+	/*
+	 * Parser pool used when the caller does not provide its own
+	 */
+	private static final Saml2ParserPool DEFAULT_PARSER_POOL = new Saml2ParserPool();
 
 	private TokenToSaml2Response() {
 		// Disabling initialization
@@ -48,56 +46,178 @@ public final class TokenToSaml2Response {
 
 	public static Response convertToken(String token)
 			throws Saml2TokenValidationException {
-		
-		doBootstrap();
+		return convertToken(token, DEFAULT_PARSER_POOL);
+	}
+
+	public static Response convertToken(String token,
+			Saml2ParserPool parserPool) throws Saml2TokenValidationException {
 
+		Saml2Bootstrap.bootstrap();
+
+		Saml2Metrics metrics = Saml2Metrics.getInstance();
+		metrics.recordPayloadSize(token.length());
+		long start = metrics.start();
 		ByteArrayInputStream inputStream = new ByteArrayInputStream(
 				Base64.decode(token));
-		
-		DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory
-				.newInstance();
-		documentBuilderFactory.setNamespaceAware(true);
-		DocumentBuilder docBuilder;
+		metrics.record(Saml2Stage.DECODE, start);
+
+		start = metrics.start();
+		Document document = parserPool.parse(inputStream);
+		metrics.record(Saml2Stage.PARSE, start);
+		return unmarshall(document, metrics);
+	}
 
+	/**
+	 * Converts a Base64 encoded SAML2 response read from a stream. The content
+	 * is decoded on the fly while being parsed, so no intermediate copy of the
+	 * encoded or decoded response is kept in memory.
+	 * 
+	 * @param tokenStream
+	 *            the stream of the Base64 encoded response
+	 * @param parserPool
+	 *            the pool of parsers to use
+	 * @return the SAML2 response
+	 * @throws Saml2TokenValidationException
+	 *             if the response cannot be decoded, parsed or unmarshalled
+	 */
+	public static Response convertToken(InputStream tokenStream,
+			Saml2ParserPool parserPool) throws Saml2TokenValidationException {
+
+		Saml2Bootstrap.bootstrap();
+
+		Saml2Metrics metrics = Saml2Metrics.getInstance();
+		long start = metrics.start();
+		Document document = parserPool.parse(new Base64.InputStream(
+				tokenStream, Base64.DECODE));
+		metrics.record(Saml2Stage.PARSE, start);
+		return unmarshall(document, metrics);
+	}
+
+	/**
+	 * Converts a SAML2 response received over the HTTP-Redirect binding. The
+	 * content is decoded and inflated on the fly while being parsed, and the
+	 * parse fails once more than the maximum inflated size has been read.
+	 * 
+	 * @param token
+	 *            the Base64 encoded and DEFLATE compressed response
+	 * @param parserPool
+	 *            the pool of parsers to use
+	 * @param maxInflatedSize
+	 *            the maximum size of the inflated response in bytes, 0 or
+	 *            less for no limit
+	 * @return the SAML2 response
+	 * @throws Saml2TokenValidationException
+	 *             if the response cannot be decoded, inflated, parsed or
+	 *             unmarshalled, or inflates beyond the maximum size
+	 */
+	public static Response convertDeflatedToken(String token,
+			Saml2ParserPool parserPool, int maxInflatedSize)
+			throws Saml2TokenValidationException {
+
+		Saml2Bootstrap.bootstrap();
+
+		Saml2Metrics metrics = Saml2Metrics.getInstance();
+		metrics.recordPayloadSize(token.length());
+		long start = metrics.start();
+		InputStream inflated = Saml2RedirectBinding.inflate(token,
+				maxInflatedSize);
+		Document document;
 		try {
-			docBuilder = documentBuilderFactory.newDocumentBuilder();
-		} catch (ParserConfigurationException e) {
-			throw new Saml2TokenValidationException(e);
+			document = parserPool.parse(inflated);
+		} finally {
+			try {
+				inflated.close();
+			} catch (IOException e) {
+				// Nothing left to read
+			}
 		}
+		metrics.record(Saml2Stage.PARSE, start);
+		return unmarshall(document, metrics);
+	}
+
+	/**
+	 * Converts a LogoutRequest sent by the IdP, either over the HTTP-Redirect
+	 * binding or over the HTTP-POST binding.
+	 * 
+	 * @param token
+	 *            the value of the SAMLRequest parameter
+	 * @param deflated
+	 *            whether the request is DEFLATE compressed, as over the
+	 *            HTTP-Redirect binding
+	 * @param parserPool
+	 *            the pool of parsers to use
+	 * @param maxInflatedSize
+	 *            the maximum size of a deflated request once inflated, 0 or
+	 *            less for no limit
+	 * @return the LogoutRequest
+	 * @throws Saml2TokenValidationException
+	 *             if the request cannot be decoded, parsed or unmarshalled,
+	 *             or is not a LogoutRequest
+	 */
+	public static LogoutRequest convertLogoutRequest(String token,
+			boolean deflated, Saml2ParserPool parserPool, int maxInflatedSize)
+			throws Saml2TokenValidationException {
+
+		Saml2Bootstrap.bootstrap();
 
+		InputStream decoded;
+		if (deflated) {
+			decoded = Saml2RedirectBinding.inflate(token, maxInflatedSize);
+		} else {
+			byte[] bytes = Base64.decode(token);
+			if (bytes == null) {
+				throw new Saml2TokenValidationException(
+						"The LogoutRequest is not Base64 encoded");
+			}
+			decoded = new ByteArrayInputStream(bytes);
+		}
 		Document document;
 		try {
-			document = docBuilder.parse(inputStream);
-		} catch (SAXException e) {
-			throw new Saml2TokenValidationException(e);
-		} catch (IOException e) {
-			throw new Saml2TokenValidationException(e);
+			document = parserPool.parse(decoded);
+		} finally {
+			try {
+				decoded.close();
+			} catch (IOException e) {
+				// Nothing left to read
+			}
+		}
+		XMLObject message = unmarshall(document.getDocumentElement());
+		if (!(message instanceof LogoutRequest)) {
+			throw new Saml2TokenValidationException("Not a LogoutRequest : "
+					+ message.getElementQName());
 		}
-		Element element = document.getDocumentElement();
+		return (LogoutRequest) message;
+	}
 
+	private static Response unmarshall(Document document, Saml2Metrics metrics)
+			throws Saml2TokenValidationException {
+		long start = metrics.start();
+		XMLObject responseXmlObj = unmarshall(document.getDocumentElement());
+		metrics.record(Saml2Stage.UNMARSHALL, start);
+		return (Response) responseXmlObj;
+	}
+
+	private static XMLObject unmarshall(Element element)
+			throws Saml2TokenValidationException {
 		UnmarshallerFactory unmarshallerFactory = Configuration
 				.getUnmarshallerFactory();
 		Unmarshaller unmarshaller = unmarshallerFactory
 				.getUnmarshaller(element);
-		XMLObject responseXmlObj;
-
+		if (unmarshaller == null) {
+			throw new Saml2TokenValidationException("Unknown SAML element : "
+					+ element.getLocalName());
+		}
 		try {
-			responseXmlObj = unmarshaller.unmarshall(element);
+			return unmarshaller.unmarshall(element);
 		} catch (UnmarshallingException e) {
 			throw new Saml2TokenValidationException(e);
 		}
-		return (Response) responseXmlObj;
 	}
 
-	private static void doBootstrap() throws Saml2TokenValidationException {
-		if (!isBootStrapped) {
-			try {
-				DefaultBootstrap.bootstrap();
-				isBootStrapped = true;
-			} catch (ConfigurationException e) {
-				throw new Saml2TokenValidationException(
-						"OpenSAML bootstrap configuration failed.", e);
-			}
-		}
+	/**
+	 * @return the parser pool used by {@link #convertToken(String)}
+	 */
+	public static Saml2ParserPool getDefaultParserPool() {
+		return DEFAULT_PARSER_POOL;
 	}
 }
@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.shiro.saml2.Saml2AssertionIdStore;
+import org.apache.shiro.saml2.Saml2MappedAssertionIdStore;
+import org.apache.shiro.saml2.Saml2ReplayCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of recording a new assertion ID and of detecting a replay, in the
+ * in-heap replay cache and in the memory-mapped store shared by processes.
+ * IDs expire quickly so that both stores reach a steady state where expired
+ * entries are reused.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class AssertionIdStoreBenchmark {
+
+	@Param({ "heap", "mapped" })
+	public String store;
+
+	private Saml2AssertionIdStore assertionIdStore;
+
+	private File file;
+
+	private final AtomicLong sequence = new AtomicLong();
+
+	@Setup
+	public void setUp() throws Exception {
+		if ("heap".equals(store)) {
+			assertionIdStore = new Saml2ReplayCache();
+		} else {
+			file = File.createTempFile("assertion-ids", null);
+			file.delete();
+			Saml2MappedAssertionIdStore mapped = new Saml2MappedAssertionIdStore(
+					file.getPath(), Saml2MappedAssertionIdStore.DEFAULT_CAPACITY);
+			mapped.init();
+			assertionIdStore = mapped;
+		}
+		assertionIdStore.add("replayed", Long.MAX_VALUE);
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (assertionIdStore instanceof Saml2MappedAssertionIdStore) {
+			((Saml2MappedAssertionIdStore) assertionIdStore).destroy();
+			file.delete();
+		}
+	}
+
+	@Benchmark
+	public boolean addNewId() {
+		return assertionIdStore.add(
+				"_" + Long.toHexString(sequence.incrementAndGet()),
+				System.currentTimeMillis() + 100);
+	}
+
+	@Benchmark
+	public boolean addReplayedId() {
+		return assertionIdStore.add("replayed", Long.MAX_VALUE);
+	}
+}
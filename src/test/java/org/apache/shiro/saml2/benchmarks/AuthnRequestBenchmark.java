@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URLEncoder;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.apache.shiro.saml2.Saml2AuthnRequestGenerator;
+import org.apache.shiro.saml2.Saml2Binding;
+import org.apache.shiro.saml2.Saml2Bootstrap;
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensaml.Configuration;
+import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.saml2.core.Issuer;
+import org.opensaml.xml.XMLObjectBuilderFactory;
+import org.opensaml.xml.util.Base64;
+import org.opensaml.xml.util.XMLHelper;
+import org.w3c.dom.Element;
+
+/**
+ * Cost of encoding an AuthnRequest for the HTTP-Redirect binding, from the
+ * precompiled template of {@link Saml2AuthnRequestGenerator} and by building
+ * and marshalling the OpenSAML objects for each request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuthnRequestBenchmark {
+
+	private static final String IDP_URL = "https://idp.example.org/SAML2/SSO/Redirect";
+
+	private static final String SP_URL = "https://sp.example.org/saml2/consumer";
+
+	private Saml2AuthnRequestGenerator generator;
+
+	private XMLObjectBuilderFactory builderFactory;
+
+	@Setup
+	public void setUp() throws Exception {
+		Saml2Bootstrap.bootstrap();
+		generator = new Saml2AuthnRequestGenerator(IDP_URL, SP_URL);
+		builderFactory = Configuration.getBuilderFactory();
+	}
+
+	@Benchmark
+	public String templated() {
+		return generator.encode(generator.newRequestId(),
+				System.currentTimeMillis());
+	}
+
+	@Benchmark
+	public String marshalled() throws Exception {
+		AuthnRequest request = (AuthnRequest) builderFactory.getBuilder(
+				AuthnRequest.DEFAULT_ELEMENT_NAME).buildObject(
+				AuthnRequest.DEFAULT_ELEMENT_NAME);
+		request.setID(generator.newRequestId());
+		request.setIssueInstant(new DateTime());
+		request.setDestination(IDP_URL);
+		request.setAssertionConsumerServiceURL(SP_URL);
+		request.setProtocolBinding(Saml2Binding.HTTP_POST.getUri());
+		Issuer issuer = (Issuer) builderFactory.getBuilder(
+				Issuer.DEFAULT_ELEMENT_NAME).buildObject(
+				Issuer.DEFAULT_ELEMENT_NAME);
+		issuer.setValue(SP_URL);
+		request.setIssuer(issuer);
+
+		Element element = Configuration.getMarshallerFactory()
+				.getMarshaller(request).marshall(request);
+		ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+		DeflaterOutputStream out = new DeflaterOutputStream(deflated,
+				new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+		out.write(XMLHelper.nodeToString(element).getBytes("UTF-8"));
+		out.close();
+		return URLEncoder.encode(Base64.encodeBytes(deflated.toByteArray(),
+				Base64.DONT_BREAK_LINES), "UTF-8");
+	}
+}
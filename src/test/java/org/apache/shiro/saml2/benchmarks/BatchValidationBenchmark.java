@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.shiro.saml2.Saml2BatchSummary;
+import org.apache.shiro.saml2.Saml2BatchValidator;
+import org.apache.shiro.saml2.Saml2Bootstrap;
+import org.apache.shiro.saml2.Saml2SignatureVerifier;
+import org.apache.shiro.saml2.test.support.SamlResponseSigner;
+import org.apache.shiro.saml2.test.support.SimulatedIdentityProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Responses per second of the batch validation of signed responses, by
+ * number of workers, to check that it scales with the processors.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchValidationBenchmark {
+
+	private static final int RESPONSES = 1000;
+
+	@Param({ "1", "2", "4", "8" })
+	public int parallelism;
+
+	private Saml2BatchValidator validator;
+
+	private String capture;
+
+	@Setup
+	public void setUp() throws Exception {
+		Saml2Bootstrap.bootstrap();
+		StringBuilder lines = new StringBuilder();
+		for (String response : new SimulatedIdentityProvider()
+				.issue(RESPONSES)) {
+			lines.append(response).append('\n');
+		}
+		capture = lines.toString();
+		validator = new Saml2BatchValidator();
+		validator.setParallelism(parallelism);
+		validator.setSignatureVerifier(new Saml2SignatureVerifier(
+				SamlResponseSigner.CERTIFICATE_LOCATION));
+	}
+
+	@TearDown
+	public void tearDown() {
+		validator.destroy();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RESPONSES)
+	public Saml2BatchSummary validate() throws Exception {
+		return validator.validate(new BufferedReader(new StringReader(capture)),
+				new NullWriter());
+	}
+
+	/*
+	 * Discards the results
+	 */
+	static class NullWriter extends Writer {
+
+		@Override
+		public void write(char[] buffer, int offset, int length) {
+		}
+
+		@Override
+		public void write(String string) {
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
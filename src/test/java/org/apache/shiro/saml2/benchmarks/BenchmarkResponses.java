@@ -0,0 +1,49 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.benchmarks;
+
+import org.apache.shiro.saml2.test.support.SamlResponseGenerator;
+
+/**
+ * Response sizes shared by the benchmarks, selected through the JMH
+ * <code>size</code> parameter.
+ */
+final class BenchmarkResponses {
+
+	static final String SMALL = "small";
+
+	static final String ATTRIBUTES_100 = "attributes100";
+
+	static final String ATTRIBUTES_1000 = "attributes1000";
+
+	private BenchmarkResponses() {
+		// Disabling initialization
+	}
+
+	static SamlResponseGenerator generator(String size) {
+		if (SMALL.equals(size)) {
+			return SamlResponseGenerator.small();
+		} else if (ATTRIBUTES_100.equals(size)) {
+			return SamlResponseGenerator.withAttributes(100, 10);
+		} else if (ATTRIBUTES_1000.equals(size)) {
+			return SamlResponseGenerator.withAttributes(1000, 100);
+		}
+		throw new IllegalArgumentException("Unknown response size " + size);
+	}
+}
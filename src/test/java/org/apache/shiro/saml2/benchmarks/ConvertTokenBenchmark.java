@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.shiro.saml2.Saml2Bootstrap;
+import org.apache.shiro.saml2.Saml2ExtractedAssertion;
+import org.apache.shiro.saml2.Saml2ParameterInputStream;
+import org.apache.shiro.saml2.Saml2ParserPool;
+import org.apache.shiro.saml2.Saml2StaxExtractor;
+import org.apache.shiro.saml2.TokenToSaml2Response;
+import org.apache.shiro.saml2.test.support.SamlResponseGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensaml.Configuration;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.xml.util.Base64;
+import org.w3c.dom.Element;
+
+/**
+ * Cost of converting a Base64 encoded SAML2 response into OpenSAML objects,
+ * through the pooled parsers, the streaming path and the former per-call
+ * parser construction, compared to the StAX extraction of the role and
+ * permission attributes only.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConvertTokenBenchmark {
+
+	@Param({ BenchmarkResponses.SMALL, BenchmarkResponses.ATTRIBUTES_100,
+			BenchmarkResponses.ATTRIBUTES_1000 })
+	public String size;
+
+	private String token;
+
+	private byte[] formBody;
+
+	private Saml2ParserPool parserPool;
+
+	private Saml2StaxExtractor extractor;
+
+	private Set<String> attributeNames;
+
+	@Setup
+	public void setUp() throws Exception {
+		Saml2Bootstrap.bootstrap();
+		token = BenchmarkResponses.generator(size).generateEncoded();
+		formBody = ("RelayState=%2F&SAMLResponse=" + URLEncoder.encode(token,
+				"US-ASCII")).getBytes("US-ASCII");
+		parserPool = new Saml2ParserPool();
+		extractor = new Saml2StaxExtractor();
+		attributeNames = new HashSet<String>(Arrays.asList(
+				SamlResponseGenerator.ROLE_ATTRIBUTE_NAME,
+				SamlResponseGenerator.PERMISSION_ATTRIBUTE_NAME));
+	}
+
+	@Benchmark
+	public Response convertToken() throws Exception {
+		return TokenToSaml2Response.convertToken(token, parserPool);
+	}
+
+	@Benchmark
+	public Response convertTokenStreaming() throws Exception {
+		return TokenToSaml2Response.convertToken(new Saml2ParameterInputStream(
+				new ByteArrayInputStream(formBody), "SAMLResponse"),
+				parserPool);
+	}
+
+	@Benchmark
+	public List<Saml2ExtractedAssertion> extract() throws Exception {
+		return extractor.extract(token, attributeNames);
+	}
+
+	@Benchmark
+	public List<Saml2ExtractedAssertion> extractStreaming() throws Exception {
+		return extractor.extract(new Saml2ParameterInputStream(
+				new ByteArrayInputStream(formBody), "SAMLResponse"),
+				attributeNames);
+	}
+
+	/*
+	 * The conversion as it was done before parsers were pooled
+	 */
+	@Benchmark
+	public Response convertTokenUnpooled() throws Exception {
+		DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory
+				.newInstance();
+		documentBuilderFactory.setNamespaceAware(true);
+		Element element = documentBuilderFactory.newDocumentBuilder()
+				.parse(new ByteArrayInputStream(Base64.decode(token)))
+				.getDocumentElement();
+		return (Response) Configuration.getUnmarshallerFactory()
+				.getUnmarshaller(element).unmarshall(element);
+	}
+}
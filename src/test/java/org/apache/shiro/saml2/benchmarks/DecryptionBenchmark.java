@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.shiro.saml2.Saml2AssertionDecrypter;
+import org.apache.shiro.saml2.Saml2Bootstrap;
+import org.apache.shiro.saml2.TokenToSaml2Response;
+import org.apache.shiro.saml2.test.support.SamlResponseEncryptor;
+import org.apache.shiro.saml2.test.support.SamlResponseGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.xml.util.Base64;
+
+/**
+ * Per-login cost of decrypting the assertions of a response, for RSA-OAEP key
+ * transport with AES-CBC and AES-GCM, with the assertions of a response
+ * decrypted in parallel or one after the other.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecryptionBenchmark {
+
+	@Param({ SamlResponseEncryptor.RSA_OAEP_MGF1P,
+			SamlResponseEncryptor.RSA_OAEP })
+	public String keyTransport;
+
+	@Param({ SamlResponseEncryptor.AES128_CBC,
+			SamlResponseEncryptor.AES256_CBC,
+			SamlResponseEncryptor.AES128_GCM,
+			SamlResponseEncryptor.AES256_GCM })
+	public String algorithm;
+
+	@Param({ "1", "8" })
+	public int assertions;
+
+	/*
+	 * Whether the assertions of a response share the same wrapped key
+	 */
+	@Param({ "true", "false" })
+	public boolean sharedKey;
+
+	private Response response;
+
+	private Saml2AssertionDecrypter parallelDecrypter;
+
+	private Saml2AssertionDecrypter sequentialDecrypter;
+
+	@Setup
+	public void setUp() throws Exception {
+		Saml2Bootstrap.bootstrap();
+		SamlResponseGenerator generator = BenchmarkResponses
+				.generator(BenchmarkResponses.ATTRIBUTES_100);
+		generator.setAssertionCount(assertions);
+		SamlResponseEncryptor encryptor = new SamlResponseEncryptor();
+		encryptor.setKeyTransportAlgorithm(keyTransport);
+		encryptor.setDataAlgorithm(algorithm);
+		encryptor.setSharedKey(sharedKey);
+		String xml = encryptor.encryptAssertions(generator.generate());
+		response = TokenToSaml2Response.convertToken(Base64.encodeBytes(
+				xml.getBytes("UTF-8"), Base64.DONT_BREAK_LINES));
+
+		parallelDecrypter = new Saml2AssertionDecrypter(
+				SamlResponseEncryptor.KEY_LOCATION);
+		sequentialDecrypter = new Saml2AssertionDecrypter(
+				SamlResponseEncryptor.KEY_LOCATION);
+		sequentialDecrypter.setParallelism(1);
+	}
+
+	@TearDown
+	public void tearDown() {
+		parallelDecrypter.destroy();
+	}
+
+	@Benchmark
+	public List<Assertion> decryptParallel() throws Exception {
+		return parallelDecrypter.decrypt(response);
+	}
+
+	@Benchmark
+	public List<Assertion> decryptSequential() throws Exception {
+		return sequentialDecrypter.decrypt(response);
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.shiro.saml2.Saml2Bootstrap;
+import org.apache.shiro.saml2.Saml2Filter;
+import org.apache.shiro.saml2.Saml2Realm;
+import org.apache.shiro.saml2.test.support.SamlResponseGenerator;
+import org.apache.shiro.saml2.test.support.WebTestSupport;
+import org.apache.shiro.util.ThreadContext;
+import org.apache.shiro.web.mgt.DefaultWebSecurityManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of a complete login through the SAML2 filter, from the posted
+ * SAMLResponse parameter to the success redirect.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilterBenchmark {
+
+	@Param({ BenchmarkResponses.SMALL, BenchmarkResponses.ATTRIBUTES_100,
+			BenchmarkResponses.ATTRIBUTES_1000 })
+	public String size;
+
+	private DefaultWebSecurityManager securityManager;
+
+	private BenchmarkFilter filter;
+
+	private HttpServletRequest request;
+
+	private HttpServletResponse response;
+
+	@Setup
+	public void setUp() throws Exception {
+		Saml2Bootstrap.bootstrap();
+		Saml2Realm realm = new Saml2Realm();
+		/*
+		 * The same response is posted over and over
+		 */
+		realm.setReplayCache(null);
+		realm.setRoleAttributeNames(SamlResponseGenerator.ROLE_ATTRIBUTE_NAME);
+		realm.setPermissionAttributeNames(SamlResponseGenerator.PERMISSION_ATTRIBUTE_NAME);
+		securityManager = WebTestSupport.newSecurityManager(realm);
+		filter = new BenchmarkFilter();
+		filter.setFailureUrl("/failure");
+		request = WebTestSupport.newPostRequest(BenchmarkResponses.generator(
+				size).generateEncoded());
+		response = WebTestSupport.newResponse();
+	}
+
+	@Benchmark
+	public boolean executeLogin() throws Exception {
+		ThreadContext.bind(WebTestSupport.newSubject(securityManager, request,
+				response));
+		try {
+			return filter.login(request, response);
+		} finally {
+			ThreadContext.unbindSubject();
+		}
+	}
+
+	/*
+	 * Exposes the protected login of the filter to the benchmark
+	 */
+	static class BenchmarkFilter extends Saml2Filter {
+
+		boolean login(ServletRequest request, ServletResponse response)
+				throws Exception {
+			return executeLogin(request, response);
+		}
+	}
+}
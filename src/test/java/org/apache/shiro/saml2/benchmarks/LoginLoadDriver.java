@@ -0,0 +1,367 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.shiro.saml2.Saml2AssertionDecrypter;
+import org.apache.shiro.saml2.Saml2Bootstrap;
+import org.apache.shiro.saml2.Saml2Filter;
+import org.apache.shiro.saml2.Saml2Realm;
+import org.apache.shiro.saml2.Saml2SignatureVerifier;
+import org.apache.shiro.saml2.test.support.SamlResponseEncryptor;
+import org.apache.shiro.saml2.test.support.SamlResponseGenerator;
+import org.apache.shiro.saml2.test.support.SamlResponseSigner;
+import org.apache.shiro.saml2.test.support.SimulatedIdentityProvider;
+import org.apache.shiro.saml2.test.support.WebTestSupport;
+import org.apache.shiro.subject.Subject;
+import org.apache.shiro.util.ThreadContext;
+import org.apache.shiro.web.mgt.DefaultWebSecurityManager;
+
+/**
+ * Load test of complete logins: responses issued by a
+ * {@link SimulatedIdentityProvider} are posted through {@link Saml2Filter},
+ * {@link Saml2Realm} and the SAML2 subject factory by several threads, and
+ * the sustained logins per second and latency percentiles are reported.
+ * <p>
+ * The responses are issued before the run, so that signing and encrypting
+ * them is not measured. Run with <code>mvn -Pload test</code>, the build
+ * fails when a login fails or a threshold is exceeded.
+ */
+public class LoginLoadDriver {
+
+	private final SimulatedIdentityProvider identityProvider;
+
+	private int threads = 4;
+
+	private int logins = 5000;
+
+	private int warmupLogins = 1000;
+
+	/*
+	 * Thresholds failing the run, 0 to disable them
+	 */
+	private double minThroughput = 0;
+
+	private double maxMedianMillis = 0;
+
+	private double maxP99Millis = 0;
+
+	/**
+	 * @param identityProvider
+	 *            the IdP issuing the posted responses
+	 */
+	public LoginLoadDriver(SimulatedIdentityProvider identityProvider) {
+		this.identityProvider = identityProvider;
+	}
+
+	/**
+	 * Runs the warmup then the measured logins.
+	 * 
+	 * @return the measures of the measured logins
+	 */
+	public Result run() throws Exception {
+		Saml2Bootstrap.bootstrap();
+		Saml2Realm realm = new Saml2Realm();
+		realm.setRoleAttributeNames(SamlResponseGenerator.ROLE_ATTRIBUTE_NAME);
+		realm.setPermissionAttributeNames(SamlResponseGenerator.PERMISSION_ATTRIBUTE_NAME);
+		if (identityProvider.getSigner() != null) {
+			realm.setSignatureVerifier(new Saml2SignatureVerifier(
+					SamlResponseSigner.CERTIFICATE_LOCATION));
+		}
+		Saml2AssertionDecrypter decrypter = null;
+		if (identityProvider.getEncryptor() != null) {
+			decrypter = new Saml2AssertionDecrypter(
+					SamlResponseEncryptor.KEY_LOCATION);
+			realm.setAssertionDecrypter(decrypter);
+		}
+		DefaultWebSecurityManager securityManager = WebTestSupport
+				.newSecurityManager(realm);
+		LoadFilter filter = new LoadFilter();
+		filter.setFailureUrl("/failure");
+
+		try {
+			drive(securityManager, filter, warmupLogins);
+			return drive(securityManager, filter, logins);
+		} finally {
+			if (decrypter != null) {
+				decrypter.destroy();
+			}
+		}
+	}
+
+	private Result drive(final DefaultWebSecurityManager securityManager,
+			final LoadFilter filter, int count) throws Exception {
+		final HttpServletRequest[] requests = new HttpServletRequest[count];
+		for (int i = 0; i < count; i++) {
+			requests[i] = WebTestSupport.newPostRequest(identityProvider
+					.issue());
+		}
+		final long[] latencies = new long[count];
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger failures = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+
+		for (int t = 0; t < threads; t++) {
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					HttpServletResponse response = WebTestSupport
+							.newResponse();
+					try {
+						start.await();
+						for (int i = next.getAndIncrement(); i < requests.length; i = next
+								.getAndIncrement()) {
+							Subject subject = WebTestSupport.newSubject(
+									securityManager, requests[i], response);
+							ThreadContext.bind(subject);
+							long begin = System.nanoTime();
+							try {
+								filter.login(requests[i], response);
+							} catch (Exception e) {
+								// Counted as a failure below
+							} finally {
+								latencies[i] = System.nanoTime() - begin;
+								ThreadContext.unbindSubject();
+							}
+							if (!subject.isAuthenticated()) {
+								failures.incrementAndGet();
+							}
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "saml2-load-" + t);
+			thread.start();
+		}
+
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		return new Result(latencies, System.nanoTime() - begin,
+				failures.get());
+	}
+
+	/**
+	 * @param result
+	 *            the measures of a run
+	 * @return the thresholds exceeded by the run, empty if none is
+	 */
+	public List<String> check(Result result) {
+		List<String> violations = new ArrayList<String>();
+		if (result.getFailures() > 0) {
+			violations.add(result.getFailures() + " logins failed");
+		}
+		if (minThroughput > 0 && result.getThroughput() < minThroughput) {
+			violations.add(String.format("%.1f logins/s below %.1f",
+					result.getThroughput(), minThroughput));
+		}
+		if (maxMedianMillis > 0
+				&& result.getPercentileMillis(0.5) > maxMedianMillis) {
+			violations.add(String.format("median %.3f ms above %.3f",
+					result.getPercentileMillis(0.5), maxMedianMillis));
+		}
+		if (maxP99Millis > 0 && result.getPercentileMillis(0.99) > maxP99Millis) {
+			violations.add(String.format("p99 %.3f ms above %.3f",
+					result.getPercentileMillis(0.99), maxP99Millis));
+		}
+		return violations;
+	}
+
+	/**
+	 * Runs the load test configured with <code>load.*</code> system
+	 * properties and exits with status 1 if a threshold is exceeded.
+	 */
+	public static void main(String[] args) throws Exception {
+		SamlResponseGenerator generator = SamlResponseGenerator
+				.withAttributes(Integer.getInteger("load.attributes", 0),
+						Integer.getInteger("load.roles", 2));
+		generator.setValidityMillis(TimeUnit.SECONDS.toMillis(Integer
+				.getInteger("load.validity", 300)));
+		SimulatedIdentityProvider identityProvider = new SimulatedIdentityProvider(
+				generator);
+		String issuers = System.getProperty("load.issuers");
+		if (issuers != null && issuers.trim().length() > 0) {
+			identityProvider.setIssuers(issuers.trim().split("\\s*,\\s*"));
+		}
+		if (Boolean.getBoolean("load.encrypted")) {
+			identityProvider.setEncryptor(new SamlResponseEncryptor());
+		}
+
+		LoginLoadDriver driver = new LoginLoadDriver(identityProvider);
+		driver.setThreads(Integer.getInteger("load.threads", 4));
+		driver.setLogins(Integer.getInteger("load.logins", 5000));
+		driver.setWarmupLogins(Integer.getInteger("load.warmup", 1000));
+		driver.setMinThroughput(Double.parseDouble(System.getProperty(
+				"load.minThroughput", "0")));
+		driver.setMaxMedianMillis(Double.parseDouble(System.getProperty(
+				"load.maxMedianMillis", "0")));
+		driver.setMaxP99Millis(Double.parseDouble(System.getProperty(
+				"load.maxP99Millis", "0")));
+
+		Result result = driver.run();
+		System.out.println(driver.getThreads() + " threads, " + result);
+		List<String> violations = driver.check(result);
+		if (!violations.isEmpty()) {
+			System.err.println("Load test thresholds exceeded: " + violations);
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public int getLogins() {
+		return logins;
+	}
+
+	public void setLogins(int logins) {
+		this.logins = logins;
+	}
+
+	public int getWarmupLogins() {
+		return warmupLogins;
+	}
+
+	public void setWarmupLogins(int warmupLogins) {
+		this.warmupLogins = warmupLogins;
+	}
+
+	public double getMinThroughput() {
+		return minThroughput;
+	}
+
+	/**
+	 * @param minThroughput
+	 *            the minimum sustained logins per second, 0 for none
+	 */
+	public void setMinThroughput(double minThroughput) {
+		this.minThroughput = minThroughput;
+	}
+
+	public double getMaxMedianMillis() {
+		return maxMedianMillis;
+	}
+
+	/**
+	 * @param maxMedianMillis
+	 *            the maximum median login latency, 0 for none
+	 */
+	public void setMaxMedianMillis(double maxMedianMillis) {
+		this.maxMedianMillis = maxMedianMillis;
+	}
+
+	public double getMaxP99Millis() {
+		return maxP99Millis;
+	}
+
+	/**
+	 * @param maxP99Millis
+	 *            the maximum 99th percentile login latency, 0 for none
+	 */
+	public void setMaxP99Millis(double maxP99Millis) {
+		this.maxP99Millis = maxP99Millis;
+	}
+
+	/**
+	 * Measures of a run: sustained throughput and latency distribution.
+	 */
+	public static final class Result {
+
+		private final long[] sortedLatencies;
+
+		private final long elapsedNanos;
+
+		private final int failures;
+
+		Result(long[] latencies, long elapsedNanos, int failures) {
+			this.sortedLatencies = latencies.clone();
+			Arrays.sort(this.sortedLatencies);
+			this.elapsedNanos = elapsedNanos;
+			this.failures = failures;
+		}
+
+		public int getLogins() {
+			return sortedLatencies.length;
+		}
+
+		public int getFailures() {
+			return failures;
+		}
+
+		/**
+		 * @return the logins per second over the whole run
+		 */
+		public double getThroughput() {
+			return sortedLatencies.length * 1e9 / elapsedNanos;
+		}
+
+		/**
+		 * @param percentile
+		 *            a percentile between 0 exclusive and 1 inclusive
+		 * @return the latency of the percentile, in milliseconds
+		 */
+		public double getPercentileMillis(double percentile) {
+			if (sortedLatencies.length == 0) {
+				return 0;
+			}
+			int index = (int) Math.ceil(percentile * sortedLatencies.length) - 1;
+			return sortedLatencies[Math.max(0, index)] / 1e6;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d logins, %d failed, %.1f logins/s, "
+					+ "latency p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, "
+					+ "max %.3f ms", getLogins(), failures, getThroughput(),
+					getPercentileMillis(0.5), getPercentileMillis(0.9),
+					getPercentileMillis(0.99), getPercentileMillis(1));
+		}
+	}
+
+	/*
+	 * Exposes the protected login of the filter to the driver
+	 */
+	static class LoadFilter extends Saml2Filter {
+
+		boolean login(ServletRequest request, ServletResponse response)
+				throws Exception {
+			return executeLogin(request, response);
+		}
+	}
+}
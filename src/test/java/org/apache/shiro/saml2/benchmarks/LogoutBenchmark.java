@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.benchmarks;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.shiro.saml2.Saml2Principal;
+import org.apache.shiro.saml2.Saml2SessionRegistry;
+import org.apache.shiro.session.Session;
+import org.apache.shiro.session.mgt.SimpleSession;
+import org.apache.shiro.session.mgt.eis.MemorySessionDAO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of finding the sessions of a NameID to log out, through the
+ * {@link Saml2SessionRegistry} and by scanning the active sessions of the
+ * SessionDAO for their principal, against the number of sessions. The
+ * indexed lookup registers the sessions again so that every invocation logs
+ * out the same number of sessions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LogoutBenchmark {
+
+	private static final String ISSUER = "https://idp.example.org/SAML2";
+
+	private static final String PRINCIPAL_ATTRIBUTE = "principal";
+
+	@Param({ "1000", "10000", "100000" })
+	public int sessions;
+
+	private Saml2SessionRegistry registry;
+
+	private MemorySessionDAO sessionDAO;
+
+	private Saml2Principal[] principals;
+
+	private int next;
+
+	@Setup
+	public void setUp() {
+		registry = new Saml2SessionRegistry();
+		sessionDAO = new MemorySessionDAO();
+		principals = new Saml2Principal[sessions];
+		for (int i = 0; i < sessions; i++) {
+			principals[i] = new Saml2Principal("user-" + i, ISSUER, "index-"
+					+ i, Collections.<String, List<String>> emptyMap());
+			Session session = new SimpleSession();
+			session.setAttribute(PRINCIPAL_ATTRIBUTE, principals[i]);
+			registry.register(principals[i], sessionDAO.create(session));
+		}
+	}
+
+	@Benchmark
+	public List<Serializable> indexed() {
+		Saml2Principal principal = nextPrincipal();
+		List<Serializable> sessionIds = registry.unregister(ISSUER,
+				principal.getNameId(), Collections.<String> emptyList());
+		for (Serializable sessionId : sessionIds) {
+			registry.register(principal, sessionId);
+		}
+		return sessionIds;
+	}
+
+	@Benchmark
+	public List<Serializable> scan() {
+		Saml2Principal principal = nextPrincipal();
+		List<Serializable> sessionIds = new ArrayList<Serializable>(1);
+		for (Session session : sessionDAO.getActiveSessions()) {
+			Object candidate = session.getAttribute(PRINCIPAL_ATTRIBUTE);
+			if (candidate instanceof Saml2Principal
+					&& ISSUER.equals(((Saml2Principal) candidate).getIssuer())
+					&& principal.getNameId().equals(
+							((Saml2Principal) candidate).getNameId())) {
+				sessionIds.add(session.getId());
+			}
+		}
+		return sessionIds;
+	}
+
+	private Saml2Principal nextPrincipal() {
+		Saml2Principal principal = principals[next];
+		next = (next + 1) % sessions;
+		return principal;
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.apache.shiro.cache.MemoryConstrainedCacheManager;
+import org.apache.shiro.saml2.Saml2Bootstrap;
+import org.apache.shiro.saml2.Saml2PermissionPool;
+import org.apache.shiro.saml2.Saml2Realm;
+import org.apache.shiro.saml2.Saml2Token;
+import org.apache.shiro.saml2.test.support.SamlResponseGenerator;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of a permission check of the SAML2 realm, with and without the
+ * permission pool. The authorization info is cached as in production, so
+ * only the check itself is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PermissionBenchmark {
+
+	@Param({ BenchmarkResponses.SMALL, BenchmarkResponses.ATTRIBUTES_100,
+			BenchmarkResponses.ATTRIBUTES_1000 })
+	public String size;
+
+	@Param({ "false", "true" })
+	public boolean pooled;
+
+	private Saml2Realm realm;
+
+	private PrincipalCollection principals;
+
+	@Setup
+	public void setUp() throws Exception {
+		Saml2Bootstrap.bootstrap();
+		BenchmarkRealm benchmarkRealm = new BenchmarkRealm();
+		benchmarkRealm.setDefaultPermissions("profile:read");
+		benchmarkRealm
+				.setPermissionAttributeNames(SamlResponseGenerator.PERMISSION_ATTRIBUTE_NAME);
+		benchmarkRealm.setCacheManager(new MemoryConstrainedCacheManager());
+		benchmarkRealm.setAuthorizationCachingEnabled(true);
+		if (pooled) {
+			benchmarkRealm.setPermissionPool(new Saml2PermissionPool());
+		}
+		principals = benchmarkRealm.authenticate(
+				new Saml2Token(BenchmarkResponses.generator(size)
+						.generateEncoded())).getPrincipals();
+		realm = benchmarkRealm;
+	}
+
+	@Benchmark
+	public boolean isPermitted() {
+		return realm.isPermitted(principals, "document:read:1");
+	}
+
+	/*
+	 * Every permission of the subject is tried
+	 */
+	@Benchmark
+	public boolean isNotPermitted() {
+		return realm.isPermitted(principals, "document:write:1");
+	}
+
+	/*
+	 * Exposes the protected realm lookup to the benchmark
+	 */
+	static class BenchmarkRealm extends Saml2Realm {
+
+		AuthenticationInfo authenticate(Saml2Token token) {
+			return doGetAuthenticationInfo(token);
+		}
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.apache.shiro.saml2.Saml2Bootstrap;
+import org.apache.shiro.saml2.Saml2Principal;
+import org.apache.shiro.saml2.Saml2Realm;
+import org.apache.shiro.saml2.Saml2Token;
+import org.apache.shiro.saml2.TokenToSaml2Response;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Heap retained by the principals of many sessions, as {@link Saml2Principal}
+ * and as the OpenSAML attributes it replaces. Each invocation keeps the
+ * principals of {@link #SESSIONS} logins reachable and reports the retained
+ * heap per session, measured after forcing garbage collections, as the
+ * <code>bytesPerSession</code> secondary result. An invocation lasts longer
+ * than an iteration, so each iteration measures a single one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class PrincipalFootprintBenchmark {
+
+	public static final int SESSIONS = 10000;
+
+	private BenchmarkRealm realm;
+
+	private String token;
+
+	/*
+	 * Heap retained per session by the last invocation
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Footprint {
+
+		public long bytesPerSession;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			bytesPerSession = 0;
+		}
+	}
+
+	@Setup
+	public void setUp() throws Exception {
+		Saml2Bootstrap.bootstrap();
+		realm = new BenchmarkRealm();
+		/*
+		 * The same response is posted over and over
+		 */
+		realm.setReplayCache(null);
+		token = BenchmarkResponses.generator(BenchmarkResponses.SMALL)
+				.generateEncoded();
+	}
+
+	@Benchmark
+	public List<Object> openSamlAttributes(Footprint footprint)
+			throws Exception {
+		List<Object> sessions = new ArrayList<Object>(SESSIONS);
+		long baseline = usedHeap();
+		for (int i = 0; i < SESSIONS; i++) {
+			sessions.add(new SimplePrincipalCollection(TokenToSaml2Response
+					.convertToken(token).getAssertions().get(0)
+					.getAttributeStatements().get(0).getAttributes(), realm
+					.getName()));
+		}
+		footprint.bytesPerSession = (usedHeap() - baseline) / SESSIONS;
+		return sessions;
+	}
+
+	@Benchmark
+	public List<Object> saml2Principals(Footprint footprint) throws Exception {
+		List<Object> sessions = new ArrayList<Object>(SESSIONS);
+		long baseline = usedHeap();
+		for (int i = 0; i < SESSIONS; i++) {
+			sessions.add(realm.authenticate(new Saml2Token(token))
+					.getPrincipals());
+		}
+		footprint.bytesPerSession = (usedHeap() - baseline) / SESSIONS;
+		return sessions;
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+
+	/*
+	 * Exposes the protected realm lookup to the benchmark
+	 */
+	static class BenchmarkRealm extends Saml2Realm {
+
+		AuthenticationInfo authenticate(Saml2Token token) {
+			return doGetAuthenticationInfo(token);
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.apache.shiro.authz.AuthorizationInfo;
+import org.apache.shiro.saml2.Saml2Bootstrap;
+import org.apache.shiro.saml2.Saml2Realm;
+import org.apache.shiro.saml2.Saml2Token;
+import org.apache.shiro.saml2.test.support.SamlResponseGenerator;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the authentication and authorization lookups of the SAML2 realm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RealmBenchmark {
+
+	@Param({ BenchmarkResponses.SMALL, BenchmarkResponses.ATTRIBUTES_100,
+			BenchmarkResponses.ATTRIBUTES_1000 })
+	public String size;
+
+	@Param({ "false", "true" })
+	public boolean lazyAttributes;
+
+	private BenchmarkRealm realm;
+
+	private String token;
+
+	private PrincipalCollection principals;
+
+	@Setup
+	public void setUp() throws Exception {
+		Saml2Bootstrap.bootstrap();
+		realm = new BenchmarkRealm();
+		realm.setDefaultRoles("user");
+		realm.setDefaultPermissions("profile:read");
+		/*
+		 * The same response is posted over and over
+		 */
+		realm.setReplayCache(null);
+		realm.setLazyAttributes(lazyAttributes);
+		realm.setRoleAttributeNames(SamlResponseGenerator.ROLE_ATTRIBUTE_NAME);
+		realm.setPermissionAttributeNames(SamlResponseGenerator.PERMISSION_ATTRIBUTE_NAME);
+		token = BenchmarkResponses.generator(size).generateEncoded();
+		principals = realm.authenticate(new Saml2Token(token))
+				.getPrincipals();
+	}
+
+	@Benchmark
+	public AuthenticationInfo doGetAuthenticationInfo() {
+		return realm.authenticate(new Saml2Token(token));
+	}
+
+	@Benchmark
+	public AuthorizationInfo doGetAuthorizationInfo() {
+		return realm.authorize(principals);
+	}
+
+	/*
+	 * Authentication followed by the authorization of the new principals,
+	 * which only converts the role and permission attributes when lazy
+	 */
+	@Benchmark
+	public AuthorizationInfo login() {
+		return realm.authorize(realm.authenticate(new Saml2Token(token))
+				.getPrincipals());
+	}
+
+	/*
+	 * Exposes the protected realm lookups to the benchmark
+	 */
+	static class BenchmarkRealm extends Saml2Realm {
+
+		AuthenticationInfo authenticate(Saml2Token token) {
+			return doGetAuthenticationInfo(token);
+		}
+
+		AuthorizationInfo authorize(PrincipalCollection principals) {
+			return doGetAuthorizationInfo(principals);
+		}
+	}
+}
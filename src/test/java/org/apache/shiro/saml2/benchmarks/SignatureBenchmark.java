@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.shiro.saml2.Saml2Bootstrap;
+import org.apache.shiro.saml2.Saml2SignatureVerifier;
+import org.apache.shiro.saml2.TokenToSaml2Response;
+import org.apache.shiro.saml2.test.support.SamlResponseSigner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.xml.util.Base64;
+
+/**
+ * Per-login cost of the signature verification, with the IdP credentials
+ * cached by a shared verifier and with credentials loaded for each login.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignatureBenchmark {
+
+	@Param({ BenchmarkResponses.SMALL, BenchmarkResponses.ATTRIBUTES_100,
+			BenchmarkResponses.ATTRIBUTES_1000 })
+	public String size;
+
+	private Response response;
+
+	private Saml2SignatureVerifier verifier;
+
+	@Setup
+	public void setUp() throws Exception {
+		Saml2Bootstrap.bootstrap();
+		String signed = new SamlResponseSigner().signResponse(BenchmarkResponses
+				.generator(size).generate());
+		response = TokenToSaml2Response.convertToken(Base64.encodeBytes(
+				signed.getBytes("UTF-8"), Base64.DONT_BREAK_LINES));
+		verifier = new Saml2SignatureVerifier(
+				SamlResponseSigner.CERTIFICATE_LOCATION);
+	}
+
+	@Benchmark
+	public Response verifyCachedCredentials() throws Exception {
+		verifier.verify(response);
+		return response;
+	}
+
+	@Benchmark
+	public Response verifyColdCredentials() throws Exception {
+		new Saml2SignatureVerifier(SamlResponseSigner.CERTIFICATE_LOCATION)
+				.verify(response);
+		return response;
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.benchmarks;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.shiro.saml2.Saml2AssertionValidator;
+import org.apache.shiro.saml2.Saml2ExtractedAssertion;
+import org.apache.shiro.saml2.Saml2StaxExtractor;
+import org.apache.shiro.saml2.Saml2ValidationFailure;
+import org.apache.shiro.saml2.TokenToSaml2Response;
+import org.apache.shiro.saml2.test.support.SamlResponseGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensaml.saml2.common.SAML2Helper;
+import org.opensaml.saml2.core.Response;
+
+/**
+ * Cost of validating the assertions of a response with OpenSAML's helper,
+ * which walks the whole object tree, and with the assertion validator on
+ * both the OpenSAML and the extracted assertions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ValidationBenchmark {
+
+	@Param({ BenchmarkResponses.SMALL, BenchmarkResponses.ATTRIBUTES_100,
+			BenchmarkResponses.ATTRIBUTES_1000 })
+	public String size;
+
+	private Response response;
+
+	private Saml2ExtractedAssertion extractedAssertion;
+
+	private Saml2AssertionValidator validator;
+
+	@Setup
+	public void setUp() throws Exception {
+		SamlResponseGenerator generator = BenchmarkResponses.generator(size);
+		String token = generator.generateEncoded();
+		response = TokenToSaml2Response.convertToken(token);
+		extractedAssertion = new Saml2StaxExtractor().extract(token,
+				Collections.<String> emptySet()).get(0);
+		validator = new Saml2AssertionValidator(generator.getAudience(),
+				generator.getRecipient());
+	}
+
+	@Benchmark
+	public boolean helper() {
+		return SAML2Helper.isValid(response);
+	}
+
+	@Benchmark
+	public Saml2ValidationFailure validator() {
+		return validator.validate(response.getAssertions().get(0),
+				System.currentTimeMillis(), response.getInResponseTo());
+	}
+
+	@Benchmark
+	public Saml2ValidationFailure validatorExtracted() {
+		return validator.validate(extractedAssertion,
+				System.currentTimeMillis());
+	}
+}
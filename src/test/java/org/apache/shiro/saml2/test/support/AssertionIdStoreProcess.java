@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.test.support;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+
+import org.apache.shiro.saml2.Saml2MappedAssertionIdStore;
+
+/**
+ * Separate JVM adding assertion IDs to a shared
+ * {@link Saml2MappedAssertionIdStore}. Arguments: the store file, its
+ * capacity, the number of IDs and an offset rotating the order they are added
+ * in. The process prints <code>READY</code> once the store is open, waits for
+ * a line on its standard input, then prints the number of IDs it was the
+ * first to add.
+ */
+public final class AssertionIdStoreProcess {
+
+	private AssertionIdStoreProcess() {
+		// Disabling initialization
+	}
+
+	public static void main(String[] args) throws Exception {
+		Saml2MappedAssertionIdStore store = new Saml2MappedAssertionIdStore(
+				args[0], Integer.parseInt(args[1]));
+		int ids = Integer.parseInt(args[2]);
+		int offset = Integer.parseInt(args[3]);
+		long expiresAt = System.currentTimeMillis() + 3600 * 1000L;
+		store.init();
+
+		System.out.println("READY");
+		System.out.flush();
+		new BufferedReader(new InputStreamReader(System.in)).readLine();
+
+		int accepted = 0;
+		for (int i = 0; i < ids; i++) {
+			if (store.add("id-" + ((i + offset) % ids), expiresAt)) {
+				accepted++;
+			}
+		}
+		store.destroy();
+		System.out.println(accepted);
+		System.out.flush();
+	}
+}
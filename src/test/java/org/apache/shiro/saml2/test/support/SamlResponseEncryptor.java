@@ -0,0 +1,210 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.test.support;
+
+import java.io.InputStream;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.cert.CertificateFactory;
+import java.security.spec.MGF1ParameterSpec;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.OAEPParameterSpec;
+import javax.crypto.spec.PSource;
+
+import org.apache.shiro.io.ResourceUtils;
+import org.opensaml.xml.util.Base64;
+
+/**
+ * Encrypts the assertions of generated SAML2 responses for the test SP key,
+ * transporting the symmetric key with RSA-OAEP.
+ */
+public class SamlResponseEncryptor {
+
+	public static final String CERTIFICATE_LOCATION = "classpath:sp-encryption.crt";
+
+	public static final String KEY_LOCATION = "classpath:sp-encryption.key";
+
+	public static final String AES128_CBC = "http://www.w3.org/2001/04/xmlenc#aes128-cbc";
+
+	public static final String AES256_CBC = "http://www.w3.org/2001/04/xmlenc#aes256-cbc";
+
+	public static final String AES128_GCM = "http://www.w3.org/2009/xmlenc11#aes128-gcm";
+
+	public static final String AES256_GCM = "http://www.w3.org/2009/xmlenc11#aes256-gcm";
+
+	public static final String RSA_OAEP_MGF1P = "http://www.w3.org/2001/04/xmlenc#rsa-oaep-mgf1p";
+
+	/*
+	 * XML Encryption 1.1 RSA-OAEP, used with SHA-256 and MGF1 with SHA-256
+	 */
+	public static final String RSA_OAEP = "http://www.w3.org/2009/xmlenc11#rsa-oaep";
+
+	private static final Pattern ASSERTION = Pattern
+			.compile("(?s)<(\\w+:)?Assertion\\b.*?</\\1Assertion>");
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final PublicKey publicKey;
+
+	private String dataAlgorithm = AES128_GCM;
+
+	private String keyTransportAlgorithm = RSA_OAEP_MGF1P;
+
+	/*
+	 * Whether all the assertions of a response share the same wrapped key
+	 */
+	private boolean sharedKey = true;
+
+	public SamlResponseEncryptor() throws Exception {
+		InputStream in = ResourceUtils
+				.getInputStreamForPath(CERTIFICATE_LOCATION);
+		try {
+			publicKey = CertificateFactory.getInstance("X.509")
+					.generateCertificate(in).getPublicKey();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @param xml
+	 *            a response
+	 * @return the response with each of its assertions replaced by an
+	 *         EncryptedAssertion
+	 */
+	public String encryptAssertions(String xml) throws Exception {
+		Matcher matcher = ASSERTION.matcher(xml);
+		StringBuffer encrypted = new StringBuffer(xml.length() * 2);
+		SecretKey key = null;
+		String wrappedKey = null;
+		while (matcher.find()) {
+			if (key == null || !sharedKey) {
+				key = generateKey();
+				wrappedKey = wrapKey(key);
+			}
+			matcher.appendReplacement(encrypted, Matcher
+					.quoteReplacement(encryptedAssertion(
+							matcher.group().getBytes("UTF-8"), key,
+							wrappedKey)));
+		}
+		matcher.appendTail(encrypted);
+		return encrypted.toString();
+	}
+
+	private String encryptedAssertion(byte[] assertion, SecretKey key,
+			String wrappedKey) throws Exception {
+		StringBuilder xml = new StringBuilder();
+		xml.append("<saml:EncryptedAssertion xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\">");
+		xml.append("<xenc:EncryptedData xmlns:xenc=\"http://www.w3.org/2001/04/xmlenc#\" Type=\"http://www.w3.org/2001/04/xmlenc#Element\">");
+		xml.append("<xenc:EncryptionMethod Algorithm=\"")
+				.append(dataAlgorithm).append("\"/>");
+		xml.append("<ds:KeyInfo xmlns:ds=\"http://www.w3.org/2000/09/xmldsig#\">");
+		xml.append("<xenc:EncryptedKey><xenc:EncryptionMethod Algorithm=\"")
+				.append(keyTransportAlgorithm).append("\">");
+		if (RSA_OAEP.equals(keyTransportAlgorithm)) {
+			xml.append("<ds:DigestMethod Algorithm=\"http://www.w3.org/2001/04/xmlenc#sha256\"/>");
+			xml.append("<xenc11:MGF xmlns:xenc11=\"http://www.w3.org/2009/xmlenc11#\" Algorithm=\"http://www.w3.org/2009/xmlenc11#mgf1sha256\"/>");
+		} else {
+			xml.append("<ds:DigestMethod Algorithm=\"http://www.w3.org/2000/09/xmldsig#sha1\"/>");
+		}
+		xml.append("</xenc:EncryptionMethod>");
+		xml.append("<xenc:CipherData><xenc:CipherValue>").append(wrappedKey)
+				.append("</xenc:CipherValue></xenc:CipherData>");
+		xml.append("</xenc:EncryptedKey></ds:KeyInfo>");
+		xml.append("<xenc:CipherData><xenc:CipherValue>")
+				.append(Base64.encodeBytes(encrypt(assertion, key),
+						Base64.DONT_BREAK_LINES))
+				.append("</xenc:CipherValue></xenc:CipherData>");
+		xml.append("</xenc:EncryptedData></saml:EncryptedAssertion>");
+		return xml.toString();
+	}
+
+	private SecretKey generateKey() throws Exception {
+		KeyGenerator generator = KeyGenerator.getInstance("AES");
+		generator.init(dataAlgorithm.contains("aes256") ? 256 : 128);
+		return generator.generateKey();
+	}
+
+	private String wrapKey(SecretKey key) throws Exception {
+		Cipher cipher = Cipher.getInstance("RSA/ECB/OAEPPadding");
+		if (RSA_OAEP.equals(keyTransportAlgorithm)) {
+			cipher.init(Cipher.WRAP_MODE, publicKey, new OAEPParameterSpec(
+					"SHA-256", "MGF1", MGF1ParameterSpec.SHA256,
+					PSource.PSpecified.DEFAULT));
+		} else {
+			cipher.init(Cipher.WRAP_MODE, publicKey, new OAEPParameterSpec(
+					"SHA-1", "MGF1", MGF1ParameterSpec.SHA1,
+					PSource.PSpecified.DEFAULT));
+		}
+		return Base64.encodeBytes(cipher.wrap(key), Base64.DONT_BREAK_LINES);
+	}
+
+	private byte[] encrypt(byte[] data, SecretKey key) throws Exception {
+		if (dataAlgorithm.endsWith("-gcm")) {
+			byte[] iv = new byte[12];
+			RANDOM.nextBytes(iv);
+			Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+			cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(128, iv));
+			return concat(iv, cipher.doFinal(data));
+		}
+		byte[] iv = new byte[16];
+		RANDOM.nextBytes(iv);
+		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+		return concat(iv, cipher.doFinal(data));
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] result = new byte[a.length + b.length];
+		System.arraycopy(a, 0, result, 0, a.length);
+		System.arraycopy(b, 0, result, a.length, b.length);
+		return result;
+	}
+
+	public String getDataAlgorithm() {
+		return dataAlgorithm;
+	}
+
+	public void setDataAlgorithm(String dataAlgorithm) {
+		this.dataAlgorithm = dataAlgorithm;
+	}
+
+	public String getKeyTransportAlgorithm() {
+		return keyTransportAlgorithm;
+	}
+
+	public void setKeyTransportAlgorithm(String keyTransportAlgorithm) {
+		this.keyTransportAlgorithm = keyTransportAlgorithm;
+	}
+
+	public boolean isSharedKey() {
+		return sharedKey;
+	}
+
+	public void setSharedKey(boolean sharedKey) {
+		this.sharedKey = sharedKey;
+	}
+}
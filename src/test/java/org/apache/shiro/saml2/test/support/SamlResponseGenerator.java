@@ -0,0 +1,322 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.test.support;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.opensaml.xml.util.Base64;
+
+/**
+ * Generates synthetic, currently valid SAML2 responses of configurable size
+ * for tests and benchmarks.
+ */
+public class SamlResponseGenerator {
+
+	public static final String ROLE_ATTRIBUTE_NAME = "roles";
+
+	public static final String PERMISSION_ATTRIBUTE_NAME = "permissions";
+
+	private static final AtomicLong ID_SEQUENCE = new AtomicLong();
+
+	private String issuer = "https://idp.example.org/SAML2";
+
+	private String nameId = "shiro-saml2";
+
+	private String audience = "https://sp.example.com/SAML2";
+
+	private String recipient = "https://sp.example.com/SAML2/SSO/POST";
+
+	private String confirmationMethod = "urn:oasis:names:tc:SAML:2.0:cm:bearer";
+
+	private int attributeCount = 0;
+
+	private int roleCount = 2;
+
+	private int permissionCount = 2;
+
+	private long validityMillis = 5 * 60 * 1000L;
+
+	private int assertionCount = 1;
+
+	private boolean splitStatements = false;
+
+	/**
+	 * @return a small response with a couple of roles and permissions
+	 */
+	public static SamlResponseGenerator small() {
+		return new SamlResponseGenerator();
+	}
+
+	/**
+	 * @param attributeCount
+	 *            number of single valued attributes besides roles and
+	 *            permissions
+	 * @param roleCount
+	 *            number of values of the multi-valued role attribute
+	 * @return a generator of responses of the given size
+	 */
+	public static SamlResponseGenerator withAttributes(int attributeCount,
+			int roleCount) {
+		SamlResponseGenerator generator = new SamlResponseGenerator();
+		generator.setAttributeCount(attributeCount);
+		generator.setRoleCount(roleCount);
+		generator.setPermissionCount(roleCount);
+		return generator;
+	}
+
+	/**
+	 * @return a new response XML document, with fresh identifiers and a
+	 *         validity window starting now
+	 */
+	public String generate() {
+		long now = System.currentTimeMillis();
+		String issueInstant = format(now);
+		String notBefore = format(now - 60 * 1000L);
+		String notOnOrAfter = format(now + validityMillis);
+		String responseId = nextId();
+
+		StringBuilder xml = new StringBuilder(512 + 128 * (attributeCount
+				+ roleCount + permissionCount));
+		xml.append("<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\"");
+		xml.append(" ID=\"").append(responseId)
+				.append("\" InResponseTo=\"request_1\" Version=\"2.0\"");
+		xml.append(" IssueInstant=\"").append(issueInstant)
+				.append("\" Destination=\"").append(recipient).append("\">");
+		xml.append("<saml:Issuer>").append(issuer).append("</saml:Issuer>");
+		xml.append("<samlp:Status><samlp:StatusCode Value=\"urn:oasis:names:tc:SAML:2.0:status:Success\"/></samlp:Status>");
+		for (int assertion = 0; assertion < assertionCount; assertion++) {
+			String assertionId = nextId();
+			xml.append("<saml:Assertion ID=\"").append(assertionId)
+					.append("\" Version=\"2.0\" IssueInstant=\"")
+					.append(issueInstant).append("\">");
+			xml.append("<saml:Issuer>").append(issuer).append("</saml:Issuer>");
+			xml.append("<saml:Subject>");
+			xml.append("<saml:NameID Format=\"urn:oasis:names:tc:SAML:2.0:nameid-format:transient\">")
+					.append(nameId).append("</saml:NameID>");
+			xml.append("<saml:SubjectConfirmation Method=\"")
+					.append(confirmationMethod).append("\">");
+			xml.append("<saml:SubjectConfirmationData InResponseTo=\"request_1\" Recipient=\"")
+					.append(recipient).append("\" NotOnOrAfter=\"")
+					.append(notOnOrAfter).append("\"/>");
+			xml.append("</saml:SubjectConfirmation>");
+			xml.append("</saml:Subject>");
+			xml.append("<saml:Conditions NotBefore=\"").append(notBefore)
+					.append("\" NotOnOrAfter=\"").append(notOnOrAfter)
+					.append("\">");
+			if (audience != null) {
+				xml.append("<saml:AudienceRestriction><saml:Audience>")
+						.append(audience)
+						.append("</saml:Audience></saml:AudienceRestriction>");
+			}
+			xml.append("</saml:Conditions>");
+			xml.append("<saml:AuthnStatement AuthnInstant=\"")
+					.append(issueInstant).append("\" SessionIndex=\"")
+					.append(assertionId).append("\">");
+			xml.append("<saml:AuthnContext><saml:AuthnContextClassRef>urn:oasis:names:tc:SAML:2.0:ac:classes:PasswordProtectedTransport</saml:AuthnContextClassRef></saml:AuthnContext>");
+			xml.append("</saml:AuthnStatement>");
+			xml.append("<saml:AttributeStatement>");
+			if (assertion == 0) {
+				appendAttribute(xml, ROLE_ATTRIBUTE_NAME, "role-", roleCount);
+				splitStatement(xml);
+				appendAttribute(xml, PERMISSION_ATTRIBUTE_NAME, "document:read:",
+						permissionCount);
+				splitStatement(xml);
+			}
+			for (int i = 0; i < attributeCount; i++) {
+				appendAttribute(xml, "attribute-" + i, "value-" + i + "-", 1);
+			}
+			xml.append("</saml:AttributeStatement>");
+			xml.append("</saml:Assertion>");
+		}
+		xml.append("</samlp:Response>");
+		return xml.toString();
+	}
+
+	/**
+	 * @return a new response, Base64 encoded as posted by the IdP
+	 */
+	public String generateEncoded() {
+		return Base64.encodeBytes(generate().getBytes(),
+				Base64.DONT_BREAK_LINES);
+	}
+
+	/**
+	 * @return a new response, DEFLATE compressed and Base64 encoded as sent
+	 *         by the IdP over the HTTP-Redirect binding, not URL encoded
+	 */
+	public String generateDeflated() {
+		return deflate(generate());
+	}
+
+	/**
+	 * @param xml
+	 *            a response
+	 * @return the response DEFLATE compressed and Base64 encoded
+	 */
+	public static String deflate(String xml) {
+		try {
+			ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+			DeflaterOutputStream out = new DeflaterOutputStream(deflated,
+					new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+			out.write(xml.getBytes("UTF-8"));
+			out.close();
+			return Base64.encodeBytes(deflated.toByteArray(),
+					Base64.DONT_BREAK_LINES);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void splitStatement(StringBuilder xml) {
+		if (splitStatements) {
+			xml.append("</saml:AttributeStatement><saml:AttributeStatement>");
+		}
+	}
+
+	private static void appendAttribute(StringBuilder xml, String name,
+			String valuePrefix, int valueCount) {
+		if (valueCount == 0) {
+			return;
+		}
+		xml.append("<saml:Attribute Name=\"").append(name).append("\">");
+		for (int i = 0; i < valueCount; i++) {
+			xml.append("<saml:AttributeValue xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xsi:type=\"xs:string\">");
+			xml.append(valuePrefix).append(i);
+			xml.append("</saml:AttributeValue>");
+		}
+		xml.append("</saml:Attribute>");
+	}
+
+	private static String nextId() {
+		return "_" + Long.toHexString(System.nanoTime()) + "_"
+				+ ID_SEQUENCE.incrementAndGet();
+	}
+
+	private static String format(long millis) {
+		SimpleDateFormat format = new SimpleDateFormat(
+				"yyyy-MM-dd'T'HH:mm:ss'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.format(new Date(millis));
+	}
+
+	public String getIssuer() {
+		return issuer;
+	}
+
+	public void setIssuer(String issuer) {
+		this.issuer = issuer;
+	}
+
+	public String getNameId() {
+		return nameId;
+	}
+
+	public void setNameId(String nameId) {
+		this.nameId = nameId;
+	}
+
+	public String getAudience() {
+		return audience;
+	}
+
+	public void setAudience(String audience) {
+		this.audience = audience;
+	}
+
+	public String getRecipient() {
+		return recipient;
+	}
+
+	public void setRecipient(String recipient) {
+		this.recipient = recipient;
+	}
+
+	public String getConfirmationMethod() {
+		return confirmationMethod;
+	}
+
+	public void setConfirmationMethod(String confirmationMethod) {
+		this.confirmationMethod = confirmationMethod;
+	}
+
+	public int getAttributeCount() {
+		return attributeCount;
+	}
+
+	public void setAttributeCount(int attributeCount) {
+		this.attributeCount = attributeCount;
+	}
+
+	public int getRoleCount() {
+		return roleCount;
+	}
+
+	public void setRoleCount(int roleCount) {
+		this.roleCount = roleCount;
+	}
+
+	public int getPermissionCount() {
+		return permissionCount;
+	}
+
+	public void setPermissionCount(int permissionCount) {
+		this.permissionCount = permissionCount;
+	}
+
+	public long getValidityMillis() {
+		return validityMillis;
+	}
+
+	public void setValidityMillis(long validityMillis) {
+		this.validityMillis = validityMillis;
+	}
+
+	public int getAssertionCount() {
+		return assertionCount;
+	}
+
+	/**
+	 * @param assertionCount
+	 *            the number of assertions, the roles and permissions being
+	 *            only in the first one and the other attributes in every one
+	 */
+	public void setAssertionCount(int assertionCount) {
+		this.assertionCount = assertionCount;
+	}
+
+	public boolean isSplitStatements() {
+		return splitStatements;
+	}
+
+	/**
+	 * @param splitStatements
+	 *            whether the roles, the permissions and the other attributes
+	 *            are in separate attribute statements
+	 */
+	public void setSplitStatements(boolean splitStatements) {
+		this.splitStatements = splitStatements;
+	}
+}
@@ -0,0 +1,234 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.test.support;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.shiro.io.ResourceUtils;
+import org.apache.shiro.saml2.Saml2Bootstrap;
+import org.apache.shiro.saml2.TokenToSaml2Response;
+import org.opensaml.Configuration;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.xml.XMLObjectBuilder;
+import org.opensaml.xml.security.keyinfo.KeyInfoHelper;
+import org.opensaml.xml.security.x509.BasicX509Credential;
+import org.opensaml.xml.signature.KeyInfo;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureConstants;
+import org.opensaml.xml.signature.Signer;
+import org.opensaml.xml.util.Base64;
+import org.opensaml.xml.util.XMLHelper;
+import org.w3c.dom.Element;
+
+/**
+ * Signs generated SAML2 responses with the test IdP key.
+ */
+public class SamlResponseSigner {
+
+	public static final String CERTIFICATE_LOCATION = "classpath:idp-signing.crt";
+
+	public static final String KEY_LOCATION = "classpath:idp-signing.key";
+
+	private final BasicX509Credential credential;
+
+	public SamlResponseSigner() throws Exception {
+		this(CERTIFICATE_LOCATION, KEY_LOCATION);
+	}
+
+	/**
+	 * @param certificateLocation
+	 *            location of the PEM encoded signing certificate
+	 * @param keyLocation
+	 *            location of the PEM encoded PKCS#8 private key
+	 */
+	public SamlResponseSigner(String certificateLocation, String keyLocation)
+			throws Exception {
+		credential = new BasicX509Credential();
+		credential.setEntityCertificate(loadCertificate(certificateLocation));
+		credential.setPrivateKey(loadPrivateKey(keyLocation));
+	}
+
+	public X509Certificate getCertificate() {
+		return credential.getEntityCertificate();
+	}
+
+	public BasicX509Credential getCredential() {
+		return credential;
+	}
+
+	/**
+	 * @param xml
+	 *            an unsigned response
+	 * @return the response with an enveloped signature of the response
+	 */
+	public String signResponse(String xml) throws Exception {
+		Response response = parse(xml);
+		Signature signature = newSignature();
+		response.setSignature(signature);
+		Element element = marshall(response);
+		Signer.signObject(signature);
+		return XMLHelper.nodeToString(element);
+	}
+
+	/**
+	 * @param xml
+	 *            an unsigned response
+	 * @return the response with an enveloped signature in each assertion
+	 */
+	public String signAssertions(String xml) throws Exception {
+		Response response = parse(xml);
+		List<Signature> signatures = new ArrayList<Signature>();
+		for (Assertion assertion : response.getAssertions()) {
+			Signature signature = newSignature();
+			assertion.setSignature(signature);
+			signatures.add(signature);
+		}
+		Element element = marshall(response);
+		Signer.signObjects(signatures);
+		return XMLHelper.nodeToString(element);
+	}
+
+	/**
+	 * Builds the query string of the HTTP-Redirect binding, signed with
+	 * RSA-SHA256.
+	 * 
+	 * @param samlResponse
+	 *            the deflated and Base64 encoded response
+	 * @param relayState
+	 *            the relay state, or <code>null</code>
+	 * @return the signed query string, URL encoded
+	 */
+	public String signQuery(String samlResponse, String relayState)
+			throws Exception {
+		return signQuery("SAMLResponse", samlResponse, relayState);
+	}
+
+	/**
+	 * Creates the signed query string of a message sent over the
+	 * HTTP-Redirect binding, signed with RSA-SHA256.
+	 * 
+	 * @param parameter
+	 *            the name of the parameter carrying the message, SAMLRequest
+	 *            or SAMLResponse
+	 * @param message
+	 *            the deflated and Base64 encoded message
+	 * @param relayState
+	 *            the relay state, or <code>null</code>
+	 * @return the signed query string, URL encoded
+	 */
+	public String signQuery(String parameter, String message,
+			String relayState) throws Exception {
+		StringBuilder query = new StringBuilder(parameter).append('=')
+				.append(URLEncoder.encode(message, "UTF-8"));
+		if (relayState != null) {
+			query.append("&RelayState=").append(
+					URLEncoder.encode(relayState, "UTF-8"));
+		}
+		query.append("&SigAlg=").append(
+				URLEncoder.encode(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA256,
+						"UTF-8"));
+		java.security.Signature signature = java.security.Signature
+				.getInstance("SHA256withRSA");
+		signature.initSign(credential.getPrivateKey());
+		signature.update(query.toString().getBytes("UTF-8"));
+		return query
+				.append("&Signature=")
+				.append(URLEncoder.encode(Base64.encodeBytes(
+						signature.sign(), Base64.DONT_BREAK_LINES), "UTF-8"))
+				.toString();
+	}
+
+	private Response parse(String xml) throws Exception {
+		Saml2Bootstrap.bootstrap();
+		return TokenToSaml2Response.convertToken(Base64.encodeBytes(
+				xml.getBytes("UTF-8"), Base64.DONT_BREAK_LINES));
+	}
+
+	private Signature newSignature() throws Exception {
+		@SuppressWarnings("unchecked")
+		XMLObjectBuilder<Signature> signatureBuilder = Configuration
+				.getBuilderFactory().getBuilder(Signature.DEFAULT_ELEMENT_NAME);
+		Signature signature = signatureBuilder
+				.buildObject(Signature.DEFAULT_ELEMENT_NAME);
+		signature.setSigningCredential(credential);
+		signature
+				.setSignatureAlgorithm(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA256);
+		signature
+				.setCanonicalizationAlgorithm(SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+
+		@SuppressWarnings("unchecked")
+		XMLObjectBuilder<KeyInfo> keyInfoBuilder = Configuration
+				.getBuilderFactory().getBuilder(KeyInfo.DEFAULT_ELEMENT_NAME);
+		KeyInfo keyInfo = keyInfoBuilder.buildObject(KeyInfo.DEFAULT_ELEMENT_NAME);
+		KeyInfoHelper.addCertificate(keyInfo,
+				credential.getEntityCertificate());
+		signature.setKeyInfo(keyInfo);
+		return signature;
+	}
+
+	private static Element marshall(Response response) throws Exception {
+		return Configuration.getMarshallerFactory().getMarshaller(response)
+				.marshall(response);
+	}
+
+	private static X509Certificate loadCertificate(String location)
+			throws Exception {
+		InputStream in = ResourceUtils.getInputStreamForPath(location);
+		try {
+			return (X509Certificate) CertificateFactory.getInstance("X.509")
+					.generateCertificate(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static PrivateKey loadPrivateKey(String location) throws Exception {
+		String pem = new String(readAll(location), "US-ASCII");
+		String encoded = pem.replaceAll("-----[A-Z ]+-----", "").replaceAll(
+				"\\s", "");
+		return KeyFactory.getInstance("RSA").generatePrivate(
+				new PKCS8EncodedKeySpec(Base64.decode(encoded)));
+	}
+
+	private static byte[] readAll(String location) throws IOException {
+		InputStream in = ResourceUtils.getInputStreamForPath(location);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.test.support;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.opensaml.xml.util.Base64;
+
+/**
+ * In-process stand-in for an IdP, issuing fresh SAML2 responses signed with
+ * the test signing key and optionally encrypted for the test SP key, so that
+ * the module can be exercised end to end without a real IdP.
+ * <p>
+ * Responses are issued in turn by each of the configured issuers, the size
+ * and validity window of the responses being those of the
+ * {@link SamlResponseGenerator}.
+ */
+public class SimulatedIdentityProvider {
+
+	private final SamlResponseGenerator generator;
+
+	private SamlResponseSigner signer;
+
+	private SamlResponseEncryptor encryptor;
+
+	private List<String> issuers;
+
+	private int issued = 0;
+
+	/*
+	 * Whether the assertions are signed rather than the responses
+	 */
+	private boolean signAssertions = false;
+
+	/**
+	 * Creates an IdP issuing small, signed and unencrypted responses
+	 */
+	public SimulatedIdentityProvider() throws Exception {
+		this(SamlResponseGenerator.small());
+	}
+
+	/**
+	 * @param generator
+	 *            the generator of the unsigned responses
+	 */
+	public SimulatedIdentityProvider(SamlResponseGenerator generator)
+			throws Exception {
+		this.generator = generator;
+		this.signer = new SamlResponseSigner();
+		this.issuers = Collections.singletonList(generator.getIssuer());
+	}
+
+	/**
+	 * @return a new response, Base64 encoded as posted by the IdP
+	 */
+	public synchronized String issue() throws Exception {
+		generator.setIssuer(issuers.get(issued++ % issuers.size()));
+		String xml = generator.generate();
+		if (encryptor != null) {
+			/*
+			 * Encrypted assertions can only be signed inside the encryption
+			 */
+			xml = encryptor.encryptAssertions(signer != null ? signer
+					.signAssertions(xml) : xml);
+		} else if (signer != null) {
+			xml = signAssertions ? signer.signAssertions(xml) : signer
+					.signResponse(xml);
+		}
+		return Base64.encodeBytes(xml.getBytes("UTF-8"),
+				Base64.DONT_BREAK_LINES);
+	}
+
+	/**
+	 * @param count
+	 *            the number of responses
+	 * @return new responses, Base64 encoded as posted by the IdP
+	 */
+	public String[] issue(int count) throws Exception {
+		String[] responses = new String[count];
+		for (int i = 0; i < count; i++) {
+			responses[i] = issue();
+		}
+		return responses;
+	}
+
+	public SamlResponseGenerator getGenerator() {
+		return generator;
+	}
+
+	public SamlResponseSigner getSigner() {
+		return signer;
+	}
+
+	/**
+	 * @param signer
+	 *            the signer of the responses, null for unsigned responses
+	 */
+	public void setSigner(SamlResponseSigner signer) {
+		this.signer = signer;
+	}
+
+	public SamlResponseEncryptor getEncryptor() {
+		return encryptor;
+	}
+
+	/**
+	 * @param encryptor
+	 *            the encryptor of the assertions, null for plain assertions
+	 */
+	public void setEncryptor(SamlResponseEncryptor encryptor) {
+		this.encryptor = encryptor;
+	}
+
+	public List<String> getIssuers() {
+		return issuers;
+	}
+
+	/**
+	 * @param issuers
+	 *            the entity IDs issuing the responses in turn
+	 */
+	public void setIssuers(String... issuers) {
+		this.issuers = Arrays.asList(issuers);
+	}
+
+	public boolean isSignAssertions() {
+		return signAssertions;
+	}
+
+	public void setSignAssertions(boolean signAssertions) {
+		this.signAssertions = signAssertions;
+	}
+}
@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.test.support;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.opensaml.xml.util.Base64;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process artifact resolution service of an IdP, answering the SOAP
+ * <code>ArtifactResolve</code> requests of the HTTP-Artifact binding on a
+ * local port.
+ * <p>
+ * Each artifact resolves once into the response it was issued for. The
+ * service counts the requests and the distinct client connections, to check
+ * that connections are kept alive and pooled.
+ */
+public class StubArtifactResolutionService {
+
+	private static final Pattern REQUEST_ID = Pattern
+			.compile("<samlp:ArtifactResolve [^>]*ID=\"([^\"]+)\"");
+
+	private static final Pattern ARTIFACT = Pattern
+			.compile("<samlp:Artifact>([^<]+)</samlp:Artifact>");
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final byte[] sourceId;
+
+	private final Map<String, String> responses = new ConcurrentHashMap<String, String>();
+
+	private final AtomicInteger requestCount = new AtomicInteger();
+
+	private final Set<String> connections = Collections
+			.synchronizedSet(new HashSet<String>());
+
+	private volatile long delayMillis = 0;
+
+	private HttpServer server;
+
+	private ExecutorService executor;
+
+	/**
+	 * @param entityId
+	 *            the entity ID of the IdP, from which the source ID of the
+	 *            artifacts is derived
+	 */
+	public StubArtifactResolutionService(String entityId) throws Exception {
+		sourceId = MessageDigest.getInstance("SHA-1").digest(
+				entityId.getBytes("UTF-8"));
+	}
+
+	/**
+	 * Starts answering on a free local port
+	 */
+	public void start() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 50);
+		server.createContext("/artifact", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				resolve(exchange);
+			}
+		});
+		executor = Executors.newFixedThreadPool(16);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @return the URL of the service
+	 */
+	public String getUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort()
+				+ "/artifact";
+	}
+
+	/**
+	 * @param responseXml
+	 *            the response the artifact stands for
+	 * @return a new type 0x0004 artifact, Base64 encoded
+	 */
+	public String issue(String responseXml) {
+		byte[] artifact = new byte[44];
+		artifact[1] = 0x04;
+		System.arraycopy(sourceId, 0, artifact, 4, 20);
+		byte[] handle = new byte[20];
+		RANDOM.nextBytes(handle);
+		System.arraycopy(handle, 0, artifact, 24, 20);
+		String encoded = Base64.encodeBytes(artifact, Base64.DONT_BREAK_LINES);
+		responses.put(encoded, responseXml.replaceFirst("^<\\?xml[^>]*>", ""));
+		return encoded;
+	}
+
+	private void resolve(HttpExchange exchange) throws IOException {
+		requestCount.incrementAndGet();
+		connections.add(exchange.getRemoteAddress().toString());
+		String request = read(exchange.getRequestBody());
+		if (delayMillis > 0) {
+			try {
+				Thread.sleep(delayMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		Matcher id = REQUEST_ID.matcher(request);
+		Matcher artifact = ARTIFACT.matcher(request);
+		if (!id.find() || !artifact.find()) {
+			exchange.sendResponseHeaders(400, -1);
+			exchange.close();
+			return;
+		}
+		String response = responses.remove(artifact.group(1));
+		StringBuilder xml = new StringBuilder(
+				"<soap11:Envelope xmlns:soap11=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap11:Body>")
+				.append("<samlp:ArtifactResponse xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\"")
+				.append(" ID=\"_").append(Long.toHexString(RANDOM.nextLong()))
+				.append("\" InResponseTo=\"").append(id.group(1))
+				.append("\" Version=\"2.0\" IssueInstant=\"2014-01-01T00:00:00Z\">")
+				.append("<samlp:Status><samlp:StatusCode Value=\"urn:oasis:names:tc:SAML:2.0:status:Success\"/></samlp:Status>");
+		if (response != null) {
+			xml.append(response);
+		}
+		xml.append("</samlp:ArtifactResponse></soap11:Body></soap11:Envelope>");
+
+		byte[] body = xml.toString().getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type",
+				"text/xml; charset=UTF-8");
+		exchange.sendResponseHeaders(200, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+
+	private static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+		while ((n = in.read(buffer)) > 0) {
+			bytes.write(buffer, 0, n);
+		}
+		in.close();
+		return bytes.toString("UTF-8");
+	}
+
+	public int getRequestCount() {
+		return requestCount.get();
+	}
+
+	/**
+	 * @return the number of distinct client connections seen
+	 */
+	public int getConnectionCount() {
+		return connections.size();
+	}
+
+	/**
+	 * @param delayMillis
+	 *            how long each resolution takes
+	 */
+	public void setDelayMillis(long delayMillis) {
+		this.delayMillis = delayMillis;
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.test.support;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.shiro.mgt.DefaultSessionStorageEvaluator;
+import org.apache.shiro.mgt.DefaultSubjectDAO;
+import org.apache.shiro.realm.Realm;
+import org.apache.shiro.saml2.Saml2SubjectFactory;
+import org.apache.shiro.web.mgt.DefaultWebSecurityManager;
+import org.apache.shiro.web.subject.WebSubject;
+
+/**
+ * Builds the Shiro and servlet objects needed to drive a login through the
+ * SAML2 filter without a servlet container.
+ */
+public final class WebTestSupport {
+
+	public static final String SAML_PARAMETER = "SAMLResponse";
+
+	private WebTestSupport() {
+		// Disabling initialization
+	}
+
+	/**
+	 * @param realm
+	 *            the realm authenticating the SAML2 tokens
+	 * @return a web security manager using the SAML2 subject factory, which
+	 *         does not store subjects in sessions
+	 */
+	public static DefaultWebSecurityManager newSecurityManager(Realm realm) {
+		DefaultWebSecurityManager securityManager = new DefaultWebSecurityManager(
+				realm);
+		securityManager.setSubjectFactory(new Saml2SubjectFactory());
+		securityManager.setRememberMeManager(null);
+		((DefaultSessionStorageEvaluator) ((DefaultSubjectDAO) securityManager
+				.getSubjectDAO()).getSessionStorageEvaluator())
+				.setSessionStorageEnabled(false);
+		return securityManager;
+	}
+
+	/**
+	 * @param samlResponse
+	 *            the Base64 encoded SAML2 response
+	 * @return a form POST request carrying the response
+	 */
+	public static HttpServletRequest newPostRequest(String samlResponse) {
+		HttpServletRequest request = mock(HttpServletRequest.class,
+				withSettings().stubOnly());
+		when(request.getMethod()).thenReturn("POST");
+		when(request.getContentType()).thenReturn(
+				"application/x-www-form-urlencoded");
+		when(request.getContextPath()).thenReturn("");
+		when(request.getRequestURI()).thenReturn("/saml2/consumer");
+		when(request.getRemoteAddr()).thenReturn("127.0.0.1");
+		when(request.getParameter(SAML_PARAMETER)).thenReturn(samlResponse);
+		return request;
+	}
+
+	/**
+	 * @param queryString
+	 *            the URL encoded query string of the HTTP-Redirect binding
+	 * @return a GET request carrying the response in its query string
+	 */
+	public static HttpServletRequest newRedirectRequest(String queryString) {
+		HttpServletRequest request = mock(HttpServletRequest.class,
+				withSettings().stubOnly());
+		when(request.getMethod()).thenReturn("GET");
+		when(request.getContextPath()).thenReturn("");
+		when(request.getRequestURI()).thenReturn("/saml2/consumer");
+		when(request.getRemoteAddr()).thenReturn("127.0.0.1");
+		when(request.getQueryString()).thenReturn(queryString);
+		for (String parameter : queryString.split("&")) {
+			int equals = parameter.indexOf('=');
+			try {
+				when(request.getParameter(parameter.substring(0, equals)))
+						.thenReturn(URLDecoder.decode(
+								parameter.substring(equals + 1), "UTF-8"));
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		return request;
+	}
+
+	/**
+	 * @return a response accepting redirects
+	 */
+	public static HttpServletResponse newResponse() {
+		HttpServletResponse response = mock(HttpServletResponse.class,
+				withSettings().stubOnly());
+		when(response.encodeRedirectURL("/")).thenReturn("/");
+		return response;
+	}
+
+	/**
+	 * @return a new anonymous subject bound to the given request
+	 */
+	public static WebSubject newSubject(
+			DefaultWebSecurityManager securityManager,
+			HttpServletRequest request, HttpServletResponse response) {
+		return new WebSubject.Builder(securityManager, request, response)
+				.buildWebSubject();
+	}
+}
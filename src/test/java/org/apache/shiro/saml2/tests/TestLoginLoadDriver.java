@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.tests;
+
+import java.util.List;
+
+import org.apache.shiro.saml2.benchmarks.LoginLoadDriver;
+import org.apache.shiro.saml2.test.support.SamlResponseEncryptor;
+import org.apache.shiro.saml2.test.support.SimulatedIdentityProvider;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestLoginLoadDriver {
+
+	/**
+	 * Test that signed responses of several issuers all log in
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testSignedResponses() throws Exception {
+		SimulatedIdentityProvider identityProvider = new SimulatedIdentityProvider();
+		identityProvider.setIssuers("https://idp1.example.org/SAML2",
+				"https://idp2.example.org/SAML2");
+		LoginLoadDriver.Result result = newDriver(identityProvider).run();
+		Assert.assertEquals(100, result.getLogins());
+		Assert.assertEquals(0, result.getFailures());
+		Assert.assertTrue(result.getThroughput() > 0);
+		Assert.assertTrue(result.getPercentileMillis(0.5) <= result
+				.getPercentileMillis(0.99));
+	}
+
+	/**
+	 * Test that signed and encrypted responses all log in
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testEncryptedResponses() throws Exception {
+		SimulatedIdentityProvider identityProvider = new SimulatedIdentityProvider();
+		identityProvider.setEncryptor(new SamlResponseEncryptor());
+		Assert.assertEquals(0, newDriver(identityProvider).run().getFailures());
+	}
+
+	/**
+	 * Test that failed logins and exceeded thresholds are reported
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testThresholds() throws Exception {
+		SimulatedIdentityProvider identityProvider = new SimulatedIdentityProvider();
+		/*
+		 * Responses expired before they are posted
+		 */
+		identityProvider.getGenerator().setValidityMillis(-120 * 1000L);
+		LoginLoadDriver driver = newDriver(identityProvider);
+		driver.setMinThroughput(Double.MAX_VALUE);
+		driver.setMaxP99Millis(Double.MIN_VALUE);
+		LoginLoadDriver.Result result = driver.run();
+		Assert.assertEquals(100, result.getFailures());
+
+		List<String> violations = driver.check(result);
+		Assert.assertEquals(3, violations.size());
+		Assert.assertEquals("100 logins failed", violations.get(0));
+	}
+
+	private static LoginLoadDriver newDriver(
+			SimulatedIdentityProvider identityProvider) {
+		LoginLoadDriver driver = new LoginLoadDriver(identityProvider);
+		driver.setThreads(2);
+		driver.setLogins(100);
+		driver.setWarmupLogins(10);
+		return driver;
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.tests;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.shiro.saml2.Saml2AdmissionControl;
+import org.apache.shiro.saml2.Saml2Filter;
+import org.apache.shiro.saml2.Saml2RateLimiter;
+import org.apache.shiro.saml2.Saml2RejectionReason;
+import org.apache.shiro.saml2.test.support.WebTestSupport;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestSaml2AdmissionControl {
+
+	/**
+	 * Test that a client is limited to its burst, then to the sustained rate
+	 */
+	@Test
+	public void testRateLimiter() {
+		ManualRateLimiter limiter = new ManualRateLimiter(10, 2, 100);
+		Assert.assertTrue(limiter.tryAcquire("10.0.0.1"));
+		Assert.assertTrue(limiter.tryAcquire("10.0.0.1"));
+		Assert.assertFalse(limiter.tryAcquire("10.0.0.1"));
+		Assert.assertTrue(limiter.tryAcquire("10.0.0.2"));
+
+		limiter.time += 100000000L;
+		Assert.assertTrue(limiter.tryAcquire("10.0.0.1"));
+		Assert.assertFalse(limiter.tryAcquire("10.0.0.1"));
+	}
+
+	/**
+	 * Test that the number of tracked clients is bounded, and that a sweep
+	 * frees room for several new clients
+	 */
+	@Test
+	public void testRateLimiterEviction() {
+		ManualRateLimiter limiter = new ManualRateLimiter(1, 1, 10);
+		for (int i = 0; i < 100; i++) {
+			Assert.assertTrue(limiter.tryAcquire("10.0.0." + i));
+		}
+		Assert.assertTrue(limiter.size() <= 10);
+		Assert.assertEquals(100 - limiter.size(), limiter.getEvictionCount());
+
+		long evictions = limiter.getEvictionCount();
+		limiter.tryAcquire("10.0.1.0");
+		Assert.assertTrue(limiter.size() < 10);
+		evictions = limiter.getEvictionCount() - evictions;
+		Assert.assertTrue(evictions + " evicted", evictions > 1);
+		limiter.tryAcquire("10.0.1.1");
+		Assert.assertEquals(10, limiter.size());
+	}
+
+	/**
+	 * Test that logins beyond the concurrency limit are turned away
+	 */
+	@Test
+	public void testConcurrencyLimit() {
+		Saml2AdmissionControl admissionControl = new Saml2AdmissionControl();
+		admissionControl.setMaxConcurrentLogins(1);
+		admissionControl.setAdmissionTimeout(0);
+		Assert.assertTrue(admissionControl.acquire());
+		Assert.assertFalse(admissionControl.acquire());
+		admissionControl.release();
+		Assert.assertTrue(admissionControl.acquire());
+		Assert.assertEquals(1, admissionControl
+				.getRejectionCount(Saml2RejectionReason.CONCURRENCY_LIMIT));
+	}
+
+	/**
+	 * Test that an oversized response is rejected before being decoded
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testPayloadTooLarge() throws Exception {
+		RejectingFilter filter = new RejectingFilter();
+		filter.getAdmissionControl().setMaxPayloadSize(16);
+		HttpServletResponse response = mock(HttpServletResponse.class);
+
+		Assert.assertFalse(filter.accessDenied(
+				WebTestSupport.newPostRequest("not even Base64 but too long"),
+				response));
+		verify(response).sendError(413);
+		Assert.assertEquals(1, filter.getAdmissionControl().getRejectionCount(
+				Saml2RejectionReason.PAYLOAD_TOO_LARGE));
+	}
+
+	/**
+	 * Test that a client exceeding its rate is rejected
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testRateLimit() throws Exception {
+		RejectingFilter filter = new RejectingFilter();
+		filter.getAdmissionControl().setRateLimiter(
+				new ManualRateLimiter(1, 1, 10));
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		when(request.getRemoteAddr()).thenReturn("10.0.0.1");
+		filter.getAdmissionControl().admit(request);
+		HttpServletResponse response = mock(HttpServletResponse.class);
+
+		Assert.assertFalse(filter.accessDenied(request, response));
+		verify(response).sendError(429);
+		Assert.assertEquals(1, filter.getAdmissionControl().getRejectionCount(
+				Saml2RejectionReason.RATE_LIMIT));
+	}
+
+	/*
+	 * A rate limiter whose clock is moved by the test
+	 */
+	static class ManualRateLimiter extends Saml2RateLimiter {
+
+		long time = 0;
+
+		ManualRateLimiter(double permitsPerSecond, int burst, int maxClients) {
+			super(permitsPerSecond, burst, maxClients);
+		}
+
+		@Override
+		protected long nanoTime() {
+			return time;
+		}
+	}
+
+	/*
+	 * Exposes the protected access denied handling of the filter to the test
+	 */
+	static class RejectingFilter extends Saml2Filter {
+
+		boolean accessDenied(ServletRequest request, ServletResponse response)
+				throws Exception {
+			return onAccessDenied(request, response);
+		}
+	}
+}
@@ -0,0 +1,230 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.tests;
+
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.servlet.ServletRequest;
+
+import org.apache.shiro.authc.AuthenticationException;
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.apache.shiro.authc.AuthenticationToken;
+import org.apache.shiro.saml2.Saml2ArtifactResolver;
+import org.apache.shiro.saml2.Saml2Binding;
+import org.apache.shiro.saml2.Saml2Filter;
+import org.apache.shiro.saml2.Saml2Principal;
+import org.apache.shiro.saml2.Saml2Realm;
+import org.apache.shiro.saml2.Saml2SignatureVerifier;
+import org.apache.shiro.saml2.Saml2Token;
+import org.apache.shiro.saml2.Saml2TokenValidationException;
+import org.apache.shiro.saml2.test.support.SamlResponseGenerator;
+import org.apache.shiro.saml2.test.support.SamlResponseSigner;
+import org.apache.shiro.saml2.test.support.StubArtifactResolutionService;
+import org.apache.shiro.saml2.test.support.WebTestSupport;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.saml2.core.Response;
+
+public class TestSaml2ArtifactResolver {
+
+	private static final String IDP = "https://idp.example.org/SAML2";
+
+	private StubArtifactResolutionService service;
+
+	private Saml2ArtifactResolver resolver;
+
+	private SamlResponseGenerator generator;
+
+	@Before
+	public void setUp() throws Exception {
+		service = new StubArtifactResolutionService(IDP);
+		service.start();
+		resolver = new Saml2ArtifactResolver(service.getUrl());
+		resolver.setIssuer("https://sp.example.org");
+		generator = SamlResponseGenerator.small();
+	}
+
+	@After
+	public void tearDown() {
+		resolver.destroy();
+		service.stop();
+	}
+
+	/**
+	 * Test that an artifact resolves once into the response it stands for
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testResolve() throws Exception {
+		String artifact = service.issue(generator.generate());
+		Response response = resolver.resolve(artifact);
+		Assert.assertEquals(1, response.getAssertions().size());
+		Assert.assertEquals(IDP, response.getAssertions().get(0).getIssuer()
+				.getValue());
+		try {
+			resolver.resolve(artifact);
+			Assert.fail("An artifact resolves only once");
+		} catch (Saml2TokenValidationException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Test that sequential resolutions share a single kept alive connection
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testConnectionIsKeptAlive() throws Exception {
+		for (int i = 0; i < 20; i++) {
+			resolver.resolve(service.issue(generator.generate()));
+		}
+		Assert.assertEquals(20, service.getRequestCount());
+		Assert.assertEquals(1, service.getConnectionCount());
+	}
+
+	/**
+	 * Test that concurrent resolutions all succeed within the bounded pool
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testConcurrentResolutionsAreBounded() throws Exception {
+		resolver.setMaxConnections(2);
+		resolver.setMaxConnectionsPerHost(2);
+		resolver.init();
+		service.setDelayMillis(50);
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Response>> results = new ArrayList<Future<Response>>();
+			for (int i = 0; i < 16; i++) {
+				final String artifact = service.issue(generator.generate());
+				results.add(executor.submit(new Callable<Response>() {
+					public Response call() throws Exception {
+						return resolver.resolve(artifact);
+					}
+				}));
+			}
+			for (Future<Response> result : results) {
+				Assert.assertEquals(1, result.get().getAssertions().size());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		Assert.assertTrue(service.getConnectionCount() <= 2);
+	}
+
+	/**
+	 * Test that malformed artifacts and artifacts from unknown sources are
+	 * rejected without any request
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testRejectedArtifacts() throws Exception {
+		String artifact = service.issue(generator.generate());
+		try {
+			resolver.resolve("bm90IGFuIGFydGlmYWN0");
+			Assert.fail("Malformed artifact resolved");
+		} catch (Saml2TokenValidationException e) {
+			// Expected
+		}
+
+		resolver.setServiceUrl(null);
+		resolver.setServiceUrls(Collections.singletonMap(
+				"https://other.example.org", service.getUrl()));
+		try {
+			resolver.resolve(artifact);
+			Assert.fail("Artifact from an unknown source resolved");
+		} catch (Saml2TokenValidationException e) {
+			// Expected
+		}
+		Assert.assertEquals(0, service.getRequestCount());
+
+		resolver.setServiceUrls(Collections.singletonMap(IDP,
+				service.getUrl()));
+		Assert.assertNotNull(resolver.resolve(artifact));
+	}
+
+	/**
+	 * Test that the filter creates artifact tokens, which the realm resolves
+	 * and verifies like posted responses
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testArtifactLogin() throws Exception {
+		String artifact = service.issue(new SamlResponseSigner()
+				.signResponse(generator.generate()));
+		Saml2Token token = (Saml2Token) new TokenFilter()
+				.token(WebTestSupport.newRedirectRequest("SAMLart="
+						+ URLEncoder.encode(artifact, "UTF-8")));
+		Assert.assertTrue(token.isArtifact());
+
+		TestRealm realm = new TestRealm();
+		realm.setArtifactResolver(resolver);
+		realm.setSignatureVerifier(new Saml2SignatureVerifier(
+				SamlResponseSigner.CERTIFICATE_LOCATION));
+		Assert.assertEquals("shiro-saml2",
+				realm.authenticate(token).getPrincipals()
+						.oneByType(Saml2Principal.class).getNameId());
+	}
+
+	/**
+	 * Test that artifacts are rejected by a realm without resolver
+	 *
+	 * @throws Exception
+	 */
+	@Test(expected = AuthenticationException.class)
+	public void testArtifactWithoutResolver() throws Exception {
+		new TestRealm().authenticate(new Saml2Token(service.issue(generator
+				.generate()), Saml2Binding.HTTP_ARTIFACT));
+	}
+
+	/*
+	 * Exposes the protected realm lookup to the test
+	 */
+	private static class TestRealm extends Saml2Realm {
+
+		AuthenticationInfo authenticate(Saml2Token token) {
+			return doGetAuthenticationInfo(token);
+		}
+	}
+
+	/*
+	 * Exposes the protected token creation of the filter to the test
+	 */
+	private static class TokenFilter extends Saml2Filter {
+
+		AuthenticationToken token(ServletRequest request) throws Exception {
+			return createToken(request, WebTestSupport.newResponse());
+		}
+	}
+}
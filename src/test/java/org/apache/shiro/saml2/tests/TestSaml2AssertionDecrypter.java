@@ -0,0 +1,229 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.apache.shiro.saml2.Saml2AssertionDecrypter;
+import org.apache.shiro.saml2.Saml2AuthenticationException;
+import org.apache.shiro.saml2.Saml2Principal;
+import org.apache.shiro.saml2.Saml2Realm;
+import org.apache.shiro.saml2.Saml2SignatureVerifier;
+import org.apache.shiro.saml2.Saml2Token;
+import org.apache.shiro.saml2.Saml2TokenValidationException;
+import org.apache.shiro.saml2.TokenToSaml2Response;
+import org.apache.shiro.saml2.test.support.SamlResponseEncryptor;
+import org.apache.shiro.saml2.test.support.SamlResponseGenerator;
+import org.apache.shiro.saml2.test.support.SamlResponseSigner;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.xml.util.Base64;
+
+public class TestSaml2AssertionDecrypter {
+
+	private SamlResponseEncryptor encryptor;
+
+	private Saml2AssertionDecrypter decrypter;
+
+	@Before
+	public void setUp() throws Exception {
+		encryptor = new SamlResponseEncryptor();
+		decrypter = new Saml2AssertionDecrypter(
+				SamlResponseEncryptor.KEY_LOCATION);
+	}
+
+	@After
+	public void tearDown() {
+		decrypter.destroy();
+	}
+
+	/**
+	 * Test that assertions are decrypted with each supported combination of
+	 * key transport and encryption algorithms
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testAlgorithms() throws Exception {
+		for (String keyTransport : new String[] {
+				SamlResponseEncryptor.RSA_OAEP_MGF1P,
+				SamlResponseEncryptor.RSA_OAEP }) {
+			for (String algorithm : new String[] {
+					SamlResponseEncryptor.AES128_CBC,
+					SamlResponseEncryptor.AES256_CBC,
+					SamlResponseEncryptor.AES128_GCM,
+					SamlResponseEncryptor.AES256_GCM }) {
+				encryptor.setKeyTransportAlgorithm(keyTransport);
+				encryptor.setDataAlgorithm(algorithm);
+				List<Assertion> assertions = decrypter.decrypt(convert(encryptor
+						.encryptAssertions(SamlResponseGenerator.small()
+								.generate())));
+				Assert.assertEquals(1, assertions.size());
+				Assert.assertEquals("shiro-saml2", assertions.get(0)
+						.getSubject().getNameID().getValue());
+			}
+		}
+	}
+
+	/**
+	 * Test that the assertions of a response are decrypted in parallel, with
+	 * shared or separate keys, and returned in document order
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testMultipleAssertions() throws Exception {
+		decrypter.setParallelism(4);
+		SamlResponseGenerator generator = SamlResponseGenerator.small();
+		generator.setAssertionCount(8);
+		for (boolean sharedKey : new boolean[] { true, false }) {
+			encryptor.setSharedKey(sharedKey);
+			String xml = generator.generate();
+			List<Assertion> assertions = decrypter.decrypt(convert(encryptor
+					.encryptAssertions(xml)));
+
+			List<String> ids = new ArrayList<String>();
+			for (Assertion assertion : assertions) {
+				ids.add(assertion.getID());
+			}
+			Assert.assertEquals(assertionIds(xml), ids);
+		}
+	}
+
+	/**
+	 * Test that only the executor created by the decrypter is shut down with
+	 * it
+	 */
+	@Test
+	public void testSharedExecutorIsKept() {
+		ExecutorService created = decrypter.getExecutor();
+		decrypter.destroy();
+		Assert.assertTrue(created.isShutdown());
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		decrypter.setExecutor(executor);
+		decrypter.destroy();
+		Assert.assertFalse(executor.isShutdown());
+		executor.shutdown();
+	}
+
+	/**
+	 * Test that assertions encrypted for another key are rejected
+	 *
+	 * @throws Exception
+	 */
+	@Test(expected = Saml2TokenValidationException.class)
+	public void testWrongKey() throws Exception {
+		new Saml2AssertionDecrypter(SamlResponseSigner.KEY_LOCATION)
+				.decrypt(convert(encryptor
+						.encryptAssertions(SamlResponseGenerator.small()
+								.generate())));
+	}
+
+	/**
+	 * Test that an assertion modified after encryption is rejected
+	 *
+	 * @throws Exception
+	 */
+	@Test(expected = Saml2TokenValidationException.class)
+	public void testTamperedAssertion() throws Exception {
+		String xml = encryptor.encryptAssertions(SamlResponseGenerator.small()
+				.generate());
+		int value = xml.lastIndexOf("</xenc:CipherValue>") - 10;
+		char c = xml.charAt(value) == 'A' ? 'B' : 'A';
+		decrypter.decrypt(convert(xml.substring(0, value) + c
+				+ xml.substring(value + 1)));
+	}
+
+	/**
+	 * Test that the realm authenticates encrypted assertions, verifying the
+	 * signatures they carry
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testRealm() throws Exception {
+		SamlResponseSigner signer = new SamlResponseSigner();
+		TestRealm realm = new TestRealm();
+		realm.setAssertionDecrypter(decrypter);
+		realm.setSignatureVerifier(new Saml2SignatureVerifier(
+				SamlResponseSigner.CERTIFICATE_LOCATION));
+
+		String xml = SamlResponseGenerator.small().generate();
+		Saml2Principal principal = realm
+				.authenticate(
+						encryptor.encryptAssertions(signer.signAssertions(xml)))
+				.getPrincipals().oneByType(Saml2Principal.class);
+		Assert.assertEquals("shiro-saml2", principal.getNameId());
+		Assert.assertEquals(2, principal.getAttributeValues("roles").size());
+
+		try {
+			realm.authenticate(encryptor.encryptAssertions(SamlResponseGenerator
+					.small().generate()));
+			Assert.fail("Unsigned encrypted assertion accepted");
+		} catch (Saml2AuthenticationException e) {
+			// Expected
+		}
+
+		realm.setAssertionDecrypter(null);
+		try {
+			realm.authenticate(encryptor.encryptAssertions(signer
+					.signAssertions(SamlResponseGenerator.small().generate())));
+			Assert.fail("Encrypted assertion accepted without decrypter");
+		} catch (Saml2AuthenticationException e) {
+			// Expected
+		}
+	}
+
+	private static List<String> assertionIds(String xml) {
+		List<String> ids = new ArrayList<String>();
+		Matcher matcher = Pattern.compile("<saml:Assertion ID=\"([^\"]+)\"")
+				.matcher(xml);
+		while (matcher.find()) {
+			ids.add(matcher.group(1));
+		}
+		return ids;
+	}
+
+	private static Response convert(String xml) throws Exception {
+		return TokenToSaml2Response.convertToken(Base64.encodeBytes(
+				xml.getBytes("UTF-8"), Base64.DONT_BREAK_LINES));
+	}
+
+	/*
+	 * Exposes the protected realm lookup to the test
+	 */
+	private static class TestRealm extends Saml2Realm {
+
+		AuthenticationInfo authenticate(String xml) throws Exception {
+			return doGetAuthenticationInfo(new Saml2Token(Base64.encodeBytes(
+					xml.getBytes("UTF-8"), Base64.DONT_BREAK_LINES)));
+		}
+	}
+}
@@ -0,0 +1,312 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.tests;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+
+import org.apache.shiro.saml2.Saml2AssertionValidator;
+import org.apache.shiro.saml2.Saml2ExtractedAssertion;
+import org.apache.shiro.saml2.Saml2Realm;
+import org.apache.shiro.saml2.Saml2StaxExtractor;
+import org.apache.shiro.saml2.Saml2Token;
+import org.apache.shiro.saml2.Saml2ValidationFailure;
+import org.apache.shiro.saml2.TokenToSaml2Response;
+import org.apache.shiro.saml2.test.support.SamlResponseGenerator;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.xml.util.Base64;
+
+import com.sun.management.ThreadMXBean;
+
+public class TestSaml2AssertionValidator {
+
+	private SamlResponseGenerator generator;
+
+	private Saml2AssertionValidator validator;
+
+	@Before
+	public void setUp() {
+		generator = SamlResponseGenerator.small();
+		validator = new Saml2AssertionValidator(generator.getAudience(),
+				generator.getRecipient());
+	}
+
+	/**
+	 * Test that an assertion meant for the SP is accepted by both paths
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testValidAssertion() throws Exception {
+		long now = System.currentTimeMillis();
+		Assert.assertNull(validator.validate(assertion(), now, "request_1"));
+		Assert.assertNull(validator.validate(extractedAssertion(), now));
+	}
+
+	/**
+	 * Test that an assertion restricted to another audience is rejected
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testAudience() throws Exception {
+		generator.setAudience("https://other.example.com/SAML2");
+		assertFailure(Saml2ValidationFailure.AUDIENCE,
+				System.currentTimeMillis());
+	}
+
+	/**
+	 * Test that an assertion without audience restriction is rejected when
+	 * audiences are configured
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testNoAudienceRestriction() throws Exception {
+		generator.setAudience(null);
+		assertFailure(Saml2ValidationFailure.AUDIENCE,
+				System.currentTimeMillis());
+
+		validator.setAudiences(null);
+		long now = System.currentTimeMillis();
+		Assert.assertNull(validator.validate(assertion(), now, "request_1"));
+		Assert.assertNull(validator.validate(extractedAssertion(), now));
+	}
+
+	/**
+	 * Test that an assertion addressed to another recipient is rejected
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testRecipient() throws Exception {
+		generator.setRecipient("https://other.example.com/SAML2/SSO/POST");
+		assertFailure(Saml2ValidationFailure.RECIPIENT,
+				System.currentTimeMillis());
+	}
+
+	/**
+	 * Test that the validity window is enforced, give or take the clock skew
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testClockSkew() throws Exception {
+		generator.setValidityMillis(-1000L);
+		assertFailure(Saml2ValidationFailure.EXPIRED,
+				System.currentTimeMillis());
+
+		validator.setClockSkew(5000L);
+		long now = System.currentTimeMillis();
+		Assert.assertNull(validator.validate(assertion(), now, "request_1"));
+		Assert.assertNull(validator.validate(extractedAssertion(), now));
+
+		/*
+		 * NotBefore is a minute before the generation
+		 */
+		generator.setValidityMillis(60000L);
+		assertFailure(Saml2ValidationFailure.NOT_YET_VALID,
+				System.currentTimeMillis() - 70000L);
+	}
+
+	/**
+	 * Test that a bearer confirmation must answer the request of the SP
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testInResponseTo() throws Exception {
+		long now = System.currentTimeMillis();
+		Assert.assertEquals(Saml2ValidationFailure.IN_RESPONSE_TO,
+				validator.validate(assertion(), now, "request_2"));
+		Assert.assertNull(validator.validate(assertion(), now, null));
+
+		/*
+		 * The signed confirmation is enough to make the response solicited
+		 */
+		validator.setRequireInResponseTo(true);
+		Assert.assertNull(validator.validate(assertion(), now, null));
+		String xml = withConfirmations(generator.generate(),
+				confirmation(null, generator.getRecipient(), now + 60000L));
+		Assert.assertEquals(Saml2ValidationFailure.IN_RESPONSE_TO,
+				validator.validate(assertion(xml), now, null));
+	}
+
+	/**
+	 * Test that an assertion without bearer subject confirmation is rejected
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testNoBearerConfirmation() throws Exception {
+		generator.setConfirmationMethod("urn:oasis:names:tc:SAML:2.0:cm:holder-of-key");
+		assertFailure(Saml2ValidationFailure.NO_BEARER_CONFIRMATION,
+				System.currentTimeMillis());
+	}
+
+	/**
+	 * Test that each bearer confirmation is validated on its own, so that a
+	 * valid one is not spoiled by an expired one, and that two invalid ones
+	 * do not make up a valid one
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testConfirmationsValidatedSeparately() throws Exception {
+		long now = System.currentTimeMillis();
+		String recipient = generator.getRecipient();
+		String xml = withConfirmations(generator.generate(),
+				confirmation("request_1", recipient, now - 60000L),
+				confirmation("request_1", recipient, now + 60000L));
+		Assert.assertNull(validator.validate(assertion(xml), now, "request_1"));
+		Assert.assertNull(validator.validate(extractedAssertion(xml), now));
+
+		xml = withConfirmations(generator.generate(),
+				confirmation("request_1", null, now + 60000L),
+				confirmation(null, recipient, now + 60000L));
+		Assert.assertEquals(Saml2ValidationFailure.IN_RESPONSE_TO,
+				validator.validate(assertion(xml), now, "request_1"));
+		Assert.assertEquals(Saml2ValidationFailure.IN_RESPONSE_TO,
+				validator.validate(extractedAssertion(xml), now));
+	}
+
+	/**
+	 * Test that the realm checks the audience and recipient against its
+	 * consumer URL
+	 */
+	@Test
+	public void testRealmServiceProviderUrl() {
+		TestRealm realm = new TestRealm();
+		realm.setServiceProviderConsumerUrl(generator.getRecipient());
+		generator.setAudience(generator.getRecipient());
+		Assert.assertNotNull(realm.authenticate(new Saml2Token(generator
+				.generateEncoded())));
+
+		realm.setServiceProviderConsumerUrl("https://other.example.com/SAML2/SSO/POST");
+		Assert.assertNull(realm.authenticate(new Saml2Token(generator
+				.generateEncoded())));
+	}
+
+	/**
+	 * Test that accepting an assertion does not allocate
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testNoAllocation() throws Exception {
+		Assertion assertion = assertion();
+		Saml2ExtractedAssertion extracted = extractedAssertion();
+		ThreadMXBean threads = (ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		int failures = 0;
+		long allocated = 0;
+		for (int round = 0; round < 2; round++) {
+			long now = System.currentTimeMillis();
+			long before = threads.getThreadAllocatedBytes(threadId);
+			for (int i = 0; i < 100000; i++) {
+				if (validator.validate(assertion, now, "request_1") != null
+						|| validator.validate(extracted, now) != null) {
+					failures++;
+				}
+			}
+			allocated = threads.getThreadAllocatedBytes(threadId) - before;
+		}
+		Assert.assertEquals(0, failures);
+		Assert.assertTrue(allocated + " bytes allocated", allocated < 100000);
+	}
+
+	private void assertFailure(Saml2ValidationFailure expected, long now)
+			throws Exception {
+		Assert.assertEquals(expected,
+				validator.validate(assertion(), now, "request_1"));
+		Assert.assertEquals(expected,
+				validator.validate(extractedAssertion(), now));
+	}
+
+	private Assertion assertion() throws Exception {
+		return assertion(generator.generate());
+	}
+
+	private Assertion assertion(String xml) throws Exception {
+		return TokenToSaml2Response.convertToken(encode(xml)).getAssertions()
+				.get(0);
+	}
+
+	private Saml2ExtractedAssertion extractedAssertion() throws Exception {
+		return extractedAssertion(generator.generate());
+	}
+
+	private Saml2ExtractedAssertion extractedAssertion(String xml)
+			throws Exception {
+		return new Saml2StaxExtractor().extract(encode(xml),
+				Collections.<String> emptySet()).get(0);
+	}
+
+	private static String encode(String xml) {
+		return Base64.encodeBytes(xml.getBytes(), Base64.DONT_BREAK_LINES);
+	}
+
+	/*
+	 * Replaces the subject confirmation of the generated response
+	 */
+	private static String withConfirmations(String xml,
+			String... confirmations) {
+		int start = xml.indexOf("<saml:SubjectConfirmation ");
+		String end = "</saml:SubjectConfirmation>";
+		StringBuilder replaced = new StringBuilder(xml.substring(0, start));
+		for (String confirmation : confirmations) {
+			replaced.append(confirmation);
+		}
+		return replaced.append(xml.substring(xml.indexOf(end) + end.length()))
+				.toString();
+	}
+
+	private static String confirmation(String inResponseTo, String recipient,
+			long notOnOrAfter) {
+		StringBuilder xml = new StringBuilder(
+				"<saml:SubjectConfirmation Method=\"urn:oasis:names:tc:SAML:2.0:cm:bearer\">");
+		xml.append("<saml:SubjectConfirmationData");
+		if (inResponseTo != null) {
+			xml.append(" InResponseTo=\"").append(inResponseTo).append('"');
+		}
+		if (recipient != null) {
+			xml.append(" Recipient=\"").append(recipient).append('"');
+		}
+		xml.append(" NotOnOrAfter=\"")
+				.append(new DateTime(notOnOrAfter, DateTimeZone.UTC))
+				.append("\"/>");
+		return xml.append("</saml:SubjectConfirmation>").toString();
+	}
+
+	/*
+	 * Exposes the protected realm lookup to the test
+	 */
+	private static class TestRealm extends Saml2Realm {
+
+		Object authenticate(Saml2Token token) {
+			return doGetAuthenticationInfo(token);
+		}
+	}
+}
@@ -0,0 +1,297 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.tests;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.shiro.authc.AuthenticationException;
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.apache.shiro.authc.AuthenticationToken;
+import org.apache.shiro.saml2.Saml2Filter;
+import org.apache.shiro.saml2.Saml2Realm;
+import org.apache.shiro.saml2.test.support.SamlResponseGenerator;
+import org.apache.shiro.saml2.test.support.WebTestSupport;
+import org.apache.shiro.util.ThreadContext;
+import org.apache.shiro.web.mgt.DefaultWebSecurityManager;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class TestSaml2AsyncLogin {
+
+	private DefaultWebSecurityManager securityManager;
+
+	private AsyncFilter filter;
+
+	private HttpServletRequest request;
+
+	private HttpServletResponse response;
+
+	private AsyncContext asyncContext;
+
+	private final CountDownLatch completed = new CountDownLatch(1);
+
+	@Before
+	public void setUp() throws Exception {
+		securityManager = WebTestSupport.newSecurityManager(new Saml2Realm());
+		filter = new AsyncFilter();
+		filter.setAsynchronous(true);
+		filter.setFailureUrl("/failure");
+
+		response = mock(HttpServletResponse.class);
+		when(response.encodeRedirectURL(any(String.class))).thenAnswer(
+				new Answer<String>() {
+					public String answer(InvocationOnMock invocation) {
+						return invocation.getArgument(0);
+					}
+				});
+		asyncContext = mock(AsyncContext.class);
+		doAnswer(new Answer<Void>() {
+			public Void answer(InvocationOnMock invocation) {
+				completed.countDown();
+				return null;
+			}
+		}).when(asyncContext).complete();
+
+		request = mock(HttpServletRequest.class);
+		when(request.getMethod()).thenReturn("POST");
+		when(request.getContentType()).thenReturn(
+				"application/x-www-form-urlencoded");
+		when(request.getContextPath()).thenReturn("");
+		when(request.getRequestURI()).thenReturn("/saml2/consumer");
+		when(request.isAsyncSupported()).thenReturn(true);
+		when(request.startAsync(request, response)).thenReturn(asyncContext);
+		when(asyncContext.getRequest()).thenReturn(request);
+		when(asyncContext.getResponse()).thenReturn(response);
+	}
+
+	@After
+	public void tearDown() {
+		filter.destroy();
+		ThreadContext.unbindSubject();
+	}
+
+	/**
+	 * Test that a login is completed off the calling thread and redirected to
+	 * the success URL
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testAsynchronousLogin() throws Exception {
+		post(SamlResponseGenerator.small().generateEncoded());
+		Assert.assertFalse(accessDenied());
+		Assert.assertTrue(completed.await(10, TimeUnit.SECONDS));
+		verify(response).sendRedirect("/");
+	}
+
+	/**
+	 * Test that an invalid response is redirected to the failure URL
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testAsynchronousLoginFailure() throws Exception {
+		post("bm90IGEgcmVzcG9uc2U=");
+		Assert.assertFalse(accessDenied());
+		Assert.assertTrue(completed.await(10, TimeUnit.SECONDS));
+		verify(response).sendRedirect("/failure");
+	}
+
+	/**
+	 * Test that a saturated executor answers with a 503
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testSaturatedExecutor() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		executor.shutdown();
+		filter.setAsyncExecutor(executor);
+		post(SamlResponseGenerator.small().generateEncoded());
+		Assert.assertFalse(accessDenied());
+		Assert.assertTrue(completed.await(10, TimeUnit.SECONDS));
+		verify(response).sendError(
+				HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+	}
+
+	/**
+	 * Test that only the executor created by the filter is shut down with it
+	 */
+	@Test
+	public void testSharedExecutorIsKept() {
+		ExecutorService created = filter.getAsyncExecutor();
+		filter.destroy();
+		Assert.assertTrue(created.isShutdown());
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		filter.setAsyncExecutor(executor);
+		filter.destroy();
+		Assert.assertFalse(executor.isShutdown());
+		executor.shutdown();
+	}
+
+	/**
+	 * Test that a login finishing after the timeout answered the request
+	 * leaves the response alone
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testTimeoutDuringLogin() throws Exception {
+		final CountDownLatch loggingIn = new CountDownLatch(1);
+		final CountDownLatch timedOut = new CountDownLatch(1);
+		securityManager = WebTestSupport.newSecurityManager(new Saml2Realm() {
+			@Override
+			protected AuthenticationInfo doGetAuthenticationInfo(
+					AuthenticationToken token) throws AuthenticationException {
+				loggingIn.countDown();
+				try {
+					timedOut.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return super.doGetAuthenticationInfo(token);
+			}
+		});
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		filter.setAsyncExecutor(executor);
+		post(SamlResponseGenerator.small().generateEncoded());
+		Assert.assertFalse(accessDenied());
+		Assert.assertTrue(loggingIn.await(10, TimeUnit.SECONDS));
+
+		ArgumentCaptor<AsyncListener> listener = ArgumentCaptor
+				.forClass(AsyncListener.class);
+		verify(asyncContext).addListener(listener.capture());
+		listener.getValue().onTimeout(null);
+		timedOut.countDown();
+		executor.shutdown();
+		Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+		verify(response).sendError(
+				HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		verify(response, never()).sendRedirect(any(String.class));
+		verify(asyncContext, times(1)).complete();
+	}
+
+	private boolean accessDenied() throws Exception {
+		ThreadContext.bind(WebTestSupport.newSubject(securityManager, request,
+				response));
+		return filter.accessDenied(request, response);
+	}
+
+	private void post(String samlResponse) throws IOException {
+		byte[] body = ("RelayState=state&SAMLResponse=" + URLEncoder.encode(
+				samlResponse, "UTF-8")).getBytes("UTF-8");
+		when(request.getContentLength()).thenReturn(body.length);
+		when(request.getInputStream()).thenReturn(
+				new ChunkedInputStream(body));
+	}
+
+	/*
+	 * Exposes the protected access denied handling of the filter to the test
+	 */
+	static class AsyncFilter extends Saml2Filter {
+
+		boolean accessDenied(ServletRequest request, ServletResponse response)
+				throws Exception {
+			return onAccessDenied(request, response);
+		}
+	}
+
+	/*
+	 * A non-blocking stream delivering the body in small chunks, notifying
+	 * the listener as soon as it is registered
+	 */
+	static class ChunkedInputStream extends ServletInputStream {
+
+		private static final int CHUNK_SIZE = 100;
+
+		private final ByteArrayInputStream in;
+
+		private int available = 0;
+
+		ChunkedInputStream(byte[] body) {
+			in = new ByteArrayInputStream(body);
+		}
+
+		@Override
+		public int read() throws IOException {
+			available--;
+			return in.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = in.read(b, off, Math.min(len, available));
+			available = 0;
+			return read;
+		}
+
+		@Override
+		public boolean isReady() {
+			return available > 0;
+		}
+
+		@Override
+		public boolean isFinished() {
+			return in.available() == 0;
+		}
+
+		@Override
+		public void setReadListener(ReadListener listener) {
+			try {
+				while (!isFinished()) {
+					available = CHUNK_SIZE;
+					listener.onDataAvailable();
+				}
+				listener.onAllDataRead();
+			} catch (IOException e) {
+				listener.onError(e);
+			}
+		}
+	}
+}
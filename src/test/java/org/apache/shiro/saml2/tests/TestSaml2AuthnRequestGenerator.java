@@ -0,0 +1,231 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.tests;
+
+import java.io.InputStream;
+import java.net.URLDecoder;
+
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.apache.shiro.saml2.Saml2AuthnRequestGenerator;
+import org.apache.shiro.saml2.Saml2Bootstrap;
+import org.apache.shiro.saml2.Saml2OutstandingRequests;
+import org.apache.shiro.saml2.Saml2Realm;
+import org.apache.shiro.saml2.Saml2RedirectBinding;
+import org.apache.shiro.saml2.Saml2Token;
+import org.apache.shiro.saml2.TokenToSaml2Response;
+import org.apache.shiro.saml2.test.support.SamlResponseGenerator;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.Configuration;
+import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.xml.util.Base64;
+import org.w3c.dom.Element;
+
+public class TestSaml2AuthnRequestGenerator {
+
+	private static final String IDP_URL = "https://idp.example.org/SAML2/SSO/Redirect";
+
+	private static final String SP_URL = "https://sp.example.org/saml2/consumer";
+
+	private Saml2AuthnRequestGenerator generator;
+
+	@Before
+	public void setUp() throws Exception {
+		Saml2Bootstrap.bootstrap();
+		generator = new Saml2AuthnRequestGenerator(IDP_URL, SP_URL);
+	}
+
+	/**
+	 * Test that the redirect URL carries a valid AuthnRequest, recorded as
+	 * outstanding
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testCreateRedirectUrl() throws Exception {
+		long before = System.currentTimeMillis() / 1000L * 1000L;
+		String url = generator.createRedirectUrl("/target?a=b");
+		Assert.assertTrue(url.startsWith(IDP_URL + "?SAMLRequest="));
+		Assert.assertTrue(url.endsWith("&RelayState=%2Ftarget%3Fa%3Db"));
+
+		AuthnRequest request = decode(url.substring(
+				url.indexOf('=') + 1, url.indexOf('&')));
+		Assert.assertEquals(IDP_URL, request.getDestination());
+		Assert.assertEquals(SP_URL, request.getAssertionConsumerServiceURL());
+		Assert.assertEquals(SP_URL, request.getIssuer().getValue());
+		Assert.assertTrue(request.getIssueInstant().getMillis() >= before);
+		Assert.assertTrue(request.getIssueInstant().getMillis() <= System
+				.currentTimeMillis());
+
+		Saml2OutstandingRequests outstanding = generator
+				.getOutstandingRequests();
+		Assert.assertEquals(1, outstanding.size());
+		Assert.assertTrue(outstanding.consume(request.getID()));
+		Assert.assertFalse(outstanding.consume(request.getID()));
+	}
+
+	/**
+	 * Test that each request gets its own ID, and that the thread's buffers
+	 * grow with the template
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testTemplateIsRecompiled() throws Exception {
+		String first = generator.newRequestId();
+		AuthnRequest request = decode(generator.encode(first, 0L));
+		Assert.assertEquals(first, request.getID());
+		Assert.assertEquals(0L, request.getIssueInstant().getMillis());
+		Assert.assertNull(request.getNameIDPolicy());
+
+		StringBuilder issuer = new StringBuilder("https://sp.example.org/");
+		for (int i = 0; i < 500; i++) {
+			issuer.append(Integer.toHexString(i * 7919));
+		}
+		generator.setIssuer(issuer.toString());
+		generator
+				.setNameIdFormat("urn:oasis:names:tc:SAML:2.0:nameid-format:persistent");
+		String second = generator.newRequestId();
+		Assert.assertFalse(first.equals(second));
+		request = decode(generator.encode(second, 1234567000L));
+		Assert.assertEquals(second, request.getID());
+		Assert.assertEquals(issuer.toString(), request.getIssuer().getValue());
+		Assert.assertEquals(1234567000L, request.getIssueInstant().getMillis());
+		Assert.assertEquals(
+				"urn:oasis:names:tc:SAML:2.0:nameid-format:persistent",
+				request.getNameIDPolicy().getFormat());
+	}
+
+	/**
+	 * Test that outstanding requests time out and are bounded
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testOutstandingRequests() throws Exception {
+		Saml2OutstandingRequests outstanding = new Saml2OutstandingRequests(
+				4, 1);
+		for (int i = 0; i < 6; i++) {
+			outstanding.add("request_" + i);
+		}
+		Assert.assertEquals(4, outstanding.size());
+		Assert.assertEquals(2, outstanding.getEvictionCount());
+		Assert.assertFalse(outstanding.consume("request_0"));
+		Assert.assertTrue(outstanding.consume("request_5"));
+
+		outstanding.setTimeToLive(1L);
+		outstanding.add("late");
+		Thread.sleep(10);
+		Assert.assertFalse(outstanding.consume("late"));
+	}
+
+	/**
+	 * Test that the realm only accepts a response answering an outstanding
+	 * request, once
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testRealmChecksOutstandingRequests() throws Exception {
+		Saml2OutstandingRequests outstanding = new Saml2OutstandingRequests();
+		TestRealm realm = new TestRealm();
+		realm.setOutstandingRequests(outstanding);
+		SamlResponseGenerator responses = SamlResponseGenerator.small();
+
+		/*
+		 * The generated responses answer request_1
+		 */
+		Assert.assertNull(realm.authenticate(new Saml2Token(responses
+				.generateEncoded())));
+		outstanding.add("request_1");
+		Assert.assertNotNull(realm.authenticate(new Saml2Token(responses
+				.generateEncoded())));
+		Assert.assertNull(realm.authenticate(new Saml2Token(responses
+				.generateEncoded())));
+
+		realm.setFastPath(true);
+		outstanding.add("request_1");
+		Assert.assertNotNull(realm.authenticate(new Saml2Token(responses
+				.generateEncoded())));
+		Assert.assertNull(realm.authenticate(new Saml2Token(responses
+				.generateEncoded())));
+	}
+
+	/**
+	 * Test that the request answered is taken from the signed subject
+	 * confirmation, so that removing the InResponseTo of the response does
+	 * not bypass the outstanding requests
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testRealmChecksConfirmationInResponseTo() throws Exception {
+		Saml2OutstandingRequests outstanding = new Saml2OutstandingRequests();
+		TestRealm realm = new TestRealm();
+		realm.setOutstandingRequests(outstanding);
+		SamlResponseGenerator responses = SamlResponseGenerator.small();
+
+		for (boolean fastPath : new boolean[] { false, true }) {
+			realm.setFastPath(fastPath);
+			Assert.assertNull(realm.authenticate(new Saml2Token(
+					withoutInResponseTo(responses.generate()))));
+			outstanding.add("request_1");
+			Assert.assertNotNull(realm.authenticate(new Saml2Token(
+					withoutInResponseTo(responses.generate()))));
+			Assert.assertNull(realm.authenticate(new Saml2Token(
+					withoutInResponseTo(responses.generate()))));
+		}
+	}
+
+	/*
+	 * Removes the InResponseTo of the response, keeping the one of the
+	 * subject confirmation
+	 */
+	private static String withoutInResponseTo(String xml) {
+		String stripped = xml.replaceFirst(
+				" InResponseTo=\"request_1\" Version=", " Version=");
+		Assert.assertNotEquals(xml, stripped);
+		return Base64.encodeBytes(stripped.getBytes(),
+				Base64.DONT_BREAK_LINES);
+	}
+
+	private static AuthnRequest decode(String samlRequest) throws Exception {
+		InputStream xml = Saml2RedirectBinding.inflate(
+				URLDecoder.decode(samlRequest, "UTF-8"), 0);
+		try {
+			Element element = TokenToSaml2Response.getDefaultParserPool()
+					.parse(xml).getDocumentElement();
+			return (AuthnRequest) Configuration.getUnmarshallerFactory()
+					.getUnmarshaller(element).unmarshall(element);
+		} finally {
+			xml.close();
+		}
+	}
+
+	/*
+	 * Exposes the protected realm lookup to the test
+	 */
+	private static class TestRealm extends Saml2Realm {
+
+		AuthenticationInfo authenticate(Saml2Token token) {
+			return doGetAuthenticationInfo(token);
+		}
+	}
+}
@@ -0,0 +1,243 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.tests;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.shiro.saml2.Saml2BatchSummary;
+import org.apache.shiro.saml2.Saml2BatchValidator;
+import org.apache.shiro.saml2.Saml2SignatureVerifier;
+import org.apache.shiro.saml2.Saml2Stage;
+import org.apache.shiro.saml2.test.support.SamlResponseGenerator;
+import org.apache.shiro.saml2.test.support.SamlResponseSigner;
+import org.apache.shiro.saml2.test.support.SimulatedIdentityProvider;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestSaml2BatchValidator {
+
+	private static final String OTHER_ISSUER = "https://idp.example.net/SAML2";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Saml2BatchValidator validator;
+
+	private SimulatedIdentityProvider identityProvider;
+
+	@Before
+	public void setUp() throws Exception {
+		validator = new Saml2BatchValidator();
+		validator.setParallelism(4);
+		validator.setChunkSize(3);
+		validator.setSignatureVerifier(new Saml2SignatureVerifier(
+				SamlResponseSigner.CERTIFICATE_LOCATION));
+		identityProvider = new SimulatedIdentityProvider();
+	}
+
+	@After
+	public void tearDown() {
+		validator.destroy();
+	}
+
+	/**
+	 * Test that every kind of line is validated and reported in input order
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testCaptureFile() throws Exception {
+		StringBuilder capture = new StringBuilder();
+		capture.append(identityProvider.issue()).append('\n');
+		capture.append("{\"time\":\"2026-10-18T10:00:00Z\", \"SAMLResponse\" : \"")
+				.append(identityProvider.issue().replace("/", "\\/"))
+				.append("\"}\n");
+		capture.append(
+				identityProvider.issue().replace("+", "%2B")
+						.replace("=", "%3D")).append('\n');
+		capture.append('\n');
+		capture.append(SamlResponseGenerator.small().generateEncoded())
+				.append('\n');
+		capture.append("not a response\n");
+		identityProvider.setIssuers(OTHER_ISSUER);
+		identityProvider.getGenerator().setValidityMillis(-120 * 1000L);
+		capture.append(identityProvider.issue()).append('\n');
+		capture.append("{\"time\":\"2026-10-18T10:00:00Z\"}\n");
+
+		StringWriter output = new StringWriter();
+		Saml2BatchSummary summary = validator.validate(new BufferedReader(
+				new StringReader(capture.toString())), output);
+
+		String[] results = output.toString().split("\n");
+		Assert.assertEquals(7, results.length);
+		Assert.assertTrue(results[0].startsWith("{\"line\":1,\"valid\":true,"
+				+ "\"issuer\":\"https://idp.example.org/SAML2\""));
+		Assert.assertTrue(results[1].startsWith("{\"line\":2,\"valid\":true"));
+		Assert.assertTrue(results[2].startsWith("{\"line\":3,\"valid\":true"));
+		Assert.assertTrue(results[3].startsWith("{\"line\":5,\"valid\":false"));
+		Assert.assertTrue(results[3].contains("\"stage\":\"SIGNATURE\""));
+		Assert.assertTrue(results[4].startsWith("{\"line\":6,\"valid\":false"));
+		Assert.assertTrue(results[4].contains("\"stage\":\"PARSE\""));
+		Assert.assertTrue(results[5].startsWith("{\"line\":7,\"valid\":false"));
+		Assert.assertTrue(results[5]
+				.contains("\"stage\":\"VALIDATION\",\"failure\":\"EXPIRED\""));
+		Assert.assertTrue(results[6].startsWith("{\"line\":8,\"valid\":false"));
+		Assert.assertTrue(results[6].contains("\"stage\":\"DECODE\""));
+
+		Assert.assertEquals(7, summary.getTotal());
+		Assert.assertEquals(3, summary.getValid());
+		Saml2BatchSummary.IssuerSummary known = summary.getIssuers().get(
+				"https://idp.example.org/SAML2");
+		Assert.assertEquals(4, known.getTotal());
+		Assert.assertEquals(3, known.getValid());
+		Assert.assertEquals(Long.valueOf(1),
+				known.getFailures().get("SIGNATURE"));
+		Assert.assertEquals(Long.valueOf(1), summary.getIssuers()
+				.get(OTHER_ISSUER).getFailures().get("VALIDATION EXPIRED"));
+		Assert.assertEquals(2,
+				summary.getIssuers().get(Saml2BatchSummary.UNKNOWN_ISSUER)
+						.getTotal());
+	}
+
+	/**
+	 * Test that captured responses can be validated as of their issue
+	 */
+	@Test
+	public void testAtIssueInstant() throws Exception {
+		identityProvider.getGenerator().setValidityMillis(1000L);
+		String expired = identityProvider.issue();
+		Thread.sleep(2000L);
+		Assert.assertFalse(validator.validate(expired, 1).isValid());
+		validator.setAtIssueInstant(true);
+		Assert.assertTrue(validator.validate(expired, 1).isValid());
+	}
+
+	/**
+	 * Test that only the workers created by the validator are shut down with
+	 * it
+	 */
+	@Test
+	public void testSharedExecutorIsKept() {
+		ExecutorService created = validator.getExecutor();
+		validator.destroy();
+		Assert.assertTrue(created.isShutdown());
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		validator.setExecutor(executor);
+		validator.destroy();
+		Assert.assertFalse(executor.isShutdown());
+		executor.shutdown();
+	}
+
+	/**
+	 * Test that results keep the input order when many chunks are in flight
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testOrderIsKept() throws Exception {
+		List<String> responses = new ArrayList<String>();
+		for (String response : identityProvider.issue(20)) {
+			responses.add(response);
+			responses.add("garbage");
+		}
+		StringBuilder capture = new StringBuilder();
+		for (int i = 0; i < 10; i++) {
+			for (String response : responses) {
+				capture.append(response).append('\n');
+			}
+		}
+		StringWriter output = new StringWriter();
+		Saml2BatchSummary summary = validator.validate(new BufferedReader(
+				new StringReader(capture.toString())), output);
+
+		String[] results = output.toString().split("\n");
+		Assert.assertEquals(400, results.length);
+		for (int i = 0; i < results.length; i++) {
+			Assert.assertTrue(results[i].startsWith("{\"line\":" + (i + 1)
+					+ ",\"valid\":" + (i % 2 == 0)));
+		}
+		Assert.assertEquals(200, summary.getValid());
+	}
+
+	/**
+	 * Test the command line tool
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testCommandLine() throws Exception {
+		File input = folder.newFile("capture.txt");
+		Writer writer = new OutputStreamWriter(new FileOutputStream(input),
+				"UTF-8");
+		try {
+			for (String response : identityProvider.issue(5)) {
+				writer.write(response);
+				writer.write('\n');
+			}
+		} finally {
+			writer.close();
+		}
+		File output = new File(folder.getRoot(), "results.jsonl");
+
+		Saml2BatchValidator.main(new String[] { "-threads", "2",
+				"-certificates", SamlResponseSigner.CERTIFICATE_LOCATION,
+				input.getPath(), output.getPath() });
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(output), "UTF-8"));
+		try {
+			int count = 0;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				Assert.assertTrue(line.contains("\"valid\":true"));
+				count++;
+			}
+			Assert.assertEquals(5, count);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Test that a response without signature fails at the signature stage
+	 */
+	@Test
+	public void testUnsignedResponse() {
+		Assert.assertEquals(Saml2Stage.SIGNATURE, validator.validate(
+				SamlResponseGenerator.small().generateEncoded(), 1)
+				.getFailedStage());
+	}
+}
@@ -0,0 +1,372 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.tests;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.apache.shiro.authc.AuthenticationToken;
+import org.apache.shiro.saml2.Saml2AuthnRequestGenerator;
+import org.apache.shiro.saml2.Saml2Filter;
+import org.apache.shiro.saml2.Saml2LogoutHandler;
+import org.apache.shiro.saml2.Saml2OutstandingRequests;
+import org.apache.shiro.saml2.Saml2ParserPool;
+import org.apache.shiro.saml2.Saml2RateLimiter;
+import org.apache.shiro.saml2.Saml2Realm;
+import org.apache.shiro.saml2.Saml2RedirectBinding;
+import org.apache.shiro.saml2.Saml2RejectionReason;
+import org.apache.shiro.saml2.Saml2Token;
+import org.apache.shiro.saml2.test.support.SamlResponseGenerator;
+import org.apache.shiro.saml2.test.support.WebTestSupport;
+import org.apache.shiro.subject.Subject;
+import org.apache.shiro.util.ThreadContext;
+import org.apache.shiro.web.mgt.DefaultWebSecurityManager;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.opensaml.xml.util.Base64;
+
+public class TestSaml2Filter {
+
+	private final Saml2ParserPool parserPool = new Saml2ParserPool();
+
+	private DefaultWebSecurityManager securityManager;
+
+	private LoginFilter filter;
+
+	private HttpSession session;
+
+	private SamlResponseGenerator generator;
+
+	@Before
+	public void setUp() {
+		Saml2Realm realm = new Saml2Realm();
+		realm.setParserPool(parserPool);
+		securityManager = WebTestSupport.newSecurityManager(realm);
+		filter = new LoginFilter();
+		filter.setFailureUrl("/failure");
+		generator = SamlResponseGenerator.small();
+
+		final Map<String, Object> attributes = new HashMap<String, Object>();
+		session = mock(HttpSession.class);
+		when(session.getAttribute(anyString())).thenAnswer(
+				new Answer<Object>() {
+					public Object answer(InvocationOnMock invocation) {
+						return attributes.get(invocation.getArgument(0));
+					}
+				});
+		doAnswer(new Answer<Void>() {
+			public Void answer(InvocationOnMock invocation) {
+				attributes.put((String) invocation.getArgument(0),
+						invocation.getArgument(1));
+				return null;
+			}
+		}).when(session).setAttribute(anyString(), any());
+	}
+
+	@After
+	public void tearDown() {
+		ThreadContext.unbindSubject();
+	}
+
+	/**
+	 * Test that by default a response posted by an authenticated subject is
+	 * processed again
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testAuthenticatedSubjectIsProcessed() throws Exception {
+		String samlResponse = generator.generateEncoded();
+		login(samlResponse);
+		post(samlResponse);
+		Assert.assertEquals(2, parserPool.getBorrowCount());
+	}
+
+	/**
+	 * Test that an authenticated subject is redirected without its response
+	 * being parsed
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testSkipAuthenticated() throws Exception {
+		filter.setSkipAuthenticated(true);
+		login(generator.generateEncoded());
+		HttpServletResponse response = post(generator.generateEncoded());
+		Assert.assertEquals(1, parserPool.getBorrowCount());
+		verify(response).sendRedirect("/");
+	}
+
+	/**
+	 * Test that only the response which authenticated the session is skipped
+	 * when resubmitted
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testSkipResubmitted() throws Exception {
+		filter.setSkipResubmitted(true);
+		String samlResponse = generator.generateEncoded();
+		login(samlResponse);
+
+		HttpServletResponse response = post(samlResponse);
+		Assert.assertEquals(1, parserPool.getBorrowCount());
+		verify(response).sendRedirect("/");
+
+		post(samlResponse);
+		Assert.assertEquals(1, parserPool.getBorrowCount());
+
+		post(generator.generateEncoded());
+		Assert.assertEquals(2, parserPool.getBorrowCount());
+	}
+
+	/**
+	 * Test that an anonymous subject is always processed
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testAnonymousSubjectIsProcessed() throws Exception {
+		filter.setSkipAuthenticated(true);
+		filter.setSkipResubmitted(true);
+		login(generator.generateEncoded());
+		Assert.assertEquals(1, parserPool.getBorrowCount());
+	}
+
+	/**
+	 * Test that a request without response starts an SP-initiated login
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testSpInitiatedLogin() throws Exception {
+		Saml2AuthnRequestGenerator generator = new Saml2AuthnRequestGenerator(
+				"https://idp.example.org/SSO", "https://sp.example.org/acs");
+		filter.setAuthnRequestGenerator(generator);
+		HttpServletRequest request = newRequest(null);
+		when(request.getMethod()).thenReturn("GET");
+		when(request.getContentType()).thenReturn(null);
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		ThreadContext.bind(WebTestSupport.newSubject(securityManager, request,
+				response));
+
+		Assert.assertFalse(filter.accessDenied(request, response));
+		verify(response).sendRedirect(
+				startsWith("https://idp.example.org/SSO?SAMLRequest="));
+		Assert.assertEquals(1, generator.getOutstandingRequests().size());
+		Assert.assertEquals(0, parserPool.getBorrowCount());
+	}
+
+	/**
+	 * Test that a flood of SP-initiated logins is rate limited, and that the
+	 * requests it evicts from the shared cache are still accepted in the
+	 * session which sent them
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testSpInitiatedFlood() throws Exception {
+		Saml2AuthnRequestGenerator requests = new Saml2AuthnRequestGenerator(
+				"https://idp.example.org/SSO", "https://sp.example.org/acs");
+		requests.setOutstandingRequests(new Saml2OutstandingRequests(4, 1));
+		Saml2Realm realm = new Saml2Realm();
+		realm.setOutstandingRequests(requests.getOutstandingRequests());
+		securityManager = WebTestSupport.newSecurityManager(realm);
+		filter.setAuthnRequestGenerator(requests);
+		filter.getAdmissionControl().setRateLimiter(
+				new Saml2RateLimiter(0.01, 5));
+
+		HttpServletRequest request = newRequest(null);
+		when(request.getMethod()).thenReturn("GET");
+		when(request.getRemoteAddr()).thenReturn("192.0.2.1");
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		ThreadContext.bind(WebTestSupport.newSubject(securityManager, request,
+				response));
+		Assert.assertFalse(filter.accessDenied(request, response));
+		ArgumentCaptor<String> redirect = ArgumentCaptor.forClass(String.class);
+		verify(response).sendRedirect(redirect.capture());
+
+		for (int i = 0; i < 100; i++) {
+			flood("10.0.0.1");
+			flood("10.0.1." + i);
+		}
+		Assert.assertEquals(95, filter.getAdmissionControl()
+				.getRejectionCount(Saml2RejectionReason.RATE_LIMIT));
+		Assert.assertTrue(requests.getOutstandingRequests()
+				.getEvictionCount() > 0);
+
+		login(Base64.encodeBytes(
+				this.generator.generate().replace("request_1",
+						requestId(redirect.getValue())).getBytes(),
+				Base64.DONT_BREAK_LINES));
+	}
+
+	/**
+	 * Test that the sessions logged in are registered for Single Logout
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testLoginRegistersSession() throws Exception {
+		Saml2LogoutHandler logoutHandler = new Saml2LogoutHandler();
+		filter.setLogoutHandler(logoutHandler);
+		when(session.getId()).thenReturn("session-1");
+		login(generator.generateEncoded());
+
+		Assert.assertEquals(Collections.singletonList("session-1"),
+				logoutHandler.getSessionRegistry().getSessionIds(
+						generator.getIssuer(), generator.getNameId()));
+	}
+
+	/**
+	 * Test that the form content type is recognized whatever its case and
+	 * the default locale
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testFormContentTypeIgnoresLocale() throws Exception {
+		Locale locale = Locale.getDefault();
+		Locale.setDefault(new Locale("tr", "TR"));
+		try {
+			filter.setStreaming(true);
+			HttpServletRequest request = WebTestSupport.newPostRequest(null);
+			when(request.getContentType()).thenReturn(
+					"APPLICATION/X-WWW-FORM-URLENCODED; charset=UTF-8");
+			Assert.assertTrue(((Saml2Token) filter.createToken(request,
+					mock(HttpServletResponse.class))).isStreaming());
+		} finally {
+			Locale.setDefault(locale);
+		}
+	}
+
+	private void login(String samlResponse) throws Exception {
+		HttpServletRequest request = newRequest(samlResponse);
+		HttpServletResponse response = WebTestSupport.newResponse();
+		Subject subject = WebTestSupport.newSubject(securityManager, request,
+				response);
+		ThreadContext.bind(subject);
+		Assert.assertFalse(subject.isAuthenticated());
+		filter.accessDenied(request, response);
+		Assert.assertTrue(subject.isAuthenticated());
+	}
+
+	/*
+	 * Starts an SP-initiated login from another client, in a new session
+	 */
+	private void flood(String remoteAddr) throws Exception {
+		HttpServletRequest request = newRequest(null);
+		when(request.getMethod()).thenReturn("GET");
+		when(request.getRemoteAddr()).thenReturn(remoteAddr);
+		HttpSession floodSession = mock(HttpSession.class);
+		when(request.getSession()).thenReturn(floodSession);
+		when(request.getSession(false)).thenReturn(floodSession);
+		when(request.getSession(true)).thenReturn(floodSession);
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		ThreadContext.bind(WebTestSupport.newSubject(securityManager, request,
+				response));
+		filter.accessDenied(request, response);
+	}
+
+	private static String requestId(String redirectUrl) throws Exception {
+		String samlRequest = redirectUrl.substring(redirectUrl
+				.indexOf("SAMLRequest=") + "SAMLRequest=".length());
+		InputStream xml = Saml2RedirectBinding.inflate(
+				URLDecoder.decode(samlRequest, "UTF-8"), 0);
+		try {
+			Matcher id = Pattern.compile(" ID=\"([^\"]+)\"").matcher(
+					new Scanner(xml, "UTF-8").useDelimiter("\\A").next());
+			Assert.assertTrue(id.find());
+			return id.group(1);
+		} finally {
+			xml.close();
+		}
+	}
+
+	private HttpServletResponse post(String samlResponse) throws Exception {
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		when(response.encodeRedirectURL(anyString())).thenAnswer(
+				new Answer<String>() {
+					public String answer(InvocationOnMock invocation) {
+						return invocation.getArgument(0);
+					}
+				});
+		filter.accessDenied(newRequest(samlResponse), response);
+		return response;
+	}
+
+	private HttpServletRequest newRequest(String samlResponse) {
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		when(request.getMethod()).thenReturn("POST");
+		when(request.getContentType()).thenReturn(
+				"application/x-www-form-urlencoded");
+		when(request.getContextPath()).thenReturn("");
+		when(request.getRequestURI()).thenReturn("/saml2/consumer");
+		when(request.getRemoteAddr()).thenReturn("127.0.0.1");
+		when(request.getParameter(WebTestSupport.SAML_PARAMETER)).thenReturn(
+				samlResponse);
+		when(request.getSession()).thenReturn(session);
+		when(request.getSession(false)).thenReturn(session);
+		when(request.getSession(true)).thenReturn(session);
+		return request;
+	}
+
+	/*
+	 * Exposes the protected access denied handling of the filter to the test
+	 */
+	private static class LoginFilter extends Saml2Filter {
+
+		boolean accessDenied(ServletRequest request, ServletResponse response)
+				throws Exception {
+			return onAccessDenied(request, response);
+		}
+
+		@Override
+		protected AuthenticationToken createToken(ServletRequest request,
+				ServletResponse response) throws Exception {
+			return super.createToken(request, response);
+		}
+	}
+}
@@ -0,0 +1,368 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.tests;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.apache.shiro.authz.AuthorizationInfo;
+import org.apache.shiro.saml2.Saml2AuthenticationException;
+import org.apache.shiro.saml2.Saml2BatchResult;
+import org.apache.shiro.saml2.Saml2BatchValidator;
+import org.apache.shiro.saml2.Saml2IdentityProvider;
+import org.apache.shiro.saml2.Saml2IdentityProviderRegistry;
+import org.apache.shiro.saml2.Saml2Realm;
+import org.apache.shiro.saml2.Saml2Token;
+import org.apache.shiro.saml2.test.support.SamlResponseGenerator;
+import org.apache.shiro.saml2.test.support.SamlResponseSigner;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opensaml.xml.util.Base64;
+
+public class TestSaml2IdentityProviderRegistry {
+
+	private static final String IDP = "https://idp.example.org/SAML2";
+
+	private static final String OTHER_IDP = "https://idp.example.com/SAML2";
+
+	private static SamlResponseSigner signer;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Saml2IdentityProviderRegistry registry;
+
+	@BeforeClass
+	public static void setUpSigner() throws Exception {
+		signer = new SamlResponseSigner();
+	}
+
+	@Before
+	public void setUp() {
+		registry = new Saml2IdentityProviderRegistry(folder.getRoot()
+				.getPath());
+	}
+
+	@After
+	public void tearDown() {
+		registry.destroy();
+	}
+
+	/**
+	 * Test that the IdPs of an EntitiesDescriptor are registered with their
+	 * signing certificates, other entities being ignored
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testLoadMetadata() throws Exception {
+		write("federation.xml", "<md:EntitiesDescriptor " + NAMESPACES + ">"
+				+ idp(IDP, true) + idp(OTHER_IDP, false)
+				+ "<md:EntityDescriptor entityID=\"https://sp.example.org\">"
+				+ "<md:SPSSODescriptor protocolSupportEnumeration=\""
+				+ PROTOCOL + "\"><md:AssertionConsumerService Binding=\""
+				+ POST_BINDING + "\" Location=\"https://sp.example.org/acs\""
+				+ " index=\"0\"/></md:SPSSODescriptor></md:EntityDescriptor>"
+				+ "</md:EntitiesDescriptor>");
+		registry.init();
+
+		Assert.assertEquals(2, registry.getIdentityProviders().size());
+		Saml2IdentityProvider provider = registry.get(IDP);
+		Assert.assertEquals(signer.getCertificate(), provider
+				.getSigningCertificates().get(0));
+		Assert.assertNotNull(provider.getSignatureVerifier());
+		Assert.assertNull(provider.getAuthorizationPlan());
+		Assert.assertNull(registry.get(OTHER_IDP).getSignatureVerifier());
+		Assert.assertNull(registry.get("https://sp.example.org"));
+	}
+
+	/**
+	 * Test that the realm verifies responses with the keys of their issuer and
+	 * rejects unknown issuers
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testRealmTrustsRegisteredIdentityProviders() throws Exception {
+		write("idp.xml", entity(IDP, true));
+		TestRealm realm = new TestRealm();
+		realm.setIdentityProviderRegistry(registry);
+		realm.init();
+
+		SamlResponseGenerator generator = SamlResponseGenerator.small();
+		Assert.assertNotNull(realm.authenticate(signer.signResponse(generator
+				.generate())));
+		try {
+			realm.authenticate(generator.generate());
+			Assert.fail("Unsigned response accepted");
+		} catch (Saml2AuthenticationException e) {
+			// Expected
+		}
+
+		generator.setIssuer(OTHER_IDP);
+		try {
+			realm.authenticate(signer.signResponse(generator.generate()));
+			Assert.fail("Response of an unknown IdP accepted");
+		} catch (Saml2AuthenticationException e) {
+			Assert.assertEquals("Unknown identity provider " + OTHER_IDP,
+					e.getMessage());
+		}
+	}
+
+	/**
+	 * Test that an IdP cannot issue assertions in the name of another one
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testAssertionIssuerMustMatch() throws Exception {
+		write("idp.xml", entity(IDP, true));
+		write("other.xml", entity(OTHER_IDP, true));
+		TestRealm realm = new TestRealm();
+		realm.setIdentityProviderRegistry(registry);
+		realm.init();
+
+		String xml = SamlResponseGenerator.small().generate();
+		int assertion = xml.indexOf("<saml:Assertion ");
+		xml = xml.substring(0, assertion)
+				+ xml.substring(assertion).replace(IDP, OTHER_IDP);
+		try {
+			realm.authenticate(signer.signResponse(xml));
+			Assert.fail("Assertion issued in the name of another IdP accepted");
+		} catch (Saml2AuthenticationException e) {
+			Assert.assertTrue(e.getMessage().endsWith(
+					" is issued by " + OTHER_IDP + ", not by " + IDP));
+		}
+	}
+
+	/**
+	 * Test that the batch validator rejects an assertion issued in the name
+	 * of another IdP, as the realm does
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testBatchAssertionIssuerMustMatch() throws Exception {
+		write("idp.xml", entity(IDP, true));
+		write("other.xml", entity(OTHER_IDP, true));
+		registry.init();
+		Saml2BatchValidator validator = new Saml2BatchValidator();
+		validator.setIdentityProviderRegistry(registry);
+
+		String xml = SamlResponseGenerator.small().generate();
+		Assert.assertTrue(validator.validate(encode(signer.signResponse(xml)),
+				1).isValid());
+		int assertion = xml.indexOf("<saml:Assertion ");
+		xml = xml.substring(0, assertion)
+				+ xml.substring(assertion).replace(IDP, OTHER_IDP);
+		Saml2BatchResult result = validator.validate(
+				encode(signer.signResponse(xml)), 2);
+		Assert.assertFalse(result.isValid());
+		Assert.assertTrue(result.getReason().endsWith(
+				" is issued by " + OTHER_IDP + ", not by " + IDP));
+	}
+
+	/**
+	 * Test that the authorization configuration of an IdP replaces the one of
+	 * the realm for its users
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testAuthorizationOverrides() throws Exception {
+		write("idp.xml", entity(IDP, true));
+		write("idp.properties", "defaultRoles = partner\n"
+				+ "roleAttributeNames = permissions\n");
+		TestRealm realm = new TestRealm();
+		realm.setDefaultRoles("employee");
+		realm.setRoleAttributeNames(SamlResponseGenerator.ROLE_ATTRIBUTE_NAME);
+		realm.setIdentityProviderRegistry(registry);
+		realm.init();
+
+		AuthorizationInfo info = realm.authorize(realm.authenticate(
+				signer.signResponse(SamlResponseGenerator.small().generate()))
+				.getPrincipals());
+		Assert.assertTrue(info.getRoles().contains("partner"));
+		Assert.assertFalse(info.getRoles().contains("employee"));
+		Assert.assertFalse(info.getRoles().contains("role-0"));
+		Assert.assertTrue(info.getRoles().contains("document:read:0"));
+	}
+
+	/**
+	 * Test that the unsigned responses of an IdP without signing key are
+	 * only accepted when explicitly allowed
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testIdentityProviderWithoutSigningKey() throws Exception {
+		write("idp.xml", entity(IDP, false));
+		TestRealm realm = new TestRealm();
+		realm.setIdentityProviderRegistry(registry);
+		realm.init();
+
+		String response = SamlResponseGenerator.small().generate();
+		try {
+			realm.authenticate(response);
+			Assert.fail("Response of an IdP without signing key accepted");
+		} catch (Saml2AuthenticationException e) {
+			Assert.assertEquals("No signing key for the identity provider "
+					+ IDP, e.getMessage());
+		}
+
+		realm.setAllowUnsignedIdentityProviders(true);
+		Assert.assertNotNull(realm.authenticate(response));
+	}
+
+	/**
+	 * Test that the batch validator rejects the responses of an IdP without
+	 * signing key unless explicitly allowed, as the realm does
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testBatchIdentityProviderWithoutSigningKey() throws Exception {
+		write("idp.xml", entity(IDP, false));
+		registry.init();
+		Saml2BatchValidator validator = new Saml2BatchValidator();
+		validator.setIdentityProviderRegistry(registry);
+
+		String response = encode(SamlResponseGenerator.small().generate());
+		Saml2BatchResult result = validator.validate(response, 1);
+		Assert.assertFalse(result.isValid());
+		Assert.assertEquals("No signing key for the identity provider " + IDP,
+				result.getReason());
+
+		validator.setAllowUnsignedIdentityProviders(true);
+		Assert.assertTrue(validator.validate(response, 1).isValid());
+	}
+
+	/**
+	 * Test that a reload drops removed IdPs and that a broken file keeps the
+	 * IdPs it previously defined
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testReload() throws Exception {
+		write("idp.xml", entity(IDP, true));
+		write("other.xml", entity(OTHER_IDP, false));
+		registry.init();
+		Assert.assertEquals(2, registry.getIdentityProviders().size());
+
+		write("idp.xml", "<md:EntityDescriptor");
+		Assert.assertTrue(new File(folder.getRoot(), "other.xml").delete());
+		registry.reload();
+		Assert.assertNotNull(registry.get(IDP));
+		Assert.assertNull(registry.get(OTHER_IDP));
+		Assert.assertEquals(2, registry.getReloadCount());
+	}
+
+	/**
+	 * Test that a watched directory is reloaded when a file is added
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testWatch() throws Exception {
+		registry.setWatch(true);
+		registry.init();
+		Assert.assertNull(registry.get(IDP));
+
+		write("idp.xml", entity(IDP, true));
+		long deadline = System.currentTimeMillis() + 20000;
+		while (registry.get(IDP) == null
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		Assert.assertNotNull(registry.get(IDP));
+	}
+
+	private static final String NAMESPACES = "xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\""
+			+ " xmlns:ds=\"http://www.w3.org/2000/09/xmldsig#\"";
+
+	private static final String PROTOCOL = "urn:oasis:names:tc:SAML:2.0:protocol";
+
+	private static final String POST_BINDING = "urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST";
+
+	private static String entity(String entityId, boolean signed)
+			throws Exception {
+		return idp(entityId, signed).replace("<md:EntityDescriptor",
+				"<md:EntityDescriptor " + NAMESPACES);
+	}
+
+	private static String idp(String entityId, boolean signed)
+			throws Exception {
+		StringBuilder xml = new StringBuilder();
+		xml.append("<md:EntityDescriptor entityID=\"").append(entityId)
+				.append("\"><md:IDPSSODescriptor protocolSupportEnumeration=\"")
+				.append(PROTOCOL).append("\">");
+		if (signed) {
+			xml.append("<md:KeyDescriptor use=\"signing\"><ds:KeyInfo>"
+					+ "<ds:X509Data><ds:X509Certificate>");
+			xml.append(Base64.encodeBytes(signer.getCertificate()
+					.getEncoded(), Base64.DONT_BREAK_LINES));
+			xml.append("</ds:X509Certificate></ds:X509Data></ds:KeyInfo>"
+					+ "</md:KeyDescriptor>");
+		}
+		xml.append("<md:SingleSignOnService Binding=\"").append(POST_BINDING)
+				.append("\" Location=\"").append(entityId)
+				.append("/SSO\"/></md:IDPSSODescriptor></md:EntityDescriptor>");
+		return xml.toString();
+	}
+
+	private static String encode(String xml) throws Exception {
+		return Base64.encodeBytes(xml.getBytes("UTF-8"),
+				Base64.DONT_BREAK_LINES);
+	}
+
+	private void write(String name, String content) throws Exception {
+		Writer writer = new OutputStreamWriter(new FileOutputStream(new File(
+				folder.getRoot(), name)), "UTF-8");
+		try {
+			writer.write(content);
+		} finally {
+			writer.close();
+		}
+	}
+
+	/*
+	 * Exposes the protected realm lookups to the test
+	 */
+	private static class TestRealm extends Saml2Realm {
+
+		AuthenticationInfo authenticate(String xml) throws Exception {
+			return doGetAuthenticationInfo(new Saml2Token(Base64.encodeBytes(
+					xml.getBytes("UTF-8"), Base64.DONT_BREAK_LINES)));
+		}
+
+		AuthorizationInfo authorize(PrincipalCollection principals) {
+			return doGetAuthorizationInfo(principals);
+		}
+	}
+}
@@ -0,0 +1,349 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.tests;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.apache.shiro.saml2.Saml2AuthenticationException;
+import org.apache.shiro.saml2.Saml2MappedAssertionIdStore;
+import org.apache.shiro.saml2.Saml2Realm;
+import org.apache.shiro.saml2.Saml2Token;
+import org.apache.shiro.saml2.test.support.AssertionIdStoreProcess;
+import org.apache.shiro.saml2.test.support.SamlResponseGenerator;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestSaml2MappedAssertionIdStore {
+
+	private static final long IN_ONE_HOUR = System.currentTimeMillis() + 3600 * 1000L;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private String file;
+
+	private final List<Saml2MappedAssertionIdStore> stores = new ArrayList<Saml2MappedAssertionIdStore>();
+
+	@Before
+	public void setUp() {
+		file = new File(folder.getRoot(), "assertion-ids").getPath();
+	}
+
+	@After
+	public void tearDown() {
+		for (Saml2MappedAssertionIdStore store : stores) {
+			store.destroy();
+		}
+	}
+
+	/**
+	 * Test that an assertion ID is only accepted once while not expired
+	 */
+	@Test
+	public void testReplayIsDetected() {
+		Saml2MappedAssertionIdStore store = newStore(1024);
+		Assert.assertTrue(store.isLockFree());
+		Assert.assertFalse(store.contains("id-1"));
+		Assert.assertTrue(store.add("id-1", IN_ONE_HOUR));
+		Assert.assertFalse(store.add("id-1", IN_ONE_HOUR));
+		Assert.assertTrue(store.contains("id-1"));
+		Assert.assertFalse(store.contains("id-2"));
+	}
+
+	/**
+	 * Test that expired assertion IDs are forgotten and their slots reused
+	 */
+	@Test
+	public void testExpiredIdIsForgotten() {
+		Saml2MappedAssertionIdStore store = newStore(4);
+		long expired = System.currentTimeMillis() - 1;
+		for (int i = 0; i < 4; i++) {
+			Assert.assertTrue(store.add("id-" + i, expired));
+		}
+		Assert.assertFalse(store.contains("id-1"));
+		Assert.assertTrue(store.add("id-1", IN_ONE_HOUR));
+		for (int i = 4; i < 7; i++) {
+			Assert.assertTrue(store.add("id-" + i, IN_ONE_HOUR));
+		}
+		Assert.assertTrue(store.contains("id-1"));
+		Assert.assertEquals(0, store.getEvictionCount());
+	}
+
+	/**
+	 * Test that the ID expiring first is evicted from a full store
+	 */
+	@Test
+	public void testFullStoreEvicts() {
+		Saml2MappedAssertionIdStore store = newStore(16);
+		for (int i = 0; i < 16; i++) {
+			Assert.assertTrue(store.add("id-" + i, IN_ONE_HOUR + i));
+		}
+		Assert.assertTrue(store.add("id-16", IN_ONE_HOUR + 16));
+		Assert.assertEquals(1, store.getEvictionCount());
+		Assert.assertFalse(store.contains("id-0"));
+		Assert.assertTrue(store.contains("id-16"));
+	}
+
+	/**
+	 * Test that stores opened on the same file share their IDs, the capacity
+	 * being that of the file
+	 */
+	@Test
+	public void testStoresShareTheirFile() {
+		Saml2MappedAssertionIdStore first = newStore(1000);
+		first.init();
+		Assert.assertEquals(1024, first.getCapacity());
+		Assert.assertTrue(first.add("id-1", IN_ONE_HOUR));
+
+		Saml2MappedAssertionIdStore second = newStore(64);
+		second.init();
+		Assert.assertEquals(1024, second.getCapacity());
+		Assert.assertFalse(second.add("id-1", IN_ONE_HOUR));
+		Assert.assertTrue(second.add("id-2", IN_ONE_HOUR));
+		Assert.assertTrue(first.contains("id-2"));
+	}
+
+	/**
+	 * Test that an existing file which is not a store is left untouched
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testOtherFileIsRejected() throws Exception {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			for (int i = 0; i < 128; i++) {
+				out.write('x');
+			}
+		} finally {
+			out.close();
+		}
+		try {
+			newStore(64).init();
+			Assert.fail("Foreign file opened");
+		} catch (IllegalStateException e) {
+			Assert.assertEquals(128, new File(file).length());
+		}
+	}
+
+	/**
+	 * Test that a file shorter than a header is not overwritten, and that a
+	 * file truncated before or while open is rejected instead of crashing the
+	 * JVM
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testTruncatedFileIsRejected() throws Exception {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write("SAML2".getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		try {
+			newStore(64).init();
+			Assert.fail("Foreign file opened");
+		} catch (IllegalStateException e) {
+			Assert.assertEquals(5, new File(file).length());
+		}
+		Assert.assertTrue(new File(file).delete());
+
+		Saml2MappedAssertionIdStore store = newStore(1024);
+		Assert.assertTrue(store.add("id-1", IN_ONE_HOUR));
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			randomAccessFile.setLength(randomAccessFile.length() / 2);
+		} finally {
+			randomAccessFile.close();
+		}
+		try {
+			store.add("id-2", IN_ONE_HOUR);
+			Assert.fail("Truncated file used");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+		try {
+			newStore(1024).init();
+			Assert.fail("Truncated file opened");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Test that under contention each assertion ID is accepted exactly once
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testConcurrentReplays() throws Exception {
+		final int threads = 16;
+		final int ids = 20000;
+		final Saml2MappedAssertionIdStore store = newStore(ids * 4);
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+			for (int t = 0; t < threads; t++) {
+				final int offset = t;
+				results.add(executor.submit(new Callable<Integer>() {
+					public Integer call() throws Exception {
+						start.await();
+						int accepted = 0;
+						for (int i = 0; i < ids; i++) {
+							if (store.add("id-" + ((i + offset * 997) % ids),
+									IN_ONE_HOUR)) {
+								accepted++;
+							}
+						}
+						return accepted;
+					}
+				}));
+			}
+			start.countDown();
+			int accepted = 0;
+			for (Future<Integer> result : results) {
+				accepted += result.get();
+			}
+			Assert.assertEquals(ids, accepted);
+			Assert.assertEquals(0, store.getEvictionCount());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Test that processes sharing a store file accept each assertion ID
+	 * exactly once between them
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testConcurrentProcesses() throws Exception {
+		int processCount = 3;
+		int ids = 20000;
+		String javaCommand = System.getProperty("java.home") + File.separator
+				+ "bin" + File.separator + "java";
+		List<Process> processes = new ArrayList<Process>();
+		try {
+			for (int p = 0; p < processCount; p++) {
+				processes.add(new ProcessBuilder(javaCommand, "-cp", System
+						.getProperty("java.class.path"),
+						AssertionIdStoreProcess.class.getName(), file, String
+								.valueOf(ids * 4), String.valueOf(ids), String
+								.valueOf(p * 997)).redirectErrorStream(true)
+						.start());
+			}
+			List<BufferedReader> outputs = new ArrayList<BufferedReader>();
+			for (Process process : processes) {
+				BufferedReader output = new BufferedReader(
+						new InputStreamReader(process.getInputStream()));
+				Assert.assertEquals("READY", readLine(output));
+				outputs.add(output);
+			}
+			for (Process process : processes) {
+				process.getOutputStream().write('\n');
+				process.getOutputStream().flush();
+			}
+			int accepted = 0;
+			for (BufferedReader output : outputs) {
+				accepted += Integer.parseInt(readLine(output));
+			}
+			Assert.assertEquals(ids, accepted);
+
+			Saml2MappedAssertionIdStore store = newStore(64);
+			store.init();
+			Assert.assertEquals(131072, store.getCapacity());
+			Assert.assertFalse(store.add("id-0", IN_ONE_HOUR));
+		} finally {
+			for (Process process : processes) {
+				process.destroy();
+			}
+		}
+	}
+
+	/**
+	 * Test that a response consumed through a realm is rejected by another
+	 * realm sharing the store file
+	 */
+	@Test
+	public void testRealmsShareTheirStore() {
+		TestRealm first = new TestRealm();
+		first.setAssertionIdStore(newStore(1024));
+		TestRealm second = new TestRealm();
+		second.setAssertionIdStore(newStore(1024));
+		Assert.assertNull(second.getReplayCache());
+
+		String samlResponse = SamlResponseGenerator.small().generateEncoded();
+		Assert.assertNotNull(first.authenticate(new Saml2Token(samlResponse)));
+		try {
+			second.authenticate(new Saml2Token(samlResponse));
+			Assert.fail("Replayed response accepted");
+		} catch (Saml2AuthenticationException e) {
+			Assert.assertTrue(e.getMessage().endsWith("has already been used"));
+		}
+	}
+
+	private Saml2MappedAssertionIdStore newStore(int capacity) {
+		Saml2MappedAssertionIdStore store = new Saml2MappedAssertionIdStore(
+				file, capacity);
+		stores.add(store);
+		return store;
+	}
+
+	private static String readLine(BufferedReader output) throws Exception {
+		String line = output.readLine();
+		/*
+		 * Skips the log lines of the child process
+		 */
+		while (line != null && !line.equals("READY")
+				&& !line.matches("\\d+")) {
+			line = output.readLine();
+		}
+		return line;
+	}
+
+	/*
+	 * Exposes the protected realm lookup to the test
+	 */
+	private static class TestRealm extends Saml2Realm {
+
+		AuthenticationInfo authenticate(Saml2Token token) {
+			return doGetAuthenticationInfo(token);
+		}
+	}
+}
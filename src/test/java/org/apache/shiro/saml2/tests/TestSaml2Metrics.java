@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.tests;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.apache.shiro.saml2.Saml2Histogram;
+import org.apache.shiro.saml2.Saml2Metrics;
+import org.apache.shiro.saml2.Saml2Stage;
+import org.apache.shiro.saml2.TokenToSaml2Response;
+import org.apache.shiro.saml2.test.support.SamlResponseGenerator;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestSaml2Metrics {
+
+	@After
+	public void disableMetrics() {
+		Saml2Metrics.getInstance().setEnabled(false);
+		Saml2Metrics.getInstance().reset();
+	}
+
+	/**
+	 * Test that the reported quantiles are within the histogram precision
+	 */
+	@Test
+	public void testHistogramQuantiles() {
+		Saml2Histogram histogram = new Saml2Histogram();
+		for (int i = 1; i <= 10000; i++) {
+			histogram.record(i);
+		}
+		Assert.assertEquals(10000, histogram.getCount());
+		Assert.assertEquals(10000, histogram.getMax());
+		assertWithin(5000, histogram.getQuantile(0.5));
+		assertWithin(9900, histogram.getQuantile(0.99));
+		assertWithin(9990, histogram.getQuantile(0.999));
+	}
+
+	/**
+	 * Test that nothing is recorded while the metrics are disabled
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testDisabledMetrics() throws Exception {
+		Saml2Metrics metrics = Saml2Metrics.getInstance();
+		TokenToSaml2Response.convertToken(SamlResponseGenerator.small()
+				.generateEncoded());
+		Assert.assertEquals(0, metrics.getHistogram(Saml2Stage.PARSE)
+				.getCount());
+		Assert.assertEquals(0, metrics.getPayloadSizes().getCount());
+	}
+
+	/**
+	 * Test that the stages of a conversion are published over JMX
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testMBean() throws Exception {
+		Saml2Metrics metrics = Saml2Metrics.getInstance();
+		metrics.enableAndRegister();
+		TokenToSaml2Response.convertToken(SamlResponseGenerator.small()
+				.generateEncoded());
+		metrics.recordFailure(new IllegalStateException(
+				new IOException()));
+
+		ObjectName name = new ObjectName(Saml2Metrics.OBJECT_NAME);
+		TabularData stages = (TabularData) ManagementFactory
+				.getPlatformMBeanServer().getAttribute(name, "Stages");
+		CompositeData parse = (CompositeData) stages.get(
+				new Object[] { Saml2Stage.PARSE.name() }).get("value");
+		Assert.assertEquals(1L, parse.get("count"));
+		Assert.assertTrue((Long) parse.get("p99") > 0);
+		Assert.assertEquals(1L, metrics.getPayloadSizes().getCount());
+		Assert.assertEquals(Long.valueOf(1), metrics.getFailureCounts()
+				.get("java.io.IOException"));
+	}
+
+	private static void assertWithin(long expected, long actual) {
+		Assert.assertTrue(actual + " not within 12.5% of " + expected,
+				Math.abs(actual - expected) <= expected / 8);
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
+
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.apache.shiro.saml2.Saml2ParameterInputStream;
+import org.apache.shiro.saml2.Saml2Realm;
+import org.apache.shiro.saml2.Saml2Token;
+import org.apache.shiro.saml2.Saml2TokenValidationException;
+import org.apache.shiro.saml2.TokenToSaml2Response;
+import org.apache.shiro.saml2.test.constants.SampleSamlResponse;
+import org.apache.shiro.saml2.test.support.SamlResponseGenerator;
+import org.junit.Assert;
+import org.junit.Test;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.xml.util.Base64;
+
+public class TestSaml2ParameterInputStream {
+
+	/**
+	 * Test that the parameter value is extracted and URL decoded
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testReadParameter() throws IOException {
+		Assert.assertEquals("a+b c/=", read(
+				"RelayState=xyz&SAMLResponse=a%2Bb+c%2f%3D&other=1",
+				"SAMLResponse"));
+		Assert.assertEquals("last", read("SAMLResponseX=1&SAMLResponse=last",
+				"SAMLResponse"));
+		Assert.assertEquals("", read("SAML=1&Response=2", "SAMLResponse"));
+		Assert.assertEquals("", read("", "SAMLResponse"));
+	}
+
+	/**
+	 * Test that a SAML2 response posted as a form body is converted without
+	 * being read as a String first
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testConvertTokenFromFormBody() throws Exception {
+		String body = "RelayState=%2Fhome&SAMLResponse="
+				+ URLEncoder.encode(Base64
+						.encodeBytes(SampleSamlResponse.SAMPLE_SAML_RESPONSE
+								.getBytes()), "US-ASCII");
+		InputStream parameterStream = new Saml2ParameterInputStream(
+				new ByteArrayInputStream(body.getBytes("US-ASCII")),
+				"SAMLResponse");
+
+		Response response = TokenToSaml2Response.convertToken(parameterStream,
+				TokenToSaml2Response.getDefaultParserPool());
+		Assert.assertEquals("shiro-saml2", response.getAssertions().get(0)
+				.getSubject().getNameID().getValue());
+	}
+
+	/**
+	 * Test that a streamed response authenticates with a credential the
+	 * credentials matcher compares without reading the stream
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testRealmStreamingCredentials() throws Exception {
+		Saml2Realm realm = new Saml2Realm();
+		SamlResponseGenerator generator = SamlResponseGenerator.small();
+		for (boolean fastPath : new boolean[] { false, true }) {
+			realm.setFastPath(fastPath);
+			String body = "SAMLResponse="
+					+ URLEncoder.encode(generator.generateEncoded(), "US-ASCII");
+			Saml2Token token = new Saml2Token(new Saml2ParameterInputStream(
+					new ByteArrayInputStream(body.getBytes("US-ASCII")),
+					"SAMLResponse"));
+
+			AuthenticationInfo info = realm.getAuthenticationInfo(token);
+			Assert.assertNotNull(info);
+			Assert.assertFalse(info.getCredentials() instanceof InputStream);
+			Assert.assertSame(token, info.getCredentials());
+		}
+	}
+
+	/**
+	 * Test that a body without SAML response fails conversion
+	 *
+	 * @throws Saml2TokenValidationException
+	 */
+	@Test(expected = Saml2TokenValidationException.class)
+	public void testConvertTokenFromEmptyBody()
+			throws Saml2TokenValidationException {
+		TokenToSaml2Response.convertToken(new Saml2ParameterInputStream(
+				new ByteArrayInputStream("RelayState=1".getBytes()),
+				"SAMLResponse"), TokenToSaml2Response.getDefaultParserPool());
+	}
+
+	/**
+	 * Test that a value longer than the maximum length cannot be read
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testMaxLength() throws IOException {
+		Assert.assertEquals("abcd", read("SAMLResponse=abcd&x=123456",
+				"SAMLResponse", 4));
+		try {
+			read("SAMLResponse=abcde", "SAMLResponse", 4);
+			Assert.fail("The value exceeds the maximum length");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	private String read(String body, String parameterName) throws IOException {
+		return read(body, parameterName, 0);
+	}
+
+	private String read(String body, String parameterName, long maxLength)
+			throws IOException {
+		InputStream in = new Saml2ParameterInputStream(
+				new ByteArrayInputStream(body.getBytes()), parameterName,
+				maxLength);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[3];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toString();
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.tests;
+
+import java.io.ByteArrayInputStream;
+
+import javax.xml.parsers.DocumentBuilder;
+
+import org.apache.shiro.saml2.Saml2ParserPool;
+import org.apache.shiro.saml2.Saml2TokenValidationException;
+import org.apache.shiro.saml2.test.constants.SampleSamlResponse;
+import org.junit.Assert;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+public class TestSaml2ParserPool {
+
+	/**
+	 * Test that builders are reused across parses instead of being recreated
+	 *
+	 * @throws Saml2TokenValidationException
+	 */
+	@Test
+	public void testBuilderIsReused() throws Saml2TokenValidationException {
+		Saml2ParserPool pool = new Saml2ParserPool(2);
+		for (int i = 0; i < 10; i++) {
+			Document document = pool.parse(new ByteArrayInputStream(
+					SampleSamlResponse.SAMPLE_SAML_RESPONSE.getBytes()));
+			Assert.assertEquals("Response", document.getDocumentElement()
+					.getLocalName());
+		}
+		Assert.assertEquals(10, pool.getBorrowCount());
+		Assert.assertEquals(1, pool.getCreateCount());
+		Assert.assertEquals(1, pool.getExhaustedCount());
+		Assert.assertEquals(1, pool.getIdleCount());
+	}
+
+	/**
+	 * Test that builders returned to a full pool are discarded
+	 *
+	 * @throws Saml2TokenValidationException
+	 */
+	@Test
+	public void testPoolIsBounded() throws Saml2TokenValidationException {
+		Saml2ParserPool pool = new Saml2ParserPool(1);
+		DocumentBuilder first = pool.borrowBuilder();
+		DocumentBuilder second = pool.borrowBuilder();
+		Assert.assertEquals(2, pool.getExhaustedCount());
+
+		pool.returnBuilder(first);
+		pool.returnBuilder(second);
+		Assert.assertEquals(1, pool.getIdleCount());
+		Assert.assertEquals(1, pool.getDiscardCount());
+	}
+
+	/**
+	 * Test that documents declaring a DOCTYPE are rejected
+	 *
+	 * @throws Saml2TokenValidationException
+	 */
+	@Test(expected = Saml2TokenValidationException.class)
+	public void testDoctypeIsRejected() throws Saml2TokenValidationException {
+		String xxe = "<?xml version=\"1.0\"?>"
+				+ "<!DOCTYPE foo [<!ENTITY xxe SYSTEM \"file:///etc/passwd\">]>"
+				+ "<foo>&xxe;</foo>";
+		new Saml2ParserPool().parse(new ByteArrayInputStream(xxe.getBytes()));
+	}
+}
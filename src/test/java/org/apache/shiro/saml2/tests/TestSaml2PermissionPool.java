@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.tests;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.apache.shiro.authz.AuthorizationInfo;
+import org.apache.shiro.authz.Permission;
+import org.apache.shiro.authz.permission.WildcardPermission;
+import org.apache.shiro.saml2.Saml2PermissionPool;
+import org.apache.shiro.saml2.Saml2Realm;
+import org.apache.shiro.saml2.Saml2Token;
+import org.apache.shiro.saml2.test.support.SamlResponseGenerator;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestSaml2PermissionPool {
+
+	/**
+	 * Test that a permission string always resolves to the same permission
+	 */
+	@Test
+	public void testPermissionsAreShared() {
+		Saml2PermissionPool pool = new Saml2PermissionPool();
+		Permission permission = pool.get("document:read:1");
+		Assert.assertSame(permission, pool.get(new String("document:read:1")));
+		Assert.assertEquals(new WildcardPermission("document:read:1"),
+				permission);
+		Assert.assertEquals(new WildcardPermission("document:read:1")
+				.hashCode(), permission.hashCode());
+		Assert.assertTrue(pool.get("document:*").implies(permission));
+		Assert.assertEquals(2, pool.size());
+	}
+
+	/**
+	 * Test that a full pool still resolves new permissions without pooling
+	 * them
+	 */
+	@Test
+	public void testPoolIsBounded() {
+		Saml2PermissionPool pool = new Saml2PermissionPool(2);
+		pool.get("a");
+		pool.get("b");
+		Permission overflow = pool.get("c");
+		Assert.assertTrue(overflow.implies(new WildcardPermission("c")));
+		Assert.assertNotSame(overflow, pool.get("c"));
+		Assert.assertEquals(2, pool.size());
+		Assert.assertEquals(2, pool.getOverflowCount());
+	}
+
+	/**
+	 * Test that the authorization infos of different subjects hold the same
+	 * permission instances and still grant them
+	 */
+	@Test
+	public void testRealmSharesPermissions() {
+		TestRealm realm = new TestRealm();
+		realm.setDefaultPermissions("profile:read");
+		realm.setPermissionAttributeNames(SamlResponseGenerator.PERMISSION_ATTRIBUTE_NAME);
+		realm.setPermissionPool(new Saml2PermissionPool());
+
+		SamlResponseGenerator generator = SamlResponseGenerator.small();
+		PrincipalCollection first = realm.authenticate(
+				new Saml2Token(generator.generateEncoded())).getPrincipals();
+		generator.setNameId("other");
+		PrincipalCollection second = realm.authenticate(
+				new Saml2Token(generator.generateEncoded())).getPrincipals();
+
+		AuthorizationInfo firstInfo = realm.authorize(first);
+		AuthorizationInfo secondInfo = realm.authorize(second);
+		Assert.assertNull(firstInfo.getStringPermissions());
+		Assert.assertEquals(3, firstInfo.getObjectPermissions().size());
+		List<Permission> shared = new ArrayList<Permission>(
+				secondInfo.getObjectPermissions());
+		for (Permission permission : firstInfo.getObjectPermissions()) {
+			Assert.assertTrue(containsSame(shared, permission));
+		}
+		Assert.assertEquals(3, realm.getPermissionPool().size());
+
+		Assert.assertTrue(realm.isPermitted(first, "document:read:1"));
+		Assert.assertTrue(realm.isPermitted(second, "profile:read"));
+		Assert.assertFalse(realm.isPermitted(first, "document:write:1"));
+	}
+
+	private static boolean containsSame(Collection<Permission> permissions,
+			Permission permission) {
+		for (Permission candidate : permissions) {
+			if (candidate == permission) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Exposes the protected realm lookups to the test
+	 */
+	private static class TestRealm extends Saml2Realm {
+
+		AuthenticationInfo authenticate(Saml2Token token) {
+			return doGetAuthenticationInfo(token);
+		}
+
+		AuthorizationInfo authorize(PrincipalCollection principals) {
+			return doGetAuthorizationInfo(principals);
+		}
+	}
+}
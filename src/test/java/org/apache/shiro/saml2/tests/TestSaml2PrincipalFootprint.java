@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.apache.shiro.saml2.Saml2Principal;
+import org.apache.shiro.saml2.Saml2Realm;
+import org.apache.shiro.saml2.Saml2Token;
+import org.apache.shiro.saml2.TokenToSaml2Response;
+import org.apache.shiro.saml2.test.support.SamlResponseGenerator;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestSaml2PrincipalFootprint {
+
+	/**
+	 * Test that the principals can be stored in a serialized session
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testPrincipalsAreSerializable() throws Exception {
+		TestRealm realm = new TestRealm();
+		PrincipalCollection principals = realm.authenticate(
+				new Saml2Token(SamlResponseGenerator.small().generateEncoded()))
+				.getPrincipals();
+
+		new ObjectOutputStream(new ByteArrayOutputStream())
+				.writeObject(principals);
+		Saml2Principal principal = principals.oneByType(Saml2Principal.class);
+		Assert.assertEquals("shiro-saml2", principal.getNameId());
+		Assert.assertEquals("https://idp.example.org/SAML2",
+				principal.getIssuer());
+		Assert.assertNotNull(principal.getSessionIndex());
+		Assert.assertEquals(2, principal.getAttributeValues("roles").size());
+	}
+
+	/**
+	 * Test that the OpenSAML attributes formerly used as principals could not
+	 *
+	 * @throws Exception
+	 */
+	@Test(expected = NotSerializableException.class)
+	public void testAttributesAreNotSerializable() throws Exception {
+		new ObjectOutputStream(new ByteArrayOutputStream())
+				.writeObject(new SimplePrincipalCollection(TokenToSaml2Response
+						.convertToken(
+								SamlResponseGenerator.small().generateEncoded())
+						.getAssertions().get(0).getAttributeStatements()
+						.get(0).getAttributes(), "realm"));
+	}
+
+	/*
+	 * Exposes the protected realm lookup to the test
+	 */
+	private static class TestRealm extends Saml2Realm {
+
+		AuthenticationInfo authenticate(Saml2Token token) {
+			return doGetAuthenticationInfo(token);
+		}
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.tests;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.apache.shiro.authz.AuthorizationInfo;
+import org.apache.shiro.saml2.Saml2ArtifactResolver;
+import org.apache.shiro.saml2.Saml2AssertionDecrypter;
+import org.apache.shiro.saml2.Saml2AuthenticationException;
+import org.apache.shiro.saml2.Saml2IdentityProviderRegistry;
+import org.apache.shiro.saml2.Saml2MappedAssertionIdStore;
+import org.apache.shiro.saml2.Saml2Principal;
+import org.apache.shiro.saml2.Saml2Realm;
+import org.apache.shiro.saml2.Saml2Token;
+import org.apache.shiro.saml2.test.support.SamlResponseGenerator;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestSaml2Realm {
+
+	private TestRealm realm;
+
+	@Before
+	public void setUpRealm() {
+		realm = new TestRealm();
+		realm.setDefaultRoles("user, ,guest");
+		realm.setDefaultPermissions("profile:read");
+		realm.setRoleAttributeNames(SamlResponseGenerator.ROLE_ATTRIBUTE_NAME
+				+ ",missing");
+		realm.setPermissionAttributeNames(SamlResponseGenerator.PERMISSION_ATTRIBUTE_NAME);
+	}
+
+	/**
+	 * Test that roles and permissions are mapped from the configuration and
+	 * the attributes
+	 */
+	@Test
+	public void testAuthorizationInfo() {
+		SamlResponseGenerator generator = SamlResponseGenerator
+				.withAttributes(10, 3);
+		AuthenticationInfo authenticationInfo = realm
+				.authenticate(new Saml2Token(generator.generateEncoded()));
+
+		AuthorizationInfo authorizationInfo = realm
+				.authorize(authenticationInfo.getPrincipals());
+		Assert.assertEquals(5, authorizationInfo.getRoles().size());
+		Assert.assertTrue(authorizationInfo.getRoles().contains("user"));
+		Assert.assertTrue(authorizationInfo.getRoles().contains("guest"));
+		Assert.assertTrue(authorizationInfo.getRoles().contains("role-2"));
+		Assert.assertEquals(4, authorizationInfo.getStringPermissions().size());
+		Assert.assertTrue(authorizationInfo.getStringPermissions().contains(
+				"document:read:0"));
+	}
+
+	/**
+	 * Test that a configuration change is reflected in the next lookup
+	 */
+	@Test
+	public void testConfigurationChange() {
+		AuthenticationInfo authenticationInfo = realm
+				.authenticate(new Saml2Token(SamlResponseGenerator.small()
+						.generateEncoded()));
+		realm.setDefaultRoles("admin");
+		realm.setRoleAttributeNames(null);
+
+		AuthorizationInfo authorizationInfo = realm
+				.authorize(authenticationInfo.getPrincipals());
+		Assert.assertEquals(1, authorizationInfo.getRoles().size());
+		Assert.assertTrue(authorizationInfo.getRoles().contains("admin"));
+	}
+
+	/**
+	 * Test that a response cannot be used twice
+	 */
+	@Test(expected = Saml2AuthenticationException.class)
+	public void testReplayedResponse() {
+		String token = SamlResponseGenerator.small().generateEncoded();
+		Assert.assertNotNull(realm.authenticate(new Saml2Token(token)));
+		realm.authenticate(new Saml2Token(token));
+	}
+
+	/**
+	 * Test that the fast path maps the same roles and permissions as the
+	 * OpenSAML path
+	 */
+	@Test
+	public void testFastPathAuthorizationInfo() {
+		realm.setFastPath(true);
+		testAuthorizationInfo();
+	}
+
+	/**
+	 * Test that the fast path rejects an expired response
+	 */
+	@Test
+	public void testFastPathExpiredResponse() {
+		realm.setFastPath(true);
+		SamlResponseGenerator generator = SamlResponseGenerator.small();
+		generator.setValidityMillis(-1000L);
+		Assert.assertNull(realm.authenticate(new Saml2Token(generator
+				.generateEncoded())));
+	}
+
+	/**
+	 * Test that the fast path detects replayed responses
+	 */
+	@Test(expected = Saml2AuthenticationException.class)
+	public void testFastPathReplayedResponse() {
+		realm.setFastPath(true);
+		testReplayedResponse();
+	}
+
+	/**
+	 * Test that the attributes of every assertion and attribute statement are
+	 * mapped
+	 */
+	@Test
+	public void testMultipleAssertions() {
+		assertMultipleAssertions();
+	}
+
+	/**
+	 * Test that the fast path maps the attributes of every assertion and
+	 * attribute statement
+	 */
+	@Test
+	public void testFastPathMultipleAssertions() {
+		realm.setFastPath(true);
+		assertMultipleAssertions();
+	}
+
+	/**
+	 * Test that lazily converted attributes are only converted when looked up
+	 * and are all converted when serialized
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testLazyAttributes() throws Exception {
+		realm.setLazyAttributes(true);
+		Saml2Principal principal = assertMultipleAssertions();
+		Assert.assertEquals(5 + 2, principal.getAttributeNames().size());
+		Assert.assertEquals(Arrays.asList("value-4-0", "value-4-0"),
+				principal.getAttributeValues("attribute-4"));
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		new ObjectOutputStream(bytes).writeObject(principal);
+		Saml2Principal copy = (Saml2Principal) new ObjectInputStream(
+				new ByteArrayInputStream(bytes.toByteArray())).readObject();
+		Assert.assertEquals(principal, copy);
+		Assert.assertEquals(7, copy.getAttributes().size());
+	}
+
+	/**
+	 * Test that destroying the realm releases the components it initialized
+	 */
+	@Test
+	public void testDestroy() {
+		Saml2IdentityProviderRegistry registry = mock(Saml2IdentityProviderRegistry.class);
+		Saml2MappedAssertionIdStore assertionIdStore = mock(Saml2MappedAssertionIdStore.class);
+		Saml2ArtifactResolver artifactResolver = mock(Saml2ArtifactResolver.class);
+		Saml2AssertionDecrypter assertionDecrypter = mock(Saml2AssertionDecrypter.class);
+		realm.setIdentityProviderRegistry(registry);
+		realm.setAssertionIdStore(assertionIdStore);
+		realm.setArtifactResolver(artifactResolver);
+		realm.setAssertionDecrypter(assertionDecrypter);
+		realm.init();
+
+		realm.destroy();
+		verify(registry).destroy();
+		verify(assertionIdStore).destroy();
+		verify(artifactResolver).destroy();
+		verify(assertionDecrypter).destroy();
+	}
+
+	private Saml2Principal assertMultipleAssertions() {
+		SamlResponseGenerator generator = SamlResponseGenerator
+				.withAttributes(5, 3);
+		generator.setAssertionCount(2);
+		generator.setSplitStatements(true);
+		AuthenticationInfo authenticationInfo = realm
+				.authenticate(new Saml2Token(generator.generateEncoded()));
+
+		AuthorizationInfo authorizationInfo = realm
+				.authorize(authenticationInfo.getPrincipals());
+		Assert.assertEquals(5, authorizationInfo.getRoles().size());
+		Assert.assertEquals(4, authorizationInfo.getStringPermissions().size());
+		return authenticationInfo.getPrincipals().oneByType(
+				Saml2Principal.class);
+	}
+
+	/*
+	 * Exposes the protected realm lookups to the tests
+	 */
+	private static class TestRealm extends Saml2Realm {
+
+		AuthenticationInfo authenticate(Saml2Token token) {
+			return doGetAuthenticationInfo(token);
+		}
+
+		AuthorizationInfo authorize(PrincipalCollection principals) {
+			return doGetAuthorizationInfo(principals);
+		}
+	}
+}
@@ -0,0 +1,305 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.tests;
+
+import java.net.URLEncoder;
+
+import javax.servlet.ServletRequest;
+
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.apache.shiro.authc.AuthenticationToken;
+import org.apache.shiro.saml2.Saml2AuthenticationException;
+import org.apache.shiro.saml2.Saml2Binding;
+import org.apache.shiro.saml2.Saml2Filter;
+import org.apache.shiro.saml2.Saml2Principal;
+import org.apache.shiro.saml2.Saml2QuerySignature;
+import org.apache.shiro.saml2.Saml2Realm;
+import org.apache.shiro.saml2.Saml2SignatureVerifier;
+import org.apache.shiro.saml2.Saml2Token;
+import org.apache.shiro.saml2.Saml2TokenValidationException;
+import org.apache.shiro.saml2.TokenToSaml2Response;
+import org.apache.shiro.saml2.test.support.SamlResponseGenerator;
+import org.apache.shiro.saml2.test.support.SamlResponseSigner;
+import org.apache.shiro.saml2.test.support.WebTestSupport;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.xml.util.Base64;
+
+public class TestSaml2RedirectBinding {
+
+	private static SamlResponseSigner signer;
+
+	@BeforeClass
+	public static void setUpSigner() throws Exception {
+		signer = new SamlResponseSigner();
+	}
+
+	/**
+	 * Test that a deflated response converts to the same response as when
+	 * posted
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testConvertDeflatedToken() throws Exception {
+		String xml = SamlResponseGenerator.small().generate();
+		Response response = TokenToSaml2Response.convertDeflatedToken(
+				SamlResponseGenerator.deflate(xml),
+				TokenToSaml2Response.getDefaultParserPool(), 0);
+		Assert.assertEquals(TokenToSaml2Response.convertToken(
+				Base64.encodeBytes(xml.getBytes("UTF-8"),
+						Base64.DONT_BREAK_LINES))
+				.getID(), response.getID());
+		Assert.assertEquals(1, response.getAssertions().size());
+	}
+
+	/**
+	 * Test that the thread's inflater is reused across responses
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testInflaterReuse() throws Exception {
+		SamlResponseGenerator generator = SamlResponseGenerator.small();
+		for (int i = 0; i < 100; i++) {
+			Assert.assertEquals(1, TokenToSaml2Response
+					.convertDeflatedToken(generator.generateDeflated(),
+							TokenToSaml2Response.getDefaultParserPool(), 0)
+					.getAssertions().size());
+		}
+	}
+
+	/**
+	 * Test that a response inflating beyond the maximum size is rejected
+	 *
+	 * @throws Exception
+	 */
+	@Test(expected = Saml2TokenValidationException.class)
+	public void testInflatedSizeCap() throws Exception {
+		String token = SamlResponseGenerator.withAttributes(200, 10)
+				.generateDeflated();
+		TokenToSaml2Response.convertDeflatedToken(token,
+				TokenToSaml2Response.getDefaultParserPool(), 4096);
+	}
+
+	/**
+	 * Test that the realm authenticates a redirect token, with and without
+	 * the fast path
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testRealmAuthenticatesRedirectToken() throws Exception {
+		TestRealm realm = new TestRealm();
+		Assert.assertEquals("shiro-saml2", nameId(realm.authenticate(
+				new Saml2Token(SamlResponseGenerator.small()
+						.generateDeflated(), Saml2Binding.HTTP_REDIRECT))));
+
+		realm.setFastPath(true);
+		Assert.assertEquals("shiro-saml2", nameId(realm.authenticate(
+				new Saml2Token(SamlResponseGenerator.small()
+						.generateDeflated(), Saml2Binding.HTTP_REDIRECT))));
+	}
+
+	/**
+	 * Test that the filter creates redirect tokens for GET requests, with
+	 * their query string signature
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testFilterCreatesRedirectToken() throws Exception {
+		String samlResponse = SamlResponseGenerator.small().generateDeflated();
+		Saml2Token token = (Saml2Token) new TokenFilter()
+				.token(WebTestSupport.newRedirectRequest(signer.signQuery(
+						samlResponse, "/target?a=b")));
+		Assert.assertTrue(token.isDeflated());
+		Assert.assertEquals(samlResponse, token.getCredentials());
+		Assert.assertNotNull(token.getQuerySignature());
+		Assert.assertEquals(
+				"http://www.w3.org/2001/04/xmldsig-more#rsa-sha256", token
+						.getQuerySignature().getAlgorithm());
+
+		token = (Saml2Token) new TokenFilter().token(WebTestSupport
+				.newPostRequest(SamlResponseGenerator.small()
+						.generateEncoded()));
+		Assert.assertFalse(token.isDeflated());
+		Assert.assertNull(token.getQuerySignature());
+	}
+
+	/**
+	 * Test that a redirect with a valid query string signature is accepted
+	 * although its XML is not signed
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testSignedQueryIsAccepted() throws Exception {
+		TestRealm realm = new TestRealm();
+		realm.setSignatureVerifier(new Saml2SignatureVerifier(
+				SamlResponseSigner.CERTIFICATE_LOCATION));
+		String samlResponse = SamlResponseGenerator.small().generateDeflated();
+		Assert.assertEquals("shiro-saml2", nameId(realm
+				.authenticate(redirectToken(samlResponse,
+						signer.signQuery(samlResponse, "state")))));
+	}
+
+	/**
+	 * Test that a redirect whose response differs from the signed one is
+	 * rejected
+	 *
+	 * @throws Exception
+	 */
+	@Test(expected = Saml2AuthenticationException.class)
+	public void testTamperedQueryIsRejected() throws Exception {
+		TestRealm realm = new TestRealm();
+		realm.setSignatureVerifier(new Saml2SignatureVerifier(
+				SamlResponseSigner.CERTIFICATE_LOCATION));
+		String query = signer.signQuery(SamlResponseGenerator.small()
+				.generateDeflated(), null);
+		realm.authenticate(redirectToken(SamlResponseGenerator.small()
+				.generateDeflated(), query.replace("SAMLResponse=",
+				"SAMLResponse=A")));
+	}
+
+	/**
+	 * Test that an unsigned redirect is rejected when signatures are required
+	 *
+	 * @throws Exception
+	 */
+	@Test(expected = Saml2AuthenticationException.class)
+	public void testUnsignedRedirectIsRejected() throws Exception {
+		TestRealm realm = new TestRealm();
+		realm.setSignatureVerifier(new Saml2SignatureVerifier(
+				SamlResponseSigner.CERTIFICATE_LOCATION));
+		realm.authenticate(new Saml2Token(SamlResponseGenerator.small()
+				.generateDeflated(), Saml2Binding.HTTP_REDIRECT));
+	}
+
+	/**
+	 * Test that the signed content is rebuilt from the raw values in the
+	 * order of the binding, and that unsigned query strings have no signature
+	 */
+	@Test
+	public void testParseQuerySignature() throws Exception {
+		Saml2QuerySignature signature = Saml2QuerySignature.parse(
+				"Signature=c2ln&SigAlg=urn%3Aalg&foo=bar&RelayState=r%2F1"
+						+ "&SAMLResponse=abc%2B", "SAMLResponse");
+		Assert.assertEquals(
+				"SAMLResponse=abc%2B&RelayState=r%2F1&SigAlg=urn%3Aalg",
+				signature.getSignedContent());
+		Assert.assertEquals("urn:alg", signature.getAlgorithm());
+		Assert.assertEquals("c2ln", signature.getSignature());
+		Assert.assertEquals("abc+", signature.getMessage());
+		Assert.assertEquals("r/1", signature.getRelayState());
+
+		Assert.assertNull(Saml2QuerySignature.parse("SAMLResponse=abc",
+				"SAMLResponse"));
+		Assert.assertNull(Saml2QuerySignature.parse(null, "SAMLResponse"));
+	}
+
+	/**
+	 * Test that a query string repeating a signed parameter is rejected, so
+	 * that a forged response cannot be processed in place of the signed one
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testDuplicateParameters() throws Exception {
+		String signedQuery = signer.signQuery(SamlResponseGenerator.small()
+				.generateDeflated(), "state");
+		String forged = "SAMLResponse="
+				+ URLEncoder.encode(SamlResponseGenerator.small()
+						.generateDeflated(), "UTF-8");
+		for (String query : new String[] { forged + "&" + signedQuery,
+				signedQuery + "&RelayState=other",
+				signedQuery + "&SigAlg=urn%3Aalg",
+				signedQuery + "&Signature=c2ln" }) {
+			try {
+				Saml2QuerySignature.parse(query, "SAMLResponse");
+				Assert.fail("Duplicate parameter accepted : " + query);
+			} catch (Saml2TokenValidationException e) {
+				// Expected
+			}
+		}
+
+		try {
+			new TokenFilter().token(WebTestSupport.newRedirectRequest(forged
+					+ "&" + signedQuery));
+			Assert.fail("Token created from a query string with two responses");
+		} catch (Saml2AuthenticationException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Test that the realm only processes the response covered by the query
+	 * string signature
+	 *
+	 * @throws Exception
+	 */
+	@Test(expected = Saml2AuthenticationException.class)
+	public void testResponseNotCoveredBySignature() throws Exception {
+		TestRealm realm = new TestRealm();
+		realm.setSignatureVerifier(new Saml2SignatureVerifier(
+				SamlResponseSigner.CERTIFICATE_LOCATION));
+		Saml2Token token = new Saml2Token(SamlResponseGenerator.small()
+				.generateDeflated(), Saml2Binding.HTTP_REDIRECT);
+		token.setQuerySignature(Saml2QuerySignature.parse(
+				signer.signQuery(SamlResponseGenerator.small()
+						.generateDeflated(), null), "SAMLResponse"));
+		realm.authenticate(token);
+	}
+
+	private static Saml2Token redirectToken(String samlResponse, String query)
+			throws Saml2TokenValidationException {
+		Saml2Token token = new Saml2Token(samlResponse,
+				Saml2Binding.HTTP_REDIRECT);
+		token.setQuerySignature(Saml2QuerySignature.parse(query,
+				"SAMLResponse"));
+		return token;
+	}
+
+	private static String nameId(AuthenticationInfo info) {
+		return info.getPrincipals().oneByType(Saml2Principal.class)
+				.getNameId();
+	}
+
+	/*
+	 * Exposes the protected realm lookup to the test
+	 */
+	private static class TestRealm extends Saml2Realm {
+
+		AuthenticationInfo authenticate(Saml2Token token) {
+			return doGetAuthenticationInfo(token);
+		}
+	}
+
+	/*
+	 * Exposes the protected token creation of the filter to the test
+	 */
+	private static class TokenFilter extends Saml2Filter {
+
+		AuthenticationToken token(ServletRequest request) throws Exception {
+			return createToken(request, WebTestSupport.newResponse());
+		}
+	}
+}
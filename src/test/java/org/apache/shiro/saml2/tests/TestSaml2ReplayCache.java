@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.shiro.saml2.Saml2ReplayCache;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestSaml2ReplayCache {
+
+	private static final long IN_ONE_HOUR = System.currentTimeMillis() + 3600 * 1000L;
+
+	/**
+	 * Test that an assertion ID is only accepted once while not expired
+	 */
+	@Test
+	public void testReplayIsDetected() {
+		Saml2ReplayCache cache = new Saml2ReplayCache();
+		Assert.assertTrue(cache.add("id-1", IN_ONE_HOUR));
+		Assert.assertFalse(cache.add("id-1", IN_ONE_HOUR));
+		Assert.assertTrue(cache.contains("id-1"));
+		Assert.assertEquals(1, cache.getHitCount());
+		Assert.assertEquals(1, cache.getMissCount());
+	}
+
+	/**
+	 * Test that expired assertion IDs are forgotten
+	 */
+	@Test
+	public void testExpiredIdIsForgotten() {
+		Saml2ReplayCache cache = new Saml2ReplayCache(10, 1);
+		Assert.assertTrue(cache.add("id-1", System.currentTimeMillis() - 1));
+		Assert.assertFalse(cache.contains("id-1"));
+		Assert.assertTrue(cache.add("id-2", IN_ONE_HOUR));
+		Assert.assertEquals(1, cache.getExpirationCount());
+		Assert.assertEquals(1, cache.size());
+	}
+
+	/**
+	 * Test that the cache never holds more than its maximum size
+	 */
+	@Test
+	public void testSizeIsBounded() {
+		Saml2ReplayCache cache = new Saml2ReplayCache(100, 4);
+		for (int i = 0; i < 1000; i++) {
+			cache.add("id-" + i, IN_ONE_HOUR);
+		}
+		Assert.assertTrue(cache.size() <= cache.getMaxSize());
+		Assert.assertEquals(1000 - cache.size(), cache.getEvictionCount());
+	}
+
+	/**
+	 * Test that under contention each assertion ID is accepted exactly once
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testConcurrentReplays() throws Exception {
+		final int threads = 16;
+		final int ids = 20000;
+		final Saml2ReplayCache cache = new Saml2ReplayCache(ids * 2, threads);
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+			for (int t = 0; t < threads; t++) {
+				final int offset = t;
+				results.add(executor.submit(new Callable<Integer>() {
+					public Integer call() throws Exception {
+						start.await();
+						int accepted = 0;
+						for (int i = 0; i < ids; i++) {
+							if (cache.add("id-" + ((i + offset * 997) % ids),
+									IN_ONE_HOUR)) {
+								accepted++;
+							}
+						}
+						return accepted;
+					}
+				}));
+			}
+			start.countDown();
+			int accepted = 0;
+			for (Future<Integer> result : results) {
+				accepted += result.get();
+			}
+			Assert.assertEquals(ids, accepted);
+			Assert.assertEquals(ids, cache.getMissCount());
+			Assert.assertEquals((long) ids * (threads - 1), cache.getHitCount());
+			Assert.assertEquals(0, cache.getEvictionCount());
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,387 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.tests;
+
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.shiro.saml2.Saml2IdentityProvider;
+import org.apache.shiro.saml2.Saml2IdentityProviderRegistry;
+import org.apache.shiro.saml2.Saml2LogoutHandler;
+import org.apache.shiro.saml2.Saml2Principal;
+import org.apache.shiro.saml2.Saml2RedirectBinding;
+import org.apache.shiro.saml2.Saml2SessionRegistry;
+import org.apache.shiro.saml2.Saml2SignatureVerifier;
+import org.apache.shiro.saml2.test.support.SamlResponseGenerator;
+import org.apache.shiro.saml2.test.support.SamlResponseSigner;
+import org.apache.shiro.saml2.test.support.WebTestSupport;
+import org.apache.shiro.session.Session;
+import org.apache.shiro.session.SessionListener;
+import org.apache.shiro.session.mgt.DefaultSessionContext;
+import org.apache.shiro.session.mgt.DefaultSessionKey;
+import org.apache.shiro.session.mgt.DefaultSessionManager;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.opensaml.xml.util.Base64;
+
+public class TestSaml2SessionRegistry {
+
+	private static final String ISSUER = "https://idp.example.org/SAML2";
+
+	private static final String LOGOUT_RESPONSE_URL = "https://idp.example.org/SLO";
+
+	private static SamlResponseSigner signer;
+
+	private Saml2SessionRegistry registry;
+
+	private DefaultSessionManager sessionManager;
+
+	private Saml2LogoutHandler handler;
+
+	@BeforeClass
+	public static void setUpSigner() throws Exception {
+		signer = new SamlResponseSigner();
+	}
+
+	@Before
+	public void setUp() {
+		registry = new Saml2SessionRegistry();
+		sessionManager = new DefaultSessionManager();
+		sessionManager.setSessionValidationSchedulerEnabled(false);
+		sessionManager.setSessionListeners(Collections
+				.<SessionListener> singletonList(registry));
+		handler = new Saml2LogoutHandler();
+		handler.setSessionRegistry(registry);
+		handler.setSignatureVerifier(new Saml2SignatureVerifier(
+				SamlResponseSigner.CERTIFICATE_LOCATION));
+		handler.setLogoutResponseUrl(LOGOUT_RESPONSE_URL);
+		handler.setIssuer("https://sp.example.org");
+	}
+
+	/**
+	 * Test that the logout of a NameID removes all its sessions and only its
+	 * sessions
+	 */
+	@Test
+	public void testLogoutAllSessionsOfNameId() {
+		registry.register(principal("alice", "a1"), "s1");
+		registry.register(principal("alice", "a2"), "s2");
+		registry.register(principal("bob", "b1"), "s3");
+
+		List<Serializable> sessionIds = registry.unregister(ISSUER, "alice",
+				Collections.<String> emptyList());
+		Assert.assertEquals(2, sessionIds.size());
+		Assert.assertTrue(sessionIds.containsAll(Arrays.asList("s1", "s2")));
+		Assert.assertEquals(1, registry.getSessionCount());
+		Assert.assertTrue(registry.getSessionIds(ISSUER, "alice").isEmpty());
+		Assert.assertEquals(Collections.singletonList("s3"),
+				registry.getSessionIds(ISSUER, "bob"));
+	}
+
+	/**
+	 * Test that a logout with session indexes only removes the matching
+	 * sessions, and that the same NameID of another issuer is left alone
+	 */
+	@Test
+	public void testLogoutBySessionIndex() {
+		registry.register(principal("alice", "a1"), "s1");
+		registry.register(principal("alice", "a2"), "s2");
+		registry.register(new Saml2Principal("alice",
+				"https://other.example.org", "a1", Collections
+				.<String, List<String>> emptyMap()), "s3");
+
+		Assert.assertEquals(Collections.singletonList("s1"), registry
+				.unregister(ISSUER, "alice", Collections.singletonList("a1")));
+		Assert.assertEquals(Collections.singletonList("s2"),
+				registry.getSessionIds(ISSUER, "alice"));
+		Assert.assertEquals(2, registry.getSessionCount());
+	}
+
+	/**
+	 * Test that stopped and expired sessions are removed from the registry,
+	 * and that a session authenticated again is only registered once
+	 */
+	@Test
+	public void testSessionListener() {
+		Session first = sessionManager.start(new DefaultSessionContext());
+		Session second = sessionManager.start(new DefaultSessionContext());
+		registry.register(principal("alice", "a1"), first.getId());
+		registry.register(principal("alice", "a2"), second.getId());
+		registry.register(principal("bob", "b1"), second.getId());
+		Assert.assertEquals(2, registry.getSessionCount());
+		Assert.assertTrue(registry.getSessionIds(ISSUER, "bob").contains(
+				second.getId()));
+
+		first.stop();
+		Assert.assertTrue(registry.getSessionIds(ISSUER, "alice").isEmpty());
+		registry.onExpiration(second);
+		Assert.assertTrue(registry.getSessionIds(ISSUER, "bob").isEmpty());
+		Assert.assertEquals(0, registry.getSessionCount());
+	}
+
+	/**
+	 * Test that sessions are no longer registered once the registry is full
+	 */
+	@Test
+	public void testMaxSessions() {
+		registry.setMaxSessions(2);
+		Assert.assertTrue(registry.register(principal("alice", "a1"), "s1"));
+		Assert.assertTrue(registry.register(principal("bob", "b1"), "s2"));
+		Assert.assertFalse(registry.register(principal("carol", "c1"), "s3"));
+		Assert.assertEquals(1, registry.getOverflowCount());
+
+		registry.unregister("s1");
+		Assert.assertTrue(registry.register(principal("carol", "c1"), "s3"));
+		Assert.assertEquals(2, registry.getSessionCount());
+	}
+
+	/**
+	 * Test that a signed LogoutRequest over the HTTP-Redirect binding stops
+	 * the sessions of its SessionIndex and is answered with a LogoutResponse
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testRedirectLogoutRequest() throws Exception {
+		Session first = sessionManager.start(new DefaultSessionContext());
+		Session second = sessionManager.start(new DefaultSessionContext());
+		registry.register(principal("alice", "a1"), first.getId());
+		registry.register(principal("alice", "a2"), second.getId());
+
+		HttpServletRequest request = WebTestSupport
+				.newRedirectRequest(signer.signQuery("SAMLRequest",
+						SamlResponseGenerator.deflate(logoutRequest("alice",
+								"a1")), "state"));
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		Assert.assertTrue(handler.isLogoutRequest(request));
+		handler.handle(request, response, sessionManager);
+
+		Assert.assertFalse(sessionManager.isValid(new DefaultSessionKey(first
+				.getId())));
+		Assert.assertTrue(sessionManager.isValid(new DefaultSessionKey(second
+				.getId())));
+		Assert.assertEquals(1, registry.getSessionCount());
+
+		ArgumentCaptor<String> url = ArgumentCaptor.forClass(String.class);
+		verify(response).sendRedirect(url.capture());
+		Assert.assertTrue(url.getValue().startsWith(
+				LOGOUT_RESPONSE_URL + "?SAMLResponse="));
+		Assert.assertTrue(url.getValue().endsWith("&RelayState=state"));
+		String logoutResponse = inflate(url.getValue());
+		Assert.assertTrue(logoutResponse.contains("InResponseTo=\"_logout\""));
+		Assert.assertTrue(logoutResponse
+				.contains("urn:oasis:names:tc:SAML:2.0:status:Success"));
+	}
+
+	/**
+	 * Test that an unsigned LogoutRequest is rejected without stopping any
+	 * session
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testUnsignedLogoutRequest() throws Exception {
+		Session session = sessionManager.start(new DefaultSessionContext());
+		registry.register(principal("alice", "a1"), session.getId());
+
+		HttpServletRequest request = WebTestSupport.newPostRequest(null);
+		when(request.getParameter("SAMLRequest")).thenReturn(
+				Base64.encodeBytes(logoutRequest("alice", null)
+						.getBytes("UTF-8"), Base64.DONT_BREAK_LINES));
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		handler.handle(request, response, sessionManager);
+
+		verify(response).sendError(HttpServletResponse.SC_BAD_REQUEST);
+		verify(response, never()).sendRedirect(startsWith(LOGOUT_RESPONSE_URL));
+		Assert.assertTrue(sessionManager.isValid(new DefaultSessionKey(session
+				.getId())));
+		Assert.assertEquals(1, registry.getSessionCount());
+	}
+
+	/**
+	 * Test that with a registry a LogoutRequest must be signed with the key
+	 * of the IdP it names, even if the signature verifier trusts its signer
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testLogoutRequestIssuerMustMatch() throws Exception {
+		Saml2IdentityProviderRegistry identityProviders = mock(Saml2IdentityProviderRegistry.class);
+		handler.setIdentityProviderRegistry(identityProviders);
+		X509Certificate otherCertificate = (X509Certificate) CertificateFactory
+				.getInstance("X.509").generateCertificate(
+						getClass().getResourceAsStream("/sp-encryption.crt"));
+		when(identityProviders.get(ISSUER)).thenReturn(
+				new Saml2IdentityProvider(ISSUER, Collections
+						.singletonList(otherCertificate), null));
+		String query = signer.signQuery("SAMLRequest", SamlResponseGenerator
+				.deflate(logoutRequest("alice", null)), null);
+
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		handler.handle(WebTestSupport.newRedirectRequest(query), response,
+				sessionManager);
+		verify(response).sendError(HttpServletResponse.SC_BAD_REQUEST);
+
+		when(identityProviders.get(ISSUER)).thenReturn(null);
+		response = mock(HttpServletResponse.class);
+		handler.handle(WebTestSupport.newRedirectRequest(query), response,
+				sessionManager);
+		verify(response).sendError(HttpServletResponse.SC_BAD_REQUEST);
+
+		when(identityProviders.get(ISSUER)).thenReturn(
+				new Saml2IdentityProvider(ISSUER, Collections
+						.singletonList(signer.getCertificate()), null));
+		response = mock(HttpServletResponse.class);
+		handler.handle(WebTestSupport.newRedirectRequest(query), response,
+				sessionManager);
+		verify(response, never()).sendError(anyInt());
+	}
+
+	/**
+	 * Test that a LogoutRequest is only processed once
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testReplayedLogoutRequest() throws Exception {
+		String query = signer.signQuery("SAMLRequest", SamlResponseGenerator
+				.deflate(logoutRequest("alice", null)), null);
+		HttpServletResponse first = mock(HttpServletResponse.class);
+		handler.handle(WebTestSupport.newRedirectRequest(query), first,
+				sessionManager);
+		verify(first, never()).sendError(anyInt());
+
+		Session session = sessionManager.start(new DefaultSessionContext());
+		registry.register(principal("alice", "a1"), session.getId());
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		handler.handle(WebTestSupport.newRedirectRequest(query), response,
+				sessionManager);
+		verify(response).sendError(HttpServletResponse.SC_BAD_REQUEST);
+		Assert.assertTrue(sessionManager.isValid(new DefaultSessionKey(session
+				.getId())));
+	}
+
+	/**
+	 * Test that a LogoutRequest issued too long ago is rejected
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testStaleLogoutRequest() throws Exception {
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		handler.handle(WebTestSupport.newRedirectRequest(signer.signQuery(
+				"SAMLRequest", SamlResponseGenerator.deflate(logoutRequest(
+						"alice", null, new DateTime(DateTimeZone.UTC)
+								.minusMinutes(10))), null)), response,
+				sessionManager);
+		verify(response).sendError(HttpServletResponse.SC_BAD_REQUEST);
+	}
+
+	/**
+	 * Test that a forged LogoutRequest cannot be processed in place of the
+	 * one covered by the query string signature
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testDuplicateLogoutRequestParameter() throws Exception {
+		Session session = sessionManager.start(new DefaultSessionContext());
+		registry.register(principal("bob", "b1"), session.getId());
+
+		String forged = "SAMLRequest="
+				+ URLEncoder.encode(SamlResponseGenerator
+						.deflate(logoutRequest("bob", null)), "UTF-8");
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		handler.handle(WebTestSupport.newRedirectRequest(forged
+				+ "&"
+				+ signer.signQuery("SAMLRequest", SamlResponseGenerator
+						.deflate(logoutRequest("alice", null)), null)),
+				response, sessionManager);
+
+		verify(response).sendError(HttpServletResponse.SC_BAD_REQUEST);
+		Assert.assertTrue(sessionManager.isValid(new DefaultSessionKey(session
+				.getId())));
+	}
+
+	private static Saml2Principal principal(String nameId,
+			String sessionIndex) {
+		return new Saml2Principal(nameId, ISSUER, sessionIndex,
+				Collections.<String, List<String>> emptyMap());
+	}
+
+	private static String logoutRequest(String nameId, String sessionIndex) {
+		return logoutRequest(nameId, sessionIndex, new DateTime(
+				DateTimeZone.UTC));
+	}
+
+	private static String logoutRequest(String nameId, String sessionIndex,
+			DateTime issueInstant) {
+		StringBuilder xml = new StringBuilder(
+				"<samlp:LogoutRequest xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\"")
+				.append(" xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\"")
+				.append(" ID=\"_logout\" Version=\"2.0\" IssueInstant=\"")
+				.append(issueInstant).append("\">")
+				.append("<saml:Issuer>").append(ISSUER)
+				.append("</saml:Issuer><saml:NameID>").append(nameId)
+				.append("</saml:NameID>");
+		if (sessionIndex != null) {
+			xml.append("<samlp:SessionIndex>").append(sessionIndex)
+					.append("</samlp:SessionIndex>");
+		}
+		return xml.append("</samlp:LogoutRequest>").toString();
+	}
+
+	private static String inflate(String url) throws Exception {
+		int start = url.indexOf("SAMLResponse=") + "SAMLResponse=".length();
+		String samlResponse = URLDecoder.decode(
+				url.substring(start, url.indexOf('&', start)), "UTF-8");
+		InputStream in = Saml2RedirectBinding.inflate(samlResponse, 0);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		in.close();
+		return out.toString("UTF-8");
+	}
+}
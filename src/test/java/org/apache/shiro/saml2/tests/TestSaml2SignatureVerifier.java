@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.tests;
+
+import java.util.Collections;
+
+import org.apache.shiro.saml2.Saml2SignatureVerifier;
+import org.apache.shiro.saml2.Saml2TokenValidationException;
+import org.apache.shiro.saml2.TokenToSaml2Response;
+import org.apache.shiro.saml2.test.support.SamlResponseGenerator;
+import org.apache.shiro.saml2.test.support.SamlResponseSigner;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.xml.util.Base64;
+
+public class TestSaml2SignatureVerifier {
+
+	private static SamlResponseSigner signer;
+
+	@BeforeClass
+	public static void setUpSigner() throws Exception {
+		signer = new SamlResponseSigner();
+	}
+
+	/**
+	 * Test that a signed response is accepted
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testSignedResponse() throws Exception {
+		Saml2SignatureVerifier verifier = new Saml2SignatureVerifier(
+				SamlResponseSigner.CERTIFICATE_LOCATION);
+		verifier.verify(convert(signer.signResponse(SamlResponseGenerator
+				.small().generate())));
+	}
+
+	/**
+	 * Test that a response with signed assertions is accepted
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testSignedAssertions() throws Exception {
+		Saml2SignatureVerifier verifier = new Saml2SignatureVerifier(
+				Collections.singletonList(signer.getCertificate()));
+		verifier.verify(convert(signer.signAssertions(SamlResponseGenerator
+				.small().generate())));
+	}
+
+	/**
+	 * Test that a response modified after signature is rejected
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testTamperedResponse() throws Exception {
+		String signed = signer.signResponse(SamlResponseGenerator.small()
+				.generate());
+		Saml2SignatureVerifier verifier = new Saml2SignatureVerifier(
+				SamlResponseSigner.CERTIFICATE_LOCATION);
+		try {
+			verifier.verify(convert(signed.replace("role-0", "admin")));
+			Assert.fail("Tampered response accepted");
+		} catch (Saml2TokenValidationException e) {
+			Assert.assertEquals("Signature verification failed",
+					e.getMessage());
+		}
+	}
+
+	/**
+	 * Test that an unsigned response is rejected
+	 *
+	 * @throws Exception
+	 */
+	@Test(expected = Saml2TokenValidationException.class)
+	public void testUnsignedResponse() throws Exception {
+		Saml2SignatureVerifier verifier = new Saml2SignatureVerifier(
+				SamlResponseSigner.CERTIFICATE_LOCATION);
+		verifier.verify(convert(SamlResponseGenerator.small().generate()));
+	}
+
+	private static Response convert(String xml) throws Exception {
+		return TokenToSaml2Response.convertToken(Base64.encodeBytes(
+				xml.getBytes("UTF-8"), Base64.DONT_BREAK_LINES));
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shiro.saml2.tests;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.shiro.saml2.Saml2ExtractedAssertion;
+import org.apache.shiro.saml2.Saml2StaxExtractor;
+import org.apache.shiro.saml2.Saml2TokenValidationException;
+import org.apache.shiro.saml2.test.constants.SampleSamlResponse;
+import org.apache.shiro.saml2.test.support.SamlResponseGenerator;
+import org.junit.Assert;
+import org.junit.Test;
+import org.opensaml.xml.util.Base64;
+
+public class TestSaml2StaxExtractor {
+
+	private static final Set<String> ATTRIBUTE_NAMES = new HashSet<String>(
+			Arrays.asList(SamlResponseGenerator.ROLE_ATTRIBUTE_NAME,
+					"attribute-3"));
+
+	private final Saml2StaxExtractor extractor = new Saml2StaxExtractor();
+
+	/**
+	 * Test that the values of the first assertion are extracted, and only the
+	 * requested attributes
+	 *
+	 * @throws Saml2TokenValidationException
+	 */
+	@Test
+	public void testExtract() throws Saml2TokenValidationException {
+		SamlResponseGenerator generator = SamlResponseGenerator
+				.withAttributes(10, 3);
+		long now = System.currentTimeMillis();
+		List<Saml2ExtractedAssertion> assertions = extractor.extract(
+				generator.generateEncoded(), ATTRIBUTE_NAMES);
+		Assert.assertEquals(1, assertions.size());
+		Saml2ExtractedAssertion assertion = assertions.get(0);
+
+		Assert.assertEquals(generator.getNameId(), assertion.getNameId());
+		Assert.assertEquals(generator.getIssuer(), assertion.getIssuer());
+		Assert.assertEquals(assertion.getId(), assertion.getSessionIndex());
+		Assert.assertEquals(Collections.singletonList(generator.getAudience()),
+				assertion.getAudiences());
+		Assert.assertEquals(generator.getRecipient(), assertion.getRecipient());
+		Assert.assertEquals("request_1", assertion.getInResponseTo());
+		Assert.assertTrue(assertion.getNotBefore() < now);
+		Assert.assertTrue(assertion.getExpiration() > now);
+
+		Assert.assertEquals(2, assertion.getAttributes().size());
+		Assert.assertEquals(Arrays.asList("role-0", "role-1", "role-2"),
+				assertion.getAttributes().get(
+						SamlResponseGenerator.ROLE_ATTRIBUTE_NAME));
+		Assert.assertEquals(Arrays.asList("value-3-0"), assertion
+				.getAttributes().get("attribute-3"));
+	}
+
+	/**
+	 * Test that the streaming extraction reads the same values
+	 *
+	 * @throws Saml2TokenValidationException
+	 */
+	@Test
+	public void testExtractStream() throws Saml2TokenValidationException {
+		List<Saml2ExtractedAssertion> assertions = extractor.extract(
+				new ByteArrayInputStream(Base64
+						.encodeBytes(
+								SampleSamlResponse.SAMPLE_SAML_RESPONSE
+										.getBytes()).getBytes()),
+				ATTRIBUTE_NAMES);
+		Assert.assertEquals("shiro-saml2", assertions.get(0).getNameId());
+	}
+
+	/**
+	 * Test that every assertion and attribute statement is read
+	 *
+	 * @throws Saml2TokenValidationException
+	 */
+	@Test
+	public void testExtractAllAssertions() throws Saml2TokenValidationException {
+		SamlResponseGenerator generator = SamlResponseGenerator
+				.withAttributes(5, 2);
+		generator.setAssertionCount(3);
+		generator.setSplitStatements(true);
+		List<Saml2ExtractedAssertion> assertions = extractor.extract(
+				generator.generateEncoded(), ATTRIBUTE_NAMES);
+
+		Assert.assertEquals(3, assertions.size());
+		Assert.assertEquals(Arrays.asList("role-0", "role-1"), assertions
+				.get(0).getAttributes()
+				.get(SamlResponseGenerator.ROLE_ATTRIBUTE_NAME));
+		for (Saml2ExtractedAssertion assertion : assertions) {
+			Assert.assertEquals(generator.getNameId(), assertion.getNameId());
+			Assert.assertEquals(Arrays.asList("value-3-0"), assertion
+					.getAttributes().get("attribute-3"));
+		}
+	}
+
+	/**
+	 * Test that documents declaring a DOCTYPE are rejected
+	 *
+	 * @throws Saml2TokenValidationException
+	 */
+	@Test(expected = Saml2TokenValidationException.class)
+	public void testDoctypeIsRejected() throws Saml2TokenValidationException {
+		String xxe = "<?xml version=\"1.0\"?>"
+				+ "<!DOCTYPE foo [<!ENTITY xxe SYSTEM \"file:///etc/passwd\">]>"
+				+ "<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\">&xxe;</samlp:Response>";
+		extractor.extract(Base64.encodeBytes(xxe.getBytes()), ATTRIBUTE_NAMES);
+	}
+
+	/**
+	 * Test that a document which is not a response is rejected
+	 *
+	 * @throws Saml2TokenValidationException
+	 */
+	@Test(expected = Saml2TokenValidationException.class)
+	public void testNotAResponse() throws Saml2TokenValidationException {
+		extractor.extract(Base64.encodeBytes("<foo/>".getBytes()),
+				ATTRIBUTE_NAMES);
+	}
+}